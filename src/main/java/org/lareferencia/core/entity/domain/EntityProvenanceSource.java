@@ -0,0 +1,76 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+
+import org.lareferencia.core.util.LocalDateTimeAttributeConverter;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Read only projection of entity -> source_entity -> provenance: one row per entity and provenance source with the
+ * entity type and the newest provenance last update of the source. Rebuilt for every entity merged, by
+ * EntityMergeEngine or before the merge stored procedure runs (EntityMergeEngine.refreshDirtyProvenanceSources), it
+ * lets the indexing paginators filter by source and last update with index range scans instead of joining and
+ * deduplicating the source entities.
+ */
+@jakarta.persistence.Entity
+@Table(name = "entity_provenance_source",
+	   indexes = { @Index(name = "eps_source_entity", columnList = "source_id,entity_id,entity_type_id,max_last_update", unique = false),
+			       @Index(name = "eps_last_update_entity", columnList = "max_last_update,entity_id,entity_type_id", unique = false) })
+@NoArgsConstructor
+@Getter
+public class EntityProvenanceSource {
+
+	@EmbeddedId
+	private EntityProvenanceSourceId id;
+
+	@Column(name = "entity_id", insertable = false, updatable = false)
+	private UUID entityId;
+
+	@Column(name = "source_id", insertable = false, updatable = false)
+	private String sourceId;
+
+	@Column(name = "entity_type_id")
+	private Long entityTypeId;
+
+	@Convert(converter = LocalDateTimeAttributeConverter.class)
+	@Column(name = "max_last_update")
+	private LocalDateTime maxLastUpdate;
+
+	public EntityProvenanceSource(UUID entityId, String sourceId, Long entityTypeId, LocalDateTime maxLastUpdate) {
+		this.id = new EntityProvenanceSourceId(entityId, sourceId);
+		this.entityId = entityId;
+		this.sourceId = sourceId;
+		this.entityTypeId = entityTypeId;
+		this.maxLastUpdate = maxLastUpdate;
+	}
+}
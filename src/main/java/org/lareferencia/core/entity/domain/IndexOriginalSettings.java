@@ -0,0 +1,56 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Id;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Original settings of an index changed by a full reindex (refresh disabled, no replicas). They are recorded before
+ * the index is changed and removed once they are restored (see ReindexSettingsService), a null value was not set on
+ * the index and is reset to the cluster default.
+ */
+@jakarta.persistence.Entity
+@jakarta.persistence.Table(name = "index_original_settings")
+@NoArgsConstructor
+@Getter
+public class IndexOriginalSettings {
+
+	@Id
+	@Column(name = "index_name")
+	private String indexName;
+
+	@Column(name = "refresh_interval")
+	private String refreshInterval;
+
+	@Column(name = "number_of_replicas")
+	private String numberOfReplicas;
+
+	public IndexOriginalSettings(String indexName, String refreshInterval, String numberOfReplicas) {
+		this.indexName = indexName;
+		this.refreshInterval = refreshInterval;
+		this.numberOfReplicas = numberOfReplicas;
+	}
+}
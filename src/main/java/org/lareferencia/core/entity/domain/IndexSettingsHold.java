@@ -0,0 +1,64 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Id;
+
+import org.lareferencia.core.util.LocalDateTimeAttributeConverter;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * An indexer (of any node) writing an index with the reindex settings applied. The original settings of the index are
+ * restored when its last holder releases it, or by a later run once every hold expired without renewal.
+ */
+@jakarta.persistence.Entity
+@jakarta.persistence.Table(name = "index_settings_hold")
+@NoArgsConstructor
+@Getter
+public class IndexSettingsHold {
+
+	@Id
+	private String id;
+
+	@Column(name = "owner")
+	private String owner;
+
+	@Column(name = "index_name")
+	private String indexName;
+
+	@Convert(converter = LocalDateTimeAttributeConverter.class)
+	@Column(name = "expires_at")
+	private LocalDateTime expiresAt;
+
+	public IndexSettingsHold(String owner, String indexName, LocalDateTime expiresAt) {
+		this.id = owner + "::" + indexName;
+		this.owner = owner;
+		this.indexName = indexName;
+		this.expiresAt = expiresAt;
+	}
+}
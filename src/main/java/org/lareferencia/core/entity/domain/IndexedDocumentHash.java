@@ -0,0 +1,55 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Table;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * XXHash64 of the last document sent for an entity to a (physical) index, the Elastic indexers skip documents whose
+ * hash did not change (elastic.indexer.skip.unchanged)
+ */
+@jakarta.persistence.Entity
+@Table(name = "indexed_document_hash")
+@NoArgsConstructor
+@Getter
+public class IndexedDocumentHash {
+
+	@EmbeddedId
+	private IndexedDocumentHashId id;
+
+	@Setter
+	@Column(name = "hash")
+	private Long hash;
+
+	public IndexedDocumentHash(String indexName, UUID entityId, Long hash) {
+		this.id = new IndexedDocumentHashId(indexName, entityId);
+		this.hash = hash;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+
+import lombok.EqualsAndHashCode;
+
+
+@Embeddable
+@EqualsAndHashCode(callSuper = false, onlyExplicitlyIncluded = true)
+public class IndexedDocumentHashId implements Serializable {
+
+	@EqualsAndHashCode.Include
+	@Column(name = "index_name")
+	public String indexName;
+
+	@EqualsAndHashCode.Include
+	@Column(name = "entity_id")
+	public UUID entityId;
+
+	public IndexedDocumentHashId(String indexName, UUID entityId) {
+		this.indexName = indexName;
+		this.entityId = entityId;
+	}
+
+	public IndexedDocumentHashId() {
+		super();
+	}
+
+	@Override
+	public String toString() {
+		return indexName + "_" + entityId.toString();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Id;
+
+import org.lareferencia.core.util.LocalDateTimeAttributeConverter;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Last entity flushed to the indexer by an indexing run, keyed by the running context id and its filters
+ * (EntityIndexingRunningContext.getCheckpointId()). A run in resume mode continues after it in uuid order.
+ */
+@jakarta.persistence.Entity
+@jakarta.persistence.Table(name = "indexing_checkpoint")
+@NoArgsConstructor
+@Getter
+public class IndexingCheckpoint {
+
+	@Id
+	private String id;
+
+	@Setter
+	@Column(name = "last_entity_id")
+	private UUID lastEntityId;
+
+	@Setter
+	@Column(name = "entities_indexed")
+	private Long entitiesIndexed = 0L;
+
+	@Setter
+	@Convert(converter = LocalDateTimeAttributeConverter.class)
+	@Column(name = "updated_at")
+	private LocalDateTime updatedAt;
+
+	/** Run state of the indexer (see IEntityIndexer.createRunState), a run continuing this one must use it */
+	@Setter
+	@Column(name = "indexer_state")
+	private String indexerState;
+
+	public IndexingCheckpoint(String id) {
+		this.id = id;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.domain;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Id;
+
+import org.lareferencia.core.util.LocalDateTimeAttributeConverter;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Lease over one UUID range partition of a partitioned indexing run (see IndexingLeaseService). A partition is held
+ * by one owner (worker thread of any node) until it is completed or its lease expires without heartbeats, then it can
+ * be claimed again and is resumed from the last indexed entity.
+ *
+ * Rows are only modified through the compare and set updates of IndexingLeaseRepository.
+ */
+@jakarta.persistence.Entity
+@jakarta.persistence.Table(name = "indexing_lease")
+@NoArgsConstructor
+@Getter
+public class IndexingLease {
+
+	@Id
+	private String id;
+
+	/** Indexing run the partition belongs to */
+	@Column(name = "scope")
+	private String scope;
+
+	@Column(name = "partition_index")
+	private Integer partitionIndex;
+
+	/** Inclusive, null for the first partition */
+	@Column(name = "lower_bound")
+	private UUID lowerBound;
+
+	/** Exclusive, null for the last partition */
+	@Column(name = "upper_bound")
+	private UUID upperBound;
+
+	/** Current holder, null if never claimed */
+	@Column(name = "owner")
+	private String owner;
+
+	@Convert(converter = LocalDateTimeAttributeConverter.class)
+	@Column(name = "expires_at")
+	private LocalDateTime expiresAt;
+
+	/** Last entity indexed and flushed, the partition resumes after it */
+	@Column(name = "last_entity_id")
+	private UUID lastEntityId;
+
+	@Column(name = "entities_indexed")
+	private Long entitiesIndexed = 0L;
+
+	/** Entities the indexer failed to index, a run with failed entities is not complete */
+	@Column(name = "entities_failed")
+	private Long entitiesFailed = 0L;
+
+	/** Run state of the indexer (see IEntityIndexer.createRunState), shared by every owner of the run */
+	@Column(name = "indexer_state")
+	private String indexerState;
+
+	@Column(name = "completed")
+	private Boolean completed = false;
+
+	public IndexingLease(String scope, Integer partitionIndex, UUID lowerBound, UUID upperBound, String indexerState) {
+		this.id = scope + "::" + partitionIndex;
+		this.scope = scope;
+		this.partitionIndex = partitionIndex;
+		this.lowerBound = lowerBound;
+		this.upperBound = upperBound;
+		this.indexerState = indexerState;
+	}
+}
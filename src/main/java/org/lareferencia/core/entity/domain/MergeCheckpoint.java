@@ -0,0 +1,89 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.entity.domain;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Id;
+
+import org.lareferencia.core.util.LocalDateTimeAttributeConverter;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Progress of one UUID range partition of a merge run (see EntityMergeEngine). The rows of a run are kept until
+ * every partition is completed, so an interrupted run resumes from the last merged entity of each partition.
+ */
+@jakarta.persistence.Entity
+@jakarta.persistence.Table(name = "merge_checkpoint")
+@NoArgsConstructor
+@Getter
+public class MergeCheckpoint {
+
+	@Id
+	private String id;
+
+	/** Scope of the run: all the dirty entities or the ones of a single entity type */
+	@Column(name = "scope")
+	private String scope;
+
+	@Column(name = "partition_index")
+	private Integer partitionIndex;
+
+	/** Inclusive, null for the first partition */
+	@Column(name = "lower_bound")
+	private UUID lowerBound;
+
+	/** Exclusive, null for the last partition */
+	@Column(name = "upper_bound")
+	private UUID upperBound;
+
+	@Setter
+	@Column(name = "last_entity_id")
+	private UUID lastEntityId;
+
+	@Setter
+	@Column(name = "entities_merged")
+	private Long entitiesMerged = 0L;
+
+	@Setter
+	@Column(name = "completed")
+	private Boolean completed = false;
+
+	@Setter
+	@Convert(converter = LocalDateTimeAttributeConverter.class)
+	@Column(name = "updated_at")
+	private LocalDateTime updatedAt;
+
+	public MergeCheckpoint(String scope, Integer partitionIndex, UUID lowerBound, UUID upperBound) {
+		this.id = scope + "::" + partitionIndex;
+		this.scope = scope;
+		this.partitionIndex = partitionIndex;
+		this.lowerBound = lowerBound;
+		this.upperBound = upperBound;
+		this.updatedAt = LocalDateTime.now();
+	}
+}
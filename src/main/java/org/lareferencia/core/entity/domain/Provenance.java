@@ -57,6 +57,15 @@ public class Provenance {
 	@Convert(converter = LocalDateTimeAttributeConverter.class)
 	@Column(name="last_update"/*, nullable = false*/)
 	private LocalDateTime lastUpdate = null;
+
+	/**
+	 * XXHash64 of the canonical content of the last loaded record (see XMLEntityRelationData.calculateFingerprint),
+	 * a record with a newer lastUpdate and the same fingerprint is not reprocessed
+	 */
+	@Getter
+	@Setter
+	@Column(name="fingerprint")
+	private Long fingerprint = null;
 		
 	public Provenance(String source, String record) { 
 		this.source = source;
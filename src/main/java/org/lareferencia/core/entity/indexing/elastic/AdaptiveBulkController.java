@@ -0,0 +1,132 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.indexing.elastic;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Additive-increase / multiplicative-decrease control of the bulk size (documents per bulk) and of the bulk requests
+ * in flight. A bulk answered without rejections under the target latency adds actionsStep documents to the bulk size,
+ * and one more request in flight after as many good responses as requests in flight. A rejection (429 items or a
+ * failed request) or a slow response halves both.
+ *
+ * Every decrease opens a new window: the requests already in flight were sent with the old limits, so their
+ * rejections and slow responses are ignored and the limits are decreased at most once per window.
+ */
+public class AdaptiveBulkController {
+
+    private static Logger logger = LogManager.getLogger(AdaptiveBulkController.class);
+
+    private final int minActions;
+    private final int maxActions;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long targetLatencyMillis;
+    private final int actionsStep;
+
+    private int bulkActions;
+    private int concurrency;
+    private int goodResponses = 0;
+    private long decreases = 0;
+    private long window = 0;
+
+    public AdaptiveBulkController(int initialActions, int minActions, int maxActions, int initialConcurrency,
+            int minConcurrency, int maxConcurrency, long targetLatencyMillis, int actionsStep) {
+
+        this.minActions = Math.max(minActions, 1);
+        this.maxActions = Math.max(maxActions, this.minActions);
+        this.minConcurrency = Math.max(minConcurrency, 1);
+        this.maxConcurrency = Math.max(maxConcurrency, this.minConcurrency);
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.actionsStep = Math.max(actionsStep, 0);
+
+        this.bulkActions = Math.min(Math.max(initialActions, this.minActions), this.maxActions);
+        this.concurrency = Math.min(Math.max(initialConcurrency, this.minConcurrency), this.maxConcurrency);
+    }
+
+    /** Static limits, no adaptation */
+    public static AdaptiveBulkController fixed(int bulkActions, int concurrency) {
+        return new AdaptiveBulkController(bulkActions, bulkActions, bulkActions, concurrency, concurrency, concurrency, 0, 0);
+    }
+
+    /** Window of the requests sent from now on, to be passed to onResponse with their response */
+    public synchronized long getWindow() {
+        return window;
+    }
+
+    /**
+     * Adapts the limits to a bulk response
+     * @param requestWindow window of the request when it was sent (see getWindow)
+     * @param actions documents in the bulk
+     * @param latencyMillis time of the bulk request
+     * @param rejected the cluster rejected items (429) or the request failed
+     */
+    public synchronized void onResponse(long requestWindow, int actions, long latencyMillis, boolean rejected) {
+
+        if (rejected || (targetLatencyMillis > 0 && latencyMillis > targetLatencyMillis)) {
+            // sent before the last decrease, already accounted for
+            if (requestWindow < window)
+                return;
+            int previousActions = bulkActions;
+            int previousConcurrency = concurrency;
+            bulkActions = Math.max(minActions, bulkActions / 2);
+            concurrency = Math.max(minConcurrency, concurrency / 2);
+            goodResponses = 0;
+            decreases++;
+            window++;
+            if (previousActions != bulkActions || previousConcurrency != concurrency)
+                logger.info("Bulk limits decreased (" + (rejected ? "rejection" : "latency " + latencyMillis + " ms") + "): " + getStatus());
+            return;
+        }
+
+        // only bulks that reached the size limit tell that a bigger one is needed
+        if (actions >= bulkActions)
+            bulkActions = Math.min(maxActions, bulkActions + actionsStep);
+
+        if (++goodResponses >= concurrency) {
+            goodResponses = 0;
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+        }
+    }
+
+    public synchronized int getBulkActions() {
+        return bulkActions;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    public synchronized String getStatus() {
+        return String.format("bulk actions: %d [%d-%d], concurrent requests: %d [%d-%d], decreases: %d",
+                bulkActions, minActions, maxActions, concurrency, minConcurrency, maxConcurrency, decreases);
+    }
+}
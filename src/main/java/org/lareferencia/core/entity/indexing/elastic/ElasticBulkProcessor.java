@@ -0,0 +1,319 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.indexing.elastic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.action.DocWriteRequest;
+import org.opensearch.action.bulk.BulkItemResponse;
+import org.opensearch.action.bulk.BulkRequest;
+import org.opensearch.action.bulk.BulkResponse;
+import org.opensearch.action.index.IndexRequest;
+import org.opensearch.client.RequestOptions;
+import org.opensearch.client.RestHighLevelClient;
+import org.opensearch.common.xcontent.XContentType;
+import org.opensearch.rest.RestStatus;
+
+/**
+ * Aggregates serialized documents into bulk requests. A bulk is sent when it reaches the bulk size of the controller
+ * or maxBytes of source, or when it is older than flushIntervalMillis. Up to the controller concurrency bulks are in
+ * flight, add() blocks while all of them are busy. Every bulk response is reported to the controller, which adapts
+ * both limits (see AdaptiveBulkController).
+ *
+ * Only the failed items of a BulkResponse are retried (with exponential backoff), when their status is 429 or 5xx;
+ * other item failures (mapping errors, etc.) are reported at once. A failed request (an IOException, or a
+ * RuntimeException such as the OpenSearchStatusException of a bulk answered with 429) retries the whole bulk.
+ */
+public class ElasticBulkProcessor implements Closeable {
+
+    private static Logger logger = LogManager.getLogger(ElasticBulkProcessor.class);
+
+    /** Outcome of the documents sent, called from the bulk threads */
+    public interface Listener {
+
+        /** Documents stored by a bulk response */
+        void onIndexed(int documents);
+
+        /** A document confirmed by a successful item of a bulk response, index is the one it was sent to */
+        default void onDocumentIndexed(String index, String id) {
+        }
+
+        /** A document that will not be retried anymore */
+        void onFailed(String index, String id, String reason);
+
+        /** The bulk request itself failed (connection, timeout, etc.) */
+        void onRequestFailure(Exception e);
+    }
+
+    private final RestHighLevelClient client;
+    private final Listener listener;
+    private final AdaptiveBulkController controller;
+
+    private final long maxBytes;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+
+    private final ExecutorService bulkExecutor;
+    private final ScheduledExecutorService flushScheduler;
+
+    /** Bulks in flight, guarded by slots */
+    private final Object slots = new Object();
+    private int inFlight = 0;
+
+    private final Object lock = new Object();
+    private BulkRequest currentBulk = new BulkRequest();
+    private long currentBytes = 0;
+    private volatile boolean closed = false;
+
+    public ElasticBulkProcessor(RestHighLevelClient client, Listener listener, AdaptiveBulkController controller, long maxBytes,
+            long flushIntervalMillis, int maxRetries, long initialBackoffMillis) {
+
+        this.client = client;
+        this.listener = listener;
+        this.controller = controller;
+        this.maxBytes = maxBytes;
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+
+        this.bulkExecutor = Executors.newFixedThreadPool(controller.getMaxConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "elastic-bulk");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "elastic-bulk-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushIntervalMillis > 0)
+            flushScheduler.scheduleWithFixedDelay(this::flushByTime, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a document to the current bulk, sending it if a limit is reached (blocks while all the bulk slots are busy)
+     */
+    public void add(String index, String id, String json) throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("Bulk processor is closed");
+
+        synchronized (lock) {
+            currentBulk.add(new IndexRequest(index).id(id).source(json, XContentType.JSON));
+            currentBytes += json.length();
+
+            if (currentBulk.numberOfActions() >= controller.getBulkActions() || (maxBytes > 0 && currentBytes >= maxBytes))
+                dispatch();
+        }
+    }
+
+    /**
+     * Sends the pending documents and waits until every bulk in flight, retries included, is finished
+     */
+    public void flush() throws InterruptedException {
+        synchronized (lock) {
+            dispatch();
+        }
+        synchronized (slots) {
+            while (inFlight > 0)
+                slots.wait();
+        }
+    }
+
+    public AdaptiveBulkController getController() {
+        return controller;
+    }
+
+    /** Documents waiting in the current bulk */
+    public int getPendingDocuments() {
+        synchronized (lock) {
+            return currentBulk.numberOfActions();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        flushScheduler.shutdownNow();
+        bulkExecutor.shutdown();
+        try {
+            if (!bulkExecutor.awaitTermination(30, TimeUnit.SECONDS))
+                bulkExecutor.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            bulkExecutor.shutdownNow();
+        }
+    }
+
+    private void flushByTime() {
+        try {
+            synchronized (lock) {
+                dispatch();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Error in timed bulk flush: " + e.getMessage(), e);
+        }
+    }
+
+    /** Hands the current bulk to a bulk thread, called holding the lock */
+    private void dispatch() throws InterruptedException {
+        if (currentBulk.numberOfActions() == 0)
+            return;
+
+        BulkRequest bulk = currentBulk;
+        currentBulk = new BulkRequest();
+        currentBytes = 0;
+
+        acquireSlot();
+        try {
+            bulkExecutor.execute(() -> {
+                try {
+                    execute(bulk);
+                } catch (Exception e) {
+                    logger.error("Unexpected error sending bulk of " + bulk.numberOfActions() + " documents: " + e.getMessage(), e);
+                } finally {
+                    releaseSlot();
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseSlot();
+            throw e;
+        }
+    }
+
+    /** Waits until fewer bulks than the current concurrency limit are in flight */
+    private void acquireSlot() throws InterruptedException {
+        synchronized (slots) {
+            while (inFlight >= controller.getConcurrency())
+                slots.wait();
+            inFlight++;
+        }
+    }
+
+    private void releaseSlot() {
+        synchronized (slots) {
+            inFlight--;
+            slots.notifyAll();
+        }
+    }
+
+    /** Sends a bulk and then only its retryable failed items, until none is left or retries are exhausted */
+    private void execute(BulkRequest bulk) {
+
+        BulkRequest pending = bulk;
+        long backoff = initialBackoffMillis;
+
+        for (int attempt = 0; pending != null; attempt++) {
+
+            boolean lastAttempt = attempt >= maxRetries;
+            BulkRequest retry = null;
+
+            long window = controller.getWindow();
+            long start = System.currentTimeMillis();
+            try {
+                BulkResponse response = client.bulk(pending, RequestOptions.DEFAULT);
+                retry = collectRetries(pending, response, window, System.currentTimeMillis() - start, lastAttempt);
+            } catch (IOException | RuntimeException e) {
+                controller.onResponse(window, pending.numberOfActions(), System.currentTimeMillis() - start, true);
+                listener.onRequestFailure(e);
+                if (lastAttempt) {
+                    logger.error("Bulk of " + pending.numberOfActions() + " documents failed after " + maxRetries + " retries: " + e.getMessage());
+                    for (DocWriteRequest<?> request : pending.requests())
+                        listener.onFailed(request.index(), request.id(), e.getMessage());
+                } else {
+                    logger.warn("Bulk request failed, retry " + (attempt + 1) + "/" + maxRetries + ": " + e.getMessage());
+                    retry = pending;
+                }
+            }
+
+            if (retry != null) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (DocWriteRequest<?> request : retry.requests())
+                        listener.onFailed(request.index(), request.id(), "interrupted before retry");
+                    return;
+                }
+                backoff *= 2;
+            }
+            pending = retry;
+        }
+    }
+
+    /** Reports the bulk response (to the listener and the controller) and returns a bulk with the items to retry (null if none) */
+    private BulkRequest collectRetries(BulkRequest sent, BulkResponse response, long window, long latencyMillis, boolean lastAttempt) {
+
+        List<DocWriteRequest<?>> requests = sent.requests();
+        List<DocWriteRequest<?>> retries = new ArrayList<DocWriteRequest<?>>();
+        int indexed = 0;
+        boolean rejected = false;
+
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                indexed++;
+                listener.onDocumentIndexed(requests.get(item.getItemId()).index(), item.getId());
+                continue;
+            }
+
+            RestStatus status = item.getFailure().getStatus();
+            rejected |= status == RestStatus.TOO_MANY_REQUESTS;
+            if (!lastAttempt && isRetryable(status))
+                retries.add(requests.get(item.getItemId()));
+            else
+                listener.onFailed(item.getIndex(), item.getId(), item.getFailureMessage());
+        }
+
+        controller.onResponse(window, requests.size(), latencyMillis, rejected);
+
+        if (indexed > 0)
+            listener.onIndexed(indexed);
+
+        if (retries.isEmpty())
+            return null;
+
+        logger.warn("Retrying " + retries.size() + " of " + requests.size() + " bulk items");
+        BulkRequest retry = new BulkRequest();
+        for (DocWriteRequest<?> request : retries)
+            retry.add(request);
+        return retry;
+    }
+
+    private static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status.getStatus() >= 500;
+    }
+}
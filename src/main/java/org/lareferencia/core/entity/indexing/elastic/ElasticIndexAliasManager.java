@@ -0,0 +1,116 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.indexing.elastic;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.opensearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.opensearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.opensearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.opensearch.client.GetAliasesResponse;
+import org.opensearch.client.RequestOptions;
+import org.opensearch.client.RestHighLevelClient;
+import org.opensearch.client.indices.GetIndexRequest;
+
+/**
+ * Alias swap reindexing: a full reindex writes into a new physical index (name_v{timestamp}) while searches go through
+ * an alias with the configured name. When the run finishes the alias is moved to the new index in a single
+ * IndicesAliasesRequest and the previous indices can be dropped.
+ *
+ * The version of the build is the run state of the indexers (see IEntityIndexer.createRunState): it is stored with the
+ * checkpoint or the partitions of the run, so resumed runs and every indexer of every node of a partitioned run write
+ * to the same physical index.
+ */
+public class ElasticIndexAliasManager {
+
+    private static Logger logger = LogManager.getLogger(ElasticIndexAliasManager.class);
+
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final RestHighLevelClient client;
+
+    public ElasticIndexAliasManager(RestHighLevelClient client) {
+        this.client = client;
+    }
+
+    /** Version of the indices built by a new run */
+    public static String newBuildVersion() {
+        return "v" + LocalDateTime.now().format(VERSION_FORMAT);
+    }
+
+    /** Physical index built for the alias by the run of the version */
+    public static String buildIndexName(String alias, String version) {
+        return alias + "_" + version;
+    }
+
+    /**
+     * Points the alias to the built index, removing it from the indices it pointed to in the same request.
+     * A concrete index with the name of the alias (an index created before alias swapping was used) can only be
+     * replaced when dropOld is set, it is deleted in the same atomic request. An alias that already points only to the
+     * built index (the run was published before) is left as it is.
+     * @return the indices the alias pointed to, deleted if dropOld is set
+     */
+    public List<String> swap(String alias, String buildIndex, boolean dropOld) throws IOException {
+
+        List<String> previous = new ArrayList<String>();
+        GetAliasesResponse aliases = client.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT);
+        for (String index : aliases.getAliases().keySet())
+            if (!index.equals(buildIndex))
+                previous.add(index);
+
+        if (previous.isEmpty() && aliases.getAliases().containsKey(buildIndex)) {
+            logger.info("Alias " + alias + " already points to " + buildIndex);
+            return previous;
+        }
+
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        request.addAliasAction(AliasActions.add().index(buildIndex).alias(alias));
+
+        boolean concreteIndex = previous.isEmpty() && client.indices().exists(new GetIndexRequest(alias), RequestOptions.DEFAULT);
+        if (concreteIndex) {
+            if (!dropOld)
+                throw new IOException("Index " + alias + " is not an alias, it can only be replaced by " + buildIndex + " dropping it (drop old indices is disabled)");
+            request.addAliasAction(AliasActions.removeIndex().index(alias));
+        }
+
+        for (String index : previous)
+            request.addAliasAction(AliasActions.remove().index(index).alias(alias));
+
+        client.indices().updateAliases(request, RequestOptions.DEFAULT);
+        logger.info("Alias " + alias + " moved to " + buildIndex + (previous.isEmpty() ? "" : " from " + previous));
+
+        if (concreteIndex)
+            previous.add(alias);
+        else if (dropOld && !previous.isEmpty()) {
+            client.indices().delete(new DeleteIndexRequest(previous.toArray(new String[0])), RequestOptions.DEFAULT);
+            logger.info("Previous indices of alias " + alias + " dropped: " + previous);
+        }
+        return previous;
+    }
+}
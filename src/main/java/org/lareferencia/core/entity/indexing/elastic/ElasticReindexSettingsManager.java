@@ -0,0 +1,166 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.indexing.elastic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lareferencia.core.entity.domain.IndexOriginalSettings;
+import org.lareferencia.core.entity.services.ReindexSettingsService;
+import org.opensearch.action.admin.indices.refresh.RefreshRequest;
+import org.opensearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.opensearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.opensearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.opensearch.client.RequestOptions;
+import org.opensearch.client.RestHighLevelClient;
+import org.opensearch.common.settings.Settings;
+
+/**
+ * Index settings of a full reindex: refresh is disabled (refresh_interval=-1) and replicas are dropped
+ * (number_of_replicas=0) while documents are written, then the original values are restored and the indices refreshed.
+ *
+ * The original values are recorded in the database before the indices are changed (see ReindexSettingsService), so
+ * every node of a run shares them. Each manager holds the indices it changed until restore: the settings are restored
+ * by the last holder of an index, and the settings of a run that did not finish are repaired by a later run once its
+ * holds expired (see repair). Holds are renewed by heartbeat.
+ */
+public class ElasticReindexSettingsManager {
+
+    private static Logger logger = LogManager.getLogger(ElasticReindexSettingsManager.class);
+
+    public static final String REFRESH_INTERVAL = "index.refresh_interval";
+    public static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+    private static final String[] MANAGED_SETTINGS = { REFRESH_INTERVAL, NUMBER_OF_REPLICAS };
+
+    private final RestHighLevelClient client;
+    private final ReindexSettingsService settingsService;
+    private final String owner = UUID.randomUUID().toString();
+
+    // indices held by this manager and time of the last renewal of the holds
+    private final Set<String> heldIndices = new TreeSet<String>();
+    private long lastHold = 0;
+
+    public ElasticReindexSettingsManager(RestHighLevelClient client, ReindexSettingsService settingsService) {
+        this.client = client;
+        this.settingsService = settingsService;
+    }
+
+    /**
+     * Holds the indices, records their current settings (unless already recorded) and applies the reindex settings
+     */
+    public synchronized void applyReindexSettings(Collection<String> indices) throws IOException {
+
+        // held before the originals are read, a repair of another run never restores them from now on
+        settingsService.hold(owner, indices);
+        heldIndices.addAll(indices);
+        lastHold = System.currentTimeMillis();
+
+        for (String index : indices) {
+            if (settingsService.isRecorded(index))
+                continue;
+
+            GetSettingsResponse response = client.indices().getSettings(new GetSettingsRequest().indices(index).names(MANAGED_SETTINGS), RequestOptions.DEFAULT);
+            settingsService.record(index, response.getSetting(index, REFRESH_INTERVAL), response.getSetting(index, NUMBER_OF_REPLICAS));
+        }
+
+        // the originals are safe in the database before any index is changed
+        for (String index : indices) {
+            client.indices().putSettings(new UpdateSettingsRequest(index).settings(Settings.builder()
+                    .put(REFRESH_INTERVAL, "-1")
+                    .put(NUMBER_OF_REPLICAS, 0)), RequestOptions.DEFAULT);
+            logger.info("Reindex settings applied to index: " + index + " (refresh disabled, no replicas)");
+        }
+    }
+
+    /**
+     * Renews the holds of this manager, at most every third of the hold duration (called after each flush)
+     */
+    public synchronized void heartbeat() {
+        if (heldIndices.isEmpty() || System.currentTimeMillis() - lastHold < settingsService.getHoldSeconds() * 1000 / 3)
+            return;
+
+        try {
+            settingsService.hold(owner, heldIndices);
+            lastHold = System.currentTimeMillis();
+        } catch (RuntimeException e) {
+            logger.warn("Error renewing the reindex settings holds: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Releases the indices of this manager and restores the recorded settings of every index no longer held
+     */
+    public synchronized void restore() throws IOException {
+        List<IndexOriginalSettings> restorable = settingsService.release(owner);
+        heldIndices.clear();
+        restore(restorable);
+    }
+
+    /**
+     * Restores the settings left by runs that did not finish, if any (indices still held by a run are not touched)
+     * @return true if settings were found and restored
+     */
+    public synchronized boolean repair() throws IOException {
+        List<IndexOriginalSettings> restorable = settingsService.release(null);
+        if (restorable.isEmpty())
+            return false;
+
+        logger.warn("Reindex settings of unfinished runs found on " + restorable.size() + " indices, restoring the original settings");
+        restore(restorable);
+        return true;
+    }
+
+    private void restore(List<IndexOriginalSettings> restorable) throws IOException {
+
+        List<String> indices = new ArrayList<String>();
+        for (IndexOriginalSettings original : restorable) {
+            Settings.Builder settings = Settings.builder();
+            putOrReset(settings, REFRESH_INTERVAL, original.getRefreshInterval());
+            putOrReset(settings, NUMBER_OF_REPLICAS, original.getNumberOfReplicas());
+            client.indices().putSettings(new UpdateSettingsRequest(original.getIndexName()).settings(settings), RequestOptions.DEFAULT);
+            logger.info("Original settings restored on index: " + original.getIndexName());
+            indices.add(original.getIndexName());
+        }
+
+        if (!indices.isEmpty())
+            client.indices().refresh(new RefreshRequest(indices.toArray(new String[0])), RequestOptions.DEFAULT);
+
+        for (String index : indices)
+            settingsService.forget(index);
+    }
+
+    // a setting that was not set on the index is reset to the cluster default
+    private static void putOrReset(Settings.Builder settings, String setting, String value) {
+        if (value == null)
+            settings.putNull(setting);
+        else
+            settings.put(setting, value);
+    }
+}
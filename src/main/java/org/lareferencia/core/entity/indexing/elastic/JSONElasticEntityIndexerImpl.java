@@ -21,12 +21,17 @@
 
 package org.lareferencia.core.entity.indexing.elastic;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.http.HttpHost;
@@ -45,6 +50,7 @@ import org.lareferencia.core.entity.domain.EntityRelationException;
 import org.lareferencia.core.entity.domain.EntityType;
 import org.lareferencia.core.entity.domain.FieldOccurrence;
 import org.lareferencia.core.entity.domain.FieldType;
+import org.lareferencia.core.entity.domain.IndexedDocumentHashId;
 import org.lareferencia.core.entity.domain.Relation;
 import org.lareferencia.core.entity.domain.RelationId;
 import org.lareferencia.core.entity.domain.SemanticIdentifier;
@@ -52,11 +58,16 @@ import org.lareferencia.core.entity.indexing.filters.FieldOccurrenceFilterServic
 import org.lareferencia.core.entity.indexing.nested.config.EntityIndexingConfig;
 import org.lareferencia.core.entity.indexing.nested.config.FieldIndexingConfig;
 import org.lareferencia.core.entity.indexing.nested.config.IndexingConfiguration;
+import org.lareferencia.core.entity.indexing.service.EntityBatchPreloader;
 import org.lareferencia.core.entity.indexing.service.EntityIndexingException;
 import org.lareferencia.core.entity.indexing.service.IEntityIndexer;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
 import org.lareferencia.core.entity.services.EntityDataService;
 import org.lareferencia.core.entity.services.EntityModelCache;
+import org.lareferencia.core.entity.services.IndexedDocumentHashService;
+import org.lareferencia.core.entity.services.ReindexSettingsService;
 import org.lareferencia.core.entity.services.exception.EntitiyRelationXMLLoadingException;
+import org.opensearch.action.bulk.BulkItemResponse;
 import org.opensearch.action.bulk.BulkRequest;
 import org.opensearch.action.bulk.BulkResponse;
 import org.opensearch.action.index.IndexRequest;
@@ -80,7 +91,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.net.ssl.SSLContext;
 
-public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
+public class JSONElasticEntityIndexerImpl implements IEntityIndexer, Closeable {
 
 	public static String ELASTIC_PARAM_PREFIX = "elastic-param-";
 	private static String MAPPING_PROPERTIES_STR = "properties";
@@ -102,6 +113,21 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	@Autowired
 	EntityModelCache entityModelCache;
 
+	@Autowired
+	EntityRepository entityRepository;
+
+	@Autowired
+	IndexedDocumentHashService hashService;
+
+	// documents whose hash equals the one of their last indexing in the same index are not sent
+	@Value("${elastic.indexer.skip.unchanged:false}")
+	private Boolean skipUnchanged = false;
+
+	// hashes of the documents in the bulk request by index, stored for the documents the bulk response confirms
+	Map<String, Map<UUID, Long>> pendingHashes = new HashMap<String, Map<UUID, Long>>();
+
+	long skippedDocuments = 0;
+
 	ObjectMapper jsonMapper;
 
 	RestHighLevelClient elasticClient = null;
@@ -124,6 +150,33 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	@Value("${elastic.authenticate:false}")
 	private Boolean authenticate;
 
+	// full reindex: refresh and replicas are disabled on the indices until close
+	@Value("${elastic.indexer.full.reindex:false}")
+	private Boolean fullReindex = false;
+
+	// original settings of the indices during a full reindex, kept in the database until they are restored
+	@Autowired
+	ReindexSettingsService reindexSettingsService;
+
+	ElasticReindexSettingsManager reindexSettings;
+
+	// full reindex into a new physical index (name_v{timestamp}), the alias with the configured name is moved to it
+	// when the run finishes; the version is the run state, shared by resumed runs and every node of a partitioned run
+	@Value("${elastic.indexer.alias.swap:false}")
+	private Boolean aliasSwap = false;
+
+	// entities of batches and documents of bulk requests that failed, a run with failures is not published
+	private long failedEntities = 0;
+
+	// drop the indices the alias pointed to after the swap
+	@Value("${elastic.indexer.alias.drop.old:false}")
+	private Boolean dropOldIndices = false;
+
+	ElasticIndexAliasManager aliasManager;
+
+	// index written for each configured index name, the built index in alias swap mode (set by beginRun)
+	Map<String, String> indexNames = new HashMap<String, String>();
+
 	BulkRequest bulkRequest;
 
 	private static int MAX_RETRIES = 10;
@@ -159,14 +212,22 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 		// build elastic client
 		elasticClient = buildElasticRestClient();
 
-		// create index mappings
-		createIndexMappings();
+		// alias swap: documents go to a new version of each index, created when the run begins (see beginRun)
+		indexNames.clear();
+		if (aliasSwap)
+			aliasManager = new ElasticIndexAliasManager(elasticClient);
+		else
+			createIndexMappings();
 
 		// create map of entity types to indexing configs
 		configsByEntityType = new HashMap<String, EntityIndexingConfig>();
 		for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
 			configsByEntityType.put(entityIndexingConfig.getEntityType(), entityIndexingConfig);
 
+		// reindex settings of a full reindex, or repair of the ones left by an unfinished one
+		if (!aliasSwap)
+			applyReindexSettings();
+
 		// create json mapper with custom serializer for JSONEntityElastic
 		jsonMapper = new ObjectMapper();
 		SimpleModule module = new SimpleModule();
@@ -194,10 +255,69 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 		}
 	}
 
+	/**
+	 * Alias swap mode: the version of the indices built by a new run
+	 */
+	@Override
+	public String createRunState() {
+		return aliasSwap ? ElasticIndexAliasManager.newBuildVersion() : null;
+	}
+
+	/**
+	 * Alias swap mode: creates the indices of the version built by the run (if they do not exist yet) and applies the
+	 * reindex settings to them
+	 */
+	@Override
+	public void beginRun(String runState) throws EntityIndexingException {
+
+		if (!aliasSwap || runState == null)
+			return;
+
+		indexNames.clear();
+		for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
+			indexNames.put(entityIndexingConfig.getName(), ElasticIndexAliasManager.buildIndexName(entityIndexingConfig.getName(), runState));
+		logger.info("Building indices: " + indexNames.values());
+
+		createIndexMappings();
+		applyReindexSettings();
+	}
+
+	/**
+	 * Index written for an indexing config, the new version of the index in alias swap mode
+	 */
+	private String getIndexName(EntityIndexingConfig entityIndexingConfig) {
+		return indexNames.getOrDefault(entityIndexingConfig.getName(), entityIndexingConfig.getName());
+	}
+
+	private List<String> getIndexNames() {
+		List<String> indices = new ArrayList<String>();
+		for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
+			indices.add(getIndexName(entityIndexingConfig));
+		return indices;
+	}
+
+	/**
+	 * Disables refresh and replicas of the indices in a full reindex or an alias swap build (restored on close),
+	 * otherwise restores the settings recorded by a full reindex that did not finish
+	 */
+	private void applyReindexSettings() throws EntityIndexingException {
+
+		reindexSettings = new ElasticReindexSettingsManager(elasticClient, reindexSettingsService);
+
+		try {
+			if (fullReindex || aliasSwap)
+				reindexSettings.applyReindexSettings(getIndexNames());
+			else
+				reindexSettings.repair();
+		} catch (Exception e) {
+			throw new EntityIndexingException(" Error updating index settings for reindexing :: " + e.getMessage());
+		}
+	}
 	
 	private void resetBulkRequest() {
 		bulkRequest = new BulkRequest();
 		bulkRequest.timeout("5m");
+		pendingHashes.clear();
 	}
 
 	/**
@@ -299,6 +419,14 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	 */
 	@Transactional(readOnly = true)
 	public void index(Entity entity) throws EntityIndexingException {
+		index(entity, null, null);
+	}
+
+	/**
+	 * Indexes the entity, the relations and related entities are taken from the batch and the hashes of the last
+	 * indexing from storedHashes when they are not null (see indexBatch)
+	 */
+	private void index(Entity entity, EntityBatchPreloader batch, Map<IndexedDocumentHashId, Long> storedHashes) throws EntityIndexingException {
 
 		try {
 
@@ -317,7 +445,7 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 								+ " does not contain a indexing config for " + type.getName() + " EntityType");
 
 			// create the elastic entity from the entity and the relations
-			JSONEntityElastic elasticEntity = createElasticEntity(entityIndexingConfig, entity);
+			JSONEntityElastic elasticEntity = createElasticEntity(entityIndexingConfig, entity, batch);
 
 			// process the nested entities
 			for (EntityIndexingConfig nestedEntityConfig : entityIndexingConfig.getIndexNestedEntities() ) {
@@ -329,26 +457,26 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 
 				Collection<UUID> nestedRelatedEntityIds;
 				try {
-					nestedRelatedEntityIds = entityDataService.getMemberRelatedEntitiesIds(entity.getId(), relationName, isFromMember);
+					nestedRelatedEntityIds = getMemberRelatedEntitiesIds(batch, entity.getId(), relationName, isFromMember);
 				} catch (EntitiyRelationXMLLoadingException e) {
 					throw new EntityIndexingException("Error getting related nested entities: " + e.getMessage());
 				}
 		
 				for (UUID nestedRelatedEntityId : nestedRelatedEntityIds) {
-					Optional<Entity> nestedEntity = entityDataService.getEntityById(nestedRelatedEntityId);
+					Optional<Entity> nestedEntity = getEntityById(batch, nestedRelatedEntityId);
 		
 					if (nestedEntity.isEmpty()) {
 						logger.warn("Nested entity not found: " + nestedRelatedEntityId);
 						continue;
 					} else {
-						JSONEntityElastic relatedElasticEntity = createElasticEntity(nestedEntityConfig, nestedEntity.get());
+						JSONEntityElastic relatedElasticEntity = createElasticEntity(nestedEntityConfig, nestedEntity.get(), batch);
 						elasticEntity.addRelatedEntity(nestedEntityConfig.getName(), relatedElasticEntity);
 					}
 				}
 			}
 			
 			// index the entity
-			indexEntity(elasticEntity, entityIndexingConfig.getName());
+			indexEntity(elasticEntity, getIndexName(entityIndexingConfig), storedHashes);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -357,6 +485,97 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 
 	}
 
+	/**
+	 * Indexes a page of entities: the entities, their relations and related entities are loaded for the whole
+	 * batch with set based queries before the documents are built (see EntityBatchPreloader)
+	 * @param entities
+	 * @throws EntityIndexingException if the batch could not be loaded, entity errors are logged and counted (see getFailedEntities)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public void indexBatch(Collection<Entity> entities) throws EntityIndexingException {
+
+		List<UUID> entityIds = new ArrayList<UUID>(entities.size());
+		for (Entity entity : entities)
+			entityIds.add(entity.getId());
+
+		EntityBatchPreloader batch = new EntityBatchPreloader(entityDataService, entityRepository, entityIds);
+		List<Entity> loadedEntities;
+		try {
+			loadedEntities = batch.loadEntities();
+			preloadBatch(batch, loadedEntities);
+		} catch (Exception e) {
+			throw new EntityIndexingException("Error loading entity batch of " + entityIds.size() + " entities :: " + e.getMessage());
+		}
+
+		Map<IndexedDocumentHashId, Long> storedHashes = skipUnchanged ? hashService.findHashes(getIndexNames(), entityIds) : null;
+
+		int failed = 0;
+		for (Entity entity : loadedEntities) {
+			try {
+				index(entity, batch, storedHashes);
+			} catch (EntityIndexingException e) {
+				failed++;
+				logger.error(e.getMessage());
+			}
+		}
+
+		failedEntities += failed;
+		if (failed > 0)
+			logger.warn("Entity batch indexed with errors :: " + failed + " of " + loadedEntities.size() + " entities failed");
+	}
+
+	/**
+	 * Loads the relations and related entities used by the indexing configs of the entity types in the batch
+	 */
+	private void preloadBatch(EntityBatchPreloader batch, List<Entity> entities) throws Exception {
+
+		Set<Long> entityTypeIds = new HashSet<Long>();
+		for (Entity entity : entities)
+			entityTypeIds.add(entity.getEntityTypeId());
+
+		for (Long entityTypeId : entityTypeIds) {
+
+			EntityType type = entityModelCache.getObjectById(EntityType.class, entityTypeId);
+			EntityIndexingConfig entityIndexingConfig = configsByEntityType.get(type.getName());
+			if (entityIndexingConfig == null)
+				continue;
+
+			for (EntityIndexingConfig nestedEntityConfig : entityIndexingConfig.getIndexNestedEntities())
+				batch.preloadRelatedEntities(nestedEntityConfig.getEntityRelation(),
+						entityModelCache.isFromRelation(nestedEntityConfig.getEntityRelation(), nestedEntityConfig.getEntityType()));
+
+			for (FieldIndexingConfig fieldConfig : entityIndexingConfig.getIndexFields()) {
+				if (fieldConfig.getSourceRelation() == null)
+					continue;
+				if (fieldConfig.getSourceMember() != null)
+					batch.preloadRelatedEntities(fieldConfig.getSourceRelation(), entityModelCache.isFromRelation(fieldConfig.getSourceRelation(), fieldConfig.getSourceMember()));
+				else
+					batch.preloadRelations(fieldConfig.getSourceRelation(), entityModelCache.isFromRelation(fieldConfig.getSourceRelation(), type.getName()));
+			}
+		}
+	}
+
+	// lookups served by the batch when there is one
+
+	private Set<UUID> getMemberRelatedEntitiesIds(EntityBatchPreloader batch, UUID entityId, String relationName, Boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+		if (batch != null)
+			return batch.getMemberRelatedEntitiesIds(entityId, relationName, isFromMember);
+		return entityDataService.getMemberRelatedEntitiesIds(entityId, relationName, isFromMember);
+	}
+
+	private Set<Relation> getRelationsWithThisEntityAsMember(EntityBatchPreloader batch, UUID entityId, String relationName, Boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+		if (batch != null)
+			return batch.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+		return entityDataService.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+	}
+
+	private Optional<Entity> getEntityById(EntityBatchPreloader batch, UUID entityId) {
+		if (batch != null)
+			return batch.getEntityById(entityId);
+		return entityDataService.getEntityById(entityId);
+	}
+
 	/**
 	 * Create the elastic entity from the entity and the relations
 	 *
@@ -366,6 +585,10 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	 * @throws EntityIndexingException si ocurre un error durante la indexación
 	 */
 	public JSONEntityElastic createElasticEntity(EntityIndexingConfig config, Entity entity) throws EntityIndexingException {
+		return createElasticEntity(config, entity, null);
+	}
+
+	private JSONEntityElastic createElasticEntity(EntityIndexingConfig config, Entity entity, EntityBatchPreloader batch) throws EntityIndexingException {
 
 		// create the elastic entity
 		JSONEntityElastic jsonEntityElastic = new JSONEntityElastic();
@@ -389,7 +612,7 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 			// set the entity fields
 			for (FieldIndexingConfig fieldConfig : config.getIndexFields())
 				try {
-					processFieldConfig(entity, fieldConfig, jsonEntityElastic);
+					processFieldConfig(entity, fieldConfig, jsonEntityElastic, batch);
 				} catch (Exception e) {
 					throw new EntityIndexingException("Error processing field: " + fieldConfig.getName() + " :: " + e.getMessage() );
 				}
@@ -407,9 +630,23 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	 */
 	public void flush() throws EntityIndexingException {
 
+		// the reindex settings stay held while the run makes progress
+		if ( reindexSettings != null )
+			reindexSettings.heartbeat();
+
+		if ( skippedDocuments > 0 ) {
+			logger.info( "Unchanged documents skipped: " + skippedDocuments );
+			skippedDocuments = 0;
+		}
+
+		// every document of the page was unchanged
+		if ( bulkRequest.numberOfActions() == 0 )
+			return;
+
 		Boolean retry = true;
 		int retries = 0;
 		int millis = 2500;
+		int failedDocuments = 0;
 
 		while ( retry ) {
 
@@ -419,10 +656,27 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 
 				retry = false;
 				
-				if ( bulkResponse.hasFailures() ) {
+				if ( bulkResponse.hasFailures() )
 				    logger.info( "Bulk request has failures: " + bulkResponse.buildFailureMessage() );
+
+				// only the documents confirmed by a successful item record their hash, the rest keep the one of their
+				// last successful indexing (the item index is the concrete one, the request gives the index sent to)
+				Map<String, Map<UUID, Long>> confirmedHashes = new HashMap<String, Map<UUID, Long>>();
+				failedDocuments = 0;
+				for (BulkItemResponse item : bulkResponse.getItems()) {
+					if ( item.isFailed() ) {
+						failedDocuments++;
+						continue;
+					}
+					String indexName = bulkRequest.requests().get(item.getItemId()).index();
+					Long hash = pendingHashes.getOrDefault(indexName, Collections.emptyMap()).get(UUID.fromString(item.getId()));
+					if ( hash != null )
+						confirmedHashes.computeIfAbsent(indexName, name -> new HashMap<UUID, Long>()).put(UUID.fromString(item.getId()), hash);
 				}
 
+				if ( skipUnchanged )
+					saveHashes(confirmedHashes);
+
 			} catch (Exception e) {
 				logger.warn("retrying: " + retries + " -- Warning: " + e.getClass().toString() + " " + e.getMessage() );
 				try { Thread.sleep(millis); } catch (Exception se) {};
@@ -437,6 +691,22 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 
 		//create a new empty request
 		resetBulkRequest();
+
+		failedEntities += failedDocuments;
+
+		// the built index would miss them, the run must not be published
+		if ( aliasSwap && failedDocuments > 0 )
+			throw new EntityIndexingException("Bulk request to elastic failed for " + failedDocuments + " documents of the index being built");
+	}
+
+	private void saveHashes(Map<String, Map<UUID, Long>> hashes) {
+		try {
+			for (Map.Entry<String, Map<UUID, Long>> entry : hashes.entrySet())
+				hashService.saveHashes(entry.getKey(), entry.getValue());
+		} catch (Exception e) {
+			// without the stored hash the documents are sent again in the next run
+			logger.error( "Error saving document hashes :: " + e.getMessage() );
+		}
 	}
 
 
@@ -488,18 +758,20 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 		// add nested entities to mapping
 		addNestedEntitiesToMapping(entityIndexingConfig.getIndexNestedEntities(), typesMapping);
 	
+		String indexName = getIndexName(entityIndexingConfig);
+
 		// check if index exists
 		try {
-			Boolean indexExists = elasticClient.indices().exists(new GetIndexRequest(entityIndexingConfig.getName() ), RequestOptions.DEFAULT);
+			Boolean indexExists = elasticClient.indices().exists(new GetIndexRequest(indexName), RequestOptions.DEFAULT);
 
 			if ( indexExists ) {
-				logger.warn("Index " + entityIndexingConfig.getName() + " already exists. Is not possible to update mapping !!!");
+				logger.warn("Index " + indexName + " already exists. Is not possible to update mapping !!!");
 
 			} else {
-				logger.info("Index " + entityIndexingConfig.getName() + " does not exist, creating it. With mapping: " + mapping.toString() + "");
+				logger.info("Index " + indexName + " does not exist, creating it. With mapping: " + mapping.toString() + "");
 
 				// create index
-				CreateIndexRequest createIndexRequest = new CreateIndexRequest( entityIndexingConfig.getName() );
+				CreateIndexRequest createIndexRequest = new CreateIndexRequest( indexName );
 				//createIndexRequest.settings(Settings.builder() //Specify in the settings how many shards you want in the index.
 				//		.put("index.number_of_shards", 4)
 				//		.put("index.number_of_replicas", 3)
@@ -508,11 +780,15 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 				createIndexRequest.mapping(mapping);
 				CreateIndexResponse createIndexResponse = elasticClient.indices().create(createIndexRequest, RequestOptions.DEFAULT);
 
-				logger.info("Index " + entityIndexingConfig.getName() + " created: " + createIndexResponse.isAcknowledged() + "");
+				logger.info("Index " + indexName + " created: " + createIndexResponse.isAcknowledged() + "");
+
+				// hashes of a previous index with the same name do not apply to the new one
+				if ( skipUnchanged )
+					hashService.deleteIndex(indexName);
 			}
 
 		} catch (IOException e) {
-			throw new EntityIndexingException("Error trying index creation / mapping creation: " + entityIndexingConfig.getName() + " :: " + e.getMessage());
+			throw new EntityIndexingException("Error trying index creation / mapping creation: " + indexName + " :: " + e.getMessage());
 		}
 	}
 
@@ -545,13 +821,32 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	}
 
 	protected void indexEntity(JSONEntityElastic elasticEntity, String indexName) throws EntityIndexingException {
+		indexEntity(elasticEntity, indexName, null);
+	}
+
+	private void indexEntity(JSONEntityElastic elasticEntity, String indexName, Map<IndexedDocumentHashId, Long> storedHashes) throws EntityIndexingException {
 
 		try {
 
+			String json = jsonMapper.writeValueAsString(elasticEntity);
+
+			// unchanged since its last indexing in this index, not sent
+			if ( skipUnchanged ) {
+				UUID entityId = UUID.fromString(elasticEntity.getId());
+				long hash = IndexedDocumentHashService.documentHash(json);
+				Long storedHash = storedHashes != null ? storedHashes.get(new IndexedDocumentHashId(indexName, entityId)) : hashService.findHash(indexName, entityId);
+
+				if ( storedHash != null && storedHash == hash ) {
+					skippedDocuments++;
+					return;
+				}
+				pendingHashes.computeIfAbsent(indexName, name -> new HashMap<UUID, Long>()).put(entityId, hash);
+			}
+
 			IndexRequest indexRequest = new IndexRequest(indexName);
 			// set document ide
 			indexRequest.id(elasticEntity.getId());
-			indexRequest.source(jsonMapper.writeValueAsString(elasticEntity), XContentType.JSON);
+			indexRequest.source(json, XContentType.JSON);
 
 			bulkRequest.add( indexRequest );
 
@@ -561,7 +856,7 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 
 	}
 
-	private void processFieldConfig(Entity entity, FieldIndexingConfig config, JSONEntityElastic ientity) throws EntityIndexingException {
+	private void processFieldConfig(Entity entity, FieldIndexingConfig config, JSONEntityElastic ientity, EntityBatchPreloader batch) throws EntityIndexingException {
 
 		if (config.getSourceField() == null)
 			throw new EntityIndexingException(
@@ -575,9 +870,9 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 
 					// check if the relation is from or to the entity and get the related entities ids
 					Boolean isFromMember = entityModelCache.isFromRelation(config.getSourceRelation(), config.getSourceMember());
-					for (UUID relatedEntityId : entityDataService.getMemberRelatedEntitiesIds(entity.getId(), config.getSourceRelation(), isFromMember) ) {
+					for (UUID relatedEntityId : getMemberRelatedEntitiesIds(batch, entity.getId(), config.getSourceRelation(), isFromMember) ) {
 
-						Entity relatedEntity = entityDataService.getEntityById(relatedEntityId).get();
+						Entity relatedEntity = getEntityById(batch, relatedEntityId).get();
 						relatedEntity.loadOcurrences( entityModelCache.getNamesByIdMap(FieldType.class) );
 						processFieldOccurrences( relatedEntity.getFieldOccurrences(config.getSourceField()) , config, ientity); // process the field occurrences
 					} 
@@ -587,7 +882,7 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 					EntityType entityType = entityDataService.getEntityTypeFromId(entity.getEntityTypeId());
 					Boolean isFromMember = entityModelCache.isFromRelation(config.getSourceRelation(), entityType.getName());
 
-					for (Relation relation : entityDataService.getRelationsWithThisEntityAsMember(entity.getId(), config.getSourceRelation(), isFromMember)) {
+					for (Relation relation : getRelationsWithThisEntityAsMember(batch, entity.getId(), config.getSourceRelation(), isFromMember)) {
 						relation.loadOcurrences( entityModelCache.getNamesByIdMap(FieldType.class) );
 						processFieldOccurrences( relation.getFieldOccurrences(config.getSourceField()) , config, ientity);
 					}
@@ -668,8 +963,66 @@ public class JSONElasticEntityIndexerImpl implements IEntityIndexer {
 	}
 
 
+	@Override
+	public long getFailedEntities() {
+		return failedEntities;
+	}
+
 	@Override
 	public void prePage() throws EntityIndexingException {
 		// TODO Auto-generated method stub
 	}
+
+	/**
+	 * Alias swap mode: sends the pending documents, restores the settings of the built indices and moves the aliases
+	 * to them
+	 */
+	@Override
+	public void finishRun() throws EntityIndexingException {
+
+		if (!aliasSwap || aliasManager == null || indexNames.isEmpty())
+			return;
+
+		if (bulkRequest != null && bulkRequest.numberOfActions() > 0)
+			flush();
+
+		if (failedEntities > 0)
+			throw new EntityIndexingException(failedEntities + " entities failed, the aliases are not moved to the new indices");
+
+		try {
+			reindexSettings.restore();
+
+			for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
+				for (String index : aliasManager.swap(entityIndexingConfig.getName(), getIndexName(entityIndexingConfig), dropOldIndices))
+					if (dropOldIndices)
+						hashService.deleteIndex(index);
+
+		} catch (IOException e) {
+			throw new EntityIndexingException("Error moving aliases to the new indices :: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends the pending documents, restores the index settings of a full reindex and closes the client
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			if (bulkRequest != null && bulkRequest.numberOfActions() > 0)
+				flush();
+		} catch (EntityIndexingException e) {
+			logger.error("Error flushing pending documents on close: " + e.getMessage());
+		}
+
+		// a build not published by finishRun only gets its settings restored, the aliases keep pointing to the previous
+		// indices until a resumed run completes it
+		try {
+			if ((fullReindex || aliasSwap) && reindexSettings != null)
+				reindexSettings.restore();
+		} finally {
+			if (elasticClient != null)
+				elasticClient.close();
+		}
+	}
 }
\ No newline at end of file
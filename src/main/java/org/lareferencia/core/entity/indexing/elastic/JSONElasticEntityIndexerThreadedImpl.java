@@ -22,12 +22,17 @@ package org.lareferencia.core.entity.indexing.elastic;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Phaser;
@@ -52,25 +57,28 @@ import org.lareferencia.core.entity.domain.EntityRelationException;
 import org.lareferencia.core.entity.domain.EntityType;
 import org.lareferencia.core.entity.domain.FieldOccurrence;
 import org.lareferencia.core.entity.domain.FieldType;
+import org.lareferencia.core.entity.domain.IndexedDocumentHashId;
 import org.lareferencia.core.entity.domain.Relation;
 import org.lareferencia.core.entity.domain.SemanticIdentifier;
 import org.lareferencia.core.entity.indexing.filters.FieldOccurrenceFilterService;
 import org.lareferencia.core.entity.indexing.nested.config.EntityIndexingConfig;
 import org.lareferencia.core.entity.indexing.nested.config.FieldIndexingConfig;
 import org.lareferencia.core.entity.indexing.nested.config.IndexingConfiguration;
+import org.lareferencia.core.entity.indexing.service.EntityBatchPreloader;
 import org.lareferencia.core.entity.indexing.service.EntityIndexingException;
 import org.lareferencia.core.entity.indexing.service.IEntityIndexer;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
 import org.lareferencia.core.entity.services.EntityDataService;
 import org.lareferencia.core.entity.services.EntityModelCache;
+import org.lareferencia.core.entity.services.IndexedDocumentHashService;
+import org.lareferencia.core.entity.services.ReindexSettingsService;
 import org.lareferencia.core.entity.services.exception.EntitiyRelationXMLLoadingException;
-import org.opensearch.action.index.IndexRequest;
 import org.opensearch.client.RequestOptions;
 import org.opensearch.client.RestClient;
 import org.opensearch.client.RestClientBuilder;
 import org.opensearch.client.RestHighLevelClient;
 import org.opensearch.client.indices.CreateIndexRequest;
 import org.opensearch.client.indices.GetIndexRequest;
-import org.opensearch.common.xcontent.XContentType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
@@ -79,6 +87,7 @@ import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
+import com.google.common.collect.Lists;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 
@@ -105,6 +114,12 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
     @Autowired
     private PlatformTransactionManager transactionManager;
 
+    @Autowired
+    EntityRepository entityRepository;
+
+    @Autowired
+    IndexedDocumentHashService hashService;
+
     // Configuração Elasticsearch
     @Value("${elastic.host:localhost}")
     private String host;
@@ -136,19 +151,101 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
     @Value("${elastic.indexer.max.concurrent.tasks:0}")
     private int maxConcurrentTasksConfig; // 0 = auto-calculate
 
+    // Entidades por tarea en indexBatch, cada tarea precarga sus datos con consultas por conjunto
+    @Value("${elastic.indexer.batch.chunk.size:100}")
+    private int batchChunkSize = 100;
+
+    // Agregación de documentos en bulk requests: se envía por cantidad de documentos, bytes o tiempo
+    @Value("${elastic.indexer.bulk.max.actions:500}")
+    private int bulkMaxActions = 500;
+
+    @Value("${elastic.indexer.bulk.max.bytes:5242880}")
+    private long bulkMaxBytes = 5242880;
+
+    @Value("${elastic.indexer.bulk.flush.interval.ms:5000}")
+    private long bulkFlushIntervalMs = 5000;
+
+    // Bulk requests en vuelo al mismo tiempo
+    @Value("${elastic.indexer.bulk.concurrent.requests:2}")
+    private int bulkConcurrentRequests = 2;
+
+    @Value("${elastic.indexer.bulk.retry.backoff.ms:1000}")
+    private long bulkRetryBackoffMs = 1000;
+
+    // Ajuste AIMD del tamaño de bulk y de los requests en vuelo según latencia y rechazos (429) del cluster,
+    // max.actions y concurrent.requests son los valores iniciales
+    @Value("${elastic.indexer.bulk.adaptive:true}")
+    private boolean bulkAdaptive = true;
+
+    @Value("${elastic.indexer.bulk.adaptive.min.actions:50}")
+    private int bulkMinActions = 50;
+
+    @Value("${elastic.indexer.bulk.adaptive.max.actions:5000}")
+    private int bulkAdaptiveMaxActions = 5000;
+
+    @Value("${elastic.indexer.bulk.adaptive.max.concurrent.requests:8}")
+    private int bulkMaxConcurrentRequests = 8;
+
+    @Value("${elastic.indexer.bulk.adaptive.actions.step:50}")
+    private int bulkActionsStep = 50;
+
+    @Value("${elastic.indexer.bulk.adaptive.target.latency.ms:2000}")
+    private long bulkTargetLatencyMs = 2000;
+
+    // Reindexación completa: refresh y réplicas deshabilitados en los índices hasta close()
+    @Value("${elastic.indexer.full.reindex:false}")
+    private boolean fullReindex = false;
+
+    // Configuración original de los índices durante una reindexación completa, en la base hasta que se restaura
+    @Autowired
+    ReindexSettingsService reindexSettingsService;
+
+    private ElasticReindexSettingsManager reindexSettings;
+
+    // Reindexación en un índice nuevo (nombre_v{timestamp}), el alias con el nombre configurado se mueve a él al
+    // terminar la corrida; la versión es el estado de la corrida, compartido por las corridas reanudadas y por todos
+    // los nodos de una corrida particionada
+    @Value("${elastic.indexer.alias.swap:false}")
+    private boolean aliasSwap = false;
+
+    // Eliminar los índices anteriores del alias después del swap
+    @Value("${elastic.indexer.alias.drop.old:false}")
+    private boolean dropOldIndices = false;
+
+    private ElasticIndexAliasManager aliasManager;
+
+    // Índice donde se escribe cada nombre de índice configurado (el índice nuevo en modo alias swap, fijado en beginRun)
+    private final Map<String, String> indexNames = new HashMap<String, String>();
+
+    // No reenviar documentos cuyo hash (XXHash64 del JSON) es igual al de la última indexación en el mismo índice
+    @Value("${elastic.indexer.skip.unchanged:false}")
+    private boolean skipUnchanged = false;
+
+    // Hashes de los documentos enviados sin respuesta todavía, por índice
+    private final Map<String, Map<UUID, Long>> pendingHashes = new ConcurrentHashMap<>();
+
+    // Hashes de los documentos confirmados por un item exitoso de una respuesta bulk, se guardan en flush
+    private final Map<String, Map<UUID, Long>> confirmedHashes = new ConcurrentHashMap<>();
+
+    // Datos precargados del lote que procesa cada thread (null fuera de indexBatch)
+    private final ThreadLocal<EntityBatchPreloader> currentBatch = new ThreadLocal<>();
+
     private IndexingConfiguration indexingConfiguration;
     private String indexingConfigFilename;
     private Map<String, EntityIndexingConfig> configsByEntityType;
     private ObjectMapper jsonMapper;
     private RestHighLevelClient elasticClient = null;
+    private ElasticBulkProcessor bulkProcessor = null;
     private FieldOccurrenceFilterService fieldOccurrenceFilterService;
 
     // --- THREADING COMPONENTS ---
     private ExecutorService indexingExecutor; // For entity processing threads
 
     private final Phaser activeIndexingPhaser = new Phaser(1); // Tracks producer tasks
+    private int awaitedPhase = -1; // fase a la que llegó un flush que no terminó de esperar
     private volatile boolean shutdown = false;
     private final Object flushLock = new Object();
+    private final List<UUID> pendingEntityIds = new ArrayList<>(); // ids de indexById esperando la consulta de hashes
     
     // Configuração de threading
     private int indexingThreads = Runtime.getRuntime().availableProcessors();
@@ -161,6 +258,10 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
     private final AtomicLong documentsProduced = new AtomicLong(0);
     private final AtomicLong documentsIndexed = new AtomicLong(0);
     private final AtomicLong documentsFailedPermanently = new AtomicLong(0);
+    private final AtomicLong documentsSkipped = new AtomicLong(0);
+
+    // Documentos fallidos ya informados por flush (en modo alias swap un flush con fallos nuevos falla)
+    private long failuresReported = 0;
     
     // Circuit Breaker para Elasticsearch
     private ElasticCircuitBreaker circuitBreaker;
@@ -185,14 +286,28 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
             // build elastic client
             elasticClient = buildElasticRestClient();
 
-            // create index mappings
-            createIndexMappings();
+            // alias swap: los documentos van a una nueva versión de cada índice, creada al comenzar la corrida (beginRun)
+            indexNames.clear();
+            if (aliasSwap) {
+                aliasManager = new ElasticIndexAliasManager(elasticClient);
+            } else {
+                createIndexMappings();
+            }
 
             // create map of entity types to indexing configs
             configsByEntityType = new HashMap<String, EntityIndexingConfig>();
             for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
                 configsByEntityType.put(entityIndexingConfig.getEntityType(), entityIndexingConfig);
 
+            // reindexación completa: refresh y réplicas off, si no se reparan los settings de una que no terminó
+            // (en modo alias swap se aplican a los índices nuevos en beginRun)
+            reindexSettings = new ElasticReindexSettingsManager(elasticClient, reindexSettingsService);
+            if (fullReindex && !aliasSwap) {
+                reindexSettings.applyReindexSettings(getIndexNames());
+            } else if (!aliasSwap) {
+                reindexSettings.repair();
+            }
+
             // create json mapper with custom serializer for JSONEntityElastic
             jsonMapper = new ObjectMapper();
             SimpleModule module = new SimpleModule();
@@ -221,6 +336,37 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
         
         // Inicializar Circuit Breaker para Elasticsearch con configuración externalizada
         this.circuitBreaker = new ElasticCircuitBreaker(circuitBreakerMaxFailures, circuitBreakerResetTimeoutMs);
+
+        AdaptiveBulkController bulkController = bulkAdaptive
+                ? new AdaptiveBulkController(bulkMaxActions, bulkMinActions, bulkAdaptiveMaxActions,
+                        bulkConcurrentRequests, 1, bulkMaxConcurrentRequests, bulkTargetLatencyMs, bulkActionsStep)
+                : AdaptiveBulkController.fixed(bulkMaxActions, bulkConcurrentRequests);
+
+        // Los threads de procesamiento entregan los documentos serializados al bulk processor
+        this.bulkProcessor = new ElasticBulkProcessor(elasticClient, new ElasticBulkProcessor.Listener() {
+            @Override
+            public void onIndexed(int documents) {
+                documentsIndexed.addAndGet(documents);
+                circuitBreaker.recordSuccess();
+            }
+
+            @Override
+            public void onDocumentIndexed(String index, String id) {
+                confirmPendingHash(index, id);
+            }
+
+            @Override
+            public void onFailed(String index, String id, String reason) {
+                documentsFailedPermanently.incrementAndGet();
+                forgetPendingHash(index, id);
+                logger.error("Failed to index document {} in index '{}': {}", id, index, reason);
+            }
+
+            @Override
+            public void onRequestFailure(Exception e) {
+                circuitBreaker.recordFailure();
+            }
+        }, bulkController, bulkMaxBytes, bulkFlushIntervalMs, maxRetries, bulkRetryBackoffMs);
         
         logger.info("Threading initialized with {} indexing threads and max {} concurrent tasks.", 
                    indexingThreads, maxConcurrentTasks);
@@ -238,8 +384,9 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
      * que los campos lazy se cargan correctamente sin LazyInitializationException.
      * 
      * @param entityId UUID de la entidad a procesar
+     * @param storedHashes hashes de la última indexación, consultados para todo el grupo de la entidad
      */
-    private void processEntityInTransaction(UUID entityId) throws EntityIndexingException {
+    private void processEntityInTransaction(UUID entityId, Map<IndexedDocumentHashId, Long> storedHashes) throws EntityIndexingException {
         logger.debug("Starting transaction for entity: {}", entityId);
         
         // Crear transacción read-only optimizada
@@ -282,7 +429,7 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
             // Obtener el nombre del índice
             EntityType type = entityModelCache.getObjectById(EntityType.class, entity.getEntityTypeId());
             EntityIndexingConfig entityIndexingConfig = configsByEntityType.get(type.getName());
-            String indexName = entityIndexingConfig != null ? entityIndexingConfig.getName() : null;
+            String indexName = entityIndexingConfig != null ? getIndexName(entityIndexingConfig) : null;
             
             if (indexName == null) {
                 logger.warn("No indexing config found for entity type: {} (entity: {})", type.getName(), entityId);
@@ -296,7 +443,7 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
             documentsProduced.incrementAndGet();
             
             // 4. Indexar directamente en Elasticsearch (fuera de transacción)
-            indexDocumentInElasticsearch(entityId.toString(), json, indexName);
+            indexDocumentInElasticsearch(entityId.toString(), json, indexName, storedHashes.get(new IndexedDocumentHashId(indexName, entityId)));
             
         } catch (Exception e) {
             transactionManager.rollback(status);
@@ -335,14 +482,14 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
 
                 Collection<UUID> nestedRelatedEntityIds;
                 try {
-                    nestedRelatedEntityIds = entityDataService.getMemberRelatedEntitiesIds(entity.getId(), relationName, isFromMember);
+                    nestedRelatedEntityIds = getMemberRelatedEntitiesIds(entity.getId(), relationName, isFromMember);
                 } catch (EntitiyRelationXMLLoadingException e) {
                     logger.warn("Error getting nested entities for relation {}: {}", relationName, e.getMessage());
                     continue;
                 }
 
                 for (UUID nestedRelatedEntityId : nestedRelatedEntityIds) {
-                    Optional<Entity> nestedEntity = entityDataService.getEntityById(nestedRelatedEntityId);
+                    Optional<Entity> nestedEntity = getEntityById(nestedRelatedEntityId);
 
                     if (nestedEntity.isEmpty()) {
                         logger.warn("Nested entity not found: " + nestedRelatedEntityId);
@@ -364,9 +511,20 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
     }
     
     /**
-     * Indexa un documento directamente en Elasticsearch con retry.
+     * Entrega un documento al bulk processor, que lo envía agrupado y reintenta solo los items fallidos.
+     * Con skipUnchanged no se envía si su hash es igual al almacenado (storedHash) de la última indexación.
      */
-    private void indexDocumentInElasticsearch(String entityId, String json, String indexName) {
+    private void indexDocumentInElasticsearch(String entityId, String json, String indexName, Long storedHash) {
+        long hash = 0;
+        if (skipUnchanged) {
+            hash = IndexedDocumentHashService.documentHash(json);
+            if (storedHash != null && storedHash == hash) {
+                documentsSkipped.incrementAndGet();
+                logger.debug("Document unchanged, skipped: {}", entityId);
+                return;
+            }
+        }
+
         // Verificar si el circuit breaker está abierto
         if (circuitBreaker.isOpen()) {
             logger.error("[CIRCUIT BREAKER OPEN] Rejecting document {} to index '{}'. Status: {}", 
@@ -375,43 +533,55 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
             return;
         }
         
-        boolean retry = true;
-        int retries = 0;
-        int millis = 1000;
-        
-        while (retry && retries < maxRetries) {
+        if (skipUnchanged) {
+            pendingHashes.computeIfAbsent(indexName, name -> new ConcurrentHashMap<>()).put(UUID.fromString(entityId), hash);
+        }
+
+        try {
+            bulkProcessor.add(indexName, entityId, json);
+            logger.debug("Document queued for bulk indexing: {}", entityId);
+        } catch (InterruptedException e) {
+            forgetPendingHash(indexName, entityId);
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while queueing document {} for bulk indexing", entityId);
+            documentsFailedPermanently.incrementAndGet();
+        }
+    }
+
+    private void forgetPendingHash(String indexName, String entityId) {
+        Map<UUID, Long> hashes = pendingHashes.get(indexName);
+        if (hashes != null && entityId != null) {
+            hashes.remove(UUID.fromString(entityId));
+        }
+    }
+
+    private void confirmPendingHash(String indexName, String entityId) {
+        Map<UUID, Long> hashes = pendingHashes.get(indexName);
+        if (hashes == null || entityId == null) {
+            return;
+        }
+        UUID id = UUID.fromString(entityId);
+        Long hash = hashes.remove(id);
+        if (hash != null) {
+            confirmedHashes.computeIfAbsent(indexName, name -> new ConcurrentHashMap<>()).put(id, hash);
+        }
+    }
+
+    /**
+     * Guarda los hashes de los documentos confirmados por las respuestas bulk (los que no tuvieron respuesta exitosa
+     * conservan el hash de su última indexación)
+     */
+    private void saveConfirmedHashes() {
+        for (String indexName : new ArrayList<String>(confirmedHashes.keySet())) {
+            Map<UUID, Long> hashes = confirmedHashes.remove(indexName);
+            if (hashes == null) {
+                continue;
+            }
             try {
-                IndexRequest request = new IndexRequest(indexName)
-                    .id(entityId)
-                    .source(json, XContentType.JSON);
-                    
-                elasticClient.index(request, RequestOptions.DEFAULT);
-                
-                // Éxito - registrar y resetear circuit breaker si estaba con fallos
-                documentsIndexed.incrementAndGet();
-                circuitBreaker.recordSuccess();
-                logger.debug("Document indexed successfully: {}", entityId);
-                return;
-                
-            } catch (IOException e) {
-                retries++;
-                circuitBreaker.recordFailure();
-                
-                if (retries >= maxRetries) {
-                    logger.error("Failed to index document {} after {} retries: {}", 
-                               entityId, maxRetries, e.getMessage());
-                    documentsFailedPermanently.incrementAndGet();
-                    retry = false;
-                } else {
-                    logger.warn("Retry {}/{} for document {}: {}", retries, maxRetries, entityId, e.getMessage());
-                    try {
-                        Thread.sleep(millis);
-                        millis *= 2; // Exponential backoff
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        retry = false;
-                    }
-                }
+                hashService.saveHashes(indexName, hashes);
+            } catch (Exception e) {
+                // sin hash guardado el documento se vuelve a enviar en la próxima corrida
+                logger.error("Error saving document hashes of index {}: {}", indexName, e.getMessage(), e);
             }
         }
     }
@@ -422,63 +592,271 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
 
     @Override
     public void index(Entity entity) throws EntityIndexingException {
+        // Solo capturar el UUID - el worker cargará la entidad completa en su propia transacción
+        indexById(entity.getId());
+    }
+
+    @Override
+    public boolean supportsIndexById() {
+        return true;
+    }
+
+    /**
+     * Encola una entidad por su id. Las entidades se agrupan de a batchChunkSize (el último grupo de la página se
+     * encola en flush) para consultar los hashes de su última indexación en una consulta por grupo; cada entidad se
+     * sigue procesando en su propia tarea.
+     */
+    @Override
+    public void indexById(UUID entityId) throws EntityIndexingException {
         if (shutdown) {
             throw new EntityIndexingException("Indexer is shutting down");
         }
         
-        // Solo capturar el UUID - el worker cargará la entidad completa en su propia transacción
-        final UUID entityId = entity.getId();
         logger.debug("Queueing entity for async processing: {}", entityId);
-        
+
+        List<UUID> chunkIds = null;
+        synchronized (pendingEntityIds) {
+            pendingEntityIds.add(entityId);
+            if (pendingEntityIds.size() >= Math.max(batchChunkSize, 1)) {
+                chunkIds = new ArrayList<>(pendingEntityIds);
+                pendingEntityIds.clear();
+            }
+        }
+
+        if (chunkIds != null)
+            submitEntities(chunkIds);
+    }
+
+    /**
+     * Encola las entidades que esperan en pendingEntityIds
+     */
+    private void submitPendingEntities() throws EntityIndexingException {
+        List<UUID> chunkIds;
+        synchronized (pendingEntityIds) {
+            chunkIds = new ArrayList<>(pendingEntityIds);
+            pendingEntityIds.clear();
+        }
+
+        if (!chunkIds.isEmpty())
+            submitEntities(chunkIds);
+    }
+
+    /**
+     * Consulta los hashes del grupo en una consulta y encola una tarea por entidad. Si la consulta falla las entidades
+     * se indexan sin hash previo (se reenvían aunque no hayan cambiado).
+     */
+    private void submitEntities(List<UUID> entityIds) throws EntityIndexingException {
+        Map<IndexedDocumentHashId, Long> storedHashes = new HashMap<IndexedDocumentHashId, Long>();
+        if (skipUnchanged) {
+            try {
+                storedHashes = hashService.findHashes(getIndexNames(), entityIds);
+            } catch (RuntimeException e) {
+                logger.warn("Error loading document hashes of {} entities, they are indexed unconditionally: {}", entityIds.size(), e.getMessage());
+            }
+        }
+        Map<IndexedDocumentHashId, Long> chunkHashes = storedHashes;
+
+        for (UUID entityId : entityIds)
+            submitTask("entity " + entityId, 1, () -> processEntityInTransaction(entityId, chunkHashes));
+    }
+
+    /**
+     * Indexa un lote de entidades: el lote se divide en tareas de batchChunkSize entidades, cada tarea carga en una
+     * transacción read-only sus entidades, relaciones y entidades relacionadas con consultas por conjunto
+     * (EntityBatchPreloader) antes de generar los documentos.
+     */
+    @Override
+    public void indexBatch(Collection<Entity> entities) throws EntityIndexingException {
+        if (shutdown) {
+            throw new EntityIndexingException("Indexer is shutting down");
+        }
+
+        List<UUID> entityIds = new ArrayList<>(entities.size());
+        for (Entity entity : entities)
+            entityIds.add(entity.getId());
+
+        for (List<UUID> chunk : Lists.partition(entityIds, Math.max(batchChunkSize, 1))) {
+            List<UUID> chunkIds = new ArrayList<>(chunk);
+            submitTask("batch of " + chunkIds.size() + " entities", chunkIds.size(), () -> processBatchInTransaction(chunkIds));
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexingTask {
+        void run() throws EntityIndexingException;
+    }
+
+    /**
+     * Encola una tarea en el executor, bloqueando si ya hay maxConcurrentTasks en curso. La tarea queda registrada
+     * en el phaser hasta terminar, flush() espera a todas. Si la tarea falla sus entidades cuentan como fallidas.
+     */
+    private void submitTask(String description, int entities, IndexingTask task) throws EntityIndexingException {
         try {
             // Adquirir permiso del semáforo antes de encolar
             concurrentTasksSemaphore.acquire();
-            logger.debug("Acquired semaphore permit for entity: {} (available: {})", 
-                        entityId, concurrentTasksSemaphore.availablePermits());
+            logger.debug("Acquired semaphore permit for {} (available: {})", description, concurrentTasksSemaphore.availablePermits());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            throw new EntityIndexingException("Interrupted while waiting for processing slot for entity: " + entityId);
+            throw new EntityIndexingException("Interrupted while waiting for processing slot for " + description);
         }
-        
+
         // Registrar este hilo en el phaser
         activeIndexingPhaser.register();
         logger.debug("Registered with phaser. Current parties: {}", activeIndexingPhaser.getRegisteredParties());
-        
+
         try {
-            // Enviar solo el UUID al executor - cada worker manejará todo el proceso
             CompletableFuture.runAsync(() -> {
                 try {
-                    logger.debug("Worker thread starting for entity: {}", entityId);
-                    
-                    // El worker carga la entidad, genera JSON e indexa en Elasticsearch
-                    // Todo en UNA SOLA transacción read-only garantizando lazy loading
-                    processEntityInTransaction(entityId);
-                    
-                    logger.debug("Worker thread completed for entity: {}", entityId);
-                    
+                    logger.debug("Worker thread starting for {}", description);
+
+                    // El worker carga las entidades, genera JSON e indexa en Elasticsearch
+                    task.run();
+
+                    logger.debug("Worker thread completed for {}", description);
+
                 } catch (Exception e) {
-                    logger.error("Error in worker thread for entity {}: {}", entityId, e.getMessage(), e);
+                    documentsFailedPermanently.addAndGet(entities);
+                    logger.error("Error in worker thread for {}: {}", description, e.getMessage(), e);
                 } finally {
                     // Liberar semáforo y desregistrar del phaser
                     concurrentTasksSemaphore.release();
                     activeIndexingPhaser.arriveAndDeregister();
-                    logger.debug("Released semaphore and deregistered from phaser for entity: {} (available: {})", 
-                                entityId, concurrentTasksSemaphore.availablePermits());
+                    logger.debug("Released semaphore and deregistered from phaser for {} (available: {})",
+                                description, concurrentTasksSemaphore.availablePermits());
                 }
             }, indexingExecutor);
-            
+
             // El método retorna inmediatamente - el trabajo se hace en el worker thread
-            logger.debug("Entity {} queued for async processing", entityId);
-            
+            logger.debug("{} queued for async processing", description);
+
         } catch (Exception e) {
             // Si hay error en el setup, liberar semáforo y desregistrar del phaser
             concurrentTasksSemaphore.release();
             activeIndexingPhaser.arriveAndDeregister();
-            logger.error("Error setting up async processing for entity {}: {}", entity.getId(), e.getMessage(), e);
-            throw new EntityIndexingException("Error queueing entity for async processing: " + entity.getId() + ". " + e.getMessage());
+            logger.error("Error setting up async processing for {}: {}", description, e.getMessage(), e);
+            throw new EntityIndexingException("Error queueing " + description + " for async processing. " + e.getMessage());
         }
     }
 
+    /**
+     * Procesa un lote de entidades en una única transacción read-only: precarga los datos del lote, genera los
+     * documentos y, ya fuera de la transacción, los indexa. Los errores de una entidad no detienen el lote, se
+     * cuentan como fallidos una vez que el lote se leyó (si el lote falla, submitTask cuenta todas sus entidades).
+     */
+    private void processBatchInTransaction(List<UUID> entityIds) throws EntityIndexingException {
+
+        DefaultTransactionDefinition def = new DefaultTransactionDefinition();
+        def.setReadOnly(true);
+        def.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        def.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        // más tiempo que una entidad, el lote se lee completo dentro de la transacción
+        def.setTimeout(300);
+
+        // documentos generados: id, json, índice
+        List<String[]> documents = new ArrayList<>(entityIds.size());
+        int failed = 0;
+
+        TransactionStatus status = transactionManager.getTransaction(def);
+        try {
+            EntityBatchPreloader batch = new EntityBatchPreloader(entityDataService, entityRepository, entityIds);
+            List<Entity> entities = batch.loadEntities();
+            preloadBatch(batch, entities);
+
+            currentBatch.set(batch);
+            try {
+                for (Entity entity : entities) {
+                    try {
+                        EntityType type = entityModelCache.getObjectById(EntityType.class, entity.getEntityTypeId());
+                        EntityIndexingConfig entityIndexingConfig = configsByEntityType.get(type.getName());
+                        if (entityIndexingConfig == null) {
+                            logger.warn("No indexing config found for entity type: {} (entity: {})", type.getName(), entity.getId());
+                            continue;
+                        }
+                        documents.add(new String[] { entity.getId().toString(), generateElasticDocument(entity), getIndexName(entityIndexingConfig) });
+                        documentsProduced.incrementAndGet();
+                    } catch (Exception e) {
+                        failed++;
+                        logger.error("Error processing entity {} of batch: {}", entity.getId(), e.getMessage());
+                    }
+                }
+            } finally {
+                currentBatch.remove();
+            }
+
+            transactionManager.commit(status);
+            logger.debug("Read-only transaction committed for batch of {} entities", entityIds.size());
+
+        } catch (Exception e) {
+            if (!status.isCompleted())
+                transactionManager.rollback(status);
+            logger.error("Read-only transaction rolled back for batch of {} entities: {}", entityIds.size(), e.getMessage(), e);
+            throw new EntityIndexingException("Error processing batch of " + entityIds.size() + " entities. " + e.getMessage());
+        }
+
+        documentsFailedPermanently.addAndGet(failed);
+
+        // Hashes de la última indexación de las entidades del lote, en una consulta
+        Map<IndexedDocumentHashId, Long> storedHashes = skipUnchanged ? hashService.findHashes(getIndexNames(), entityIds) : new HashMap<IndexedDocumentHashId, Long>();
+
+        // Indexar directamente en Elasticsearch (fuera de transacción)
+        for (String[] document : documents)
+            indexDocumentInElasticsearch(document[0], document[1], document[2], storedHashes.get(new IndexedDocumentHashId(document[2], UUID.fromString(document[0]))));
+    }
+
+    /**
+     * Precarga las relaciones y entidades relacionadas que usan las configuraciones de los tipos del lote
+     */
+    private void preloadBatch(EntityBatchPreloader batch, List<Entity> entities) throws Exception {
+
+        Set<Long> entityTypeIds = new HashSet<>();
+        for (Entity entity : entities)
+            entityTypeIds.add(entity.getEntityTypeId());
+
+        for (Long entityTypeId : entityTypeIds) {
+
+            EntityType type = entityModelCache.getObjectById(EntityType.class, entityTypeId);
+            EntityIndexingConfig entityIndexingConfig = configsByEntityType.get(type.getName());
+            if (entityIndexingConfig == null)
+                continue;
+
+            for (EntityIndexingConfig nestedEntityConfig : entityIndexingConfig.getIndexNestedEntities())
+                batch.preloadRelatedEntities(nestedEntityConfig.getEntityRelation(),
+                        entityModelCache.isFromRelation(nestedEntityConfig.getEntityRelation(), nestedEntityConfig.getEntityType()));
+
+            for (FieldIndexingConfig fieldConfig : entityIndexingConfig.getIndexFields()) {
+                if (fieldConfig.getSourceRelation() == null)
+                    continue;
+                if (fieldConfig.getSourceMember() != null)
+                    batch.preloadRelatedEntities(fieldConfig.getSourceRelation(), entityModelCache.isFromRelation(fieldConfig.getSourceRelation(), fieldConfig.getSourceMember()));
+                else
+                    batch.preloadRelations(fieldConfig.getSourceRelation(), entityModelCache.isFromRelation(fieldConfig.getSourceRelation(), type.getName()));
+            }
+        }
+    }
+
+    // Búsquedas servidas por el lote del thread cuando lo hay
+
+    private Set<UUID> getMemberRelatedEntitiesIds(UUID entityId, String relationName, Boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+        EntityBatchPreloader batch = currentBatch.get();
+        if (batch != null)
+            return batch.getMemberRelatedEntitiesIds(entityId, relationName, isFromMember);
+        return entityDataService.getMemberRelatedEntitiesIds(entityId, relationName, isFromMember);
+    }
+
+    private Set<Relation> getRelationsWithThisEntityAsMember(UUID entityId, String relationName, Boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+        EntityBatchPreloader batch = currentBatch.get();
+        if (batch != null)
+            return batch.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+        return entityDataService.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+    }
+
+    private Optional<Entity> getEntityById(UUID entityId) {
+        EntityBatchPreloader batch = currentBatch.get();
+        if (batch != null)
+            return batch.getEntityById(entityId);
+        return entityDataService.getEntityById(entityId);
+    }
+
     private JSONEntityElastic createElasticEntity(EntityIndexingConfig config, Entity entity) throws EntityIndexingException {
         // create the elastic entity
         JSONEntityElastic jsonEntityElastic = new JSONEntityElastic();
@@ -522,8 +900,8 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
                 if (config.getSourceMember() != null) { // is a related entity field
                     // check if the relation is from or to the entity and get the related entities ids
                     Boolean isFromMember = entityModelCache.isFromRelation(config.getSourceRelation(), config.getSourceMember());
-                    for (UUID relatedEntityId : entityDataService.getMemberRelatedEntitiesIds(entity.getId(), config.getSourceRelation(), isFromMember)) {
-                        Entity relatedEntity = entityDataService.getEntityById(relatedEntityId).get();
+                    for (UUID relatedEntityId : getMemberRelatedEntitiesIds(entity.getId(), config.getSourceRelation(), isFromMember)) {
+                        Entity relatedEntity = getEntityById(relatedEntityId).get();
                         relatedEntity.loadOcurrences(entityModelCache.getNamesByIdMap(FieldType.class));
                         processFieldOccurrences(relatedEntity.getFieldOccurrences(config.getSourceField()), config, ientity);
                     }
@@ -531,7 +909,7 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
                     EntityType entityType = entityDataService.getEntityTypeFromId(entity.getEntityTypeId());
                     Boolean isFromMember = entityModelCache.isFromRelation(config.getSourceRelation(), entityType.getName());
 
-                    for (Relation relation : entityDataService.getRelationsWithThisEntityAsMember(entity.getId(), config.getSourceRelation(), isFromMember)) {
+                    for (Relation relation : getRelationsWithThisEntityAsMember(entity.getId(), config.getSourceRelation(), isFromMember)) {
                         relation.loadOcurrences(entityModelCache.getNamesByIdMap(FieldType.class));
                         processFieldOccurrences(relation.getFieldOccurrences(config.getSourceField()), config, ientity);
                     }
@@ -584,39 +962,157 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
             }
     }
 
+    /**
+     * Modo alias swap: la versión de los índices que construye una corrida nueva
+     */
+    @Override
+    public String createRunState() {
+        return aliasSwap ? ElasticIndexAliasManager.newBuildVersion() : null;
+    }
+
+    /**
+     * Modo alias swap: crea los índices de la versión que construye la corrida (si no existen) y les aplica los
+     * settings de reindexación
+     */
+    @Override
+    public void beginRun(String runState) throws EntityIndexingException {
+        if (!aliasSwap || runState == null) {
+            return;
+        }
+
+        indexNames.clear();
+        for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
+            indexNames.put(entityIndexingConfig.getName(), ElasticIndexAliasManager.buildIndexName(entityIndexingConfig.getName(), runState));
+        logger.info("Building indices: " + indexNames.values());
+
+        createIndexMappings();
+        try {
+            reindexSettings.applyReindexSettings(getIndexNames());
+        } catch (Exception e) {
+            throw new EntityIndexingException("Error updating index settings for reindexing :: " + e.getMessage());
+        }
+    }
+
     @Override
-    public void flush() {
+    public void flush() throws EntityIndexingException {
         synchronized (flushLock) {
             logger.info("Starting flush operation...");
 
+            // Encolar las entidades por id que esperan la consulta de sus hashes
+            submitPendingEntities();
+
             // Wait for all active indexing tasks to finish
             logger.info("Waiting for active indexing threads to complete...");
-            int phase = activeIndexingPhaser.arrive();
+            awaitIndexingTasks();
+
+            // Enviar los documentos pendientes y esperar los bulk requests en vuelo
             try {
-                activeIndexingPhaser.awaitAdvanceInterruptibly(phase, 30, TimeUnit.SECONDS);
-            } catch (InterruptedException | TimeoutException e) {
+                bulkProcessor.flush();
+            } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                logger.warn("Interrupted while waiting for indexing threads to complete");
-                return;
+                throw new EntityIndexingException("Interrupted while waiting for bulk requests to complete, the page was not flushed");
+            }
+
+            if (skipUnchanged) {
+                saveConfirmedHashes();
+            }
+
+            // los settings de reindexación siguen retenidos mientras la corrida avanza
+            if (reindexSettings != null) {
+                reindexSettings.heartbeat();
             }
             
             // Reportar estadísticas finales cuando todos los tasks terminan
             ProcessingStats finalStats = getProcessingStats();
             logger.info("All indexing tasks completed successfully.");
-            logger.info("Final indexing statistics - Documents produced: {}, indexed: {}, failed: {}",
+            logger.info("Final indexing statistics - Documents produced: {}, indexed: {}, failed: {}, skipped unchanged: {}",
                        finalStats.getDocumentsProduced(),
                        finalStats.getDocumentsIndexed(), 
-                       finalStats.getDocumentsFailed());
+                       finalStats.getDocumentsFailed(),
+                       finalStats.getDocumentsSkipped());
             
             if (finalStats.getDocumentsFailed() > 0) {
                 logger.warn("Some documents failed permanently during indexing. Failed count: {}", 
                            finalStats.getDocumentsFailed());
             }
             
+            // el índice nuevo no tendría esos documentos, la corrida no se debe publicar
+            long failed = finalStats.getDocumentsFailed();
+            if (aliasSwap && !indexNames.isEmpty() && failed > failuresReported) {
+                long newFailures = failed - failuresReported;
+                failuresReported = failed;
+                throw new EntityIndexingException("Indexing failed for " + newFailures + " documents of the index being built");
+            }
+
             logger.info("Flush operation completed successfully.");
         }
     }
 
+    /**
+     * Espera a que terminen todas las tareas encoladas. Las tareas terminan por sí mismas (las transacciones tienen
+     * timeout), así que se espera hasta que el phaser avance, informando cada 30 segundos; flush no puede volver con
+     * tareas en curso porque el worker guardaría el checkpoint de documentos que todavía no se enviaron.
+     */
+    private void awaitIndexingTasks() throws EntityIndexingException {
+
+        // un flush interrumpido ya llegó a la fase actual, no se vuelve a llegar a ella
+        int phase = activeIndexingPhaser.getPhase() == awaitedPhase ? awaitedPhase : activeIndexingPhaser.arrive();
+        awaitedPhase = phase;
+
+        while (true) {
+            try {
+                activeIndexingPhaser.awaitAdvanceInterruptibly(phase, 30, TimeUnit.SECONDS);
+                awaitedPhase = -1;
+                return;
+            } catch (TimeoutException e) {
+                logger.warn("Still waiting for {} indexing tasks to complete", Math.max(0, activeIndexingPhaser.getRegisteredParties() - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EntityIndexingException("Interrupted while waiting for indexing tasks to complete, the page was not flushed");
+            }
+        }
+    }
+
+    /**
+     * Entidades que no llegaron al índice: fallidas al generar su documento, tareas fallidas y documentos rechazados
+     */
+    @Override
+    public long getFailedEntities() {
+        return documentsFailedPermanently.get();
+    }
+
+    /**
+     * Modo alias swap: espera los documentos pendientes, restaura los settings de los índices nuevos y mueve los
+     * alias a ellos
+     */
+    @Override
+    public void finishRun() throws EntityIndexingException {
+        if (!aliasSwap || aliasManager == null || indexNames.isEmpty()) {
+            return;
+        }
+
+        flush();
+        if (documentsFailedPermanently.get() > 0) {
+            throw new EntityIndexingException(documentsFailedPermanently.get() + " documents failed, the aliases are not moved to the new indices");
+        }
+
+        try {
+            reindexSettings.restore();
+
+            for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices()) {
+                List<String> previous = aliasManager.swap(entityIndexingConfig.getName(), getIndexName(entityIndexingConfig), dropOldIndices);
+                if (dropOldIndices) {
+                    for (String index : previous) {
+                        hashService.deleteIndex(index);
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            throw new EntityIndexingException("Error moving aliases to the new indices :: " + e.getMessage());
+        }
+    }
+
     @Override
     public void delete(String entityId) throws EntityIndexingException {
         logger.warn("Delete operation not yet implemented for JSONElasticEntityIndexerThreadedImpl.");
@@ -634,12 +1130,31 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
             shutdown = true;
 
             // 1. Flush any remaining work
-            flush();
+            try {
+                flush();
+            } catch (EntityIndexingException e) {
+                logger.error("Error flushing pending documents on close: " + e.getMessage());
+            }
 
             // 2. Shutdown indexing executor
             shutdownExecutor(indexingExecutor, "IndexingExecutor");
 
-            // 3. Close Elasticsearch client
+            // 3. Close bulk processor (sends the pending documents)
+            if (bulkProcessor != null) {
+                bulkProcessor.close();
+            }
+
+            // 4. Restaurar settings originales de los índices y refrescarlos (un índice nuevo no publicado por finishRun
+            // queda como está, los alias siguen en los índices anteriores hasta que una corrida reanudada lo complete)
+            if ((fullReindex || aliasSwap) && reindexSettings != null) {
+                try {
+                    reindexSettings.restore();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Error restoring index settings, they will be repaired by the next run: " + e.getMessage(), e);
+                }
+            }
+
+            // 5. Close Elasticsearch client
             if (elasticClient != null) {
                 try {
                     elasticClient.close();
@@ -691,9 +1206,13 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
                 documentsProduced.get(),
                 documentsIndexed.get(),
                 documentsFailedPermanently.get(),
+                documentsSkipped.get(),
                 concurrentTasksSemaphore.availablePermits(),
                 maxConcurrentTasks,
-                circuitBreaker != null ? circuitBreaker.getStatus() : "NOT INITIALIZED"
+                circuitBreaker != null ? circuitBreaker.getStatus() : "NOT INITIALIZED",
+                bulkProcessor != null ? bulkProcessor.getController().getBulkActions() : 0,
+                bulkProcessor != null ? bulkProcessor.getController().getConcurrency() : 0,
+                bulkProcessor != null ? bulkProcessor.getController().getDecreases() : 0
         );
     }
     
@@ -709,7 +1228,10 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
         logger.info("Documents Produced: {}", stats.getDocumentsProduced());
         logger.info("Documents Indexed: {}", stats.getDocumentsIndexed());
         logger.info("Documents Failed: {}", stats.getDocumentsFailed());
+        logger.info("Documents Skipped (unchanged): {}", stats.getDocumentsSkipped());
         logger.info("Circuit Breaker Status: {}", stats.getCircuitBreakerStatus());
+        logger.info("Bulk Size: {} documents, Concurrent Bulk Requests: {}, Bulk Limit Decreases: {}",
+                   stats.getBulkActions(), stats.getBulkConcurrentRequests(), stats.getBulkLimitDecreases());
         logger.info("============================");
     }
 
@@ -721,30 +1243,43 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
         private final long documentsProduced;
         private final long documentsIndexed;
         private final long documentsFailed;
+        private final long documentsSkipped;
         private final int availableSlots;
         private final int maxSlots;
         private final String circuitBreakerStatus;
+        private final int bulkActions;
+        private final int bulkConcurrentRequests;
+        private final long bulkLimitDecreases;
 
         public ProcessingStats(int activeTasks, long documentsProduced, 
-                             long documentsIndexed, long documentsFailed,
-                             int availableSlots, int maxSlots, String circuitBreakerStatus) {
+                             long documentsIndexed, long documentsFailed, long documentsSkipped,
+                             int availableSlots, int maxSlots, String circuitBreakerStatus,
+                             int bulkActions, int bulkConcurrentRequests, long bulkLimitDecreases) {
             this.activeTasks = activeTasks;
             this.documentsProduced = documentsProduced;
             this.documentsIndexed = documentsIndexed;
             this.documentsFailed = documentsFailed;
+            this.documentsSkipped = documentsSkipped;
             this.availableSlots = availableSlots;
             this.maxSlots = maxSlots;
             this.circuitBreakerStatus = circuitBreakerStatus;
+            this.bulkActions = bulkActions;
+            this.bulkConcurrentRequests = bulkConcurrentRequests;
+            this.bulkLimitDecreases = bulkLimitDecreases;
         }
 
         public int getActiveTasks() { return activeTasks; }
         public long getDocumentsProduced() { return documentsProduced; }
         public long getDocumentsIndexed() { return documentsIndexed; }
         public long getDocumentsFailed() { return documentsFailed; }
+        public long getDocumentsSkipped() { return documentsSkipped; }
         public int getAvailableSlots() { return availableSlots; }
         public int getMaxSlots() { return maxSlots; }
         public int getUsedSlots() { return maxSlots - availableSlots; }
         public String getCircuitBreakerStatus() { return circuitBreakerStatus; }
+        public int getBulkActions() { return bulkActions; }
+        public int getBulkConcurrentRequests() { return bulkConcurrentRequests; }
+        public long getBulkLimitDecreases() { return bulkLimitDecreases; }
     }
 
     // --- ELASTIC SPECIFIC METHODS ---
@@ -800,6 +1335,20 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
         }
     }
 
+    /**
+     * Índice donde se escriben los documentos de una configuración (la nueva versión en modo alias swap)
+     */
+    private String getIndexName(EntityIndexingConfig entityIndexingConfig) {
+        return indexNames.getOrDefault(entityIndexingConfig.getName(), entityIndexingConfig.getName());
+    }
+
+    private List<String> getIndexNames() {
+        List<String> indices = new ArrayList<String>();
+        for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices())
+            indices.add(getIndexName(entityIndexingConfig));
+        return indices;
+    }
+
     private void createIndexMappings() throws EntityIndexingException {
         try {
             for (EntityIndexingConfig entityIndexingConfig : indexingConfiguration.getEntityIndices()) {
@@ -838,23 +1387,30 @@ public class JSONElasticEntityIndexerThreadedImpl implements IEntityIndexer, Clo
         typesMapping.put(ID_FIELD, createTypeMapping(ID_FIELD_TYPE));
         addNestedEntitiesToMapping(entityIndexingConfig.getIndexNestedEntities(), typesMapping);
 
+        String indexName = getIndexName(entityIndexingConfig);
+
         try {
-            Boolean indexExists = elasticClient.indices().exists(new GetIndexRequest(entityIndexingConfig.getName()), RequestOptions.DEFAULT);
+            Boolean indexExists = elasticClient.indices().exists(new GetIndexRequest(indexName), RequestOptions.DEFAULT);
 
             if (indexExists) {
-                logger.warn("Index " + entityIndexingConfig.getName() + " already exists. Is not possible to update mapping !!!");
+                logger.warn("Index " + indexName + " already exists. Is not possible to update mapping !!!");
             } else {
-                logger.info("Index " + entityIndexingConfig.getName() + " does not exist, creating it. With mapping: " + mapping.toString() + "");
+                logger.info("Index " + indexName + " does not exist, creating it. With mapping: " + mapping.toString() + "");
 
-                CreateIndexRequest createIndexRequest = new CreateIndexRequest(entityIndexingConfig.getName());
+                CreateIndexRequest createIndexRequest = new CreateIndexRequest(indexName);
                 createIndexRequest.mapping(mapping);
                 elasticClient.indices().create(createIndexRequest, RequestOptions.DEFAULT);
 
-                logger.info("Index " + entityIndexingConfig.getName() + " created successfully");
+                logger.info("Index " + indexName + " created successfully");
+
+                // hashes de un índice anterior con el mismo nombre no corresponden al índice nuevo
+                if (skipUnchanged) {
+                    hashService.deleteIndex(indexName);
+                }
             }
 
         } catch (IOException e) {
-            throw new EntityIndexingException("Error trying index creation / mapping creation: " + entityIndexingConfig.getName() + " :: " + e.getMessage());
+            throw new EntityIndexingException("Error trying index creation / mapping creation: " + indexName + " :: " + e.getMessage());
         }
     }
 
@@ -138,6 +138,16 @@ public class ElasticIndexerOptimizedConfig {
  * elastic.indexer.max.concurrent.tasks=24
  * elastic.indexer.monitoring.interval=30
  * 
+ * # Bulk requests: tamaño y concurrencia se ajustan en ejecución (AIMD) según latencia y rechazos 429,
+ * # los valores de max.actions y concurrent.requests son solo los iniciales
+ * elastic.indexer.bulk.adaptive=true
+ * elastic.indexer.bulk.max.actions=500
+ * elastic.indexer.bulk.concurrent.requests=2
+ * elastic.indexer.bulk.adaptive.min.actions=50
+ * elastic.indexer.bulk.adaptive.max.actions=5000
+ * elastic.indexer.bulk.adaptive.max.concurrent.requests=8
+ * elastic.indexer.bulk.adaptive.target.latency.ms=2000
+ * 
  * # Configuración común de Elasticsearch
  * elastic.host=elasticsearch-cluster.example.com
  * elastic.port=9200
@@ -0,0 +1,219 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.indexing.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.lareferencia.core.entity.domain.Entity;
+import org.lareferencia.core.entity.domain.Relation;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
+import org.lareferencia.core.entity.services.EntityDataService;
+import org.lareferencia.core.entity.services.exception.EntitiyRelationXMLLoadingException;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Data of a batch (page) of entities loaded with set based queries, for IEntityIndexer.indexBatch implementations:
+ * the entities with their occurrences and semantic identifiers, the related entity ids and relations by relation
+ * type and membership, and the related entities with their occurrences. Each relation lookup is run once for the
+ * whole batch (in chunks of IN_CHUNK_SIZE ids) the first time it is requested, or eagerly through the preload
+ * methods. Lookups outside the batch fall back to EntityDataService.
+ *
+ * Not thread safe, it must be used inside the read only transaction that loaded it.
+ */
+public class EntityBatchPreloader {
+
+	private static final int IN_CHUNK_SIZE = 1000;
+
+	private final EntityDataService entityDataService;
+	private final EntityRepository entityRepository;
+
+	private final List<UUID> batchIds;
+	private final Set<UUID> batchIdSet;
+
+	private final Map<UUID, Entity> entitiesById = new HashMap<UUID, Entity>();
+
+	// by "relation name::membership"
+	private final Map<String, SetMultimap<UUID, UUID>> relatedIdsByKey = new HashMap<String, SetMultimap<UUID, UUID>>();
+	private final Map<String, SetMultimap<UUID, Relation>> relationsByKey = new HashMap<String, SetMultimap<UUID, Relation>>();
+	private final Set<String> relatedEntitiesLoaded = new HashSet<String>();
+
+	public EntityBatchPreloader(EntityDataService entityDataService, EntityRepository entityRepository, Collection<UUID> entityIds) {
+		this.entityDataService = entityDataService;
+		this.entityRepository = entityRepository;
+		this.batchIds = new ArrayList<UUID>(new LinkedHashSet<UUID>(entityIds));
+		this.batchIdSet = new HashSet<UUID>(batchIds);
+	}
+
+	/**
+	 * Loads the entities of the batch with their occurrences and semantic identifiers (two queries per chunk)
+	 * @return the entities found, in batch order
+	 */
+	public List<Entity> loadEntities() {
+
+		loadWithOccurrences(batchIds);
+
+		List<Entity> entities = new ArrayList<Entity>(batchIds.size());
+		for (UUID entityId : batchIds) {
+			Entity entity = entitiesById.get(entityId);
+			if (entity != null)
+				entities.add(entity);
+		}
+		return entities;
+	}
+
+	/**
+	 * Related entity ids of a batch member, same semantics as EntityDataService.getMemberRelatedEntitiesIds
+	 */
+	public Set<UUID> getMemberRelatedEntitiesIds(UUID entityId, String relationName, boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+
+		if (!batchIdSet.contains(entityId))
+			return entityDataService.getMemberRelatedEntitiesIds(entityId, relationName, isFromMember);
+
+		return relatedIds(relationName, isFromMember).get(entityId);
+	}
+
+	/**
+	 * Relations of a batch member with their occurrences, same semantics as
+	 * EntityDataService.getRelationsWithThisEntityAsMember
+	 */
+	public Set<Relation> getRelationsWithThisEntityAsMember(UUID entityId, String relationName, boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+
+		if (!batchIdSet.contains(entityId))
+			return entityDataService.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+
+		return relations(relationName, isFromMember).get(entityId);
+	}
+
+	/** Entity of the batch or already preloaded related entity, loaded through EntityDataService otherwise */
+	public Optional<Entity> getEntityById(UUID entityId) {
+
+		Entity entity = entitiesById.get(entityId);
+		if (entity != null)
+			return Optional.of(entity);
+
+		return entityDataService.getEntityById(entityId);
+	}
+
+	/**
+	 * Loads, for every batch member, the ids of the related entities and then the related entities with their
+	 * occurrences
+	 */
+	public void preloadRelatedEntities(String relationName, boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+
+		String key = key(relationName, isFromMember);
+		if (!relatedEntitiesLoaded.add(key))
+			return;
+
+		List<UUID> missing = new ArrayList<UUID>();
+		for (UUID relatedId : new HashSet<UUID>(relatedIds(relationName, isFromMember).values()))
+			if (!entitiesById.containsKey(relatedId))
+				missing.add(relatedId);
+
+		loadWithOccurrences(missing);
+	}
+
+	/** Loads the relations of every batch member with their occurrences */
+	public void preloadRelations(String relationName, boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+		relations(relationName, isFromMember);
+	}
+
+	private SetMultimap<UUID, UUID> relatedIds(String relationName, boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+
+		String key = key(relationName, isFromMember);
+		SetMultimap<UUID, UUID> relatedIds = relatedIdsByKey.get(key);
+		if (relatedIds != null)
+			return relatedIds;
+
+		Long relationTypeId = entityDataService.getRelationTypeFromName(relationName).getId();
+		relatedIds = HashMultimap.create();
+
+		// as getMemberRelatedEntitiesIds: from members of the relations where the entity is the to member and viceversa
+		for (List<UUID> chunk : Lists.partition(batchIds, IN_CHUNK_SIZE)) {
+			if (isFromMember) {
+				for (Object[] members : entityRepository.getMembersIdsWithTheseEntitiesInToMember(chunk, relationTypeId))
+					relatedIds.put((UUID) members[1], (UUID) members[0]);
+			} else {
+				for (Object[] members : entityRepository.getMembersIdsWithTheseEntitiesInFromMember(chunk, relationTypeId))
+					relatedIds.put((UUID) members[0], (UUID) members[1]);
+			}
+		}
+
+		relatedIdsByKey.put(key, relatedIds);
+		return relatedIds;
+	}
+
+	private SetMultimap<UUID, Relation> relations(String relationName, boolean isFromMember) throws EntitiyRelationXMLLoadingException {
+
+		String key = key(relationName, isFromMember);
+		SetMultimap<UUID, Relation> relations = relationsByKey.get(key);
+		if (relations != null)
+			return relations;
+
+		Long relationTypeId = entityDataService.getRelationTypeFromName(relationName).getId();
+		relations = HashMultimap.create();
+
+		// as getRelationsWithThisEntityAsMember: relations where the entity is the from member if isFromMember
+		for (List<UUID> chunk : Lists.partition(batchIds, IN_CHUNK_SIZE)) {
+			if (isFromMember) {
+				for (Relation relation : entityRepository.findRelationsWithOccurrencesByTypeAndFromMembers(relationTypeId, chunk))
+					relations.put(relation.getId().fromEntityId, relation);
+			} else {
+				for (Relation relation : entityRepository.findRelationsWithOccurrencesByTypeAndToMembers(relationTypeId, chunk))
+					relations.put(relation.getId().toEntityId, relation);
+			}
+		}
+
+		relationsByKey.put(key, relations);
+		return relations;
+	}
+
+	private void loadWithOccurrences(List<UUID> entityIds) {
+
+		for (List<UUID> chunk : Lists.partition(entityIds, IN_CHUNK_SIZE)) {
+			for (Entity entity : entityRepository.findAllWithOccurrencesByIdIn(chunk))
+				entitiesById.put(entity.getId(), entity);
+			entityRepository.findAllWithSemanticIdentifiersByIdIn(chunk);
+		}
+	}
+
+	private static String key(String relationName, boolean isFromMember) {
+		return relationName + "::" + isFromMember;
+	}
+
+	/** Ids of the batch, in order and without duplicates */
+	public List<UUID> getBatchIds() {
+		return Collections.unmodifiableList(batchIds);
+	}
+}
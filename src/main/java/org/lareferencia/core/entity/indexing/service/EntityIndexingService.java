@@ -98,6 +98,13 @@ public class EntityIndexingService  {
 	}
 	
 	
+	/**
+	 * True if every getIndexer call returns a new instance of the bean (prototype scope), false for a shared one
+	 */
+	public boolean isPrototypeIndexer(String indexerBeanName) {
+		return applicationContext.containsBean(indexerBeanName) && applicationContext.isPrototype(indexerBeanName);
+	}
+
 	public IEntityIndexer getIndexer(String indexerBeanName) throws EntityIndexingException  {
 		
 		
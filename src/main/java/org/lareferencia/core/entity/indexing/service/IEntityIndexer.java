@@ -21,6 +21,7 @@
 package org.lareferencia.core.entity.indexing.service;
 
 import java.util.Collection;
+import java.util.UUID;
 
 import org.lareferencia.core.entity.domain.Entity;
 
@@ -32,4 +33,60 @@ public interface IEntityIndexer {
 	public void deleteAll(Collection<String> idList) throws EntityIndexingException;
 	public void flush() throws EntityIndexingException;
 	public void prePage() throws EntityIndexingException;
+
+	/**
+	 * Indexes an entity given only its id, for indexers that load the entity in their own transaction anyway.
+	 * The caller can then stream ids instead of loading entity pages (see supportsIndexById)
+	 */
+	default void indexById(UUID entityId) throws EntityIndexingException {
+		throw new EntityIndexingException("Indexing by id is not supported by " + getClass().getSimpleName());
+	}
+
+	default boolean supportsIndexById() {
+		return false;
+	}
+
+	/**
+	 * Indexes a page of entities. Native implementations load what the page needs (occurrences, relations, related
+	 * entities) for the whole batch with set based queries (see EntityBatchPreloader) before building the documents.
+	 * Errors of single entities are logged and counted by the indexer (see getFailedEntities), the exception means the
+	 * batch could not be processed.
+	 * The default indexes the entities one by one.
+	 */
+	default void indexBatch(Collection<Entity> entities) throws EntityIndexingException {
+		for (Entity entity : entities)
+			index(entity);
+	}
+
+	/**
+	 * State a new run needs in every indexer of the run, stored by the worker with the run checkpoint (or with the
+	 * partitions of a partitioned run) so that resumed runs and the other nodes of the run use the same one. Indexers
+	 * that build into a new index return its version, null when there is no such state (the default).
+	 */
+	default String createRunState() {
+		return null;
+	}
+
+	/**
+	 * Called before the first page with the state of the run: the one created by createRunState for a new run, the
+	 * stored one when the run continues a previous one or joins a partitioned run in progress
+	 */
+	default void beginRun(String runState) throws EntityIndexingException {
+	}
+
+	/**
+	 * Entities this indexer failed to index without throwing to the caller: single entity errors of indexBatch,
+	 * documents rejected by the index and entities of asynchronous tasks. The worker does not finish a run with
+	 * failed entities.
+	 */
+	default long getFailedEntities() {
+		return 0;
+	}
+
+	/**
+	 * Called once when a run indexed every selected entity without errors (not after a stopped or failed run, nor when
+	 * entities failed), before the indexer is closed. Indexers that build into a new index publish it here.
+	 */
+	default void finishRun() throws EntityIndexingException {
+	}
 }
@@ -7,8 +7,10 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.jena.query.Dataset;
@@ -30,6 +32,7 @@ import org.lareferencia.core.entity.domain.FieldOccurrence;
 import org.lareferencia.core.entity.domain.FieldType;
 import org.lareferencia.core.entity.domain.Relation;
 import org.lareferencia.core.entity.indexing.filters.FieldOccurrenceFilterService;
+import org.lareferencia.core.entity.indexing.service.EntityBatchPreloader;
 import org.lareferencia.core.entity.indexing.service.EntityIndexingException;
 import org.lareferencia.core.entity.indexing.service.IEntityIndexer;
 import org.lareferencia.core.entity.indexing.vivo.config.AttributeIndexingConfig;
@@ -42,6 +45,7 @@ import org.lareferencia.core.entity.indexing.vivo.config.RDFTripleConfig.TripleO
 import org.lareferencia.core.entity.indexing.vivo.config.RDFTripleConfig.TriplePredicate;
 import org.lareferencia.core.entity.indexing.vivo.config.RDFTripleConfig.TripleSubject;
 import org.lareferencia.core.entity.indexing.vivo.config.RelationIndexingConfig;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
 import org.lareferencia.core.entity.services.CacheException;
 import org.lareferencia.core.entity.services.EntityDataService;
 import org.lareferencia.core.entity.services.EntityModelCache;
@@ -57,6 +61,12 @@ public class EntityIndexerTDB2Impl implements IEntityIndexer, Closeable {
     @Autowired
     EntityModelCache entityModelCache;
 
+    @Autowired
+    EntityRepository entityRepository;
+
+    // Datos del lote en curso de indexBatch, null al indexar entidades sueltas
+    EntityBatchPreloader currentBatch = null;
+
     @Autowired
     ApplicationContext context;
 
@@ -248,7 +258,7 @@ public class EntityIndexerTDB2Impl implements IEntityIndexer, Closeable {
                 String relationName = relationConfig.getName();
                 Boolean isFromMember = entityModelCache.isFromRelation(relationName, entityTypeName);
 
-                for (Relation relation : entityDataService.getRelationsWithThisEntityAsMember(entity.getId(), relationName, isFromMember)) {
+                for (Relation relation : getRelationsWithThisEntityAsMember(entity.getId(), relationName, isFromMember)) {
                     String relationId = relation.getId().toString();
                     Entity relatedEntity = relation.getRelatedEntity(entity.getId());
                     String relatedEntityId = relatedEntity.getId().toString();
@@ -271,6 +281,72 @@ public class EntityIndexerTDB2Impl implements IEntityIndexer, Closeable {
         }
     }
 
+    /**
+     * Indexa un lote de entidades: ocurrencias y relaciones (con sus ocurrencias) se cargan para todo el lote con
+     * consultas por conjunto (EntityBatchPreloader) antes de generar los triples
+     */
+    @Transactional
+    @Override
+    public void indexBatch(Collection<Entity> entities) throws EntityIndexingException {
+
+        List<UUID> entityIds = new ArrayList<>(entities.size());
+        for (Entity entity : entities)
+            entityIds.add(entity.getId());
+
+        EntityBatchPreloader batch = new EntityBatchPreloader(entityDataService, entityRepository, entityIds);
+        List<Entity> loadedEntities;
+        try {
+            loadedEntities = batch.loadEntities();
+            preloadRelations(batch, loadedEntities);
+        } catch (Exception e) {
+            throw new EntityIndexingException("Error loading entity batch of " + entityIds.size() + " entities. " + e.getMessage());
+        }
+
+        int failed = 0;
+        currentBatch = batch;
+        try {
+            for (Entity entity : loadedEntities) {
+                try {
+                    index(entity);
+                } catch (EntityIndexingException e) {
+                    failed++;
+                    logger.error(e.getMessage());
+                }
+            }
+        } finally {
+            currentBatch = null;
+        }
+
+        if (failed > 0)
+            logger.warn("Entity batch indexed with errors: {} of {} entities failed", failed, loadedEntities.size());
+    }
+
+    /**
+     * Carga para todo el lote las relaciones de las configuraciones de los tipos presentes
+     */
+    private void preloadRelations(EntityBatchPreloader batch, List<Entity> entities) throws Exception {
+
+        Set<Long> entityTypeIds = new HashSet<>();
+        for (Entity entity : entities)
+            entityTypeIds.add(entity.getEntityTypeId());
+
+        for (Long entityTypeId : entityTypeIds) {
+            String entityTypeName = entityModelCache.getObjectById(EntityType.class, entityTypeId).getName();
+            EntityIndexingConfig entityIndexingConfig = configsByEntityType.get(entityTypeName);
+            if (entityIndexingConfig == null)
+                continue;
+
+            for (RelationIndexingConfig relationConfig : entityIndexingConfig.getSourceRelations())
+                batch.preloadRelations(relationConfig.getName(), entityModelCache.isFromRelation(relationConfig.getName(), entityTypeName));
+        }
+    }
+
+    private Set<Relation> getRelationsWithThisEntityAsMember(UUID entityId, String relationName, Boolean isFromMember) throws EntityRelationException {
+        if (currentBatch != null)
+            return currentBatch.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+        return entityDataService.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+    }
+
     @Override
     public void delete(String entityId) throws EntityIndexingException {
         logger.warn("Delete operation not yet implemented for TDB2Indexer.");
@@ -27,6 +27,7 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -62,6 +63,7 @@ import org.lareferencia.core.entity.domain.FieldOccurrence;
 import org.lareferencia.core.entity.domain.FieldType;
 import org.lareferencia.core.entity.domain.Relation;
 import org.lareferencia.core.entity.indexing.filters.FieldOccurrenceFilterService;
+import org.lareferencia.core.entity.indexing.service.EntityBatchPreloader;
 import org.lareferencia.core.entity.indexing.service.EntityIndexingException;
 import org.lareferencia.core.entity.indexing.service.IEntityIndexer;
 import org.lareferencia.core.entity.indexing.vivo.config.AttributeIndexingConfig;
@@ -74,16 +76,20 @@ import org.lareferencia.core.entity.indexing.vivo.config.RDFTripleConfig.TripleO
 import org.lareferencia.core.entity.indexing.vivo.config.RDFTripleConfig.TriplePredicate;
 import org.lareferencia.core.entity.indexing.vivo.config.RDFTripleConfig.TripleSubject;
 import org.lareferencia.core.entity.indexing.vivo.config.RelationIndexingConfig;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
 import org.lareferencia.core.entity.services.CacheException;
 import org.lareferencia.core.entity.services.EntityDataService;
 import org.lareferencia.core.entity.services.EntityModelCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
+import com.google.common.collect.Lists;
+
 public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable {
 
     @Autowired
@@ -98,6 +104,16 @@ public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable
     @Autowired
     private PlatformTransactionManager transactionManager;
 
+    @Autowired
+    EntityRepository entityRepository;
+
+    // Entidades por tarea en indexBatch, cada tarea precarga sus relaciones con consultas por conjunto
+    @Value("${tdb2.indexer.batch.chunk.size:100}")
+    private int batchChunkSize = 100;
+
+    // Datos precargados del lote que procesa cada thread (null fuera de indexBatch)
+    private final ThreadLocal<EntityBatchPreloader> currentBatch = new ThreadLocal<>();
+
     FieldOccurrenceFilterService fieldOccurrenceFilterService;
 
     private static final String ENTITY_ID = "UUID";
@@ -339,20 +355,64 @@ public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable
     
     @Override
     public void index(Entity entity) throws EntityIndexingException {
+        // Solo el UUID, la entidad se recarga en el thread paralelo
+        indexById(entity.getId());
+    }
+
+    @Override
+    public boolean supportsIndexById() {
+        return true;
+    }
+
+    @Override
+    public void indexById(UUID entityId) throws EntityIndexingException {
         if (shutdown) {
             throw new EntityIndexingException("Indexer is shutting down");
         }
         
-        logger.debug("Starting async index process for entity: {} (type: {})", entity.getId(), entity.getEntityTypeId());
-        
+        logger.debug("Starting async index process for entity: {}", entityId);
+
+        // Enviar solo los IDs al procesamiento paralelo, la entidad se recarga en el thread
+        submitTask("entity " + entityId, () -> processEntityInTransaction(entityId));
+    }
+
+    /**
+     * Indexa un lote de entidades: el lote se divide en tareas de batchChunkSize entidades, cada tarea carga en su
+     * transacción las entidades y sus relaciones con consultas por conjunto (EntityBatchPreloader).
+     */
+    @Override
+    public void indexBatch(Collection<Entity> entities) throws EntityIndexingException {
+        if (shutdown) {
+            throw new EntityIndexingException("Indexer is shutting down");
+        }
+
+        List<UUID> entityIds = new ArrayList<>(entities.size());
+        for (Entity entity : entities)
+            entityIds.add(entity.getId());
+
+        for (List<UUID> chunk : Lists.partition(entityIds, Math.max(batchChunkSize, 1))) {
+            List<UUID> chunkIds = new ArrayList<>(chunk);
+            submitTask("batch of " + chunkIds.size() + " entities", () -> processBatchInTransaction(chunkIds));
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexingTask {
+        void run() throws EntityIndexingException;
+    }
+
+    /**
+     * Encola una tarea en el executor (bloqueante si no hay permisos del semáforo), registrada en el phaser hasta
+     * terminar para que flush() la espere
+     */
+    private void submitTask(String description, IndexingTask task) throws EntityIndexingException {
         try {
             // Adquirir permiso del semáforo antes de procesar (bloqueante si no hay permisos)
             concurrentTasksSemaphore.acquire();
-            logger.debug("Acquired semaphore permit for entity: {} (available: {})", 
-                        entity.getId(), concurrentTasksSemaphore.availablePermits());
+            logger.debug("Acquired semaphore permit for {} (available: {})", description, concurrentTasksSemaphore.availablePermits());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            throw new EntityIndexingException("Interrupted while waiting for processing slot for entity: " + entity.getId());
+            throw new EntityIndexingException("Interrupted while waiting for processing slot for " + description);
         }
         
         // Registrar este hilo en el phaser
@@ -360,60 +420,16 @@ public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable
         logger.debug("Registered with phaser. Current parties: {}", activeIndexingPhaser.getRegisteredParties());
         
         try {
-            // Capturar solo el UUID de la entidad para evitar problemas de concurrencia con Hibernate
-            final UUID entityId = entity.getId();
-            
-            // Enviar solo los IDs al procesamiento paralelo
             CompletableFuture.runAsync(() -> {
                 try {
-                    logger.debug("Processing entity {} in thread: {}", entityId, Thread.currentThread().getName());
-                    
-                    // Crear una nueva transacción COMPLETAMENTE INDEPENDIENTE
-                    DefaultTransactionDefinition def = new DefaultTransactionDefinition();
-                    def.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
-                    def.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
-                    def.setTimeout(300); // 5 minutos timeout
-                    
-                    TransactionStatus status = transactionManager.getTransaction(def);
-                    logger.debug("Independent transaction started for entity: {}", entityId);
-                    
-                    try {
-                        // Recargar la entidad desde la BD en este thread independiente
-                        Optional<Entity> freshEntityOpt = entityDataService.getEntityById(entityId);
-                        if (!freshEntityOpt.isPresent()) {
-                            logger.warn("Entity {} not found during parallel processing", entityId);
-                            return;
-                        }
-                        
-                        Entity freshEntity = freshEntityOpt.get();
-                        
-                        // MOVER el preload aquí dentro del thread paralelo
-                        Entity fullyLoadedEntity = preloadEntityData(freshEntity);
-                        logger.debug("Entity data preloaded for entity: {} in parallel thread", entityId);
-                        
-                        processEntityInternal(fullyLoadedEntity);
-                        transactionManager.commit(status);
-                        logger.debug("Independent transaction committed for entity: {}", entityId);
-                        
-                    } catch (Exception e) {
-                        logger.error("Error in parallel processing for entity {}: {}", entityId, e.getMessage(), e);
-                        try {
-                            if (status != null && !status.isCompleted()) {
-                                transactionManager.rollback(status);
-                                logger.debug("Independent transaction rolled back for entity: {}", entityId);
-                            }
-                        } catch (Exception rollbackException) {
-                            logger.error("Error during rollback for entity {}: {}", entityId, rollbackException.getMessage());
-                        }
-                        throw new RuntimeException(e);
-                    }
+                    logger.debug("Processing {} in thread: {}", description, Thread.currentThread().getName());
+                    task.run();
                 } catch (Exception e) {
-                    logger.error("Fatal error in parallel thread for entity {}: {}", entityId, e.getMessage(), e);
+                    logger.error("Fatal error in parallel thread for {}: {}", description, e.getMessage(), e);
                 } finally {
                     // Liberar el permiso del semáforo SIEMPRE
                     concurrentTasksSemaphore.release();
-                    logger.debug("Released semaphore permit for entity: {} (available: {})", 
-                                entityId, concurrentTasksSemaphore.availablePermits());
+                    logger.debug("Released semaphore permit for {} (available: {})", description, concurrentTasksSemaphore.availablePermits());
                     
                     // Desregistrar este hilo del phaser
                     activeIndexingPhaser.arriveAndDeregister();
@@ -422,16 +438,132 @@ public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable
             }, indexingExecutor);
             
             // El método retorna inmediatamente sin esperar el preload ni el procesamiento
-            logger.debug("Entity {} queued for async processing (will be reloaded in parallel)", entityId);
+            logger.debug("{} queued for async processing (will be reloaded in parallel)", description);
             
         } catch (Exception e) {
             // Si hay error en el setup, liberar semáforo y desregistrar del phaser
             concurrentTasksSemaphore.release();
             activeIndexingPhaser.arriveAndDeregister();
-            logger.error("Error setting up async processing for entity {}: {}", entity.getId(), e.getMessage(), e);
-            throw new EntityIndexingException("Error queueing entity for async processing: " + entity.getId() + ". " + e.getMessage());
+            logger.error("Error setting up async processing for {}: {}", description, e.getMessage(), e);
+            throw new EntityIndexingException("Error queueing " + description + " for async processing. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Transacción COMPLETAMENTE INDEPENDIENTE para el thread paralelo
+     */
+    private TransactionStatus beginIndependentTransaction() {
+        DefaultTransactionDefinition def = new DefaultTransactionDefinition();
+        def.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        def.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        def.setTimeout(300); // 5 minutos timeout
+        return transactionManager.getTransaction(def);
+    }
+
+    private void rollbackQuietly(TransactionStatus status, String description) {
+        try {
+            if (status != null && !status.isCompleted()) {
+                transactionManager.rollback(status);
+                logger.debug("Independent transaction rolled back for {}", description);
+            }
+        } catch (Exception rollbackException) {
+            logger.error("Error during rollback for {}: {}", description, rollbackException.getMessage());
+        }
+    }
+
+    private void processEntityInTransaction(UUID entityId) throws EntityIndexingException {
+
+        TransactionStatus status = beginIndependentTransaction();
+        logger.debug("Independent transaction started for entity: {}", entityId);
+        
+        try {
+            // Recargar la entidad desde la BD en este thread independiente
+            Optional<Entity> freshEntityOpt = entityDataService.getEntityById(entityId);
+            if (!freshEntityOpt.isPresent()) {
+                logger.warn("Entity {} not found during parallel processing", entityId);
+                transactionManager.commit(status);
+                return;
+            }
+            
+            Entity freshEntity = freshEntityOpt.get();
+            
+            // MOVER el preload aquí dentro del thread paralelo
+            Entity fullyLoadedEntity = preloadEntityData(freshEntity);
+            logger.debug("Entity data preloaded for entity: {} in parallel thread", entityId);
+            
+            processEntityInternal(fullyLoadedEntity);
+            transactionManager.commit(status);
+            logger.debug("Independent transaction committed for entity: {}", entityId);
+            
+        } catch (Exception e) {
+            logger.error("Error in parallel processing for entity {}: {}", entityId, e.getMessage(), e);
+            rollbackQuietly(status, "entity " + entityId);
+            throw new EntityIndexingException("Error processing entity: " + entityId + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Procesa un lote en una transacción: entidades, relaciones y ocurrencias se cargan para todo el lote y cada
+     * entidad se procesa con los datos precargados. Los errores de una entidad no detienen el lote.
+     */
+    private void processBatchInTransaction(List<UUID> entityIds) throws EntityIndexingException {
+
+        TransactionStatus status = beginIndependentTransaction();
+        
+        try {
+            EntityBatchPreloader batch = new EntityBatchPreloader(entityDataService, entityRepository, entityIds);
+            List<Entity> entities = batch.loadEntities();
+            preloadBatchRelations(batch, entities);
+
+            currentBatch.set(batch);
+            try {
+                for (Entity entity : entities) {
+                    try {
+                        processEntityInternal(entity);
+                    } catch (EntityIndexingException e) {
+                        logger.error("Error processing entity {} of batch: {}", entity.getId(), e.getMessage());
+                    }
+                }
+            } finally {
+                currentBatch.remove();
+            }
+
+            transactionManager.commit(status);
+            logger.debug("Independent transaction committed for batch of {} entities", entityIds.size());
+
+        } catch (Exception e) {
+            logger.error("Error in parallel processing for batch of {} entities: {}", entityIds.size(), e.getMessage(), e);
+            rollbackQuietly(status, "batch of " + entityIds.size() + " entities");
+            throw new EntityIndexingException("Error processing batch of " + entityIds.size() + " entities. " + e.getMessage());
         }
     }
+
+    /**
+     * Carga para todo el lote las relaciones (con sus ocurrencias) de las configuraciones de los tipos presentes
+     */
+    private void preloadBatchRelations(EntityBatchPreloader batch, List<Entity> entities) throws Exception {
+
+        Set<Long> entityTypeIds = new HashSet<>();
+        for (Entity entity : entities)
+            entityTypeIds.add(entity.getEntityTypeId());
+
+        for (Long entityTypeId : entityTypeIds) {
+            String entityTypeName = entityModelCache.getObjectById(EntityType.class, entityTypeId).getName();
+            EntityIndexingConfig entityIndexingConfig = configsByEntityType.get(entityTypeName);
+            if (entityIndexingConfig == null)
+                continue;
+
+            for (RelationIndexingConfig relationConfig : entityIndexingConfig.getSourceRelations())
+                batch.preloadRelations(relationConfig.getName(), entityModelCache.isFromRelation(relationConfig.getName(), entityTypeName));
+        }
+    }
+
+    private Set<Relation> getRelationsWithThisEntityAsMember(UUID entityId, String relationName, Boolean isFromMember) throws EntityRelationException {
+        EntityBatchPreloader batch = currentBatch.get();
+        if (batch != null)
+            return batch.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+        return entityDataService.getRelationsWithThisEntityAsMember(entityId, relationName, isFromMember);
+    }
     
     /**
      * Pre-carga todas las relaciones y ocurrencias necesarias para evitar lazy loading en threads separados
@@ -466,7 +598,7 @@ public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable
                 Boolean isFromMember = entityModelCache.isFromRelation(relationName, entityTypeName);
                 logger.debug("Processing relation {} (isFromMember: {}) for entity: {}", relationName, isFromMember, entity.getId());
 
-                Set<Relation> relations = entityDataService.getRelationsWithThisEntityAsMember(entity.getId(), relationName, isFromMember);
+                Set<Relation> relations = getRelationsWithThisEntityAsMember(entity.getId(), relationName, isFromMember);
                 logger.debug("Found {} relations of type {} for entity: {}", relations.size(), relationName, entity.getId());
                 
                 for (Relation relation : relations) {
@@ -531,7 +663,7 @@ public class EntityIndexerTDB2ThreadedImpl implements IEntityIndexer, Closeable
                 logger.debug("Processing relation config {} for entity: {}", relationName, entity.getId());
 
                 // Obtener las relaciones ya cargadas desde el cache/contexto transaccional
-                Set<Relation> relations = entityDataService.getRelationsWithThisEntityAsMember(entity.getId(), relationName, isFromMember);
+                Set<Relation> relations = getRelationsWithThisEntityAsMember(entity.getId(), relationName, isFromMember);
                 logger.debug("Processing {} relations of type {} for entity: {}", relations.size(), relationName, entity.getId());
                 
                 for (Relation relation : relations) {
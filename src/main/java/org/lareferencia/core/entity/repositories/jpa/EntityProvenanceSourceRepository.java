@@ -0,0 +1,68 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.repositories.jpa;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import org.lareferencia.core.entity.domain.Entity;
+import org.lareferencia.core.entity.domain.EntityProvenanceSource;
+import org.lareferencia.core.entity.domain.EntityProvenanceSourceId;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+/**
+ * Keyset pages of entities filtered by provenance source and/or last update through the entity_provenance_source
+ * projection. The seek id is never null (start from the nil uuid) so the uuid range stays sargable, the type and
+ * last update filters are optional (null is ignored). The Pageable only carries the limit.
+ */
+@RepositoryRestResource(exported = false)
+public interface EntityProvenanceSourceRepository extends JpaRepository<EntityProvenanceSource, EntityProvenanceSourceId> {
+
+	/** False until the projection is first built (see EntityMergeEngine.rebuildProvenanceSources) */
+	boolean existsByEntityIdNotNull();
+
+	/** Range scan of eps_source_entity, one projection row per entity and source */
+	@Query("SELECT e FROM EntityProvenanceSource eps JOIN Entity e ON e.id = eps.entityId "
+			+ "WHERE eps.sourceId = ?2 AND eps.entityId > ?1 AND e.dirty = FALSE "
+			+ "AND (?3 IS NULL OR eps.entityTypeId = ?3) AND (?4 IS NULL OR eps.maxLastUpdate >= ?4) "
+			+ "ORDER BY eps.entityId ASC")
+	List<Entity> findKeysetPageBySource(UUID afterId, String provenanceSource, Long entityTypeId, LocalDateTime lastUpdate, Pageable limit);
+
+	@Query("SELECT count(eps) FROM EntityProvenanceSource eps JOIN Entity e ON e.id = eps.entityId "
+			+ "WHERE eps.sourceId = ?2 AND eps.entityId > ?1 AND e.dirty = FALSE "
+			+ "AND (?3 IS NULL OR eps.entityTypeId = ?3) AND (?4 IS NULL OR eps.maxLastUpdate >= ?4)")
+	long countKeysetBySource(UUID afterId, String provenanceSource, Long entityTypeId, LocalDateTime lastUpdate);
+
+	/** Semi join on the projection, an entity updated in several sources is returned once */
+	@Query("SELECT e FROM Entity e WHERE e.id > ?1 AND e.dirty = FALSE AND (?3 IS NULL OR e.entityTypeId = ?3) "
+			+ "AND e.id IN (SELECT eps.entityId FROM EntityProvenanceSource eps WHERE eps.maxLastUpdate >= ?2) "
+			+ "ORDER BY e.id ASC")
+	List<Entity> findKeysetPageByLastUpdate(UUID afterId, LocalDateTime lastUpdate, Long entityTypeId, Pageable limit);
+
+	@Query("SELECT count(e) FROM Entity e WHERE e.id > ?1 AND e.dirty = FALSE AND (?3 IS NULL OR e.entityTypeId = ?3) "
+			+ "AND e.id IN (SELECT eps.entityId FROM EntityProvenanceSource eps WHERE eps.maxLastUpdate >= ?2)")
+	long countKeysetByLastUpdate(UUID afterId, LocalDateTime lastUpdate, Long entityTypeId);
+}
@@ -21,6 +21,7 @@
 package org.lareferencia.core.entity.repositories.jpa;
 
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -33,6 +34,7 @@ import org.lareferencia.core.entity.domain.RelationId;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
@@ -82,6 +84,51 @@ public interface EntityRepository extends JpaRepository<Entity, UUID> {
 	Page<Entity> findDistinctEntityByDirtyAndEntityTypeIdAndSourceEntities_Provenance_LastUpdateGreaterThanEqualOrderByIdAsc(Boolean Dirty, Long entityTypeId, LocalDateTime lastUpdate, Pageable pageable);
 
 
+	// Keyset paginator methods (null filters are ignored), the Pageable only carries the limit. The source and last
+	// update filters hold on the same source entity (a provenance of that source updated since the date)
+
+	@Query("SELECT e FROM Entity e WHERE (?1 IS NULL OR e.id > ?1) AND e.dirty = FALSE "
+			+ "AND (?2 IS NULL OR e.entityTypeId = ?2) "
+			+ "AND ((?3 IS NULL AND ?4 IS NULL) OR EXISTS (SELECT se.id FROM SourceEntity se WHERE se.finalEntity = e "
+			+ "AND (?3 IS NULL OR se.provenance.source = ?3) AND (?4 IS NULL OR se.provenance.lastUpdate >= ?4))) "
+			+ "ORDER BY e.id ASC")
+	List<Entity> findKeysetPage(UUID afterId, Long entityTypeId, String provenanceSource, LocalDateTime lastUpdate, Pageable limit);
+
+	@Query("SELECT e.id FROM Entity e WHERE (?1 IS NULL OR e.id > ?1) AND e.dirty = FALSE "
+			+ "AND (?2 IS NULL OR e.entityTypeId = ?2) "
+			+ "AND ((?3 IS NULL AND ?4 IS NULL) OR EXISTS (SELECT se.id FROM SourceEntity se WHERE se.finalEntity = e "
+			+ "AND (?3 IS NULL OR se.provenance.source = ?3) AND (?4 IS NULL OR se.provenance.lastUpdate >= ?4))) "
+			+ "ORDER BY e.id ASC")
+	List<UUID> findKeysetIds(UUID afterId, Long entityTypeId, String provenanceSource, LocalDateTime lastUpdate, Pageable pageable);
+
+	@Query("SELECT count(e) FROM Entity e WHERE (?1 IS NULL OR e.id > ?1) AND e.dirty = FALSE "
+			+ "AND (?2 IS NULL OR e.entityTypeId = ?2) "
+			+ "AND ((?3 IS NULL AND ?4 IS NULL) OR EXISTS (SELECT se.id FROM SourceEntity se WHERE se.finalEntity = e "
+			+ "AND (?3 IS NULL OR se.provenance.source = ?3) AND (?4 IS NULL OR se.provenance.lastUpdate >= ?4))) ")
+	long countKeyset(UUID afterId, Long entityTypeId, String provenanceSource, LocalDateTime lastUpdate);
+
+	// Partitioned indexing: keyset pages inside a UUID range [?1, ?3) resuming after ?2 (null bounds are open)
+
+	@Query("SELECT e FROM Entity e WHERE (?1 IS NULL OR e.id >= ?1) AND (?2 IS NULL OR e.id > ?2) AND (?3 IS NULL OR e.id < ?3) AND e.dirty = FALSE "
+			+ "AND (?4 IS NULL OR e.entityTypeId = ?4) "
+			+ "AND ((?5 IS NULL AND ?6 IS NULL) OR EXISTS (SELECT se.id FROM SourceEntity se WHERE se.finalEntity = e "
+			+ "AND (?5 IS NULL OR se.provenance.source = ?5) AND (?6 IS NULL OR se.provenance.lastUpdate >= ?6))) "
+			+ "ORDER BY e.id ASC")
+	List<Entity> findRangeKeysetPage(UUID lowerBound, UUID afterId, UUID upperBound, Long entityTypeId, String provenanceSource, LocalDateTime lastUpdate, Pageable limit);
+
+	@Query("SELECT e.id FROM Entity e WHERE (?1 IS NULL OR e.id >= ?1) AND (?2 IS NULL OR e.id > ?2) AND (?3 IS NULL OR e.id < ?3) AND e.dirty = FALSE "
+			+ "AND (?4 IS NULL OR e.entityTypeId = ?4) "
+			+ "AND ((?5 IS NULL AND ?6 IS NULL) OR EXISTS (SELECT se.id FROM SourceEntity se WHERE se.finalEntity = e "
+			+ "AND (?5 IS NULL OR se.provenance.source = ?5) AND (?6 IS NULL OR se.provenance.lastUpdate >= ?6))) "
+			+ "ORDER BY e.id ASC")
+	List<UUID> findRangeKeysetIds(UUID lowerBound, UUID afterId, UUID upperBound, Long entityTypeId, String provenanceSource, LocalDateTime lastUpdate, Pageable limit);
+
+	boolean existsByDirty(Boolean dirty);
+
+	/** Planner estimate of the entity table rows (PostgreSQL statistics), no table scan */
+	@Query(value="SELECT CAST(reltuples AS BIGINT) FROM pg_class WHERE relname = 'entity'", nativeQuery=true)
+	Long estimateEntityCount();
+
 	// End Entity Paginator methods
 
 	// @Query("Select r.fromEntity from Relation r where r.id.toEntityId = ?1 and r.id.relationTypeId = ?2")
@@ -125,6 +172,29 @@ public interface EntityRepository extends JpaRepository<Entity, UUID> {
 	@Query("Select r.id.fromEntityId from Relation r where r.id.toEntityId = ?1 and r.relationType.id = ?2")
 	Set<UUID> getFromEntitiesIdsWithThisEntityInToMember(UUID id, Long relationId);
 
+	// Batch indexing (see EntityBatchPreloader): the member lookups above for a whole page of entities
+
+	/** Pairs (from entity id, to entity id) of the relations of the type whose from member is in the list */
+	@Query("Select r.id.fromEntityId, r.id.toEntityId from Relation r where r.id.fromEntityId in ?1 and r.relationType.id = ?2")
+	List<Object[]> getMembersIdsWithTheseEntitiesInFromMember(Collection<UUID> ids, Long relationId);
+
+	/** Pairs (from entity id, to entity id) of the relations of the type whose to member is in the list */
+	@Query("Select r.id.fromEntityId, r.id.toEntityId from Relation r where r.id.toEntityId in ?1 and r.relationType.id = ?2")
+	List<Object[]> getMembersIdsWithTheseEntitiesInToMember(Collection<UUID> ids, Long relationId);
+
+	@Query("SELECT DISTINCT r FROM Relation r LEFT JOIN FETCH r.occurrences WHERE r.relationType.id = ?1 AND r.id.fromEntityId in ?2")
+	List<Relation> findRelationsWithOccurrencesByTypeAndFromMembers(Long relationTypeId, Collection<UUID> ids);
+
+	@Query("SELECT DISTINCT r FROM Relation r LEFT JOIN FETCH r.occurrences WHERE r.relationType.id = ?1 AND r.id.toEntityId in ?2")
+	List<Relation> findRelationsWithOccurrencesByTypeAndToMembers(Long relationTypeId, Collection<UUID> ids);
+
+	@Query("SELECT DISTINCT e FROM Entity e LEFT JOIN FETCH e.occurrences WHERE e.id in ?1")
+	List<Entity> findAllWithOccurrencesByIdIn(Collection<UUID> ids);
+
+	/** Run after findAllWithOccurrencesByIdIn in the same session, initializes the second collection of the same instances */
+	@Query("SELECT DISTINCT e FROM Entity e LEFT JOIN FETCH e.semanticIdentifiers WHERE e.id in ?1")
+	List<Entity> findAllWithSemanticIdentifiersByIdIn(Collection<UUID> ids);
+
 	
 	/*** Hidden in rest **/
 
@@ -144,6 +214,63 @@ public interface EntityRepository extends JpaRepository<Entity, UUID> {
 	@Query(value="SELECT e.* FROM entity e,  entity_semantic_identifier esi WHERE e.uuid = esi.entity_id AND esi.semantic_id IN (?1) limit 1", nativeQuery=true)
 	Entity findEntityWithSemanticIdentifiers(List<Long> semanticIds);
 	
+	/////////////////////////////////// Batch entity resolution and merge of entities sharing semantic identifiers
+
+	@RestResource(exported = false)
+	@Query(value="SELECT esi.semantic_id, esi.entity_id FROM entity_semantic_identifier esi, entity e WHERE e.uuid = esi.entity_id AND e.entity_type_id = ?1 AND esi.semantic_id IN (?2)", nativeQuery=true)
+	List<Object[]> findEntityIdsBySemanticIds(Long entityTypeId, Collection<Long> semanticIds);
+
+	@RestResource(exported = false)
+	@Query(value="SELECT DISTINCT esi.semantic_id FROM entity_semantic_identifier esi WHERE esi.entity_id IN (?1)", nativeQuery=true)
+	List<Long> findSemanticIdsByEntityIds(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="UPDATE source_entity SET final_entity_id = ?1 WHERE final_entity_id IN (?2)", nativeQuery=true)
+	int reassignSourceEntities(UUID targetEntityId, Collection<UUID> mergedEntityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="INSERT INTO entity_semantic_identifier (entity_id, semantic_id) SELECT DISTINCT ?1, esi.semantic_id FROM entity_semantic_identifier esi "
+			+ "WHERE esi.entity_id IN (?2) AND NOT EXISTS (SELECT 1 FROM entity_semantic_identifier t WHERE t.entity_id = ?1 AND t.semantic_id = esi.semantic_id)", nativeQuery=true)
+	int copySemanticIdentifiers(UUID targetEntityId, Collection<UUID> mergedEntityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="UPDATE entity SET dirty = TRUE WHERE uuid IN (SELECT r.to_entity_id FROM relation r WHERE r.from_entity_id IN (?1) "
+			+ "UNION SELECT r.from_entity_id FROM relation r WHERE r.to_entity_id IN (?1))", nativeQuery=true)
+	int markRelatedEntitiesDirty(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="DELETE FROM relation_fieldoccr WHERE from_entity_id IN (?1) OR to_entity_id IN (?1)", nativeQuery=true)
+	int deleteRelationOccurrencesByMembers(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="DELETE FROM relation WHERE from_entity_id IN (?1) OR to_entity_id IN (?1)", nativeQuery=true)
+	int deleteRelationsByMembers(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="DELETE FROM entity_fieldoccr WHERE entity_id IN (?1)", nativeQuery=true)
+	int deleteEntityOccurrences(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="DELETE FROM entity_semantic_identifier WHERE entity_id IN (?1)", nativeQuery=true)
+	int deleteEntitySemanticIdentifiers(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="DELETE FROM entity WHERE uuid IN (?1)", nativeQuery=true)
+	int deleteEntities(Collection<UUID> entityIds);
+
+	@Modifying
+	@RestResource(exported = false)
+	@Query(value="UPDATE entity SET dirty = TRUE WHERE uuid IN (?1)", nativeQuery=true)
+	int markEntitiesDirty(Collection<UUID> entityIds);
+
 	
 	
 	/////////////////////////////////// Entity and Relation building from SourceEntity And Relation Entity
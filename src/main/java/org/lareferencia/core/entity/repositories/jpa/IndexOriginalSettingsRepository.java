@@ -0,0 +1,41 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.repositories.jpa;
+
+import java.util.List;
+
+import jakarta.persistence.LockModeType;
+
+import org.lareferencia.core.entity.domain.IndexOriginalSettings;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+@RepositoryRestResource(exported = false)
+public interface IndexOriginalSettingsRepository extends JpaRepository<IndexOriginalSettings, String> {
+
+	/** Every recorded index, locked until the end of the transaction (in index name order) */
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	@Query("select s from IndexOriginalSettings s order by s.indexName asc")
+	List<IndexOriginalSettings> findAllForUpdate();
+}
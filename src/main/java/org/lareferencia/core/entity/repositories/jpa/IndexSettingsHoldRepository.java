@@ -0,0 +1,47 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.repositories.jpa;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+import org.lareferencia.core.entity.domain.IndexSettingsHold;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+@RepositoryRestResource(exported = false)
+public interface IndexSettingsHoldRepository extends JpaRepository<IndexSettingsHold, String> {
+
+	/** Indices with a hold not expired at ?1 */
+	@Query("select distinct h.indexName from IndexSettingsHold h where h.expiresAt >= ?1")
+	Set<String> findHeldIndexNames(LocalDateTime now);
+
+	@Modifying
+	@Query("delete from IndexSettingsHold h where h.owner = ?1")
+	void deleteByOwner(String owner);
+
+	@Modifying
+	@Query("delete from IndexSettingsHold h where h.expiresAt < ?1")
+	void deleteExpired(LocalDateTime now);
+}
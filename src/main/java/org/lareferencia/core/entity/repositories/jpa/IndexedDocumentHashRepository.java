@@ -0,0 +1,44 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.repositories.jpa;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.lareferencia.core.entity.domain.IndexedDocumentHash;
+import org.lareferencia.core.entity.domain.IndexedDocumentHashId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+@RepositoryRestResource(exported = false)
+public interface IndexedDocumentHashRepository extends JpaRepository<IndexedDocumentHash, IndexedDocumentHashId> {
+
+	@Query("select h from IndexedDocumentHash h where h.id.indexName in ?1 and h.id.entityId in ?2")
+	List<IndexedDocumentHash> findByIndexNameInAndEntityIdIn(Collection<String> indexNames, Collection<UUID> entityIds);
+
+	@Modifying
+	@Query("delete from IndexedDocumentHash h where h.id.indexName = ?1")
+	void deleteByIndexName(String indexName);
+}
@@ -0,0 +1,70 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.repositories.jpa;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import org.lareferencia.core.entity.domain.IndexingLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+@RepositoryRestResource(exported = false)
+public interface IndexingLeaseRepository extends JpaRepository<IndexingLease, String> {
+
+	List<IndexingLease> findByScopeOrderByPartitionIndexAsc(String scope);
+
+	/** Partitions not completed and free or with an expired lease at ?2 */
+	@Query("select l.id from IndexingLease l where l.scope = ?1 and l.completed = false and (l.owner is null or l.expiresAt < ?2) order by l.partitionIndex asc")
+	List<String> findClaimableIds(String scope, LocalDateTime now);
+
+	long countByScopeAndCompletedFalse(String scope);
+
+	long countByScopeAndEntitiesFailedGreaterThan(String scope, Long entitiesFailed);
+
+	// compare and set updates, 0 rows updated means the lease was taken or lost
+
+	@Modifying(clearAutomatically = true)
+	@Query("update IndexingLease l set l.owner = ?2, l.expiresAt = ?3 where l.id = ?1 and l.completed = false and (l.owner is null or l.expiresAt < ?4)")
+	int claim(String id, String owner, LocalDateTime expiresAt, LocalDateTime now);
+
+	@Modifying(clearAutomatically = true)
+	@Query("update IndexingLease l set l.expiresAt = ?3, l.lastEntityId = coalesce(?4, l.lastEntityId), l.entitiesIndexed = l.entitiesIndexed + ?5 where l.id = ?1 and l.owner = ?2 and l.completed = false")
+	int heartbeat(String id, String owner, LocalDateTime expiresAt, UUID lastEntityId, long entitiesIndexed);
+
+	@Modifying(clearAutomatically = true)
+	@Query("update IndexingLease l set l.entitiesFailed = l.entitiesFailed + ?3 where l.id = ?1 and l.owner = ?2 and l.completed = false")
+	int addFailures(String id, String owner, long entitiesFailed);
+
+	@Modifying(clearAutomatically = true)
+	@Query("update IndexingLease l set l.completed = true, l.expiresAt = null where l.id = ?1 and l.owner = ?2 and l.completed = false")
+	int complete(String id, String owner);
+
+	// cleared, the partitions of a new run of the scope are saved with the same ids; the owner that deletes them
+	// finishes the run (see IndexingLeaseService.finishRun)
+	@Modifying(clearAutomatically = true)
+	@Query("delete from IndexingLease l where l.scope = ?1")
+	int deleteByScope(String scope);
+}
@@ -36,4 +36,8 @@ public interface ProvenanceRepository extends JpaRepository<Provenance, Long> {
     @Modifying
     @Query("update Provenance p set p.lastUpdate = ?2 where p.id = ?1")
     void setLastUpdate(Long id, LocalDateTime lastUpdate);
+
+    @Modifying
+    @Query("update Provenance p set p.lastUpdate = ?2, p.fingerprint = ?3 where p.id = ?1")
+    void setLastUpdateAndFingerprint(Long id, LocalDateTime lastUpdate, Long fingerprint);
 }
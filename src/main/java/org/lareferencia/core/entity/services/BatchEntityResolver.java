@@ -0,0 +1,476 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import jakarta.persistence.EntityManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.Entity;
+import org.lareferencia.core.entity.domain.EntityType;
+import org.lareferencia.core.entity.domain.SemanticIdentifier;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.collect.Lists;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Resolves the final entities of all the source entities of a batch at once.
+ * 
+ * Semantic identifiers of the same source entity are joined with a union-find, the existing entities sharing any of them
+ * are fetched with one set based query (per entity type) and joined too, so each connected component gets exactly one
+ * final entity: a new one if no entity exists, the existing one, or, when the component spans several existing entities,
+ * the smallest uuid with the others merged into it (transitive merges the single entity lookup never did).
+ * 
+ * resolve() only reads, nothing is written until a record claims its entity. The first claim of a component runs inside
+ * the savepoint of the record and creates the new entity or merges the existing ones, so a record rolled back takes it
+ * along. The dirty marks of existing targets and the new semantic identifier links of every claim are kept until finish(),
+ * which writes them for the whole batch in batched statements. Like the bulk writer, beginRecord/discardRecord delimit
+ * the claims of a record: a component discarded with its record is written again by the next record claiming it, and
+ * the pending marks and links of a discarded record are dropped.
+ */
+public class BatchEntityResolver {
+
+	private static Logger logger = LogManager.getLogger(BatchEntityResolver.class);
+
+	// keeps IN lists well below the bind parameter limits
+	private static final int QUERY_CHUNK_SIZE = 5000;
+
+	private final EntityRepository entityRepository;
+	private final EntityManager entityManager;
+	private final ConcurrentCachedStore<UUID, Entity, EntityRepository> entityStore;
+
+	/**
+	 * @param entityStore cached entities, merged entities and their targets are evicted
+	 */
+	public BatchEntityResolver(EntityRepository entityRepository, EntityManager entityManager,
+			ConcurrentCachedStore<UUID, Entity, EntityRepository> entityStore) {
+		this.entityRepository = entityRepository;
+		this.entityManager = entityManager;
+		this.entityStore = entityStore;
+	}
+
+	/**
+	 * Source entity to be resolved, semantic identifiers by id (content hash), they may not be stored yet
+	 */
+	@Getter
+	@AllArgsConstructor
+	public static class Candidate {
+		private EntityType entityType;
+		private Collection<Long> semanticIds;
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static class ResolvedEntity {
+		private UUID entityId;
+		/** false only for the first source entity of a component without existing entity */
+		private boolean alreadyExisting;
+	}
+
+	/**
+	 * Resolution of the current transaction, null if there is none
+	 */
+	public Resolution current() {
+		return (Resolution) TransactionSynchronizationManager.getResource(this);
+	}
+
+	/**
+	 * Resolves the candidates and binds the resolution to the current transaction. Nothing is written.
+	 * 
+	 * @param index optional semantic identifier index, updated with the merges when they are written
+	 */
+	public Resolution resolve(List<Candidate> candidates, SemanticIdentifierEntityIndex index) {
+
+		Resolution resolution = new Resolution(index);
+
+		Map<Long, List<Candidate>> candidatesByType = new LinkedHashMap<Long, List<Candidate>>();
+		for (Candidate candidate : candidates)
+			candidatesByType.computeIfAbsent(candidate.getEntityType().getId(), k -> new ArrayList<Candidate>()).add(candidate);
+
+		for (Map.Entry<Long, List<Candidate>> entry : candidatesByType.entrySet())
+			resolveType(entry.getKey(), entry.getValue(), resolution);
+
+		TransactionSynchronizationManager.bindResource(this, resolution);
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCompletion(int status) {
+				TransactionSynchronizationManager.unbindResourceIfPossible(BatchEntityResolver.this);
+			}
+		});
+
+		logger.debug("Batch entity resolution: {} candidates, {} components, {} to be merged", candidates.size(),
+				resolution.components, resolution.pendingMerges);
+
+		return resolution;
+	}
+
+	private void resolveType(Long typeId, List<Candidate> candidates, Resolution resolution) {
+
+		UnionFind components = new UnionFind();
+
+		// semantic identifiers of the same source entity belong to the same final entity
+		for (Candidate candidate : candidates) {
+			Long first = null;
+			for (Long semanticId : candidate.getSemanticIds()) {
+				components.add(semanticId);
+				if (first == null)
+					first = semanticId;
+				else
+					components.union(first, semanticId);
+			}
+		}
+
+		// and so do existing entities sharing any of them
+		Set<Long> linkedSemanticIds = new HashSet<Long>();
+		for (List<Long> chunk : Lists.partition(new ArrayList<Long>(components.longNodes()), QUERY_CHUNK_SIZE)) {
+			for (Object[] row : entityRepository.findEntityIdsBySemanticIds(typeId, chunk)) {
+				Long semanticId = ((Number) row[0]).longValue();
+				UUID entityId = (UUID) row[1];
+				components.add(entityId);
+				components.union(semanticId, entityId);
+				linkedSemanticIds.add(semanticId);
+			}
+		}
+
+		Map<Object, List<Long>> semanticIdsByComponent = new HashMap<Object, List<Long>>();
+		Map<Object, TreeSet<UUID>> entitiesByComponent = new HashMap<Object, TreeSet<UUID>>();
+
+		for (Object node : components.nodes()) {
+			Object root = components.find(node);
+			if (node instanceof Long)
+				semanticIdsByComponent.computeIfAbsent(root, k -> new ArrayList<Long>()).add((Long) node);
+			else
+				entitiesByComponent.computeIfAbsent(root, k -> new TreeSet<UUID>()).add((UUID) node);
+		}
+
+		Map<Long, Target> targets = resolution.targets.computeIfAbsent(typeId, k -> new HashMap<Long, Target>());
+
+		for (Map.Entry<Object, List<Long>> component : semanticIdsByComponent.entrySet()) {
+
+			TreeSet<UUID> existing = entitiesByComponent.get(component.getKey());
+			Target target;
+
+			if (existing == null)
+				target = new Target(null, Collections.<UUID>emptyList());
+			else {
+				// smallest uuid, so concurrent loaders merging the same entities agree on the target
+				UUID targetId = existing.first();
+				target = new Target(targetId, new ArrayList<UUID>(existing.tailSet(targetId, false)));
+				resolution.pendingMerges += target.mergedIds.size();
+
+				// after the merge every semantic identifier of the component already linked is linked to the target
+				for (Long semanticId : component.getValue()) {
+					if (linkedSemanticIds.contains(semanticId))
+						target.linked.add(semanticId);
+				}
+			}
+
+			resolution.components++;
+			for (Long semanticId : component.getValue())
+				targets.put(semanticId, target);
+		}
+	}
+
+	/**
+	 * Merges entities into the target: source entities and semantic identifiers move to the target, the merged entities,
+	 * their occurrences and relations are deleted and the entities related to them marked dirty so relations are rebuilt.
+	 */
+	private void merge(UUID targetId, List<UUID> mergedIds, SemanticIdentifierEntityIndex index) {
+
+		logger.info("Merging entities {} into {}, they share semantic identifiers", mergedIds, targetId);
+
+		// the statements below bypass the session, what it holds for these entities is written first and evicted after
+		entityManager.flush();
+
+		List<Long> movedSemanticIds = entityRepository.findSemanticIdsByEntityIds(mergedIds);
+
+		entityRepository.copySemanticIdentifiers(targetId, mergedIds);
+		entityRepository.reassignSourceEntities(targetId, mergedIds);
+		entityRepository.markRelatedEntitiesDirty(mergedIds);
+		entityRepository.deleteRelationOccurrencesByMembers(mergedIds);
+		entityRepository.deleteRelationsByMembers(mergedIds);
+		entityRepository.deleteEntityOccurrences(mergedIds);
+		entityRepository.deleteEntitySemanticIdentifiers(mergedIds);
+		entityRepository.deleteEntities(mergedIds);
+
+		List<UUID> changedIds = new ArrayList<UUID>(mergedIds);
+		changedIds.add(targetId);
+		for (UUID entityId : changedIds) {
+			// returns the managed instance if there is one, otherwise an uninitialized proxy, nothing is loaded
+			entityManager.detach(entityManager.getReference(Entity.class, entityId));
+		}
+		entityStore.evict(changedIds);
+
+		if (index != null)
+			index.registerMerged(targetId, movedSemanticIds);
+	}
+
+	/**
+	 * Writes entity id, semantic id links in one batched statement
+	 */
+	private void writeLinks(List<Object[]> links) {
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement(
+					"INSERT INTO entity_semantic_identifier (entity_id, semantic_id) SELECT ?, ? WHERE NOT EXISTS "
+					+ "(SELECT 1 FROM entity_semantic_identifier WHERE entity_id = ? AND semantic_id = ?)")) {
+				for (Object[] link : links) {
+					statement.setObject(1, link[0]);
+					statement.setLong(2, (Long) link[1]);
+					statement.setObject(3, link[0]);
+					statement.setLong(4, (Long) link[1]);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		});
+	}
+
+	/**
+	 * Final entity of a component, existing (entityId set from the start) or new (entityId set by the first claim)
+	 */
+	private static class Target {
+
+		final boolean existing;
+		final List<UUID> mergedIds;
+		final Set<Long> linked = new HashSet<Long>();
+		UUID entityId;
+		boolean claimed = false;
+
+		Target(UUID entityId, List<UUID> mergedIds) {
+			this.entityId = entityId;
+			this.existing = entityId != null;
+			this.mergedIds = mergedIds;
+		}
+	}
+
+	public class Resolution {
+
+		private final SemanticIdentifierEntityIndex index;
+
+		// entity type id -> semantic id -> target
+		private final Map<Long, Map<Long, Target>> targets = new HashMap<Long, Map<Long, Target>>();
+		private final List<Target> claimedByRecord = new ArrayList<Target>();
+		private final List<Object[]> linkedByRecord = new ArrayList<Object[]>();
+
+		// links (target, semantic id) and dirty targets of the current record, and of the records already released
+		private final List<Object[]> recordLinks = new ArrayList<Object[]>();
+		private final Set<Target> recordDirty = new LinkedHashSet<Target>();
+		private final List<Object[]> pendingLinks = new ArrayList<Object[]>();
+		private final Set<UUID> pendingDirty = new LinkedHashSet<UUID>();
+		private int components = 0;
+		private int pendingMerges = 0;
+
+		Resolution(SemanticIdentifierEntityIndex index) {
+			this.index = index;
+		}
+
+		/**
+		 * Final entity of a source entity, null if its semantic identifiers were not resolved. Must run in the savepoint
+		 * of the record, the first claim of a component writes it (new entity or merge). The semantic identifier links
+		 * and the dirty mark of every claim are written by finish().
+		 */
+		public ResolvedEntity claim(EntityType entityType, Collection<SemanticIdentifier> semanticIdentifiers) {
+
+			Map<Long, Target> typeTargets = targets.get(entityType.getId());
+			if (typeTargets == null)
+				return null;
+
+			Target target = null;
+			for (SemanticIdentifier semanticIdentifier : semanticIdentifiers) {
+				target = typeTargets.get(semanticIdentifier.getId());
+				if (target != null)
+					break;
+			}
+
+			if (target == null)
+				return null;
+
+			boolean alreadyExisting = target.existing || target.claimed;
+
+			if (!target.claimed) {
+				target.claimed = true;
+				claimedByRecord.add(target);
+
+				if (!target.existing) {
+					Entity entity = new Entity(entityType);
+					entity.setDirty(true);
+					entity.addSemanticIdentifiers(semanticIdentifiers);
+					entityRepository.save(entity);
+
+					target.entityId = entity.getId();
+					for (SemanticIdentifier semanticIdentifier : semanticIdentifiers)
+						link(target, semanticIdentifier.getId());
+				} else if (!target.mergedIds.isEmpty())
+					merge(target.entityId, target.mergedIds, index);
+			}
+
+			for (SemanticIdentifier semanticIdentifier : semanticIdentifiers) {
+				if (!target.linked.contains(semanticIdentifier.getId())) {
+					link(target, semanticIdentifier.getId());
+					recordLinks.add(new Object[] { target, semanticIdentifier.getId() });
+				}
+			}
+
+			if (target.existing)
+				recordDirty.add(target);
+
+			return new ResolvedEntity(target.entityId, alreadyExisting);
+		}
+
+		private void link(Target target, Long semanticId) {
+			target.linked.add(semanticId);
+			linkedByRecord.add(new Object[] { target, semanticId });
+		}
+
+		/**
+		 * Marks the start of a record: the marks and links pending so far belong to records already released
+		 */
+		public void beginRecord() {
+			releaseRecord();
+			claimedByRecord.clear();
+			linkedByRecord.clear();
+		}
+
+		private void releaseRecord() {
+			for (Object[] link : recordLinks)
+				pendingLinks.add(new Object[] { ((Target) link[0]).entityId, link[1] });
+			for (Target target : recordDirty)
+				pendingDirty.add(target.entityId);
+			recordLinks.clear();
+			recordDirty.clear();
+		}
+
+		/**
+		 * The record savepoint was rolled back: what its claims wrote is gone, the next claim writes it again
+		 */
+		public void discardRecord() {
+
+			for (Object[] link : linkedByRecord)
+				((Target) link[0]).linked.remove(link[1]);
+
+			for (Target target : claimedByRecord) {
+				target.claimed = false;
+				if (!target.existing)
+					target.entityId = null;
+			}
+
+			claimedByRecord.clear();
+			linkedByRecord.clear();
+			recordLinks.clear();
+			recordDirty.clear();
+		}
+
+		/**
+		 * Writes the semantic identifier links and dirty marks of the released records and unbinds the resolution,
+		 * components no record claimed were never written. Must run in the batch transaction, after the last record.
+		 */
+		public void finish() {
+
+			releaseRecord();
+
+			try {
+				if (!pendingLinks.isEmpty()) {
+					// new entities and semantic identifiers may still be in the session or the store buffers
+					entityManager.flush();
+					writeLinks(pendingLinks);
+				}
+
+				for (List<UUID> chunk : Lists.partition(new ArrayList<UUID>(pendingDirty), QUERY_CHUNK_SIZE))
+					entityRepository.markEntitiesDirty(chunk);
+
+				logger.debug("Batch entity resolution finished: {} semantic identifiers linked, {} existing entities marked dirty",
+						pendingLinks.size(), pendingDirty.size());
+			} finally {
+				pendingLinks.clear();
+				pendingDirty.clear();
+				TransactionSynchronizationManager.unbindResourceIfPossible(BatchEntityResolver.this);
+			}
+		}
+	}
+
+	/**
+	 * Union-find with path compression over semantic ids (Long) and entity ids (UUID)
+	 */
+	private static class UnionFind {
+
+		private final Map<Object, Object> parent = new LinkedHashMap<Object, Object>();
+
+		void add(Object node) {
+			parent.putIfAbsent(node, node);
+		}
+
+		Object find(Object node) {
+			Object root = node;
+			while (!parent.get(root).equals(root))
+				root = parent.get(root);
+
+			// path compression
+			while (!node.equals(root)) {
+				Object next = parent.get(node);
+				parent.put(node, root);
+				node = next;
+			}
+			return root;
+		}
+
+		void union(Object a, Object b) {
+			Object rootA = find(a);
+			Object rootB = find(b);
+			if (!rootA.equals(rootB))
+				parent.put(rootB, rootA);
+		}
+
+		Collection<Object> nodes() {
+			return new ArrayList<Object>(parent.keySet());
+		}
+
+		Collection<Long> longNodes() {
+			List<Long> nodes = new ArrayList<Long>();
+			for (Object node : parent.keySet()) {
+				if (node instanceof Long)
+					nodes.add((Long) node);
+			}
+			return nodes;
+		}
+	}
+}
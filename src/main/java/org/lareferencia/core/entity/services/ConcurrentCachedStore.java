@@ -26,12 +26,25 @@ import org.lareferencia.core.entity.domain.ICacheableEntity;
 import org.springframework.data.jpa.repository.JpaRepository;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConcurrentCachedStore<K,C extends ICacheableEntity<K>,R extends JpaRepository<C, K>> {
 
@@ -39,7 +52,43 @@ public class ConcurrentCachedStore<K,C extends ICacheableEntity<K>,R extends Jpa
     protected final R repository;
     private final Cache<K,C> cache;
 
+    /**
+     * Keys known to be absent from the database, so repeated lookups of a not yet persisted key do not hit it again.
+     * Caffeine does not store null values, this is kept apart with its own bound. Null when disabled.
+     */
+    private final Cache<K,Boolean> absentKeys;
+
+    /**
+     * Optional writer used instead of repository.save() for new objects (ie: bulk loading)
+     */
+    private IContentAddressedWriter<C> writer;
+
+    /**
+     * When enabled cache misses are not looked up in the database, new objects are written through the
+     * writer (insert if absent) and the cache only tracks ids known to exist. Requires a writer.
+     */
+    private boolean insertWithoutRead = false;
+
+    /**
+     * Write-behind mode: new objects are kept in a buffer bound to the current transaction (duplicated ids collapse)
+     * and written through the writer in one batch before the session flushes or the transaction commits. Requires a writer.
+     */
+    private boolean writeBehind = false;
+
+    private final AtomicLong bufferedWrites = new AtomicLong();
+    private final AtomicLong collapsedWrites = new AtomicLong();
+    private final AtomicLong batchedWrites = new AtomicLong();
+
     public ConcurrentCachedStore(R repository,  Integer capacity, Boolean readOnly, Integer expireAfterWriteInMinutes) {
+        this(repository, capacity, readOnly, expireAfterWriteInMinutes, 0, 0);
+    }
+
+    /**
+     * @param negativeCapacity max number of keys remembered as absent, 0 disables negative caching
+     * @param negativeExpireAfterWriteInSeconds how long a key is remembered as absent, required when enabled
+     */
+    public ConcurrentCachedStore(R repository,  Integer capacity, Boolean readOnly, Integer expireAfterWriteInMinutes,
+                                 Integer negativeCapacity, Integer negativeExpireAfterWriteInSeconds) {
 
        this.repository = repository;
        this.readOnly = readOnly;
@@ -47,6 +96,7 @@ public class ConcurrentCachedStore<K,C extends ICacheableEntity<K>,R extends Jpa
        Caffeine builder = Caffeine.newBuilder();
 
        builder.maximumSize(capacity);
+       builder.recordStats();
 
        if ( expireAfterWriteInMinutes > 0 )
            builder.expireAfterWrite(expireAfterWriteInMinutes, TimeUnit.MINUTES);
@@ -56,6 +106,17 @@ public class ConcurrentCachedStore<K,C extends ICacheableEntity<K>,R extends Jpa
        */
        cache = builder.build();
 
+       if ( negativeCapacity > 0 ) {
+           // absent keys may be inserted by other loaders, they are never remembered forever
+           if ( negativeExpireAfterWriteInSeconds <= 0 )
+               throw new IllegalArgumentException("Negative caching requires an expiration, got " + negativeExpireAfterWriteInSeconds + "s");
+
+           absentKeys = Caffeine.newBuilder()
+                   .maximumSize(negativeCapacity)
+                   .expireAfterWrite(negativeExpireAfterWriteInSeconds, TimeUnit.SECONDS)
+                   .build();
+       } else
+           absentKeys = null;
 
     }
 
@@ -64,16 +125,81 @@ public class ConcurrentCachedStore<K,C extends ICacheableEntity<K>,R extends Jpa
      * This is a read operation and runs within the caller's transaction context.
      */
     public C get(K key) {
-        return cache.get(key, k -> {
+
+        C cached = cache.getIfPresent(key);
+        if ( cached != null )
+            return cached;
+
+        if ( isKnownAbsent(key) )
+            return null;
+
+        C obj = cache.get(key, k -> {
             Optional<C> optObj = repository.findById(key);
             if (optObj.isPresent()) {
-                @SuppressWarnings("unchecked")
-                C entity = (C) Hibernate.unproxy(optObj.get());
-                return entity;
+                return unproxy(optObj.get());
             } else {
                 return null;
             }
         });
+
+        if ( obj == null )
+            rememberAbsent(key);
+
+        return obj;
+    }
+
+    /**
+     * Get several entities from cache, all the misses are loaded from database with a single findAllById.
+     * Keys not found are not present in the returned map.
+     */
+    public Map<K,C> getAll(Collection<K> keys) {
+
+        Map<K,C> result = new HashMap<K,C>( cache.getAllPresent(keys) );
+
+        Set<K> misses = new LinkedHashSet<K>();
+        for (K key : keys) {
+            if ( !result.containsKey(key) && !isKnownAbsent(key) )
+                misses.add(key);
+        }
+
+        if ( misses.isEmpty() )
+            return result;
+
+        for (C loaded : repository.findAllById(misses)) {
+            C obj = unproxy(loaded);
+            // keep the instance already cached by a concurrent caller, if any
+            result.put(obj.getId(), cache.asMap().computeIfAbsent(obj.getId(), k -> obj));
+        }
+
+        for (K key : misses) {
+            if ( !result.containsKey(key) )
+                rememberAbsent(key);
+        }
+
+        return result;
+    }
+
+    /**
+     * Remembers a key as absent unless a concurrent put cached it meanwhile. put() caches before invalidating
+     * the negative entry, so checking the cache after the negative put never leaves a stored key marked absent.
+     */
+    private void rememberAbsent(K key) {
+
+        if ( absentKeys == null )
+            return;
+
+        absentKeys.put(key, Boolean.TRUE);
+        if ( cache.getIfPresent(key) != null )
+            absentKeys.invalidate(key);
+    }
+
+    private boolean isKnownAbsent(K key) {
+        return absentKeys != null && absentKeys.getIfPresent(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private C unproxy(C obj) {
+        return (C) Hibernate.unproxy(obj);
     }
 
     /**
@@ -87,20 +213,237 @@ public class ConcurrentCachedStore<K,C extends ICacheableEntity<K>,R extends Jpa
         if ( cache.getIfPresent(key) == null ) {
 
             if ( !readOnly) {
-                // Use save() instead of saveAndFlush() to defer persistence
-                // The flush will happen at transaction commit
-                repository.save(obj);
+                persist(obj);
                 obj.markAsStored();
             }
 
             cache.put(key, obj);
         }
 
+        if ( absentKeys != null )
+            absentKeys.invalidate(key);
     }
 
 
+    /**
+     * Returns the stored instance with the candidate id, storing the candidate if there is none.
+     */
+    public C getOrInsert(C candidate) {
+
+        K key = candidate.getId();
+
+        C existing = isInsertWithoutRead() ? cache.getIfPresent(key) : get(key);
+        if ( existing != null )
+            return existing;
+
+        put(key, candidate);
+        return candidate;
+    }
+
+    /**
+     * Same as getOrInsert for several candidates, results keep the candidates order.
+     * Misses are looked up with a single query (getAll), or not looked up at all without read,
+     * in which case they are written in one batch through the writer.
+     */
+    public List<C> getOrInsertAll(Collection<C> candidates) {
+
+        List<K> keys = new ArrayList<K>(candidates.size());
+        for (C candidate : candidates)
+            keys.add(candidate.getId());
+
+        Map<K, C> resolved = isInsertWithoutRead() ? new HashMap<K, C>( cache.getAllPresent(keys) ) : getAll(keys);
+
+        List<C> missing = new ArrayList<C>();
+        for (C candidate : candidates) {
+            if ( !resolved.containsKey(candidate.getId()) ) { // candidates may be duplicated
+                resolved.put(candidate.getId(), candidate);
+                missing.add(candidate);
+            }
+        }
+
+        if ( !missing.isEmpty() ) {
+            if ( isInsertWithoutRead() ) {
+                persistAll(missing);
+                for (C obj : missing) {
+                    obj.markAsStored();
+                    cache.put(obj.getId(), obj);
+                    if ( absentKeys != null )
+                        absentKeys.invalidate(obj.getId());
+                }
+            } else {
+                for (C obj : missing)
+                    put(obj.getId(), obj);
+            }
+        }
+
+        List<C> result = new ArrayList<C>(candidates.size());
+        for (K key : keys)
+            result.add(resolved.get(key));
+
+        return result;
+    }
+
+    /**
+     * Persists a new object, through the configured writer if any or else the repository.
+     * Use save() instead of saveAndFlush() to defer persistence, the flush will happen at transaction commit
+     */
+    protected void persist(C obj) {
+        if ( isWriteBehind() )
+            bufferWrites(Collections.singletonList(obj));
+        else if ( writer != null )
+            writer.insertIfAbsent(Collections.singletonList(obj));
+        else
+            repository.save(obj);
+    }
+
+    /**
+     * Persists several new objects through the writer, in one batch or buffered in write-behind mode
+     */
+    protected void persistAll(Collection<C> objs) {
+        if ( isWriteBehind() )
+            bufferWrites(objs);
+        else
+            writer.insertIfAbsent(objs);
+    }
+
+    private void bufferWrites(Collection<C> objs) {
+
+        Map<K,C> pending = getPendingWrites();
+        for (C obj : objs) {
+            if ( pending.putIfAbsent(obj.getId(), obj) == null )
+                bufferedWrites.incrementAndGet();
+            else
+                collapsedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Buffer of the current transaction, bound on first use with the store as resource key.
+     * Whatever is still buffered is written before commit, the buffer is released after completion.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<K,C> getPendingWrites() {
+
+        Map<K,C> pending = (Map<K,C>) TransactionSynchronizationManager.getResource(this);
+
+        if ( pending == null ) {
+            pending = new LinkedHashMap<K,C>();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    writePendingWrites();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(ConcurrentCachedStore.this);
+                }
+            });
+        }
+
+        return pending;
+    }
+
+    /**
+     * Writes the objects buffered by the current transaction in a single batch
+     */
+    @SuppressWarnings("unchecked")
+    public void writePendingWrites() {
+
+        Map<K,C> pending = (Map<K,C>) TransactionSynchronizationManager.getResource(this);
+        if ( pending == null || pending.isEmpty() )
+            return;
+
+        List<C> batch = new ArrayList<C>(pending.values());
+        pending.clear();
+
+        writer.insertIfAbsent(batch);
+        batchedWrites.incrementAndGet();
+    }
+
+    /**
+     * Drops the objects buffered by the current transaction (ie: after rolling back a savepoint),
+     * the cache should be flushed too since it holds them as stored.
+     */
+    @SuppressWarnings("unchecked")
+    public void discardPendingWrites() {
+        Map<K,C> pending = (Map<K,C>) TransactionSynchronizationManager.getResource(this);
+        if ( pending != null )
+            pending.clear();
+    }
+
+    /**
+     * Writes the buffers of every store bound to the current transaction.
+     * Called before the session flushes, so rows referencing buffered objects never reach the database before them.
+     */
+    public static void writeAllPendingWrites() {
+        for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet())) {
+            if ( key instanceof ConcurrentCachedStore )
+                ((ConcurrentCachedStore<?,?,?>) key).writePendingWrites();
+        }
+    }
+
+    public IContentAddressedWriter<C> getWriter() {
+        return writer;
+    }
+
+    public void setWriter(IContentAddressedWriter<C> writer) {
+        this.writer = writer;
+    }
+
+    public boolean isInsertWithoutRead() {
+        return insertWithoutRead && writer != null && !readOnly;
+    }
+
+    public void setInsertWithoutRead(boolean insertWithoutRead) {
+        this.insertWithoutRead = insertWithoutRead;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind && writer != null && !readOnly && TransactionSynchronizationManager.isSynchronizationActive();
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /** Objects added to write-behind buffers */
+    public long getBufferedWrites() {
+        return bufferedWrites.get();
+    }
+
+    /** Objects not buffered because their id was already in the buffer */
+    public long getCollapsedWrites() {
+        return collapsedWrites.get();
+    }
+
+    /** Batches written from write-behind buffers */
+    public long getBatchedWrites() {
+        return batchedWrites.get();
+    }
+
+    public String getStatsSummary() {
+        CacheStats stats = cache.stats();
+        return String.format("hitRatio=%.3f hits=%d misses=%d bufferedWrites=%d collapsedWrites=%d batchedWrites=%d",
+                stats.hitRate(), stats.hitCount(), stats.missCount(), getBufferedWrites(), getCollapsedWrites(), getBatchedWrites());
+    }
+
+    /**
+     * Removes the given keys from the cache, objects changed or deleted outside the store
+     */
+    public void evict(Collection<K> keys) {
+        cache.invalidateAll(keys);
+    }
+
     public void flush() {
         cache.invalidateAll();
+        if ( absentKeys != null )
+            absentKeys.invalidateAll();
     }
 
 
@@ -0,0 +1,161 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jakarta.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.FieldOccurrence;
+import org.lareferencia.core.entity.domain.Provenance;
+import org.lareferencia.core.entity.domain.SemanticIdentifier;
+import org.postgresql.PGConnection;
+
+/**
+ * Insert path for the content addressed tables (ids are XXHash64 of the content): semantic_identifier,
+ * field_occurrence and provenance. Rows are written with INSERT ... ON CONFLICT (id) DO NOTHING in JDBC
+ * batches, without reading first. On non PostgreSQL databases (H2 in tests) MERGE ... KEY (id) is used.
+ *
+ * Rows are sorted by id before each batch so concurrent loaders lock conflicting keys in the same order.
+ * Runs on the connection of the current transaction.
+ */
+public class ContentAddressedUpsertWriter {
+
+	private final EntityManager entityManager;
+
+	public ContentAddressedUpsertWriter(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	public void insertSemanticIdentifiers(Collection<SemanticIdentifier> semanticIdentifiers) {
+
+		List<Object[]> rows = new ArrayList<Object[]>(semanticIdentifiers.size());
+		for (SemanticIdentifier semanticIdentifier : semanticIdentifiers)
+			rows.add(new Object[] { semanticIdentifier.getId(), semanticIdentifier.getIdentifier() });
+
+		insertIfAbsent("semantic_identifier", "id, semantic_id", rows);
+	}
+
+	public void insertFieldOccurrences(Collection<FieldOccurrence> occurrences) {
+
+		List<Object[]> rows = new ArrayList<Object[]>(occurrences.size());
+		for (FieldOccurrence occurrence : occurrences) {
+			Object[] row = EntityBulkWriter.fieldOccurrenceRow(occurrence);
+			// id first, as the rest of the tables
+			Object kind = row[0];
+			row[0] = row[1];
+			row[1] = kind;
+			rows.add(row);
+		}
+
+		insertIfAbsent("field_occurrence", "id, kind, field_type_id, lang, preferred, content", rows);
+	}
+
+	/**
+	 * Creates the provenance if absent and returns it with the stored lastUpdate and fingerprint (null if it was
+	 * just created), in a single round trip on PostgreSQL.
+	 */
+	public Provenance upsertProvenance(String source, String record) {
+
+		Provenance provenance = new Provenance(source, record);
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+
+			if (connection.isWrapperFor(PGConnection.class)) {
+				// the outer select does not see the row inserted by the CTE, so a row back means it already existed
+				try (PreparedStatement upsert = connection.prepareStatement(
+						"WITH ins AS (INSERT INTO provenance (id, source_id, record_id) VALUES (?, ?, ?) ON CONFLICT (id) DO NOTHING RETURNING id) "
+						+ "SELECT p.last_update, p.fingerprint FROM provenance p WHERE p.id = ?")) {
+					upsert.setLong(1, provenance.getId());
+					upsert.setString(2, source);
+					upsert.setString(3, record);
+					upsert.setLong(4, provenance.getId());
+					readLastUpdate(upsert, provenance);
+				}
+			} else {
+				try (PreparedStatement select = connection.prepareStatement("SELECT last_update, fingerprint FROM provenance WHERE id = ?")) {
+					select.setLong(1, provenance.getId());
+					if (!readLastUpdate(select, provenance)) {
+						try (PreparedStatement insert = connection.prepareStatement("INSERT INTO provenance (id, source_id, record_id) VALUES (?, ?, ?)")) {
+							insert.setLong(1, provenance.getId());
+							insert.setString(2, source);
+							insert.setString(3, record);
+							insert.executeUpdate();
+						}
+					}
+				}
+			}
+		});
+
+		return provenance;
+	}
+
+	private static boolean readLastUpdate(PreparedStatement statement, Provenance provenance) throws SQLException {
+		try (ResultSet rs = statement.executeQuery()) {
+			if (!rs.next())
+				return false;
+			Timestamp lastUpdate = rs.getTimestamp(1);
+			provenance.setLastUpdate(lastUpdate == null ? null : lastUpdate.toLocalDateTime());
+			long fingerprint = rs.getLong(2);
+			provenance.setFingerprint(rs.wasNull() ? null : fingerprint);
+			return true;
+		}
+	}
+
+	private void insertIfAbsent(String table, String columns, List<Object[]> rows) {
+
+		if (rows.isEmpty())
+			return;
+
+		rows.sort(Comparator.comparing(row -> (Long) row[0]));
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+
+			String placeholders = String.join(", ", Collections.nCopies(rows.get(0).length, "?"));
+			String sql = connection.isWrapperFor(PGConnection.class)
+					? "INSERT INTO " + table + " (" + columns + ") VALUES (" + placeholders + ") ON CONFLICT (id) DO NOTHING"
+					: "MERGE INTO " + table + " (" + columns + ") KEY (id) VALUES (" + placeholders + ")";
+
+			executeBatch(connection, sql, rows);
+		});
+	}
+
+	private static void executeBatch(Connection connection, String sql, List<Object[]> rows) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			for (Object[] row : rows) {
+				for (int i = 0; i < row.length; i++)
+					statement.setObject(i + 1, row[i]);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+}
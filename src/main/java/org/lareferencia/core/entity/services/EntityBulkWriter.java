@@ -0,0 +1,411 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.entity.services;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.EntityManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.ComplexFieldOccurrence;
+import org.lareferencia.core.entity.domain.FieldOccurrence;
+import org.lareferencia.core.entity.domain.RelationId;
+import org.lareferencia.core.entity.domain.SemanticIdentifier;
+import org.lareferencia.core.entity.domain.SourceEntity;
+import org.lareferencia.core.entity.domain.SourceRelation;
+import org.lareferencia.core.util.MapAttributeConverter;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Bulk writer for the loading hot path: source_entity, source_relation, their join tables and field_occurrence.
+ *
+ * Rows are buffered per transaction (bound with TransactionSynchronizationManager) and written when the buffer
+ * reaches batchSize, when flush() is called, or before the owning transaction commits. On PostgreSQL rows are
+ * streamed with COPY (CSV), field occurrences go through a temporary staging table so already existing ones are
+ * ignored. On other databases (H2 in tests) plain JDBC batch inserts are used.
+ */
+public class EntityBulkWriter {
+
+	private static Logger logger = LogManager.getLogger(EntityBulkWriter.class);
+
+	@SuppressWarnings("rawtypes")
+	private static final AttributeConverter mapConverter = new MapAttributeConverter();
+
+	private static final String FIELD_OCCURRENCE_COLUMNS = "kind, id, field_type_id, lang, preferred, content";
+	private static final String FIELD_OCCURRENCE_STAGING = "bulk_field_occurrence";
+
+	private final EntityManager entityManager;
+
+	@Getter
+	@Setter
+	private int batchSize;
+
+	public EntityBulkWriter(EntityManager entityManager, int batchSize) {
+		this.entityManager = entityManager;
+		this.batchSize = batchSize;
+	}
+
+	public void addFieldOccurrences(Collection<FieldOccurrence> occurrences) {
+		RowBuffer buffer = currentBuffer();
+		for (FieldOccurrence occurrence : occurrences)
+			buffer.addOccurrence(occurrence);
+		writeIfFull(buffer);
+	}
+
+	public void addSourceEntity(SourceEntity entity) {
+		RowBuffer buffer = currentBuffer();
+		buffer.entities.add(entity);
+		writeIfFull(buffer);
+	}
+
+	public void addSourceRelation(SourceRelation relation) {
+		RowBuffer buffer = currentBuffer();
+		if (buffer.relationIds.add(relation.getId()))
+			buffer.relations.add(relation);
+		writeIfFull(buffer);
+	}
+
+	/**
+	 * Writes the rows buffered by the current transaction
+	 */
+	public void flush() {
+		RowBuffer buffer = (RowBuffer) TransactionSynchronizationManager.getResource(this);
+		if (buffer != null)
+			write(buffer);
+	}
+
+	/**
+	 * Marks the start of a record, rows buffered from here can be discarded with discardRecord()
+	 */
+	public void beginRecord() {
+		currentBuffer().mark();
+	}
+
+	/**
+	 * Discards rows buffered since the last beginRecord(), used when the record savepoint is rolled back.
+	 * Rows already written since then were rolled back with the savepoint.
+	 */
+	public void discardRecord() {
+		RowBuffer buffer = (RowBuffer) TransactionSynchronizationManager.getResource(this);
+		if (buffer != null)
+			buffer.rollbackToMark();
+	}
+
+	private RowBuffer currentBuffer() {
+
+		RowBuffer buffer = (RowBuffer) TransactionSynchronizationManager.getResource(this);
+
+		if (buffer == null) {
+			if (!TransactionSynchronizationManager.isSynchronizationActive())
+				throw new IllegalStateException("EntityBulkWriter requires an active transaction");
+
+			RowBuffer newBuffer = new RowBuffer();
+			TransactionSynchronizationManager.bindResource(this, newBuffer);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void beforeCommit(boolean readOnly) {
+					write(newBuffer);
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(EntityBulkWriter.this);
+				}
+			});
+			buffer = newBuffer;
+		}
+
+		return buffer;
+	}
+
+	private void writeIfFull(RowBuffer buffer) {
+		if (buffer.size() >= batchSize)
+			write(buffer);
+	}
+
+	private void write(RowBuffer buffer) {
+
+		if (buffer.size() == 0)
+			return;
+
+		List<BulkTable> tables = buildTables(buffer);
+
+		Session session = entityManager.unwrap(Session.class);
+		// entities, provenances and semantic identifiers are still written through JPA and are referenced by the bulk rows
+		session.flush();
+
+		session.doWork(connection -> {
+			if (connection.isWrapperFor(PGConnection.class))
+				copyTables(connection, tables);
+			else
+				insertTables(connection, tables);
+		});
+
+		logger.debug("Bulk written {} field occurrences, {} source entities, {} source relations",
+				buffer.occurrences.size(), buffer.entities.size(), buffer.relations.size());
+
+		buffer.clear();
+	}
+
+	/**
+	 * Rows in dependency order: field_occurrence first, then source entities, source relations and their join tables
+	 */
+	private List<BulkTable> buildTables(RowBuffer buffer) {
+
+		BulkTable occurrences = new BulkTable("field_occurrence", FIELD_OCCURRENCE_COLUMNS);
+		for (FieldOccurrence occurrence : buffer.occurrences)
+			occurrences.add(fieldOccurrenceRow(occurrence));
+
+		BulkTable entities = new BulkTable("source_entity", "uuid, entity_type_id, final_entity_id, deleted, provenance_id");
+		BulkTable entityOccurrences = new BulkTable("source_entity_fieldoccr", "entity_id, fieldoccr_id");
+		BulkTable entitySemanticIds = new BulkTable("source_entity_semantic_identifier", "entity_id, semantic_id");
+
+		for (SourceEntity entity : buffer.entities) {
+			entities.add(entity.getId(), entity.getEntityType().getId(), entity.getFinalEntityId(), entity.getDeleted(), entity.getProvenanceId());
+			for (FieldOccurrence occurrence : entity.getOccurrences())
+				entityOccurrences.add(entity.getId(), occurrence.getId());
+			for (SemanticIdentifier semanticId : entity.getSemanticIdentifiers())
+				entitySemanticIds.add(entity.getId(), semanticId.getId());
+		}
+
+		BulkTable relations = new BulkTable("source_relation", "relation_type_id, from_entity_id, to_entity_id, start_date, end_date, confidence");
+		BulkTable relationOccurrences = new BulkTable("source_relation_fieldoccr", "from_entity_id, relation_type_id, to_entity_id, fieldoccr_id");
+
+		for (SourceRelation relation : buffer.relations) {
+			RelationId id = relation.getId();
+			relations.add(id.relationTypeId, id.fromEntityId, id.toEntityId, toTimestamp(relation.getStartDate()), toTimestamp(relation.getEndDate()), relation.getConfidence());
+			for (FieldOccurrence occurrence : relation.getOccurrences())
+				relationOccurrences.add(id.fromEntityId, id.relationTypeId, id.toEntityId, occurrence.getId());
+		}
+
+		List<BulkTable> tables = new ArrayList<BulkTable>();
+		tables.add(occurrences);
+		tables.add(entities);
+		tables.add(entityOccurrences);
+		tables.add(entitySemanticIds);
+		tables.add(relations);
+		tables.add(relationOccurrences);
+		return tables;
+	}
+
+	@SuppressWarnings("unchecked")
+	static Object[] fieldOccurrenceRow(FieldOccurrence occurrence) {
+
+		boolean complex = occurrence instanceof ComplexFieldOccurrence;
+		Object content = complex ? mapConverter.convertToDatabaseColumn(occurrence.getContent()) : occurrence.getContent();
+
+		return new Object[] { complex ? "C" : "S", occurrence.getId(), occurrence.getFieldTypeId(), occurrence.getLang(),
+				occurrence.getPreferred(), content };
+	}
+
+	private static Timestamp toTimestamp(Date date) {
+		return date == null ? null : new Timestamp(date.getTime());
+	}
+
+	/******************* PostgreSQL COPY ********** */
+
+	private void copyTables(Connection connection, List<BulkTable> tables) throws SQLException {
+
+		CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+
+		try (Statement statement = connection.createStatement()) {
+
+			for (BulkTable table : tables) {
+
+				if (table.rows.isEmpty())
+					continue;
+
+				if (table.name.equals("field_occurrence")) {
+					// COPY has no ON CONFLICT, occurrences are staged and then inserted if absent
+					statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + FIELD_OCCURRENCE_STAGING
+							+ " (LIKE field_occurrence INCLUDING DEFAULTS) ON COMMIT DELETE ROWS");
+					copyIn(copyManager, FIELD_OCCURRENCE_STAGING, table);
+					statement.executeUpdate("INSERT INTO field_occurrence (" + FIELD_OCCURRENCE_COLUMNS + ") SELECT "
+							+ FIELD_OCCURRENCE_COLUMNS + " FROM " + FIELD_OCCURRENCE_STAGING + " ON CONFLICT (id) DO NOTHING");
+					statement.execute("TRUNCATE " + FIELD_OCCURRENCE_STAGING);
+				} else {
+					copyIn(copyManager, table.name, table);
+				}
+			}
+		}
+	}
+
+	private void copyIn(CopyManager copyManager, String tableName, BulkTable table) throws SQLException {
+
+		StringBuilder csv = new StringBuilder(table.rows.size() * 64);
+		for (Object[] row : table.rows) {
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0)
+					csv.append(',');
+				if (row[i] != null) // unquoted empty means NULL in CSV format
+					csv.append('"').append(row[i].toString().replace("\"", "\"\"")).append('"');
+			}
+			csv.append('\n');
+		}
+
+		try {
+			copyManager.copyIn("COPY " + tableName + " (" + table.columns + ") FROM STDIN WITH (FORMAT csv)", new StringReader(csv.toString()));
+		} catch (IOException e) {
+			throw new SQLException("Error streaming rows to " + tableName + " :: " + e.getMessage(), e);
+		}
+	}
+
+	/******************* JDBC batch fallback ********** */
+
+	private void insertTables(Connection connection, List<BulkTable> tables) throws SQLException {
+
+		for (BulkTable table : tables) {
+
+			List<Object[]> rows = table.rows;
+
+			if (table.name.equals("field_occurrence"))
+				rows = filterExistingOccurrences(connection, rows);
+
+			if (rows.isEmpty())
+				continue;
+
+			String placeholders = String.join(", ", Collections.nCopies(rows.get(0).length, "?"));
+
+			try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table.name + " (" + table.columns + ") VALUES (" + placeholders + ")")) {
+				for (Object[] row : rows) {
+					for (int i = 0; i < row.length; i++)
+						insert.setObject(i + 1, row[i]);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+		}
+	}
+
+	private List<Object[]> filterExistingOccurrences(Connection connection, List<Object[]> rows) throws SQLException {
+
+		Set<Long> existing = new HashSet<Long>();
+
+		for (int from = 0; from < rows.size(); from += 1000) {
+			List<Object[]> chunk = rows.subList(from, Math.min(from + 1000, rows.size()));
+			String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+
+			try (PreparedStatement select = connection.prepareStatement("SELECT id FROM field_occurrence WHERE id IN (" + placeholders + ")")) {
+				for (int i = 0; i < chunk.size(); i++)
+					select.setObject(i + 1, chunk.get(i)[1]);
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next())
+						existing.add(rs.getLong(1));
+				}
+			}
+		}
+
+		List<Object[]> missing = new ArrayList<Object[]>();
+		for (Object[] row : rows)
+			if (!existing.contains(row[1]))
+				missing.add(row);
+		return missing;
+	}
+
+	/******************* Auxiliares ********** */
+
+	private static class BulkTable {
+		final String name;
+		final String columns;
+		final List<Object[]> rows = new ArrayList<Object[]>();
+
+		BulkTable(String name, String columns) {
+			this.name = name;
+			this.columns = columns;
+		}
+
+		void add(Object... row) {
+			rows.add(row);
+		}
+	}
+
+	/**
+	 * Rows pending to be written by a transaction
+	 */
+	private static class RowBuffer {
+
+		final List<FieldOccurrence> occurrences = new ArrayList<FieldOccurrence>();
+		final Set<Long> occurrenceIds = new HashSet<Long>();
+		final List<SourceEntity> entities = new ArrayList<SourceEntity>();
+		final List<SourceRelation> relations = new ArrayList<SourceRelation>();
+		final Set<RelationId> relationIds = new HashSet<RelationId>();
+
+		int occurrencesMark = 0;
+		int entitiesMark = 0;
+		int relationsMark = 0;
+
+		void addOccurrence(FieldOccurrence occurrence) {
+			if (occurrenceIds.add(occurrence.getId()))
+				occurrences.add(occurrence);
+		}
+
+		int size() {
+			return occurrences.size() + entities.size() + relations.size();
+		}
+
+		void mark() {
+			occurrencesMark = occurrences.size();
+			entitiesMark = entities.size();
+			relationsMark = relations.size();
+		}
+
+		void rollbackToMark() {
+			while (occurrences.size() > occurrencesMark)
+				occurrenceIds.remove(occurrences.remove(occurrences.size() - 1).getId());
+			while (entities.size() > entitiesMark)
+				entities.remove(entities.size() - 1);
+			while (relations.size() > relationsMark)
+				relationIds.remove(relations.remove(relations.size() - 1).getId());
+		}
+
+		void clear() {
+			occurrences.clear();
+			occurrenceIds.clear();
+			entities.clear();
+			relations.clear();
+			relationIds.clear();
+			mark();
+		}
+	}
+}
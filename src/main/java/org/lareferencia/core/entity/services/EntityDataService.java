@@ -20,11 +20,18 @@
 
 package org.lareferencia.core.entity.services;
 
+import java.io.File;
+import java.io.InputStream;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -33,9 +40,14 @@ import java.util.stream.Collectors;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Unmarshaller;
+import javax.xml.transform.Source;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
 
 import lombok.AllArgsConstructor;
 import org.apache.logging.log4j.LogManager;
@@ -67,15 +79,19 @@ import org.lareferencia.core.entity.repositories.jpa.SourceRelationRepository;
 import org.lareferencia.core.entity.services.exception.EntitiyRelationXMLLoadingException;
 import org.lareferencia.core.entity.xml.XMLEntityInstance;
 import org.lareferencia.core.entity.xml.XMLEntityRelationData;
+import org.lareferencia.core.entity.xml.XMLEntityRelationDataReader;
 import org.lareferencia.core.entity.xml.XMLFieldValueInstance;
 import org.lareferencia.core.entity.xml.XMLRelationInstance;
 import org.lareferencia.core.util.Profiler;
 import org.lareferencia.core.util.date.DateHelper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.w3c.dom.Document;
 
 import lombok.Getter;
@@ -122,6 +138,135 @@ public class EntityDataService {
 	@Autowired
 	private PlatformTransactionManager transactionManager;
 
+	@Autowired
+	private EntityMergeEngine mergeEngine;
+
+	/**
+	 * Merge with the merge_dirty_entities_and_relations() stored procedure, in a single transaction, instead of
+	 * the partitioned Java merge engine (see EntityMergeEngine). The default until the engine is proven equivalent.
+	 */
+	@Getter
+	@Setter
+	@Value("${entity.merge.stored-procedure:true}")
+	private boolean mergeWithStoredProcedure = true;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	/**
+	 * Number of source entities after which the persistence context is cleared during batch loading
+	 */
+	@Getter
+	@Setter
+	@Value("${entity.loading.batch.clear-interval:1000}")
+	private int batchClearInterval = 1000;
+
+	/**
+	 * Bulk loading mode: source entities, source relations, their join tables and new field occurrences
+	 * are buffered and written with COPY (JDBC batches on non PostgreSQL databases) instead of one insert per row
+	 */
+	@Getter
+	@Value("${entity.loading.bulk.enabled:false}")
+	private boolean bulkLoading = false;
+
+	@Value("${entity.loading.bulk.batch-size:5000}")
+	private int bulkBatchSize = 5000;
+
+	/**
+	 * Insert without read mode: new semantic identifiers, field occurrences and provenances are written with
+	 * INSERT ... ON CONFLICT (id) DO NOTHING instead of being looked up first, their ids are content hashes
+	 */
+	@Getter
+	@Value("${entity.loading.insert-without-read:false}")
+	private boolean insertWithoutRead = false;
+
+	/**
+	 * Write-behind mode: new semantic identifiers and field occurrences are buffered per transaction and written
+	 * in one batched statement before the session flushes (ignored for field occurrences in bulk loading mode)
+	 */
+	@Getter
+	@Value("${entity.loading.write-behind:false}")
+	private boolean writeBehind = false;
+
+	/**
+	 * Negative caching of the semantic identifier and field occurrence stores: ids found absent in the database are
+	 * remembered for a short time so repeated misses do not query again, 0 disables it (ignored in insert without read mode)
+	 */
+	@Value("${entity.loading.negative-cache.capacity:0}")
+	private int negativeCacheCapacity = 0;
+
+	@Value("${entity.loading.negative-cache.expire-seconds:60}")
+	private int negativeCacheExpireSeconds = 60;
+
+	/**
+	 * Off heap semantic identifier -> final entity index, answers findOrCreateFinalEntity lookups without querying the database
+	 */
+	@Value("${entity.loading.semantic-index.enabled:false}")
+	private boolean semanticIndexEnabled = false;
+
+	/** Only when this is the single loader: index misses are trusted and not checked against the database */
+	@Value("${entity.loading.semantic-index.authoritative:false}")
+	private boolean semanticIndexAuthoritative = false;
+
+	@Value("${entity.loading.semantic-index.expected-size:10000000}")
+	private long semanticIndexExpectedSize = 10000000;
+
+	@Value("${entity.loading.semantic-index.segments:64}")
+	private int semanticIndexSegments = 64;
+
+	/** Directory for memory mapped index segments, direct buffers when empty */
+	@Value("${entity.loading.semantic-index.mapped-dir:}")
+	private String semanticIndexMappedDir = "";
+
+	/**
+	 * Batch loading resolves the final entities of all the source entities of the batch at once (union-find over
+	 * semantic identifiers), merging existing entities that turn out to share identifiers. Only records that will be
+	 * reprocessed are resolved, and each record writes its part of the resolution inside its own savepoint
+	 */
+	@Getter
+	@Setter
+	@Value("${entity.loading.batch.resolve-entities:false}")
+	private boolean batchEntityResolution = false;
+
+	/**
+	 * Locking of semantic identifiers while entities are resolved: NONE (single loader), JVM (parallel loaders
+	 * in this JVM) or ADVISORY (PostgreSQL advisory locks, loaders in several JVMs)
+	 */
+	@Value("${entity.loading.locking.mode:JVM}")
+	private SemanticIdentifierLockManager.LockMode lockMode = SemanticIdentifierLockManager.LockMode.JVM;
+
+	@Value("${entity.loading.locking.stripes:4096}")
+	private int lockStripes = 4096;
+
+	@Value("${entity.loading.locking.timeout-ms:30000}")
+	private long lockTimeoutMillis = 30000;
+
+	/**
+	 * Records with a newer lastUpdate but the same content fingerprint as the stored provenance only get their
+	 * lastUpdate bumped, source entities are not rebuilt
+	 */
+	@Getter
+	@Setter
+	@Value("${entity.loading.skip-unchanged:false}")
+	private boolean skipUnchangedRecords = false;
+
+	/**
+	 * Delta update mode: on provenance updates the incoming entities are matched to the stored source entities of the
+	 * provenance (same type and semantic identifiers) and only what changed is rewritten, instead of logically deleting
+	 * all of them and inserting new ones (see SourceEntityDeltaUpdater)
+	 */
+	@Getter
+	@Setter
+	@Value("${entity.loading.delta-update:false}")
+	private boolean deltaUpdate = false;
+
+	EntityBulkWriter bulkWriter;
+	ContentAddressedUpsertWriter upsertWriter;
+	SourceEntityDeltaUpdater deltaUpdater;
+	SemanticIdentifierLockManager lockManager;
+	SemanticIdentifierEntityIndex semanticIndex;
+	BatchEntityResolver batchEntityResolver;
+
 	@Getter
 	@Setter
 	private Profiler profiler = new Profiler(false, "");
@@ -131,6 +276,11 @@ public class EntityDataService {
 	ProvenanceStore provenanceStore;
 	FieldOcurrenceCachedStore fieldOcurrenceCachedStore;
 
+	// JAXBContext is thread safe and expensive to build, so it is created once and shared
+	private static volatile JAXBContext entityRelationDataContext;
+
+	private final XMLEntityRelationDataReader entityRelationDataReader = new XMLEntityRelationDataReader();
+
 	public EntityDataService() {
 
 	}
@@ -140,9 +290,86 @@ public class EntityDataService {
 
 		entityCachedStore = new ConcurrentCachedStore<UUID, Entity, EntityRepository>(entityRepository,1000,true,0);
 
-		semanticIdentifierCachedStore = new SemanticIdentifierCachedStore(semanticIdentifierRepository, 1000);
+		semanticIdentifierCachedStore = new SemanticIdentifierCachedStore(semanticIdentifierRepository, 1000,
+				negativeCacheCapacity, negativeCacheExpireSeconds);
 		provenanceStore = new ProvenanceStore(provenanceRepository);
-		fieldOcurrenceCachedStore = new FieldOcurrenceCachedStore(fieldOccurrenceRepository, 1000, transactionManager);
+		fieldOcurrenceCachedStore = new FieldOcurrenceCachedStore(fieldOccurrenceRepository, 1000, transactionManager,
+				negativeCacheCapacity, negativeCacheExpireSeconds);
+
+		bulkWriter = new EntityBulkWriter(entityManager, bulkBatchSize);
+		upsertWriter = new ContentAddressedUpsertWriter(entityManager);
+		deltaUpdater = new SourceEntityDeltaUpdater(entityManager);
+		batchEntityResolver = new BatchEntityResolver(entityRepository, entityManager, entityCachedStore);
+		lockManager = new SemanticIdentifierLockManager(lockMode, lockStripes, lockTimeoutMillis, entityManager);
+		configureStoreWriters();
+
+		if (semanticIndexEnabled)
+			startSemanticIndex();
+	}
+
+	/**
+	 * Creates the semantic identifier index and warms it in background, lookups go to the database until it is ready
+	 */
+	private void startSemanticIndex() {
+
+		File mappedDir = semanticIndexMappedDir.isEmpty() ? null : new File(semanticIndexMappedDir);
+		semanticIndex = new SemanticIdentifierEntityIndex(entityManager,
+				new OffHeapLongUUIDMap(semanticIndexSegments, semanticIndexExpectedSize, mappedDir), semanticIndexAuthoritative);
+
+		Thread warmer = new Thread(() -> {
+			try {
+				TransactionTemplate warmTransaction = new TransactionTemplate(transactionManager);
+				warmTransaction.setReadOnly(true);
+				warmTransaction.executeWithoutResult(status -> semanticIndex.warm());
+			} catch (Exception e) {
+				logger.error("Semantic identifier index could not be warmed, it will not be used :: {}", e.getMessage(), e);
+			}
+		}, "semantic-index-warmer");
+
+		warmer.setDaemon(true);
+		warmer.start();
+	}
+
+	public void setBulkLoading(boolean bulkLoading) {
+		this.bulkLoading = bulkLoading;
+		configureStoreWriters();
+	}
+
+	public void setInsertWithoutRead(boolean insertWithoutRead) {
+		this.insertWithoutRead = insertWithoutRead;
+		configureStoreWriters();
+	}
+
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+		configureStoreWriters();
+	}
+
+	private void configureStoreWriters() {
+
+		boolean batchedInserts = insertWithoutRead || writeBehind;
+
+		semanticIdentifierCachedStore.setWriter(batchedInserts ? upsertWriter::insertSemanticIdentifiers : null);
+		semanticIdentifierCachedStore.setInsertWithoutRead(insertWithoutRead);
+		semanticIdentifierCachedStore.setWriteBehind(writeBehind);
+
+		// bulk loading buffers new occurrences until the source entities are written
+		if (bulkLoading)
+			fieldOcurrenceCachedStore.setWriter(bulkWriter::addFieldOccurrences);
+		else
+			fieldOcurrenceCachedStore.setWriter(batchedInserts ? upsertWriter::insertFieldOccurrences : null);
+		fieldOcurrenceCachedStore.setInsertWithoutRead(insertWithoutRead);
+		fieldOcurrenceCachedStore.setWriteBehind(writeBehind && !bulkLoading);
+
+		provenanceStore.setUpsertWriter(insertWithoutRead ? upsertWriter : null);
+	}
+
+	/**
+	 * Hit ratio and write-behind counters of the semantic identifier and field occurrence stores
+	 */
+	public String getCachedStoresStats() {
+		return "semanticIdentifiers[" + semanticIdentifierCachedStore.getStatsSummary() + "] fieldOccurrences["
+				+ fieldOcurrenceCachedStore.getStatsSummary() + "]";
 	}
 
 	@PreDestroy
@@ -172,6 +399,23 @@ public class EntityDataService {
 		return persistEntityRelationData(erData, dryRun);
 	}
 
+	/**
+	 * Load EntityRelation Data instance from an XML stream and persist it.
+	 * The document is read with StAX, no DOM tree is built.
+	 *
+	 * @param input XML stream
+	 * @param dryRun if true, no data will be persisted
+	 * @throws Exception
+	 */
+	@Transactional(propagation = Propagation.REQUIRED)
+	public EntityLoadingStats parseAndPersistEntityRelationDataFromStream(InputStream input, Boolean dryRun) throws Exception {
+
+		XMLEntityRelationData erData = parseEntityRelationDataFromStreamNonTransactional(input);
+		profiler.messure("EntityXML Parse");
+
+		return persistEntityRelationData(erData, dryRun);
+	}
+
 	/**
 	 * Load EntityRelation Data instance from XML Document
 	 * This method does NOT require a transaction as it only parses XML
@@ -182,15 +426,10 @@ public class EntityDataService {
 	 */
 	public XMLEntityRelationData parseEntityRelationDataFromXmlDocumentNonTransactional(Document document) throws Exception {
 
-		XMLEntityRelationData erData = new XMLEntityRelationData();
+		XMLEntityRelationData erData;
 
 		try {
-			JAXBContext context = JAXBContext.newInstance(erData.getClass());
-			Marshaller marshaller = context.createMarshaller();
-			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-
-			Unmarshaller unmarshaller = context.createUnmarshaller();
-
+			Unmarshaller unmarshaller = getEntityRelationDataContext().createUnmarshaller();
 			erData = (XMLEntityRelationData) unmarshaller.unmarshal(document);
 
 		} catch (Exception e) {
@@ -198,16 +437,76 @@ public class EntityDataService {
 					"Error parsing XML File to Entity-Relation data :: " + e.getMessage());		
 		}
 
-		// check consistency
+		return checkConsistency(erData);
+	}
+
+	/**
+	 * Load EntityRelation Data instance from an XML stream using the streaming (StAX) reader
+	 * This method does NOT require a transaction as it only parses XML
+	 *
+	 * @param input
+	 * @return
+	 * @throws EntitiyRelationXMLLoadingException
+	 */
+	public XMLEntityRelationData parseEntityRelationDataFromStreamNonTransactional(InputStream input) throws Exception {
+
+		XMLEntityRelationData erData;
+
+		try {
+			erData = entityRelationDataReader.read(input);
+		} catch (Exception e) {
+			throw new EntitiyRelationXMLLoadingException (
+					"Error parsing XML File to Entity-Relation data :: " + e.getMessage());
+		}
+
+		return checkConsistency(erData);
+	}
+
+	/**
+	 * Load EntityRelation Data instance from a transform Source.
+	 * Stream and StAX sources are read with the streaming reader, any other source (ie: DOMSource) 
+	 * falls back to the shared JAXB context.
+	 *
+	 * @param source
+	 * @return
+	 * @throws EntitiyRelationXMLLoadingException
+	 */
+	public XMLEntityRelationData parseEntityRelationDataFromSourceNonTransactional(Source source) throws Exception {
+
+		XMLEntityRelationData erData;
+
+		try {
+			if (source instanceof StreamSource || source instanceof StAXSource)
+				erData = entityRelationDataReader.read(source);
+			else
+				erData = (XMLEntityRelationData) getEntityRelationDataContext().createUnmarshaller().unmarshal(source);
+		} catch (Exception e) {
+			throw new EntitiyRelationXMLLoadingException (
+					"Error parsing XML File to Entity-Relation data :: " + e.getMessage());
+		}
+
+		return checkConsistency(erData);
+	}
+
+	private XMLEntityRelationData checkConsistency(XMLEntityRelationData erData) throws EntitiyRelationXMLLoadingException {
 		try {
 			erData.isConsistent();
 		} catch (Exception imfex) {
 			throw new EntitiyRelationXMLLoadingException( "Entity-Relation data is no consistent :: " + imfex.getMessage());
 		}
-
 		return erData;
 	}
 
+	private static JAXBContext getEntityRelationDataContext() throws JAXBException {
+		if (entityRelationDataContext == null) {
+			synchronized (EntityDataService.class) {
+				if (entityRelationDataContext == null)
+					entityRelationDataContext = JAXBContext.newInstance(XMLEntityRelationData.class);
+			}
+		}
+		return entityRelationDataContext;
+	}
+
 	/**
 	 * Persist a XMLEntityRelation Data instance in DB Metamodel Objects
 	 * 
@@ -279,12 +578,41 @@ public class EntityDataService {
 				return stats;
 			}
 
-			// If update, logically delete existing source entities (will be replaced)
+			Long fingerprint = data.calculateFingerprint();
+
+			// datestamp bumped without content changes: no logical delete, no dirty entities
+			if (isUpdate && skipUnchangedRecords && fingerprint.equals(provenance.getFingerprint())) {
+				logger.debug("Provenance content unchanged, only updating lastUpdate to {}", lastUpdate);
+				if (!dryRun)
+					provenanceStore.setLastUpdate(provenance, lastUpdate, fingerprint);
+				stats.incrementRecordsSkippedUnchanged();
+				return stats;
+			}
+
+			// If update, logically delete existing source entities (will be replaced), in delta mode only the unmatched ones
+			SourceEntityDeltaUpdater.Delta delta = null;
 			if (isUpdate) {
-				logger.debug("Updating provenance, logically deleting old source entities");
-				sourceEntityRepository.logicalDeleteByProvenanceId(provenance.getId());
+				// buffered rows of this provenance (same record earlier in the batch) must be deleted too
+				if (bulkLoading && !dryRun)
+					bulkWriter.flush();
+				if (deltaUpdate && !dryRun) {
+					logger.debug("Updating provenance, matching stored source entities");
+					delta = deltaUpdater.load(provenance.getId());
+				} else {
+					logger.debug("Updating provenance, logically deleting old source entities");
+					sourceEntityRepository.logicalDeleteByProvenanceId(provenance.getId());
+				}
 			}
 			
+			// Semantic identifiers and field occurrences of the whole record are resolved at once (one query each)
+			Map<XMLEntityInstance, List<SemanticIdentifier>> semanticIdentifiersByEntity = resolveSemanticIdentifiers(data, dryRun);
+
+			// lock every semantic identifier of the record at once (consistent order) before resolving entities
+			if (!dryRun)
+				lockManager.lock(semanticIdsOf(semanticIdentifiersByEntity.values()));
+			Map<Object, List<FieldOccurrence>> fieldOccurrencesByInstance = resolveFieldOccurrences(data);
+			profiler.messure("Resolve semantic identifiers and field occurrences");
+
 			// Process entities from XML
 			logger.debug("Processing {} entities from XML", data.getEntities().size());
 			for (XMLEntityInstance xmlEntity : data.getEntities()) {
@@ -296,26 +624,26 @@ public class EntityDataService {
 				SourceEntity sourceEntity = new SourceEntity(entityType, provenance);
 
 				// Add field occurrences
-				for (XMLFieldValueInstance field : xmlEntity.getFields())
-					addFieldOccurrenceFromXMLFieldInstance(entityType, sourceEntity, field);
+				for (FieldOccurrence occurrence : fieldOccurrencesByInstance.get(xmlEntity))
+					sourceEntity.addFieldOccurrence(occurrence);
 
-				// Add semantic identifiers 
-				Boolean isAtLeastOneMinimalViableSemanticIdentifier = false;	
-				for (String semanticId : xmlEntity.getSemanticIdentifiers()) {
-					if (isMinimalViableSemanticIdentifier(semanticId)) {
-						if (!dryRun) {
-							// if not dry run, load or create semantic identifier
-							sourceEntity.addSemanticIdentifier(semanticIdentifierCachedStore.loadOrCreate(semanticId));
-						}
-						isAtLeastOneMinimalViableSemanticIdentifier = true;
-					}
+				// Add semantic identifiers (if not dry run)
+				if (!dryRun) {
+					for (SemanticIdentifier semanticIdentifier : semanticIdentifiersByEntity.get(xmlEntity))
+						sourceEntity.addSemanticIdentifier(semanticIdentifier);
 				}
-				
-				// Validate: must have at least one semantic identifier
-				if (!isAtLeastOneMinimalViableSemanticIdentifier) {
-					String errorMsg = "The provided XML Entity does not contain at least one semanticIdentifier :: Entity: " + xmlEntity.getRef();
-					logger.error(errorMsg);
-					throw new EntitiyRelationXMLLoadingException(errorMsg);
+
+				// stored entity with the same type and semantic identifiers: keeps its row and final entity
+				if (delta != null) {
+					SourceEntityDeltaUpdater.StoredSourceEntity stored = delta.match(entityType.getId(), semanticIdentifiersByEntity.get(xmlEntity));
+					if (stored != null) {
+						if (delta.updateOccurrences(stored, fieldOccurrencesByInstance.get(xmlEntity)))
+							stats.incrementSourceEntitiesUpdated();
+						else
+							stats.incrementSourceEntitiesUnchanged();
+						entitiesByRef.put(xmlEntity.getRef(), entityManager.getReference(SourceEntity.class, stored.getId()));
+						continue;
+					}
 				}
 
 				profiler.messure("Find or Create Final Entity");		
@@ -334,7 +662,10 @@ public class EntityDataService {
 				// Save the source entity (using save() not saveAndFlush())
 				profiler.messure("Persist Source Entity");
 				if (!dryRun) {
-					sourceEntityRepository.save(sourceEntity);
+					if (bulkLoading)
+						bulkWriter.addSourceEntity(sourceEntity);
+					else
+						sourceEntityRepository.save(sourceEntity);
 				}
 
 				stats.incrementSourceEntitiesLoaded();
@@ -354,23 +685,42 @@ public class EntityDataService {
 				SourceRelation sourceRelation = createRelationFromXMLEntityInstance(entitiesByRef, relationType,
 						xmlRelation);
 
+				// relations between matched entities are diffed against the stored ones
+				if (delta != null && delta.isMatched(sourceRelation.getId().fromEntityId) && delta.isMatched(sourceRelation.getId().toEntityId)) {
+					delta.addRelation(sourceRelation.getId(), fieldOccurrencesByInstance.get(xmlRelation));
+					continue;
+				}
+
 				// Add field occurrences to the relation
-				for (XMLFieldValueInstance field : xmlRelation.getFields())
-					addFieldOccurrenceFromXMLFieldInstance(relationType, sourceRelation, field);
+				for (FieldOccurrence occurrence : fieldOccurrencesByInstance.get(xmlRelation))
+					sourceRelation.addFieldOccurrence(occurrence);
 
 				// Save the source relation (using save() not saveAndFlush())
-				if (!dryRun)
-					sourceRelationRepository.save(sourceRelation);
+				if (!dryRun) {
+					if (bulkLoading)
+						bulkWriter.addSourceRelation(sourceRelation);
+					else
+						sourceRelationRepository.save(sourceRelation);
+				}
 
 				stats.incrementSourceRelationsLoaded();
 
 				profiler.messure("SourceRelation Persistence :: " + xmlRelation.getType());
 			}
 
+			if (delta != null) {
+				// new field occurrences must be stored before the delta join rows
+				entityManager.flush();
+				if (bulkLoading)
+					bulkWriter.flush();
+				int deleted = delta.finish();
+				logger.debug("Delta update of provenance {}: {} stored source entities logically deleted", provenance, deleted);
+			}
+
 			// Finally update provenance lastUpdate
 			if (!dryRun) {
 				logger.debug("Updating provenance lastUpdate to {}", lastUpdate);
-				provenanceStore.setLastUpdate(provenance, lastUpdate);
+				provenanceStore.setLastUpdate(provenance, lastUpdate, fingerprint);
 			}
 
 			logger.debug("persistEntityRelationData completed successfully - Stats: {}", stats);
@@ -386,6 +736,251 @@ public class EntityDataService {
 		}
 	}
 
+	/**
+	 * Persist several XMLEntityRelation Data instances in a single transaction.
+	 * 
+	 * Each record runs inside a savepoint (nested transaction) and is flushed before the savepoint
+	 * is released, so a failing record is rolled back alone and reported in the result while the
+	 * rest of the batch commits. The persistence context is cleared every batchClearInterval source
+	 * entities to keep memory bounded on large batches.
+	 * 
+	 * Unless dry run, with batch entity resolution the final entities of the records to be reprocessed are
+	 * looked up first, in a single stage (see BatchEntityResolver), so the records do not look them up one
+	 * by one. The stage only reads, each record writes what it claims inside its savepoint.
+	 * 
+	 * @param records
+	 * @param dryRun
+	 * @return aggregated stats and per record failures (indexed by position in records)
+	 */
+	@Transactional(propagation = Propagation.REQUIRED)
+	public EntityLoadingBatchResult persistEntityRelationDataBatch(List<XMLEntityRelationData> records, Boolean dryRun) {
+
+		EntityLoadingBatchResult result = new EntityLoadingBatchResult();
+
+		TransactionTemplate recordTransaction = new TransactionTemplate(transactionManager);
+		recordTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+
+		long entitiesSinceClear = 0;
+
+		BatchEntityResolver.Resolution resolution = null;
+		if (batchEntityResolution && !dryRun)
+			resolution = resolveBatchEntities(records, recordTransaction);
+
+		// the resolution stage locks the batch itself, otherwise it is locked here
+		if (resolution == null && !dryRun)
+			lockBatchSemanticIdentifiers(records);
+
+		for (int i = 0; i < records.size(); i++) {
+
+			XMLEntityRelationData data = records.get(i);
+			Exception[] failure = new Exception[1];
+
+			if (bulkLoading)
+				bulkWriter.beginRecord();
+			if (semanticIndex != null)
+				semanticIndex.beginRecord();
+			if (resolution != null)
+				resolution.beginRecord();
+			lockManager.beginRecord();
+
+			EntityLoadingStats recordStats = recordTransaction.execute(status -> {
+				try {
+					EntityLoadingStats stats = persistEntityRelationData(data, dryRun);
+					// flush inside the savepoint so constraint violations are attributed to this record
+					entityManager.flush();
+					if (semanticIndex != null)
+						semanticIndex.writePending();
+					return stats;
+				} catch (Exception e) {
+					status.setRollbackOnly();
+					failure[0] = e;
+					return null;
+				}
+			});
+
+			if (failure[0] != null) {
+				logger.warn("Record {}::{} rolled back in batch :: {}", data.getSource(), data.getRecord(), failure[0].getMessage());
+				result.addFailure(i, failure[0]);
+
+				// the rolled back savepoint may have left stale instances in the session, the bulk buffer and the stores
+				if (bulkLoading)
+					bulkWriter.discardRecord();
+				if (semanticIndex != null)
+					semanticIndex.discardRecord();
+				if (resolution != null)
+					resolution.discardRecord();
+				lockManager.discardRecord();
+				entityManager.clear();
+				semanticIdentifierCachedStore.discardPendingWrites();
+				fieldOcurrenceCachedStore.discardPendingWrites();
+				semanticIdentifierCachedStore.flush();
+				fieldOcurrenceCachedStore.flush();
+				entitiesSinceClear = 0;
+				continue;
+			}
+
+			result.addPersisted(recordStats);
+
+			entitiesSinceClear += recordStats.getSourceEntitiesLoaded();
+			if (entitiesSinceClear >= batchClearInterval) {
+				entityManager.clear();
+				entitiesSinceClear = 0;
+			}
+		}
+
+		// links and dirty marks of the resolved entities are written once for the whole batch
+		if (resolution != null)
+			resolution.finish();
+
+		logger.debug("persistEntityRelationDataBatch completed - {}", result);
+		logger.debug("Cached stores :: {}", getCachedStoresStats());
+
+		return result;
+	}
+
+	/**
+	 * Resolution stage of the batch: the final entities of every entity of the records to be reprocessed are looked up
+	 * at once (see BatchEntityResolver). Semantic identifier ids are content hashes, they are not loaded nor created here.
+	 * Runs in its own savepoint and writes nothing, if it fails the records fall back to resolving their entities one by one.
+	 */
+	private BatchEntityResolver.Resolution resolveBatchEntities(List<XMLEntityRelationData> records, TransactionTemplate savepoint) {
+
+		Exception[] failure = new Exception[1];
+		BatchEntityResolver.Resolution resolution = null;
+
+		// locks taken by the stage are tracked like those of a record, a rolled back stage releases them
+		lockManager.beginRecord();
+		try {
+			resolution = savepoint.execute(status -> {
+				try {
+					return lookupBatchEntities(records);
+				} catch (Exception e) {
+					status.setRollbackOnly();
+					failure[0] = e;
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			failure[0] = e;
+		} finally {
+			if (failure[0] != null)
+				lockManager.discardRecord();
+		}
+
+		if (failure[0] != null) {
+			logger.warn("Batch entity resolution failed, entities will be resolved one by one :: {}", failure[0].getMessage());
+			entityManager.clear();
+			return null;
+		}
+
+		return resolution;
+	}
+
+	/**
+	 * Locks the semantic identifiers of every record of the batch at once, in a consistent order. Records locking
+	 * one by one would hold the stripes of the records already persisted while waiting for those of the next one,
+	 * so two loaders interleaving records would wait on each other until the lock timeout fails one of them.
+	 */
+	private void lockBatchSemanticIdentifiers(List<XMLEntityRelationData> records) {
+
+		Set<Long> batchSemanticIds = new HashSet<Long>();
+		for (XMLEntityRelationData data : records) {
+			for (XMLEntityInstance xmlEntity : data.getEntities()) {
+				for (String semanticId : xmlEntity.getSemanticIdentifiers()) {
+					if (isMinimalViableSemanticIdentifier(semanticId))
+						batchSemanticIds.add(new SemanticIdentifier(semanticId).getId());
+				}
+			}
+		}
+
+		// blocks until every identifier is locked, only times out if a failed resolution stage left locks behind
+		try {
+			lockManager.lock(batchSemanticIds);
+		} catch (EntityRelationException e) {
+			logger.warn("Batch semantic identifiers not locked, records will lock their own :: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Candidates of the records to be reprocessed, locked and looked up at once
+	 */
+	private BatchEntityResolver.Resolution lookupBatchEntities(List<XMLEntityRelationData> records) throws EntityRelationException {
+
+		List<BatchEntityResolver.Candidate> candidates = new ArrayList<BatchEntityResolver.Candidate>();
+		Set<Long> batchSemanticIds = new HashSet<Long>();
+
+		for (XMLEntityRelationData data : selectRecordsToProcess(records)) {
+			for (XMLEntityInstance xmlEntity : data.getEntities()) {
+
+				EntityType entityType;
+				try {
+					entityType = getEntityTypeFromName(xmlEntity.getType());
+				} catch (EntitiyRelationXMLLoadingException e) {
+					continue; // reported when the record is stored
+				}
+
+				List<Long> viable = new ArrayList<Long>();
+				for (String semanticId : xmlEntity.getSemanticIdentifiers()) {
+					if (isMinimalViableSemanticIdentifier(semanticId))
+						viable.add(new SemanticIdentifier(semanticId).getId());
+				}
+
+				if (!viable.isEmpty()) {
+					candidates.add(new BatchEntityResolver.Candidate(entityType, viable));
+					batchSemanticIds.addAll(viable);
+				}
+			}
+		}
+
+		// the whole batch is locked at once, the records will find their identifiers already locked
+		lockManager.lock(batchSemanticIds);
+
+		return batchEntityResolver.resolve(candidates, semanticIndex);
+	}
+
+	/**
+	 * Records of the batch that will be reprocessed: new provenances and updates with changed content, same checks
+	 * as persistEntityRelationData. Up to date, unchanged and invalid records are left out of the batch resolution.
+	 */
+	private List<XMLEntityRelationData> selectRecordsToProcess(List<XMLEntityRelationData> records) {
+
+		Map<Long, Provenance> stored = new HashMap<Long, Provenance>();
+		List<Long> provenanceIds = new ArrayList<Long>();
+		for (XMLEntityRelationData data : records) {
+			if (data.getSource() != null && data.getRecord() != null)
+				provenanceIds.add(new Provenance(data.getSource(), data.getRecord()).getId());
+		}
+
+		for (Provenance provenance : provenanceRepository.findAllById(provenanceIds))
+			stored.put(provenance.getId(), provenance);
+
+		List<XMLEntityRelationData> selected = new ArrayList<XMLEntityRelationData>();
+		for (XMLEntityRelationData data : records) {
+
+			if (data.getSource() == null || data.getRecord() == null || data.getLastUpdate() == null)
+				continue;
+
+			LocalDateTime lastUpdate;
+			try {
+				lastUpdate = dateHelper.parseDate(data.getLastUpdate());
+			} catch (Exception e) {
+				continue;
+			}
+
+			Provenance provenance = stored.get(new Provenance(data.getSource(), data.getRecord()).getId());
+			if (provenance != null && provenance.getLastUpdate() != null) {
+				if (!provenance.getLastUpdate().isBefore(lastUpdate))
+					continue;
+				if (skipUnchangedRecords && data.calculateFingerprint().equals(provenance.getFingerprint()))
+					continue;
+			}
+
+			selected.add(data);
+		}
+
+		return selected;
+	}
+
 	public LocalDateTime parseLastUpdateDate(String lastUpdateString) {
 		if (lastUpdateString != null)
 			return dateHelper.parseDate(lastUpdateString);// DateUtil.stringToDate();
@@ -424,26 +1019,130 @@ public class EntityDataService {
 		return semanticIdentifier != null && semanticIdentifier.length() > 4;
 	}
 
+	private static Set<Long> semanticIdsOf(Collection<List<SemanticIdentifier>> semanticIdentifiers) {
+		Set<Long> ids = new HashSet<Long>();
+		for (List<SemanticIdentifier> list : semanticIdentifiers)
+			for (SemanticIdentifier semanticIdentifier : list)
+				ids.add(semanticIdentifier.getId());
+		return ids;
+	}
+
 	/**
-	 * Adds field occurrence to a container (Relation or Entity)
+	 * Resolves the minimal viable semantic identifiers of every entity in the record with a single store call,
+	 * if dry run they are not loaded nor created.
 	 * 
-	 * @param container
-	 * @param field
+	 * @param data
+	 * @param dryRun
+	 * @throws EntitiyRelationXMLLoadingException if an entity has no minimal viable semantic identifier
+	 */
+	private Map<XMLEntityInstance, List<SemanticIdentifier>> resolveSemanticIdentifiers(XMLEntityRelationData data, Boolean dryRun) 
+			throws EntitiyRelationXMLLoadingException {
+
+		Map<XMLEntityInstance, List<String>> viableByEntity = new IdentityHashMap<XMLEntityInstance, List<String>>();
+		List<String> allViable = new ArrayList<String>();
+
+		for (XMLEntityInstance xmlEntity : data.getEntities()) {
+
+			List<String> viable = new ArrayList<String>();
+			for (String semanticId : xmlEntity.getSemanticIdentifiers()) {
+				if (isMinimalViableSemanticIdentifier(semanticId))
+					viable.add(semanticId);
+			}
+
+			// Validate: must have at least one semantic identifier
+			if (viable.isEmpty()) {
+				String errorMsg = "The provided XML Entity does not contain at least one semanticIdentifier :: Entity: " + xmlEntity.getRef();
+				logger.error(errorMsg);
+				throw new EntitiyRelationXMLLoadingException(errorMsg);
+			}
+
+			viableByEntity.put(xmlEntity, viable);
+			allViable.addAll(viable);
+		}
+
+		Map<XMLEntityInstance, List<SemanticIdentifier>> result = new IdentityHashMap<XMLEntityInstance, List<SemanticIdentifier>>();
+		if (dryRun) {
+			for (XMLEntityInstance xmlEntity : data.getEntities())
+				result.put(xmlEntity, Collections.emptyList());
+			return result;
+		}
+
+		Iterator<SemanticIdentifier> resolved = semanticIdentifierCachedStore.loadOrCreateAll(allViable).iterator();
+		for (XMLEntityInstance xmlEntity : data.getEntities()) {
+			List<SemanticIdentifier> semanticIdentifiers = new ArrayList<SemanticIdentifier>();
+			for (int i = 0; i < viableByEntity.get(xmlEntity).size(); i++)
+				semanticIdentifiers.add(resolved.next());
+			result.put(xmlEntity, semanticIdentifiers);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Builds the field occurrences of every entity and relation in the record and resolves them with a single
+	 * store call. Returns the occurrences by xml instance (XMLEntityInstance or XMLRelationInstance).
+	 * 
+	 * @param data
 	 * @throws EntitiyRelationXMLLoadingException
 	 */
-	private void addFieldOccurrenceFromXMLFieldInstance(EntityRelationType type, FieldOccurrenceContainer container,
-			XMLFieldValueInstance field) throws EntitiyRelationXMLLoadingException {
+	private Map<Object, List<FieldOccurrence>> resolveFieldOccurrences(XMLEntityRelationData data) throws EntitiyRelationXMLLoadingException {
 
-		if (field.getName() != null && !field.getName().trim().isEmpty()) {
-			String fieldName = field.getName();
+		Map<Object, List<FieldOccurrence>> result = new IdentityHashMap<Object, List<FieldOccurrence>>();
+		List<List<FieldOccurrence>> groups = new ArrayList<List<FieldOccurrence>>();
+		List<FieldOccurrence> all = new ArrayList<FieldOccurrence>();
 
-			try {
-				FieldType fieldType = type.getFieldByName(fieldName);
-				container.addFieldOccurrence(fieldOcurrenceCachedStore.loadOrCreate(fieldType, field));
-			} catch (EntityRelationException e) {
-				throw new EntitiyRelationXMLLoadingException("Unknown fieldName found in data :: " + e.getMessage());
+		for (XMLEntityInstance xmlEntity : data.getEntities()) {
+			List<FieldOccurrence> occurrences = buildFieldOccurrences(getEntityTypeFromName(xmlEntity.getType()), xmlEntity.getFields());
+			result.put(xmlEntity, occurrences);
+			groups.add(occurrences);
+			all.addAll(occurrences);
+		}
+
+		for (XMLRelationInstance xmlRelation : data.getRelations()) {
+			List<FieldOccurrence> occurrences = buildFieldOccurrences(getRelationTypeFromName(xmlRelation.getType()), xmlRelation.getFields());
+			result.put(xmlRelation, occurrences);
+			groups.add(occurrences);
+			all.addAll(occurrences);
+		}
+
+		// replace the built occurrences with the resolved ones, results keep the order
+		Iterator<FieldOccurrence> resolved = fieldOcurrenceCachedStore.loadOrCreateAll(all).iterator();
+		for (List<FieldOccurrence> occurrences : groups) {
+			for (ListIterator<FieldOccurrence> it = occurrences.listIterator(); it.hasNext(); ) {
+				it.next();
+				it.set(resolved.next());
 			}
 		}
+
+		return result;
+	}
+
+	/**
+	 * Builds (without storing) the field occurrences of a container (Relation or Entity)
+	 * 
+	 * @param type
+	 * @param fields
+	 * @throws EntitiyRelationXMLLoadingException
+	 */
+	private List<FieldOccurrence> buildFieldOccurrences(EntityRelationType type, List<XMLFieldValueInstance> fields) 
+			throws EntitiyRelationXMLLoadingException {
+
+		List<FieldOccurrence> occurrences = new ArrayList<FieldOccurrence>(fields.size());
+
+		for (XMLFieldValueInstance field : fields) {
+			if (field.getName() != null && !field.getName().trim().isEmpty()) {
+				String fieldName = field.getName();
+
+				try {
+					FieldType fieldType = type.getFieldByName(fieldName);
+					occurrences.add(fieldOcurrenceCachedStore.build(fieldType, field));
+				} catch (EntityRelationException e) {
+					throw new EntitiyRelationXMLLoadingException("Unknown fieldName found in data :: " + e.getMessage());
+				}
+			}
+		}
+
+		return occurrences;
 	}
 
 	public EntityType getEntityTypeFromName(String name) throws EntitiyRelationXMLLoadingException {
@@ -532,18 +1231,49 @@ public class EntityDataService {
 	 * 
 	 * Refactored to:
 	 * - Run within caller's transaction (MANDATORY)
-	 * - Removed synchronized to prevent deadlocks
+	 * - Removed synchronized to prevent deadlocks, the semantic identifiers are locked instead
+	 *   (see SemanticIdentifierLockManager) until the transaction completes
 	 * - Use save() instead of saveAndFlush()
 	 */
 	@Transactional(propagation = Propagation.MANDATORY)
-	public FindOrCreateEntityResult findOrCreateFinalEntity(SourceEntity sourceEntity) {
+	public FindOrCreateEntityResult findOrCreateFinalEntity(SourceEntity sourceEntity) throws EntityRelationException {
 
 		Collection<SemanticIdentifier> semanticIdentifiers = sourceEntity.getSemanticIdentifiers();
 		List<Long> semanticIds = semanticIdentifiers.stream().map(SemanticIdentifier::getId)
 				.collect(Collectors.toList());
 
+		// usually a no op, persistEntityRelationData locks all the identifiers of the record (or batch) at once
+		lockManager.lock(semanticIds);
+
+		// resolved for the whole batch
+		BatchEntityResolver.Resolution resolution = batchEntityResolver.current();
+		if (resolution != null) {
+			BatchEntityResolver.ResolvedEntity resolved = resolution.claim(sourceEntity.getEntityType(), semanticIdentifiers);
+			if (resolved != null) {
+				if (semanticIndex != null)
+					semanticIndex.register(resolved.getEntityId(), semanticIds);
+				return new FindOrCreateEntityResult(entityManager.getReference(Entity.class, resolved.getEntityId()), resolved.isAlreadyExisting());
+			}
+		}
+
+		boolean useSemanticIndex = semanticIndex != null && semanticIndex.isReady();
+		boolean staleIndex = false;
+
+		if (useSemanticIndex) {
+			SemanticIdentifierEntityIndex.Lookup lookup = semanticIndex.lookup(semanticIds);
+			if (lookup.getEntityId() != null) {
+				// dirty mark and new semantic identifier links are written in batch, the entity is not loaded
+				semanticIndex.markExisting(lookup.getEntityId(), semanticIds);
+				return new FindOrCreateEntityResult(entityManager.getReference(Entity.class, lookup.getEntityId()), true);
+			}
+			staleIndex = lookup.isStale();
+		}
+
 		Boolean entityAlreadyExists = true;
-		Entity entity = entityRepository.findEntityWithSemanticIdentifiers(semanticIds);
+		Entity entity = null;
+		// a stale mapping means the index missed a delete, its misses cannot be trusted either
+		if (!useSemanticIndex || !semanticIndex.isAuthoritative() || staleIndex)
+			entity = entityRepository.findEntityWithSemanticIdentifiers(semanticIds);
 
 		if (entity == null) { // No entities with shared semantic identifiers exists then create
 			entity = new Entity(sourceEntity.getEntityType());
@@ -556,6 +1286,14 @@ public class EntityDataService {
 		// Use save() instead of saveAndFlush() - flush happens at transaction commit
 		entityRepository.save(entity);
 
+		// registered even while warming, so the index never misses entities created meanwhile
+		if (semanticIndex != null) {
+			if (staleIndex)
+				semanticIndex.replaceStale(entity.getId(), semanticIds);
+			else
+				semanticIndex.register(entity.getId(), semanticIds);
+		}
+
 		return new FindOrCreateEntityResult(entity, entityAlreadyExists);
 	}
 
@@ -567,21 +1305,29 @@ public class EntityDataService {
 	}
 
 	/**
-	 * Executes the SQL merge process for dirty entities and relations.
+	 * Executes the merge process for dirty entities and relations.
 	 * This process consolidates data from source_entity to entity tables,
 	 * creating the final entity and relation records with their field occurrences.
 	 * 
-	 * WARNING: This is a heavy operation that processes ALL dirty entities in the database.
+	 * By default the SQL procedure processes ALL dirty entities in a single transaction. With
+	 * entity.merge.stored-procedure=false the Java merge engine is used: chunks of dirty entities in their own
+	 * transactions, partitions in parallel, resumable from checkpoints.
 	 * It should be executed after batch loading operations.
 	 */
-	@Transactional
 	public void mergeDirtyEntitiesAndRelations() {
 		logger.info("==================================================");
 		logger.info("Starting merge process for dirty entities and relations...");
 		logger.info("==================================================");
 		
 		try {
-			entityRepository.mergeDirtyEntitiesAndRelations();
+			if (mergeWithStoredProcedure)
+				new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+					// the procedure does not maintain the provenance source projection
+					mergeEngine.refreshDirtyProvenanceSources();
+					entityRepository.mergeDirtyEntitiesAndRelations();
+				});
+			else
+				mergeEngine.mergeDirtyEntities();
 			
 			logger.info("==================================================");
 			logger.info("Merge process completed successfully");
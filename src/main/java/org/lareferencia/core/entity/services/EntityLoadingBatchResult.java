@@ -0,0 +1,58 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Outcome of a multi-record load: aggregated stats of the records that were persisted
+ * and the failures of those that were rolled back, keyed by their position in the batch.
+ */
+@Getter
+public class EntityLoadingBatchResult {
+
+    private final EntityLoadingStats stats = new EntityLoadingStats();
+    private final Map<Integer, Exception> failures = new LinkedHashMap<Integer, Exception>();
+
+    private int recordsPersisted = 0;
+
+    void addPersisted(EntityLoadingStats recordStats) {
+        stats.add(recordStats);
+        recordsPersisted++;
+    }
+
+    void addFailure(int index, Exception e) {
+        failures.put(index, e);
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "\nBatch Loading: " + recordsPersisted + " records persisted, " + failures.size() + " failed" + stats.toString();
+    }
+}
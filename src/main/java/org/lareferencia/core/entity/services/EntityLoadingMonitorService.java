@@ -8,6 +8,8 @@ import java.util.Date;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import net.minidev.json.annotate.JsonIgnore;
@@ -67,6 +69,11 @@ public class EntityLoadingMonitorService {
 		return entityLoadingStats.getRelationsCreated();
 	}
 
+	@ManagedAttribute(description = "Records Skipped (unchanged content)")
+	public Long getRecordsSkippedUnchanged() {
+		return entityLoadingStats.getRecordsSkippedUnchanged();
+	}
+
 	@Setter
 	private Long totalProcessedFiles = 0L;
 
@@ -203,6 +210,52 @@ public class EntityLoadingMonitorService {
 		this.indexingStats.registerErrorStat(entityId, message);
 	};
 
+	/*** Merge progress ***/
+
+	private volatile Boolean mergeInProgress = false;
+	private final AtomicLong entitiesMerged = new AtomicLong();
+	private final AtomicInteger mergePartitionsTotal = new AtomicInteger();
+	private final AtomicInteger mergePartitionsCompleted = new AtomicInteger();
+
+	public void startMerge(int partitions, int partitionsCompleted) {
+		this.mergeInProgress = true;
+		this.entitiesMerged.set(0);
+		this.mergePartitionsTotal.set(partitions);
+		this.mergePartitionsCompleted.set(partitionsCompleted);
+	}
+
+	public void addEntitiesMerged(long count) {
+		this.entitiesMerged.addAndGet(count);
+	}
+
+	public void mergePartitionCompleted() {
+		this.mergePartitionsCompleted.incrementAndGet();
+	}
+
+	public void finishMerge() {
+		this.mergeInProgress = false;
+	}
+
+	@ManagedAttribute(description = "Merge::In progress")
+	public Boolean getMergeInProgress() {
+		return mergeInProgress;
+	}
+
+	@ManagedAttribute(description = "Merge::Entities merged in the current run")
+	public Long getEntitiesMerged() {
+		return entitiesMerged.get();
+	}
+
+	@ManagedAttribute(description = "Merge::Partitions of the current run")
+	public Integer getMergePartitionsTotal() {
+		return mergePartitionsTotal.get();
+	}
+
+	@ManagedAttribute(description = "Merge::Partitions completed in the current run")
+	public Integer getMergePartitionsCompleted() {
+		return mergePartitionsCompleted.get();
+	}
+
 	public String loadingReport() {
 		return  "\n " + entityLoadingStats
 				+ "\n totalProcessedFiles=" + totalProcessedFiles
@@ -12,6 +12,9 @@ public class EntityLoadingStats {
     Long entitiesDuplicated = 0L;
     Long sourceRelationsLoaded = 0L;
     Long relationsCreated = 0L;
+    Long recordsSkippedUnchanged = 0L;
+    Long sourceEntitiesUpdated = 0L;
+    Long sourceEntitiesUnchanged = 0L;
 
     private int totalEntitiesLoaded;
     private int totalLoadTime;
@@ -42,6 +45,18 @@ public class EntityLoadingStats {
         this.relationsCreated++;
     }
 
+    public synchronized void incrementRecordsSkippedUnchanged() {
+        this.recordsSkippedUnchanged++;
+    }
+
+    public synchronized void incrementSourceEntitiesUpdated() {
+        this.sourceEntitiesUpdated++;
+    }
+
+    public synchronized void incrementSourceEntitiesUnchanged() {
+        this.sourceEntitiesUnchanged++;
+    }
+
     public synchronized void incrementEntitiesLoaded() {
         totalEntitiesLoaded++;
     }
@@ -68,6 +83,9 @@ public class EntityLoadingStats {
         this.entitiesDuplicated += other.entitiesDuplicated;
         this.sourceRelationsLoaded += other.sourceRelationsLoaded;
         this.relationsCreated += other.relationsCreated;
+        this.recordsSkippedUnchanged += other.recordsSkippedUnchanged;
+        this.sourceEntitiesUpdated += other.sourceEntitiesUpdated;
+        this.sourceEntitiesUnchanged += other.sourceEntitiesUnchanged;
     }
 
     public void reset() {
@@ -76,6 +94,9 @@ public class EntityLoadingStats {
         this.entitiesDuplicated = 0L;
         this.sourceRelationsLoaded = 0L;
         this.relationsCreated = 0L;
+        this.recordsSkippedUnchanged = 0L;
+        this.sourceEntitiesUpdated = 0L;
+        this.sourceEntitiesUnchanged = 0L;
     }
 
     @Override
@@ -85,6 +106,9 @@ public class EntityLoadingStats {
                 "\n\t" + entitiesCreated + " entities created" +
                 "\n\t" + entitiesDuplicated + " entities duplicated" +
                 "\n\t" + sourceRelationsLoaded + " source relations loaded" +
-                "\n\t" + relationsCreated + " relations created";
+                "\n\t" + relationsCreated + " relations created" +
+                "\n\t" + recordsSkippedUnchanged + " records skipped (unchanged content)" +
+                "\n\t" + sourceEntitiesUpdated + " source entities updated in place" +
+                "\n\t" + sourceEntitiesUnchanged + " source entities unchanged";
     }
 }
\ No newline at end of file
@@ -0,0 +1,524 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.MergeCheckpoint;
+import org.lareferencia.core.entity.repositories.jpa.MergeCheckpointRepository;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Incremental merge of dirty entities, replacement of the merge_dirty_entities_and_relations() stored procedure.
+ *
+ * The UUID space is split in partitions that are merged in parallel, each one in chunks of chunkSize dirty entities
+ * (in UUID order), every chunk in its own transaction. For each entity of the chunk the field occurrences are rebuilt
+ * from its not deleted source entities, the relations where it is a member (from or to) are rebuilt from the source
+ * relations, its entity_provenance_source projection rows are rebuilt, and the dirty flag is cleared. Entities left
+ * without not deleted source entities are removed with their deleted source entities.
+ *
+ * Chunks lock their entity rows first, loaders marking one of them dirty wait until the chunk commits. Relation rows
+ * are locked in key order, so two chunks sharing a relation (one member each) rebuild it one after the other.
+ *
+ * The last merged entity of each partition is checkpointed (merge_checkpoint) in the chunk transaction, so an
+ * interrupted run resumes where it stopped. Only one run (of any scope) is allowed at a time: the run lock is a
+ * PostgreSQL session advisory lock, held on its own connection, on other databases a lock of this JVM. Progress is
+ * published through EntityLoadingMonitorService.
+ */
+@Service
+public class EntityMergeEngine {
+
+	private static Logger logger = LogManager.getLogger(EntityMergeEngine.class);
+
+	public static final String ALL_TYPES_SCOPE = "all";
+
+	private static final String PROVENANCE_SOURCE_INSERT = "INSERT INTO entity_provenance_source (entity_id, source_id, entity_type_id, max_last_update) "
+			+ "SELECT se.final_entity_id, p.source_id, e.entity_type_id, MAX(p.last_update) FROM source_entity se "
+			+ "JOIN provenance p ON p.id = se.provenance_id JOIN entity e ON e.uuid = se.final_entity_id "
+			+ "WHERE se.deleted = FALSE ";
+
+	private static final String PROVENANCE_SOURCE_GROUP = "GROUP BY se.final_entity_id, p.source_id, e.entity_type_id";
+
+	// advisory lock key of merge runs, the two keys form does not collide with the semantic identifier locks
+	private static final int RUN_LOCK_CLASS = 0x4d455247;
+	private static final int RUN_LOCK_ID = 1;
+
+	private static final String SOURCE_RELATIONS = "FROM source_relation sr "
+			+ "JOIN source_entity fse ON fse.uuid = sr.from_entity_id JOIN source_entity tse ON tse.uuid = sr.to_entity_id ";
+
+	private final ReentrantLock runLock = new ReentrantLock();
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private MergeCheckpointRepository checkpointRepository;
+
+	@Autowired
+	private EntityLoadingMonitorService monitorService;
+
+	/** UUID range partitions of a run, fixed when the run starts */
+	@Getter
+	@Setter
+	@Value("${entity.merge.partitions:16}")
+	private int partitions = 16;
+
+	/** Partitions merged in parallel */
+	@Getter
+	@Setter
+	@Value("${entity.merge.threads:4}")
+	private int threads = 4;
+
+	/** Dirty entities merged per transaction */
+	@Getter
+	@Setter
+	@Value("${entity.merge.chunk-size:500}")
+	private int chunkSize = 500;
+
+	/**
+	 * Merges all the dirty entities, resuming the previous run if it was interrupted
+	 * @return number of entities merged
+	 */
+	public long mergeDirtyEntities() {
+		return mergeDirtyEntities(null);
+	}
+
+	/**
+	 * Merges the dirty entities of a type (all the types if null), resuming the previous run of the same scope
+	 * @return number of entities merged
+	 * @throws IllegalStateException if another merge run is in progress
+	 */
+	public long mergeDirtyEntities(Long entityTypeId) {
+
+		String scope = entityTypeId == null ? ALL_TYPES_SCOPE : "type-" + entityTypeId;
+
+		try (RunLock lock = lockRun()) {
+			return mergeDirtyEntities(scope, entityTypeId);
+		}
+	}
+
+	private long mergeDirtyEntities(String scope, Long entityTypeId) {
+
+		List<MergeCheckpoint> checkpoints = startOrResume(scope);
+
+		List<MergeCheckpoint> pending = new ArrayList<MergeCheckpoint>();
+		for (MergeCheckpoint checkpoint : checkpoints) {
+			if (!checkpoint.getCompleted())
+				pending.add(checkpoint);
+		}
+
+		logger.info("Merge of dirty entities ({}) :: {} of {} partitions pending", scope, pending.size(), checkpoints.size());
+		monitorService.startMerge(checkpoints.size(), checkpoints.size() - pending.size());
+
+		long merged = 0;
+		List<Exception> failures = new ArrayList<Exception>();
+
+		if (!pending.isEmpty()) {
+
+			AtomicInteger threadNumber = new AtomicInteger();
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, pending.size()),
+					runnable -> new Thread(runnable, "entity-merge-" + threadNumber.incrementAndGet()));
+
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (MergeCheckpoint checkpoint : pending)
+				results.add(pool.submit(() -> mergePartition(checkpoint, entityTypeId)));
+
+			for (Future<Long> result : results) {
+				try {
+					merged += result.get();
+				} catch (ExecutionException e) {
+					failures.add((Exception) e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failures.add(e);
+					break;
+				}
+			}
+			pool.shutdownNow();
+		}
+
+		monitorService.finishMerge();
+
+		if (!failures.isEmpty()) {
+			logger.error("Merge of dirty entities ({}) stopped with {} failed partitions, it will resume from the checkpoints :: {}",
+					scope, failures.size(), failures.get(0).getMessage());
+			throw new RuntimeException("Merge of dirty entities failed on " + failures.size() + " partitions", failures.get(0));
+		}
+
+		// run completed, the next one starts from scratch
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> checkpointRepository.deleteByScope(scope));
+
+		logger.info("Merge of dirty entities ({}) completed :: {} entities merged", scope, merged);
+		return merged;
+	}
+
+	/**
+	 * Rebuilds the entity_provenance_source rows of the dirty entities in the caller transaction. The merge stored
+	 * procedure does not maintain the projection, it must run right before the procedure clears the dirty flags.
+	 */
+	@Transactional(propagation = Propagation.MANDATORY)
+	public void refreshDirtyProvenanceSources() {
+		entityManager.unwrap(Session.class).doWork(connection -> {
+			execute(connection, "DELETE FROM entity_provenance_source WHERE entity_id IN (SELECT uuid FROM entity WHERE dirty = TRUE)",
+					Collections.emptyList());
+			execute(connection, PROVENANCE_SOURCE_INSERT + "AND e.dirty = TRUE " + PROVENANCE_SOURCE_GROUP, Collections.emptyList());
+		});
+	}
+
+	/**
+	 * Rebuilds the whole entity_provenance_source projection in one transaction, needed once on databases merged
+	 * before the projection existed
+	 */
+	public void rebuildProvenanceSources() {
+
+		logger.info("Rebuilding entity provenance source projection");
+		new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+			entityManager.unwrap(Session.class).doWork(connection -> {
+				execute(connection, "DELETE FROM entity_provenance_source", Collections.emptyList());
+				execute(connection, PROVENANCE_SOURCE_INSERT + PROVENANCE_SOURCE_GROUP, Collections.emptyList());
+			}));
+		logger.info("Entity provenance source projection rebuilt");
+	}
+
+	/**
+	 * Takes the run lock without waiting, the caller must close it
+	 */
+	private RunLock lockRun() {
+
+		if (!runLock.tryLock())
+			throw new IllegalStateException("Another merge of dirty entities is running in this JVM");
+
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			if (!connection.isWrapperFor(PGConnection.class)) {
+				connection.close();
+				return new RunLock(null);
+			}
+
+			try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_lock(?, ?)")) {
+				statement.setInt(1, RUN_LOCK_CLASS);
+				statement.setInt(2, RUN_LOCK_ID);
+				try (ResultSet rs = statement.executeQuery()) {
+					if (rs.next() && rs.getBoolean(1))
+						return new RunLock(connection);
+				}
+			}
+			throw new IllegalStateException("Another merge of dirty entities is running on this database");
+
+		} catch (SQLException | RuntimeException e) {
+			closeQuietly(connection);
+			runLock.unlock();
+			if (e instanceof IllegalStateException)
+				throw (IllegalStateException) e;
+			throw new RuntimeException("Merge run lock could not be taken", e);
+		}
+	}
+
+	/**
+	 * Held run lock, the advisory lock (if any) is released with its connection
+	 */
+	private class RunLock implements AutoCloseable {
+
+		private final Connection connection;
+
+		RunLock(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void close() {
+			try {
+				if (connection != null) {
+					try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_unlock(?, ?)")) {
+						statement.setInt(1, RUN_LOCK_CLASS);
+						statement.setInt(2, RUN_LOCK_ID);
+						statement.execute();
+					} catch (SQLException e) {
+						// the session lock goes away with the connection anyway
+						logger.warn("Merge run lock could not be released :: {}", e.getMessage());
+					}
+					closeQuietly(connection);
+				}
+			} finally {
+				runLock.unlock();
+			}
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		if (connection == null)
+			return;
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			logger.warn("Connection could not be closed :: {}", e.getMessage());
+		}
+	}
+
+	private List<MergeCheckpoint> startOrResume(String scope) {
+
+		return new TransactionTemplate(transactionManager).execute(status -> {
+
+			List<MergeCheckpoint> checkpoints = checkpointRepository.findByScopeOrderByPartitionIndexAsc(scope);
+			if (!checkpoints.isEmpty())
+				return checkpoints;
+
+			// boundaries split the unsigned most significant bits evenly, as UUIDs are compared by the databases
+			long step = Long.divideUnsigned(-1L, partitions);
+			checkpoints = new ArrayList<MergeCheckpoint>(partitions);
+			for (int i = 0; i < partitions; i++) {
+				UUID lower = i == 0 ? null : new UUID(step * i, 0L);
+				UUID upper = i == partitions - 1 ? null : new UUID(step * (i + 1), 0L);
+				checkpoints.add(new MergeCheckpoint(scope, i, lower, upper));
+			}
+			return checkpointRepository.saveAll(checkpoints);
+		});
+	}
+
+	private long mergePartition(MergeCheckpoint checkpoint, Long entityTypeId) {
+
+		TransactionTemplate chunkTransaction = new TransactionTemplate(transactionManager);
+		chunkTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		long merged = 0;
+		int count;
+
+		do {
+			count = chunkTransaction.execute(status -> mergeChunk(checkpoint, entityTypeId));
+			merged += count;
+			monitorService.addEntitiesMerged(count);
+		} while (count > 0);
+
+		checkpoint.setCompleted(true);
+		checkpoint.setUpdatedAt(LocalDateTime.now());
+		chunkTransaction.executeWithoutResult(status -> entityManager.merge(checkpoint));
+		monitorService.mergePartitionCompleted();
+
+		logger.debug("Merge partition {} completed :: {} entities merged", checkpoint.getPartitionIndex(), merged);
+		return merged;
+	}
+
+	/**
+	 * Merges the next chunk of dirty entities of the partition and checkpoints it, returns the number of entities merged
+	 */
+	private int mergeChunk(MergeCheckpoint checkpoint, Long entityTypeId) {
+
+		List<UUID> entityIds = new ArrayList<UUID>(chunkSize);
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+
+			entityIds.addAll(lockNextDirtyEntities(connection, checkpoint, entityTypeId));
+			if (entityIds.isEmpty())
+				return;
+
+			String ids = String.join(", ", Collections.nCopies(entityIds.size(), "?"));
+			List<UUID> bothEnds = new ArrayList<UUID>(entityIds);
+			bothEnds.addAll(entityIds);
+
+			execute(connection, "DELETE FROM entity_fieldoccr WHERE entity_id IN (" + ids + ")", entityIds);
+
+			execute(connection, "INSERT INTO entity_fieldoccr (entity_id, fieldoccr_id) "
+					+ "SELECT DISTINCT se.final_entity_id, sfo.fieldoccr_id FROM source_entity se "
+					+ "JOIN source_entity_fieldoccr sfo ON sfo.entity_id = se.uuid "
+					+ "WHERE se.deleted = FALSE AND se.final_entity_id IN (" + ids + ")", entityIds);
+
+			// relations where an entity of the chunk is the from or the to member
+			String members = "from_entity_id IN (" + ids + ") OR to_entity_id IN (" + ids + ")";
+			String sourceMembers = "fse.deleted = FALSE AND tse.deleted = FALSE "
+					+ "AND (fse.final_entity_id IN (" + ids + ") OR tse.final_entity_id IN (" + ids + ")) ";
+
+			lockRows(connection, "SELECT relation_type_id FROM relation WHERE " + members
+					+ " ORDER BY relation_type_id, from_entity_id, to_entity_id FOR UPDATE", bothEnds);
+			execute(connection, "DELETE FROM relation_fieldoccr WHERE " + members, bothEnds);
+			execute(connection, "DELETE FROM relation WHERE " + members, bothEnds);
+
+			// a chunk holding the other member may insert the same relation concurrently
+			String relations = "SELECT DISTINCT sr.relation_type_id, fse.final_entity_id, tse.final_entity_id, FALSE "
+					+ SOURCE_RELATIONS + "WHERE " + sourceMembers + "ORDER BY 1, 2, 3";
+			if (connection.isWrapperFor(PGConnection.class))
+				execute(connection, "INSERT INTO relation (relation_type_id, from_entity_id, to_entity_id, dirty) "
+						+ relations + " ON CONFLICT DO NOTHING", bothEnds);
+			else
+				execute(connection, "MERGE INTO relation (relation_type_id, from_entity_id, to_entity_id, dirty) "
+						+ "KEY (relation_type_id, from_entity_id, to_entity_id) " + relations, bothEnds);
+
+			// after waiting for such a chunk its occurrences are visible
+			execute(connection, "INSERT INTO relation_fieldoccr (from_entity_id, relation_type_id, to_entity_id, fieldoccr_id) "
+					+ "SELECT DISTINCT fse.final_entity_id, sr.relation_type_id, tse.final_entity_id, srf.fieldoccr_id " + SOURCE_RELATIONS
+					+ "JOIN source_relation_fieldoccr srf ON srf.from_entity_id = sr.from_entity_id AND srf.relation_type_id = sr.relation_type_id AND srf.to_entity_id = sr.to_entity_id "
+					+ "WHERE " + sourceMembers + "AND NOT EXISTS (SELECT 1 FROM relation_fieldoccr rf "
+					+ "WHERE rf.from_entity_id = fse.final_entity_id AND rf.relation_type_id = sr.relation_type_id "
+					+ "AND rf.to_entity_id = tse.final_entity_id AND rf.fieldoccr_id = srf.fieldoccr_id)", bothEnds);
+
+			execute(connection, "DELETE FROM entity_provenance_source WHERE entity_id IN (" + ids + ")", entityIds);
+			execute(connection, PROVENANCE_SOURCE_INSERT + "AND se.final_entity_id IN (" + ids + ") " + PROVENANCE_SOURCE_GROUP, entityIds);
+
+			execute(connection, "UPDATE entity SET dirty = FALSE WHERE uuid IN (" + ids + ")", entityIds);
+
+			List<UUID> orphans = query(connection, "SELECT e.uuid FROM entity e WHERE e.uuid IN (" + ids + ") AND NOT EXISTS "
+					+ "(SELECT 1 FROM source_entity se WHERE se.final_entity_id = e.uuid AND se.deleted = FALSE)", entityIds);
+			if (!orphans.isEmpty())
+				removeOrphans(connection, orphans);
+		});
+
+		if (entityIds.isEmpty())
+			return 0;
+
+		checkpoint.setLastEntityId(entityIds.get(entityIds.size() - 1));
+		checkpoint.setEntitiesMerged(checkpoint.getEntitiesMerged() + entityIds.size());
+		checkpoint.setUpdatedAt(LocalDateTime.now());
+		entityManager.merge(checkpoint);
+
+		return entityIds.size();
+	}
+
+	/**
+	 * Removes final entities left without not deleted source entities, their relations and occurrences were already
+	 * rebuilt empty, their deleted source entities (and the source relations of these) go with them
+	 */
+	private void removeOrphans(Connection connection, List<UUID> orphans) throws SQLException {
+
+		String ids = String.join(", ", Collections.nCopies(orphans.size(), "?"));
+		String sourceEntities = "SELECT uuid FROM source_entity WHERE final_entity_id IN (" + ids + ")";
+		List<UUID> twice = new ArrayList<UUID>(orphans);
+		twice.addAll(orphans);
+
+		execute(connection, "DELETE FROM source_relation_fieldoccr WHERE from_entity_id IN (" + sourceEntities
+				+ ") OR to_entity_id IN (" + sourceEntities + ")", twice);
+		execute(connection, "DELETE FROM source_relation WHERE from_entity_id IN (" + sourceEntities
+				+ ") OR to_entity_id IN (" + sourceEntities + ")", twice);
+		execute(connection, "DELETE FROM source_entity_fieldoccr WHERE entity_id IN (" + sourceEntities + ")", orphans);
+		execute(connection, "DELETE FROM source_entity_semantic_identifier WHERE entity_id IN (" + sourceEntities + ")", orphans);
+		execute(connection, "DELETE FROM source_entity WHERE final_entity_id IN (" + ids + ")", orphans);
+
+		execute(connection, "DELETE FROM entity_semantic_identifier WHERE entity_id IN (" + ids + ")", orphans);
+		execute(connection, "DELETE FROM entity WHERE uuid IN (" + ids + ")", orphans);
+
+		logger.debug("Merge removed {} entities without source entities", orphans.size());
+	}
+
+	private List<UUID> lockNextDirtyEntities(Connection connection, MergeCheckpoint checkpoint, Long entityTypeId) throws SQLException {
+
+		List<Object> params = new ArrayList<Object>();
+		StringBuilder sql = new StringBuilder("SELECT uuid FROM entity WHERE dirty = TRUE");
+
+		if (checkpoint.getLastEntityId() != null) {
+			sql.append(" AND uuid > ?");
+			params.add(checkpoint.getLastEntityId());
+		} else if (checkpoint.getLowerBound() != null) {
+			sql.append(" AND uuid >= ?");
+			params.add(checkpoint.getLowerBound());
+		}
+		if (checkpoint.getUpperBound() != null) {
+			sql.append(" AND uuid < ?");
+			params.add(checkpoint.getUpperBound());
+		}
+		if (entityTypeId != null) {
+			sql.append(" AND entity_type_id = ?");
+			params.add(entityTypeId);
+		}
+		sql.append(" ORDER BY uuid LIMIT ").append(chunkSize).append(" FOR UPDATE");
+
+		List<UUID> entityIds = new ArrayList<UUID>(chunkSize);
+		try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+			for (int i = 0; i < params.size(); i++)
+				statement.setObject(i + 1, params.get(i));
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next())
+					entityIds.add(rs.getObject(1, UUID.class));
+			}
+		}
+		return entityIds;
+	}
+
+	private static List<UUID> query(Connection connection, String sql, List<UUID> entityIds) throws SQLException {
+		List<UUID> result = new ArrayList<UUID>();
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			for (int i = 0; i < entityIds.size(); i++)
+				statement.setObject(i + 1, entityIds.get(i));
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next())
+					result.add(rs.getObject(1, UUID.class));
+			}
+		}
+		return result;
+	}
+
+	/** Runs a SELECT ... FOR UPDATE, the rows stay locked until the transaction completes */
+	private static void lockRows(Connection connection, String sql, List<UUID> entityIds) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			for (int i = 0; i < entityIds.size(); i++)
+				statement.setObject(i + 1, entityIds.get(i));
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next())
+					;
+			}
+		}
+	}
+
+	private static void execute(Connection connection, String sql, List<UUID> entityIds) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			for (int i = 0; i < entityIds.size(); i++)
+				statement.setObject(i + 1, entityIds.get(i));
+			statement.executeUpdate();
+		}
+	}
+}
@@ -28,10 +28,18 @@ import org.lareferencia.core.entity.repositories.jpa.FieldOccurrenceRepository;
 
 import org.springframework.transaction.PlatformTransactionManager;
 
+import java.util.Collection;
+import java.util.List;
+
 public class FieldOcurrenceCachedStore extends ConcurrentCachedStore<Long, FieldOccurrence, FieldOccurrenceRepository> {
 
     public FieldOcurrenceCachedStore(FieldOccurrenceRepository repository, Integer capacity, PlatformTransactionManager transactionManager) {
-        super(repository, capacity, false, 0);
+        this(repository, capacity, transactionManager, 0, 0);
+    }
+
+    public FieldOcurrenceCachedStore(FieldOccurrenceRepository repository, Integer capacity, PlatformTransactionManager transactionManager,
+                                     Integer negativeCapacity, Integer negativeExpireAfterWriteInSeconds) {
+        super(repository, capacity, false, 0, negativeCapacity, negativeExpireAfterWriteInSeconds);
     }
 
     /**
@@ -40,6 +48,20 @@ public class FieldOcurrenceCachedStore extends ConcurrentCachedStore<Long, Field
      * The actual persistence is handled by the parent class's put() method.
      */
     public FieldOccurrence loadOrCreate(FieldType type, IFieldValueInstance field) throws EntityRelationException {
+        return this.getOrInsert( build(type, field) );
+    }
+
+    /**
+     * Load or create several FieldOccurrences (built with build()), new ones are written in one batch when the store inserts without read.
+     */
+    public List<FieldOccurrence> loadOrCreateAll(Collection<FieldOccurrence> occurrences) {
+        return this.getOrInsertAll(occurrences);
+    }
+
+    /**
+     * Builds a FieldOccurrence from a field value instance, with its content based id, without storing it
+     */
+    public FieldOccurrence build(FieldType type, IFieldValueInstance field) throws EntityRelationException {
         try {
             FieldOccurrence createdFieldOccr = type.buildFieldOccurrence();
 
@@ -60,14 +82,7 @@ public class FieldOcurrenceCachedStore extends ConcurrentCachedStore<Long, Field
             // update the id
             createdFieldOccr.updateId();
 
-            // Check cache first, then create if needed
-            FieldOccurrence existingFieldOccr = this.get(createdFieldOccr.getId());
-            if (existingFieldOccr == null) {
-                this.put(createdFieldOccr.getId(), createdFieldOccr);
-                return createdFieldOccr;
-            } else {
-                return existingFieldOccr;
-            }
+            return createdFieldOccr;
         } catch (Exception e) {
             throw new EntityRelationException("Error creating field occurrence: " + e.getMessage(), e);
         }
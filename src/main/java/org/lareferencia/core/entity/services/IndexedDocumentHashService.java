@@ -0,0 +1,138 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.IndexedDocumentHash;
+import org.lareferencia.core.entity.domain.IndexedDocumentHashId;
+import org.lareferencia.core.entity.repositories.jpa.IndexedDocumentHashRepository;
+import org.lareferencia.core.util.hashing.XXHash64Hashing;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Hashes of the documents sent to each index (indexed_document_hash), used by the Elastic indexers to skip the
+ * documents that did not change since the last run. Reads and writes run in their own transactions, the indexers
+ * call them from threads that may be inside a read only transaction or none.
+ */
+@Service
+public class IndexedDocumentHashService {
+
+	private static final int IN_CHUNK_SIZE = 1000;
+
+	@Autowired
+	private IndexedDocumentHashRepository hashRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	public static long documentHash(String json) {
+		return XXHash64Hashing.calculateHashLong(json);
+	}
+
+	/** Stored hashes of the entities in the given indices */
+	public Map<IndexedDocumentHashId, Long> findHashes(Collection<String> indexNames, Collection<UUID> entityIds) {
+
+		Map<IndexedDocumentHashId, Long> hashes = new HashMap<IndexedDocumentHashId, Long>();
+		if (indexNames.isEmpty() || entityIds.isEmpty())
+			return hashes;
+
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(true);
+
+		transaction.executeWithoutResult(status -> {
+			for (List<UUID> chunk : Lists.partition(new ArrayList<UUID>(entityIds), IN_CHUNK_SIZE))
+				for (IndexedDocumentHash hash : hashRepository.findByIndexNameInAndEntityIdIn(indexNames, chunk))
+					hashes.put(hash.getId(), hash.getHash());
+		});
+		return hashes;
+	}
+
+	public Long findHash(String indexName, UUID entityId) {
+
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(true);
+
+		return transaction.execute(status -> hashRepository.findById(new IndexedDocumentHashId(indexName, entityId)).map(IndexedDocumentHash::getHash).orElse(null));
+	}
+
+	/**
+	 * Stores the hashes of the documents sent to an index, in JDBC batches (INSERT ... ON CONFLICT DO UPDATE on
+	 * PostgreSQL, MERGE on H2). Rows are sorted by entity id so concurrent writers lock them in the same order.
+	 */
+	public void saveHashes(String indexName, Map<UUID, Long> hashes) {
+
+		if (hashes.isEmpty())
+			return;
+
+		List<UUID> entityIds = new ArrayList<UUID>(hashes.keySet());
+		entityIds.sort(null);
+
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		transaction.executeWithoutResult(status -> entityManager.unwrap(Session.class).doWork(connection -> {
+
+			String sql = connection.isWrapperFor(PGConnection.class)
+					? "INSERT INTO indexed_document_hash (index_name, entity_id, hash) VALUES (?, ?, ?) ON CONFLICT (index_name, entity_id) DO UPDATE SET hash = EXCLUDED.hash"
+					: "MERGE INTO indexed_document_hash (index_name, entity_id, hash) KEY (index_name, entity_id) VALUES (?, ?, ?)";
+
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				for (UUID entityId : entityIds) {
+					statement.setString(1, indexName);
+					statement.setObject(2, entityId);
+					statement.setLong(3, hashes.get(entityId));
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		}));
+	}
+
+	/** Forgets the hashes of an index (dropped or rebuilt), its documents are sent again */
+	public void deleteIndex(String indexName) {
+
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transaction.executeWithoutResult(status -> hashRepository.deleteByIndexName(indexName));
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lareferencia.core.entity.domain.IndexingLease;
+import org.lareferencia.core.entity.repositories.jpa.IndexingLeaseRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Partitions of a partitioned indexing run and the leases over them. The UUID space of the run is split in ranges
+ * stored in indexing_lease, any number of worker threads of any number of nodes claim a free range (or one whose
+ * lease expired), renew the lease with a heartbeat after each flushed page and mark it completed.
+ *
+ * Claims, heartbeats, completions and the end of the run are compare and set updates, so exactly one owner holds a
+ * range at a time and one owner finishes the run; an owner whose lease was taken over notices it on the next
+ * heartbeat. Expiration is checked against the clock of the claiming node, the lease duration must cover the clock
+ * skew between nodes plus the time to index one page.
+ */
+@Service
+public class IndexingLeaseService {
+
+	private static Logger logger = LogManager.getLogger(IndexingLeaseService.class);
+
+	@Autowired
+	private IndexingLeaseRepository leaseRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/** Seconds a lease is held without heartbeats before it can be reclaimed */
+	@Getter
+	@Setter
+	@Value("${entity.indexing.lease-seconds:300}")
+	private long leaseSeconds = 300;
+
+	public List<IndexingLease> createLeases(String scope, int partitions) {
+		return createLeases(scope, partitions, null);
+	}
+
+	/**
+	 * Creates the partitions of the run unless a run of the scope is in progress (the first node of the run creates
+	 * them, the rest join) and returns them
+	 * @param indexerState run state of the indexer stored with the new partitions, the owners of a run in progress
+	 * use the one stored by the node that created it
+	 */
+	public List<IndexingLease> createLeases(String scope, int partitions, String indexerState) {
+
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+
+		try {
+			return transaction.execute(status -> {
+
+				List<IndexingLease> leases = leaseRepository.findByScopeOrderByPartitionIndexAsc(scope);
+				if (leases.stream().anyMatch(lease -> !lease.getCompleted()))
+					return leases;
+
+				// leftovers of a completed run (its last completions were concurrent, or it had failed entities)
+				if (!leases.isEmpty())
+					leaseRepository.deleteByScope(scope);
+
+				// same boundaries as the merge partitions, the unsigned most significant bits are split evenly
+				long step = Long.divideUnsigned(-1L, partitions);
+				leases = new ArrayList<IndexingLease>(partitions);
+				for (int i = 0; i < partitions; i++) {
+					UUID lower = i == 0 ? null : new UUID(step * i, 0L);
+					UUID upper = i == partitions - 1 ? null : new UUID(step * (i + 1), 0L);
+					leases.add(new IndexingLease(scope, i, lower, upper, indexerState));
+				}
+				logger.info("Indexing run {} split in {} partitions", scope, partitions);
+				return leaseRepository.saveAllAndFlush(leases);
+			});
+		} catch (DataIntegrityViolationException e) {
+			// another node created them at the same time
+			return transaction.execute(status -> leaseRepository.findByScopeOrderByPartitionIndexAsc(scope));
+		}
+	}
+
+	/**
+	 * Claims the first free or expired partition of the run
+	 * @return the claimed lease, empty if every pending partition is held by a live owner (or none is pending)
+	 */
+	public Optional<IndexingLease> claim(String scope, String owner) {
+
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		LocalDateTime now = LocalDateTime.now();
+
+		for (String id : transaction.execute(status -> leaseRepository.findClaimableIds(scope, now))) {
+
+			Optional<IndexingLease> claimed = transaction.execute(status -> {
+				if (leaseRepository.claim(id, owner, now.plusSeconds(leaseSeconds), now) == 0)
+					return Optional.<IndexingLease>empty();
+				return leaseRepository.findById(id);
+			});
+
+			if (claimed.isPresent()) {
+				IndexingLease lease = claimed.get();
+				logger.info("Partition {} claimed by {} (resuming after: {})", id, owner, lease.getLastEntityId());
+				return claimed;
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Renews the lease and records the progress of the partition
+	 * @return false if the lease was lost (expired and claimed by another owner), the caller must stop
+	 */
+	public boolean heartbeat(IndexingLease lease, String owner, UUID lastEntityId, long entitiesIndexed) {
+		LocalDateTime expiresAt = LocalDateTime.now().plusSeconds(leaseSeconds);
+		return new TransactionTemplate(transactionManager).execute(status ->
+			leaseRepository.heartbeat(lease.getId(), owner, expiresAt, lastEntityId, entitiesIndexed) == 1);
+	}
+
+	/**
+	 * Adds entities the indexer failed to index in the partition, the run will not be complete
+	 * @return false if the lease was lost
+	 */
+	public boolean addFailures(IndexingLease lease, String owner, long entitiesFailed) {
+		return new TransactionTemplate(transactionManager).execute(status ->
+			leaseRepository.addFailures(lease.getId(), owner, entitiesFailed) == 1);
+	}
+
+	/**
+	 * Marks the partition completed, the leases of the run are kept until one owner finishes it (see finishRun)
+	 * @return false if the lease was lost before completing
+	 */
+	public boolean complete(IndexingLease lease, String owner) {
+		return new TransactionTemplate(transactionManager).execute(status ->
+			leaseRepository.complete(lease.getId(), owner) == 1);
+	}
+
+	/**
+	 * Finishes a run whose partitions are all completed without failed entities by deleting its leases. The delete is
+	 * the compare and set: concurrent callers wait for the first one and delete nothing, so exactly one owner of the
+	 * run gets true and publishes what the run built. Runs with failed entities are kept (see hasFailedPartitions)
+	 * until the next run of the scope.
+	 * @return true for the owner that finished the run, false if it is pending, failed or finished by another owner
+	 */
+	public boolean finishRun(String scope) {
+
+		return new TransactionTemplate(transactionManager).execute(status -> {
+
+			if (leaseRepository.countByScopeAndCompletedFalse(scope) > 0)
+				return false;
+
+			if (leaseRepository.countByScopeAndEntitiesFailedGreaterThan(scope, 0L) > 0) {
+				logger.warn("Indexing run {} completed with failed entities", scope);
+				return false;
+			}
+
+			if (leaseRepository.deleteByScope(scope) == 0)
+				return false;
+
+			logger.info("Indexing run {} completed", scope);
+			return true;
+		});
+	}
+
+	/** True while the run has partitions not completed (held or not) */
+	public boolean hasPendingPartitions(String scope) {
+		return new TransactionTemplate(transactionManager).execute(status -> leaseRepository.countByScopeAndCompletedFalse(scope) > 0);
+	}
+
+	/** True if the partitions of the run had entities the indexer failed to index */
+	public boolean hasFailedPartitions(String scope) {
+		return new TransactionTemplate(transactionManager).execute(status -> leaseRepository.countByScopeAndEntitiesFailedGreaterThan(scope, 0L) > 0);
+	}
+
+	/** Drops the partitions of a run, the next run of the scope starts from scratch */
+	public void deleteLeases(String scope) {
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> leaseRepository.deleteByScope(scope));
+	}
+}
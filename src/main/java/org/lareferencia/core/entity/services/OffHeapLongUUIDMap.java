@@ -0,0 +1,305 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Primitive long -> UUID hash map stored outside the java heap, so tens of millions of entries do not add GC pressure.
+ * 
+ * The map is split in segments, each one an open addressing (linear probing) table in a direct ByteBuffer, or in a
+ * memory mapped file when a directory is given. A slot takes 24 bytes: key, uuid most and least significant bits.
+ * Key 0 marks empty slots and is kept apart. Each segment grows by doubling and has its own read/write lock.
+ */
+public class OffHeapLongUUIDMap {
+
+	private static final int SLOT_BYTES = 24;
+	private static final long EMPTY_KEY = 0L;
+	private static final double MAX_LOAD_FACTOR = 0.7;
+
+	// a ByteBuffer is indexed by int, 2^26 slots * 24 bytes = 1.5GB per segment
+	private static final int MAX_SLOTS_PER_SEGMENT = 1 << 26;
+	private static final int MIN_SLOTS_PER_SEGMENT = 1 << 10;
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final int initialSlotsPerSegment;
+	private final File mappedDirectory;
+
+	private volatile UUID emptyKeyValue;
+
+	/**
+	 * @param segmentCount number of segments, rounded up to a power of two
+	 * @param expectedSize expected number of entries, used to size the segments
+	 * @param mappedDirectory directory for the memory mapped segment files, null to use direct buffers
+	 */
+	public OffHeapLongUUIDMap(int segmentCount, long expectedSize, File mappedDirectory) {
+
+		int count = nextPowerOfTwo(Math.max(1, segmentCount));
+
+		this.segments = new Segment[count];
+		this.segmentMask = count - 1;
+		this.mappedDirectory = mappedDirectory;
+
+		long slotsPerSegment = (long) Math.ceil(expectedSize / MAX_LOAD_FACTOR / count);
+		this.initialSlotsPerSegment = nextPowerOfTwo((int) Math.min(MAX_SLOTS_PER_SEGMENT, Math.max(MIN_SLOTS_PER_SEGMENT, slotsPerSegment)));
+
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment(initialSlotsPerSegment);
+	}
+
+	public UUID get(long key) {
+
+		if (key == EMPTY_KEY)
+			return emptyKeyValue;
+
+		long hash = mix(key);
+		return segmentFor(hash).get(key, hash);
+	}
+
+	/**
+	 * Associates the value with the key, replacing the previous one
+	 */
+	public void put(long key, UUID value) {
+
+		if (key == EMPTY_KEY) {
+			emptyKeyValue = value;
+			return;
+		}
+
+		long hash = mix(key);
+		segmentFor(hash).put(key, hash, value, true);
+	}
+
+	/**
+	 * Associates the value with the key only if the key is not present
+	 * @return the value already present or null if the given one was stored
+	 */
+	public UUID putIfAbsent(long key, UUID value) {
+
+		if (key == EMPTY_KEY) {
+			synchronized (this) {
+				UUID previous = emptyKeyValue;
+				if (previous == null)
+					emptyKeyValue = value;
+				return previous;
+			}
+		}
+
+		long hash = mix(key);
+		return segmentFor(hash).put(key, hash, value, false);
+	}
+
+	public long size() {
+		long size = emptyKeyValue != null ? 1 : 0;
+		for (Segment segment : segments)
+			size += segment.size();
+		return size;
+	}
+
+	/** Bytes reserved outside the heap */
+	public long capacityInBytes() {
+		long bytes = 0;
+		for (Segment segment : segments)
+			bytes += segment.capacityInBytes();
+		return bytes;
+	}
+
+	public void clear() {
+		emptyKeyValue = null;
+		for (Segment segment : segments)
+			segment.clear();
+	}
+
+	private Segment segmentFor(long hash) {
+		// high bits select the segment, low bits the slot
+		return segments[(int) (hash >>> 40) & segmentMask];
+	}
+
+	// murmur3 finalizer, keys are hashes already but this keeps clustered keys from sharing probe chains
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static int nextPowerOfTwo(int value) {
+		int highest = Integer.highestOneBit(value);
+		return highest == value ? value : highest << 1;
+	}
+
+	private ByteBuffer allocate(int slots) {
+
+		long bytes = (long) slots * SLOT_BYTES;
+
+		if (mappedDirectory == null)
+			return ByteBuffer.allocateDirect((int) bytes);
+
+		try {
+			File file = File.createTempFile("semantic-index-", ".map", mappedDirectory);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(bytes);
+				// the mapping outlives the channel, and the file can be unlinked right away (sparse, zero filled)
+				ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+				if (!file.delete())
+					file.deleteOnExit();
+				return buffer;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error mapping off heap index segment in " + mappedDirectory, e);
+		}
+	}
+
+	private class Segment {
+
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		private ByteBuffer buffer;
+		private int slots;
+		private int size;
+
+		Segment(int slots) {
+			this.slots = slots;
+			this.buffer = allocate(slots);
+		}
+
+		UUID get(long key, long hash) {
+
+			lock.readLock().lock();
+			try {
+				int mask = slots - 1;
+				for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+					int offset = slot * SLOT_BYTES;
+					long stored = buffer.getLong(offset);
+					if (stored == EMPTY_KEY)
+						return null;
+					if (stored == key)
+						return new UUID(buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		UUID put(long key, long hash, UUID value, boolean replace) {
+
+			lock.writeLock().lock();
+			try {
+				if (size + 1 > slots * MAX_LOAD_FACTOR)
+					resize();
+
+				int mask = slots - 1;
+				for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+					int offset = slot * SLOT_BYTES;
+					long stored = buffer.getLong(offset);
+
+					if (stored == EMPTY_KEY) {
+						write(buffer, offset, key, value);
+						size++;
+						return null;
+					}
+
+					if (stored == key) {
+						UUID previous = new UUID(buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+						if (replace)
+							write(buffer, offset, key, value);
+						return previous;
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void resize() {
+
+			if (slots >= MAX_SLOTS_PER_SEGMENT)
+				throw new IllegalStateException("Off heap index segment is full (" + size + " entries), use more segments");
+
+			int newSlots = slots << 1;
+			int newMask = newSlots - 1;
+			ByteBuffer newBuffer = allocate(newSlots);
+
+			for (int slot = 0; slot < slots; slot++) {
+				int offset = slot * SLOT_BYTES;
+				long key = buffer.getLong(offset);
+				if (key == EMPTY_KEY)
+					continue;
+
+				int newSlot = (int) mix(key) & newMask;
+				while (newBuffer.getLong(newSlot * SLOT_BYTES) != EMPTY_KEY)
+					newSlot = (newSlot + 1) & newMask;
+
+				newBuffer.put(newSlot * SLOT_BYTES, buffer, offset, SLOT_BYTES);
+			}
+
+			buffer = newBuffer;
+			slots = newSlots;
+		}
+
+		int size() {
+			lock.readLock().lock();
+			try {
+				return size;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		long capacityInBytes() {
+			lock.readLock().lock();
+			try {
+				return (long) slots * SLOT_BYTES;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void clear() {
+			lock.writeLock().lock();
+			try {
+				slots = initialSlotsPerSegment;
+				buffer = allocate(slots);
+				size = 0;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void write(ByteBuffer target, int offset, long key, UUID value) {
+			target.putLong(offset + 8, value.getMostSignificantBits());
+			target.putLong(offset + 16, value.getLeastSignificantBits());
+			target.putLong(offset, key);
+		}
+	}
+}
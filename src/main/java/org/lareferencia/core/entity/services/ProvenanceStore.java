@@ -23,6 +23,8 @@ package org.lareferencia.core.entity.services;
 
 import org.lareferencia.core.entity.domain.Provenance;
 import org.lareferencia.core.entity.repositories.jpa.ProvenanceRepository;
+import lombok.Getter;
+import lombok.Setter;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -33,6 +35,11 @@ public class ProvenanceStore  {
 
     ProvenanceRepository repository;
 
+    /** When set, provenances are created with an insert if absent instead of find + save */
+    @Getter
+    @Setter
+    ContentAddressedUpsertWriter upsertWriter;
+
     public ProvenanceStore(ProvenanceRepository repository) {
         this.repository = repository;
     }
@@ -45,6 +52,9 @@ public class ProvenanceStore  {
     @Transactional(propagation = Propagation.MANDATORY)
     public Provenance loadOrCreate(String source, String record)  {
 
+        if ( upsertWriter != null )
+            return upsertWriter.upsertProvenance(source, record);
+
         Provenance createdProvenance = new Provenance(source,record);
 
         Optional<Provenance> optProvenance = repository.findById( createdProvenance.getId() );
@@ -67,5 +77,13 @@ public class ProvenanceStore  {
         repository.setLastUpdate(provenance.getId(), lastUpdate);
     }
 
+    /**
+     * Update the last update timestamp and the content fingerprint of a Provenance record.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void setLastUpdate(Provenance provenance, LocalDateTime lastUpdate, Long fingerprint) {
+        repository.setLastUpdateAndFingerprint(provenance.getId(), lastUpdate, fingerprint);
+    }
+
 
 }
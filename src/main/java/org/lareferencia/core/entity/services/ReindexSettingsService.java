@@ -0,0 +1,142 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.lareferencia.core.entity.domain.IndexOriginalSettings;
+import org.lareferencia.core.entity.domain.IndexSettingsHold;
+import org.lareferencia.core.entity.repositories.jpa.IndexOriginalSettingsRepository;
+import org.lareferencia.core.entity.repositories.jpa.IndexSettingsHoldRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Original settings of the indices written by full reindexes (index_original_settings) and the indexers holding them
+ * (index_settings_hold), shared by every node of a run. The first indexer of an index records its settings, the
+ * settings are restored when the last holder releases the index. A hold expires if it is not renewed, so the settings
+ * left by a run that did not finish are restored by a later run, but never while an indexer still holds the index.
+ *
+ * Every call runs in its own transaction, the indexers call them from threads that may be inside a read only
+ * transaction or none.
+ */
+@Service
+public class ReindexSettingsService {
+
+	@Autowired
+	private IndexOriginalSettingsRepository settingsRepository;
+
+	@Autowired
+	private IndexSettingsHoldRepository holdRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/** Seconds a hold lasts without renewal, must cover the time between two flushes of an indexer */
+	@Getter
+	@Setter
+	@Value("${elastic.indexer.reindex.hold-seconds:900}")
+	private long holdSeconds = 900;
+
+	/** Takes or renews the holds of the owner over the indices */
+	public void hold(String owner, Collection<String> indices) {
+		LocalDateTime expiresAt = LocalDateTime.now().plusSeconds(holdSeconds);
+		List<IndexSettingsHold> holds = new ArrayList<IndexSettingsHold>(indices.size());
+		for (String index : indices)
+			holds.add(new IndexSettingsHold(owner, index, expiresAt));
+		newTransaction().executeWithoutResult(status -> holdRepository.saveAll(holds));
+	}
+
+	public boolean isRecorded(String index) {
+		return newTransaction().execute(status -> settingsRepository.existsById(index));
+	}
+
+	/**
+	 * Records the original settings of an index unless they are recorded already (the first record wins, the next
+	 * indexers would read the reindex settings)
+	 */
+	public void record(String index, String refreshInterval, String numberOfReplicas) {
+		try {
+			newTransaction().executeWithoutResult(status -> {
+				if (!settingsRepository.existsById(index))
+					settingsRepository.saveAndFlush(new IndexOriginalSettings(index, refreshInterval, numberOfReplicas));
+			});
+		} catch (DataIntegrityViolationException e) {
+			// recorded by another indexer at the same time
+		}
+	}
+
+	/**
+	 * Drops the holds of the owner and returns the recorded indices no longer held by anyone, whose settings can be
+	 * restored. The recorded rows are locked while the holds are checked, so of two holders releasing an index at the
+	 * same time the last one finds it free.
+	 * @param owner null to only look for the indices left by runs that did not finish
+	 */
+	public List<IndexOriginalSettings> release(String owner) {
+		return newTransaction().execute(status -> {
+
+			List<IndexOriginalSettings> recorded = settingsRepository.findAllForUpdate();
+
+			LocalDateTime now = LocalDateTime.now();
+			if (owner != null)
+				holdRepository.deleteByOwner(owner);
+			holdRepository.deleteExpired(now);
+
+			Set<String> held = holdRepository.findHeldIndexNames(now);
+			List<IndexOriginalSettings> restorable = new ArrayList<IndexOriginalSettings>();
+			for (IndexOriginalSettings settings : recorded)
+				if (!held.contains(settings.getIndexName()))
+					restorable.add(settings);
+			return restorable;
+		});
+	}
+
+	/**
+	 * Removes the recorded settings of an index once restored, unless a new holder took the index meanwhile (its
+	 * settings are restored when that holder releases it)
+	 */
+	public void forget(String index) {
+		newTransaction().executeWithoutResult(status -> {
+			settingsRepository.findAllForUpdate();
+			if (!holdRepository.findHeldIndexNames(LocalDateTime.now()).contains(index))
+				settingsRepository.deleteById(index);
+		});
+	}
+
+	private TransactionTemplate newTransaction() {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return transaction;
+	}
+}
@@ -26,12 +26,19 @@ import org.lareferencia.core.entity.repositories.jpa.SemanticIdentifierRepositor
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 public class SemanticIdentifierCachedStore extends ConcurrentCachedStore<Long, SemanticIdentifier, SemanticIdentifierRepository> {
 
     public SemanticIdentifierCachedStore(SemanticIdentifierRepository repository, Integer capacity) {
-        super(repository, capacity, false, 0);
+        this(repository, capacity, 0, 0);
+    }
+
+    public SemanticIdentifierCachedStore(SemanticIdentifierRepository repository, Integer capacity,
+                                         Integer negativeCapacity, Integer negativeExpireAfterWriteInSeconds) {
+        super(repository, capacity, false, 0, negativeCapacity, negativeExpireAfterWriteInSeconds);
     }
 
     /**
@@ -41,15 +48,19 @@ public class SemanticIdentifierCachedStore extends ConcurrentCachedStore<Long, S
      */
     public SemanticIdentifier loadOrCreate(String semantiIdentifier) {
 
-        SemanticIdentifier createdSemanticIdentifier = new SemanticIdentifier(semantiIdentifier);
+        return this.getOrInsert( new SemanticIdentifier(semantiIdentifier) );
+    }
+
+    /**
+     * Load or create several SemanticIdentifiers, new ones are written in one batch when the store inserts without read.
+     */
+    public List<SemanticIdentifier> loadOrCreateAll(Collection<String> semanticIdentifiers) {
+
+        List<SemanticIdentifier> candidates = new ArrayList<SemanticIdentifier>(semanticIdentifiers.size());
+        for (String semanticIdentifier : semanticIdentifiers)
+            candidates.add( new SemanticIdentifier(semanticIdentifier) );
 
-        SemanticIdentifier existingSemanticIdentifier = this.get( createdSemanticIdentifier.getId() );
-        if ( existingSemanticIdentifier == null ) {
-            this.put(createdSemanticIdentifier.getId(), createdSemanticIdentifier);
-            return createdSemanticIdentifier;
-        }
-        else
-            return existingSemanticIdentifier;
+        return this.getOrInsertAll(candidates);
     }
 
 
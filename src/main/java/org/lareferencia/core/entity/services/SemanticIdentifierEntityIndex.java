@@ -0,0 +1,345 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import jakarta.persistence.EntityManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Semantic identifier id -> final entity id index used by findOrCreateFinalEntity instead of the
+ * findEntityWithSemanticIdentifiers query. Backed by an OffHeapLongUUIDMap, warmed from entity_semantic_identifier.
+ * 
+ * Mappings made by a transaction are visible to it at once and reach the shared index after commit. When a lookup hits,
+ * the entity is marked dirty and its new semantic identifiers linked with batched JDBC statements, no entity is loaded.
+ * A miss falls back to the database unless the index is authoritative (fully warmed and this is the only loader).
+ * 
+ * Entities are deleted outside the index (merges of the resolver, the merge engine or the stored procedure, other
+ * loaders), so hits of the shared index are checked against entity_semantic_identifier before they are used. A stale
+ * mapping is skipped, the caller then resolves the entity in the database and replaces it with replaceStale().
+ * 
+ * Like EntityBulkWriter, beginRecord/discardRecord delimit the work of a record rolled back to a savepoint.
+ */
+public class SemanticIdentifierEntityIndex {
+
+	private static Logger logger = LogManager.getLogger(SemanticIdentifierEntityIndex.class);
+
+	private static final int WARM_FETCH_SIZE = 10000;
+
+	private final EntityManager entityManager;
+	private final OffHeapLongUUIDMap index;
+	private final boolean authoritative;
+
+	private volatile boolean ready = false;
+
+	public SemanticIdentifierEntityIndex(EntityManager entityManager, OffHeapLongUUIDMap index, boolean authoritative) {
+		this.entityManager = entityManager;
+		this.index = index;
+		this.authoritative = authoritative;
+	}
+
+	/**
+	 * Loads every semantic identifier -> entity pair. Must run inside a (read only) transaction,
+	 * PostgreSQL only honors the fetch size with autocommit off.
+	 */
+	public void warm() {
+
+		long start = System.currentTimeMillis();
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement("SELECT semantic_id, entity_id FROM entity_semantic_identifier")) {
+				statement.setFetchSize(WARM_FETCH_SIZE);
+				try (ResultSet rs = statement.executeQuery()) {
+					while (rs.next())
+						index.putIfAbsent(rs.getLong(1), rs.getObject(2, UUID.class));
+				}
+			}
+		});
+
+		ready = true;
+		logger.info("Semantic identifier index warmed: {} identifiers, {} MB off heap, {} ms", index.size(),
+				index.capacityInBytes() / (1024 * 1024), System.currentTimeMillis() - start);
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/** Misses can be trusted as "no entity has these semantic identifiers" */
+	public boolean isAuthoritative() {
+		return authoritative && ready;
+	}
+
+	/**
+	 * @return the final entity id of the first known semantic identifier whose mapping still exists, null (and stale
+	 * set when a mapping no longer exists) if none is known
+	 */
+	public Lookup lookup(Collection<Long> semanticIds) {
+
+		TxState state = getState(false);
+		boolean stale = false;
+
+		for (Long semanticId : semanticIds) {
+			UUID entityId = state != null ? state.lookup(semanticId) : null;
+			if (entityId != null)
+				return new Lookup(entityId, false);
+
+			entityId = index.get(semanticId);
+			if (entityId != null) {
+				if (isLinked(entityId, semanticId))
+					return new Lookup(entityId, false);
+				stale = true;
+			}
+		}
+
+		return new Lookup(null, stale);
+	}
+
+	private boolean isLinked(UUID entityId, Long semanticId) {
+		return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement(
+					"SELECT 1 FROM entity_semantic_identifier WHERE entity_id = ? AND semantic_id = ?")) {
+				statement.setObject(1, entityId);
+				statement.setLong(2, semanticId);
+				try (ResultSet rs = statement.executeQuery()) {
+					return rs.next();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Result of a lookup, a stale lookup found mappings to entities that no longer have these semantic identifiers
+	 */
+	public static class Lookup {
+
+		private final UUID entityId;
+		private final boolean stale;
+
+		Lookup(UUID entityId, boolean stale) {
+			this.entityId = entityId;
+			this.stale = stale;
+		}
+
+		public UUID getEntityId() {
+			return entityId;
+		}
+
+		public boolean isStale() {
+			return stale;
+		}
+	}
+
+	/**
+	 * Registers the semantic identifiers of an entity created or loaded (and linked) through JPA
+	 */
+	public void register(UUID entityId, Collection<Long> semanticIds) {
+		TxState state = getState(true);
+		for (Long semanticId : semanticIds)
+			state.record.putIfAbsent(semanticId, entityId);
+	}
+
+	/**
+	 * Points the semantic identifiers of merged entities to the entity they were merged into
+	 */
+	public void registerMerged(UUID targetEntityId, Collection<Long> semanticIds) {
+		TxState state = getState(true);
+		for (Long semanticId : semanticIds)
+			state.recordRemapped.put(semanticId, targetEntityId);
+	}
+
+	/**
+	 * Points the semantic identifiers of a stale lookup to the entity resolved in the database
+	 */
+	public void replaceStale(UUID entityId, Collection<Long> semanticIds) {
+		registerMerged(entityId, semanticIds);
+	}
+
+	/**
+	 * Records an index hit: the existing entity must be marked dirty and linked to the semantic identifiers
+	 * not mapped to it yet. Both are written by writePending().
+	 */
+	public void markExisting(UUID entityId, Collection<Long> semanticIds) {
+
+		TxState state = getState(true);
+		state.dirtyEntities.add(entityId);
+
+		for (Long semanticId : semanticIds) {
+			UUID mapped = state.lookup(semanticId);
+			if (mapped == null)
+				mapped = index.get(semanticId);
+			if (!entityId.equals(mapped))
+				state.links.add(new Object[] { entityId, semanticId });
+			if (mapped == null)
+				state.record.put(semanticId, entityId);
+		}
+	}
+
+	/**
+	 * Writes the pending dirty marks and semantic identifier links on the connection of the current transaction.
+	 * The session is flushed first, linked entities may have been created in this transaction.
+	 */
+	public void writePending() {
+
+		TxState state = getState(false);
+		if (state == null || (state.dirtyEntities.isEmpty() && state.links.isEmpty()))
+			return;
+
+		List<UUID> dirtyEntities = new ArrayList<UUID>(state.dirtyEntities);
+		List<Object[]> links = new ArrayList<Object[]>(state.links);
+		state.dirtyEntities.clear();
+		state.links.clear();
+
+		entityManager.flush();
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE entity SET dirty = TRUE WHERE uuid = ?")) {
+				for (UUID entityId : dirtyEntities) {
+					statement.setObject(1, entityId);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+
+			if (!links.isEmpty()) {
+				try (PreparedStatement statement = connection.prepareStatement(
+						"INSERT INTO entity_semantic_identifier (entity_id, semantic_id) SELECT ?, ? WHERE NOT EXISTS "
+						+ "(SELECT 1 FROM entity_semantic_identifier WHERE entity_id = ? AND semantic_id = ?)")) {
+					for (Object[] link : links) {
+						statement.setObject(1, link[0]);
+						statement.setLong(2, (Long) link[1]);
+						statement.setObject(3, link[0]);
+						statement.setLong(4, (Long) link[1]);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Marks the start of a record: everything registered so far belongs to records already released
+	 */
+	public void beginRecord() {
+		TxState state = getState(false);
+		if (state != null) {
+			state.released.putAll(state.record);
+			state.record.clear();
+			state.remapped.putAll(state.recordRemapped);
+			state.recordRemapped.clear();
+		}
+	}
+
+	/**
+	 * Drops what was registered since beginRecord(), the record was rolled back
+	 */
+	public void discardRecord() {
+		TxState state = getState(false);
+		if (state != null) {
+			state.record.clear();
+			state.recordRemapped.clear();
+			state.dirtyEntities.clear();
+			state.links.clear();
+		}
+	}
+
+	public long size() {
+		return index.size();
+	}
+
+	private TxState getState(boolean create) {
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			throw new IllegalStateException("SemanticIdentifierEntityIndex requires an active transaction");
+
+		TxState state = (TxState) TransactionSynchronizationManager.getResource(this);
+
+		if (state == null && create) {
+			TxState newState = new TxState();
+			TransactionSynchronizationManager.bindResource(this, newState);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void beforeCommit(boolean readOnly) {
+					writePending();
+				}
+
+				@Override
+				public void afterCommit() {
+					newState.released.putAll(newState.record);
+					newState.remapped.putAll(newState.recordRemapped);
+					for (Map.Entry<Long, UUID> entry : newState.released.entrySet())
+						index.putIfAbsent(entry.getKey(), entry.getValue());
+					for (Map.Entry<Long, UUID> entry : newState.remapped.entrySet())
+						index.put(entry.getKey(), entry.getValue());
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(SemanticIdentifierEntityIndex.this);
+				}
+			});
+			state = newState;
+		}
+
+		return state;
+	}
+
+	private static class TxState {
+
+		// semantic id -> entity id of records already released, and of the current record
+		final Map<Long, UUID> released = new HashMap<Long, UUID>();
+		final Map<Long, UUID> record = new HashMap<Long, UUID>();
+
+		// semantic id -> entity id replacing the current mapping (merges) of records already released, and of the current record
+		final Map<Long, UUID> remapped = new HashMap<Long, UUID>();
+		final Map<Long, UUID> recordRemapped = new HashMap<Long, UUID>();
+
+		final Set<UUID> dirtyEntities = new LinkedHashSet<UUID>();
+		final List<Object[]> links = new ArrayList<Object[]>();
+
+		UUID lookup(Long semanticId) {
+			UUID entityId = recordRemapped.get(semanticId);
+			if (entityId == null)
+				entityId = remapped.get(semanticId);
+			if (entityId == null)
+				entityId = record.get(semanticId);
+			return entityId != null ? entityId : released.get(semanticId);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import jakarta.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.EntityRelationException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Locks the semantic identifiers of the entities a transaction is about to resolve, so concurrent loaders sharing
+ * an identifier can not create two final entities for it. Locks are held until the transaction completes.
+ * 
+ * JVM mode uses lock striping over the semantic identifier ids, ADVISORY mode PostgreSQL transaction level
+ * advisory locks (for loaders in several JVMs). In both modes the locks of a call are taken in a consistent order
+ * (stripe / id order). The first call of a transaction blocks, later calls (the transaction already holds locks)
+ * wait at most the configured timeout and fail instead of risking a deadlock. ADVISORY mode requires PostgreSQL.
+ */
+public class SemanticIdentifierLockManager {
+
+	public enum LockMode {
+		NONE, JVM, ADVISORY
+	}
+
+	private final LockMode mode;
+	private final Striped<Lock> stripes;
+	private final long timeoutMillis;
+	private final EntityManager entityManager;
+
+	public SemanticIdentifierLockManager(LockMode mode, int stripeCount, long timeoutMillis, EntityManager entityManager) {
+		this.mode = mode;
+		this.stripes = mode == LockMode.JVM ? Striped.lock(stripeCount) : null;
+		this.timeoutMillis = timeoutMillis;
+		this.entityManager = entityManager;
+	}
+
+	public LockMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Locks the given semantic identifier ids until the current transaction completes
+	 */
+	public void lock(Collection<Long> semanticIds) throws EntityRelationException {
+
+		if (mode == LockMode.NONE || semanticIds.isEmpty())
+			return;
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			throw new IllegalStateException("SemanticIdentifierLockManager requires an active transaction");
+
+		HeldLocks held = getHeldLocks();
+
+		if (mode == LockMode.JVM)
+			lockStripes(semanticIds, held);
+		else
+			lockAdvisory(semanticIds, held);
+	}
+
+	private void lockStripes(Collection<Long> semanticIds, HeldLocks held) throws EntityRelationException {
+
+		boolean blocking = held.stripes.isEmpty();
+		List<Lock> acquired = new ArrayList<Lock>();
+
+		// bulkGet returns the stripes in a consistent order, whatever the order of the keys
+		for (Lock lock : stripes.bulkGet(semanticIds)) {
+
+			if (held.stripes.contains(lock) || acquired.contains(lock))
+				continue;
+
+			if (blocking)
+				lock.lock();
+			else if (!tryLock(lock)) {
+				for (Lock release : acquired)
+					release.unlock();
+				throw new EntityRelationException("Timeout waiting for semantic identifier locks held by another loader");
+			}
+
+			acquired.add(lock);
+		}
+
+		held.stripes.addAll(acquired);
+	}
+
+	private boolean tryLock(Lock lock) {
+		try {
+			return lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void lockAdvisory(Collection<Long> semanticIds, HeldLocks held) {
+
+		List<Long> keys = new ArrayList<Long>();
+		for (Long semanticId : new TreeSet<Long>(semanticIds)) {
+			if (!held.advisoryKeys.contains(semanticId))
+				keys.add(semanticId);
+		}
+
+		if (keys.isEmpty())
+			return;
+
+		boolean blocking = held.advisoryKeys.isEmpty();
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+			// waits beyond the timeout fail with a lock timeout error, rolling back the record
+			if (!blocking) {
+				try (PreparedStatement timeout = connection.prepareStatement("SET LOCAL lock_timeout = " + timeoutMillis)) {
+					timeout.execute();
+				}
+			}
+
+			try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_xact_lock(?)")) {
+				for (Long key : keys) {
+					statement.setLong(1, key);
+					statement.executeQuery().close();
+				}
+			}
+
+			if (!blocking) {
+				try (PreparedStatement reset = connection.prepareStatement("SET LOCAL lock_timeout TO DEFAULT")) {
+					reset.execute();
+				}
+			}
+		});
+
+		held.advisoryKeys.addAll(keys);
+		held.recordAdvisoryKeys.addAll(keys);
+	}
+
+	/**
+	 * Marks the start of a record running in a savepoint
+	 */
+	public void beginRecord() {
+		HeldLocks held = (HeldLocks) TransactionSynchronizationManager.getResource(this);
+		if (held != null)
+			held.recordAdvisoryKeys.clear();
+	}
+
+	/**
+	 * The record savepoint was rolled back: PostgreSQL released the advisory locks taken by it.
+	 * Stripes are kept until the transaction completes.
+	 */
+	public void discardRecord() {
+		HeldLocks held = (HeldLocks) TransactionSynchronizationManager.getResource(this);
+		if (held != null) {
+			held.advisoryKeys.removeAll(held.recordAdvisoryKeys);
+			held.recordAdvisoryKeys.clear();
+		}
+	}
+
+	private HeldLocks getHeldLocks() {
+
+		HeldLocks held = (HeldLocks) TransactionSynchronizationManager.getResource(this);
+
+		if (held == null) {
+			HeldLocks newHeld = new HeldLocks();
+			TransactionSynchronizationManager.bindResource(this, newHeld);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					// advisory locks are released by PostgreSQL with the transaction
+					for (Lock lock : newHeld.stripes)
+						lock.unlock();
+					TransactionSynchronizationManager.unbindResourceIfPossible(SemanticIdentifierLockManager.this);
+				}
+			});
+			held = newHeld;
+		}
+
+		return held;
+	}
+
+	private static class HeldLocks {
+		final Set<Lock> stripes = new LinkedHashSet<Lock>();
+		final Set<Long> advisoryKeys = new LinkedHashSet<Long>();
+		final Set<Long> recordAdvisoryKeys = new LinkedHashSet<Long>();
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import jakarta.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.lareferencia.core.entity.domain.FieldOccurrence;
+import org.lareferencia.core.entity.domain.RelationId;
+import org.lareferencia.core.entity.domain.SemanticIdentifier;
+
+import lombok.Getter;
+
+/**
+ * Delta update of the source entities of an updated provenance, instead of logically deleting all of them and
+ * inserting new ones. Incoming entities are matched to the stored (not deleted) entities of the same provenance by
+ * entity type and semantic identifier set. A matched entity keeps its row, only the field occurrence join rows that
+ * changed are rewritten (occurrence ids are content hashes, comparing id sets is enough) and its final entity is
+ * marked dirty only when something changed. Stored entities without a match are logically deleted, relations
+ * between matched entities are diffed the same way.
+ *
+ * Runs on the connection of the current transaction.
+ */
+public class SourceEntityDeltaUpdater {
+
+	private final EntityManager entityManager;
+
+	public SourceEntityDeltaUpdater(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Loads the stored source entities and relations of the provenance, with their semantic identifier and
+	 * occurrence ids (ids only, no entity is loaded in the session)
+	 */
+	public Delta load(Long provenanceId) {
+
+		Delta delta = new Delta();
+
+		entityManager.unwrap(Session.class).doWork(connection -> {
+
+			try (PreparedStatement statement = connection.prepareStatement(
+					"SELECT uuid, entity_type_id, final_entity_id FROM source_entity WHERE provenance_id = ? AND deleted = FALSE")) {
+				statement.setLong(1, provenanceId);
+				try (ResultSet rs = statement.executeQuery()) {
+					while (rs.next()) {
+						StoredSourceEntity stored = new StoredSourceEntity(rs.getObject(1, UUID.class), rs.getLong(2), rs.getObject(3, UUID.class));
+						delta.storedById.put(stored.getId(), stored);
+					}
+				}
+			}
+
+			if (delta.storedById.isEmpty())
+				return;
+
+			try (ResultSet rs = query(connection.prepareStatement(
+					"SELECT s.entity_id, s.semantic_id FROM source_entity_semantic_identifier s JOIN source_entity se ON se.uuid = s.entity_id "
+					+ "WHERE se.provenance_id = ? AND se.deleted = FALSE"), provenanceId)) {
+				while (rs.next())
+					delta.storedById.get(rs.getObject(1, UUID.class)).semanticIds.add(rs.getLong(2));
+			}
+
+			try (ResultSet rs = query(connection.prepareStatement(
+					"SELECT o.entity_id, o.fieldoccr_id FROM source_entity_fieldoccr o JOIN source_entity se ON se.uuid = o.entity_id "
+					+ "WHERE se.provenance_id = ? AND se.deleted = FALSE"), provenanceId)) {
+				while (rs.next())
+					delta.storedById.get(rs.getObject(1, UUID.class)).occurrenceIds.add(rs.getLong(2));
+			}
+
+			try (ResultSet rs = query(connection.prepareStatement(
+					"SELECT r.relation_type_id, r.from_entity_id, r.to_entity_id FROM source_relation r JOIN source_entity se ON se.uuid = r.from_entity_id "
+					+ "WHERE se.provenance_id = ? AND se.deleted = FALSE"), provenanceId)) {
+				while (rs.next())
+					delta.storedRelations.put(new RelationId(rs.getLong(1), rs.getObject(2, UUID.class), rs.getObject(3, UUID.class)), new HashSet<Long>());
+			}
+
+			try (ResultSet rs = query(connection.prepareStatement(
+					"SELECT o.relation_type_id, o.from_entity_id, o.to_entity_id, o.fieldoccr_id FROM source_relation_fieldoccr o JOIN source_entity se ON se.uuid = o.from_entity_id "
+					+ "WHERE se.provenance_id = ? AND se.deleted = FALSE"), provenanceId)) {
+				while (rs.next()) {
+					Set<Long> occurrenceIds = delta.storedRelations.get(new RelationId(rs.getLong(1), rs.getObject(2, UUID.class), rs.getObject(3, UUID.class)));
+					if (occurrenceIds != null)
+						occurrenceIds.add(rs.getLong(4));
+				}
+			}
+		});
+
+		for (StoredSourceEntity stored : delta.storedById.values())
+			delta.storedByKey.computeIfAbsent(matchKey(stored.getEntityTypeId(), stored.semanticIds), key -> new LinkedList<StoredSourceEntity>()).add(stored);
+
+		return delta;
+	}
+
+	// the statement is closed with the result set (closeOnCompletion)
+	private static ResultSet query(PreparedStatement statement, Long provenanceId) throws SQLException {
+		statement.setLong(1, provenanceId);
+		statement.closeOnCompletion();
+		return statement.executeQuery();
+	}
+
+	private static String matchKey(Long entityTypeId, Collection<Long> semanticIds) {
+		return entityTypeId + "::" + new TreeSet<Long>(semanticIds);
+	}
+
+	@Getter
+	public static class StoredSourceEntity {
+
+		private final UUID id;
+		private final Long entityTypeId;
+		private final UUID finalEntityId;
+
+		private final Set<Long> semanticIds = new HashSet<Long>();
+		private final Set<Long> occurrenceIds = new HashSet<Long>();
+
+		StoredSourceEntity(UUID id, Long entityTypeId, UUID finalEntityId) {
+			this.id = id;
+			this.entityTypeId = entityTypeId;
+			this.finalEntityId = finalEntityId;
+		}
+	}
+
+	/**
+	 * Stored state of one provenance and the changes found while the incoming record is processed, written by finish()
+	 */
+	public class Delta {
+
+		private final Map<UUID, StoredSourceEntity> storedById = new HashMap<UUID, StoredSourceEntity>();
+		private final Map<String, List<StoredSourceEntity>> storedByKey = new HashMap<String, List<StoredSourceEntity>>();
+		private final Map<RelationId, Set<Long>> storedRelations = new HashMap<RelationId, Set<Long>>();
+
+		private final Set<UUID> matched = new HashSet<UUID>();
+		private final Map<RelationId, Set<Long>> incomingRelations = new HashMap<RelationId, Set<Long>>();
+
+		private final List<Object[]> removedOccurrences = new ArrayList<Object[]>();
+		private final List<Object[]> addedOccurrences = new ArrayList<Object[]>();
+		private final Set<UUID> dirtyEntities = new LinkedHashSet<UUID>();
+
+		/**
+		 * Returns a stored source entity of the same type and exactly the same semantic identifiers not matched before, or null
+		 */
+		public StoredSourceEntity match(Long entityTypeId, Collection<SemanticIdentifier> semanticIdentifiers) {
+
+			List<Long> semanticIds = new ArrayList<Long>(semanticIdentifiers.size());
+			for (SemanticIdentifier semanticIdentifier : semanticIdentifiers)
+				semanticIds.add(semanticIdentifier.getId());
+
+			List<StoredSourceEntity> candidates = storedByKey.get(matchKey(entityTypeId, semanticIds));
+			if (candidates == null || candidates.isEmpty())
+				return null;
+
+			StoredSourceEntity stored = candidates.remove(0);
+			matched.add(stored.getId());
+			return stored;
+		}
+
+		/**
+		 * Diffs the occurrences of a matched entity, returns true if they changed
+		 */
+		public boolean updateOccurrences(StoredSourceEntity stored, Collection<FieldOccurrence> occurrences) {
+
+			Set<Long> incoming = new HashSet<Long>();
+			for (FieldOccurrence occurrence : occurrences)
+				incoming.add(occurrence.getId());
+
+			if (incoming.equals(stored.occurrenceIds))
+				return false;
+
+			for (Long occurrenceId : stored.occurrenceIds) {
+				if (!incoming.contains(occurrenceId))
+					removedOccurrences.add(new Object[] { stored.getId(), occurrenceId });
+			}
+			for (Long occurrenceId : incoming) {
+				if (!stored.occurrenceIds.contains(occurrenceId))
+					addedOccurrences.add(new Object[] { stored.getId(), occurrenceId });
+			}
+
+			dirtyEntities.add(stored.getFinalEntityId());
+			return true;
+		}
+
+		public boolean isMatched(UUID sourceEntityId) {
+			return matched.contains(sourceEntityId);
+		}
+
+		/**
+		 * Registers an incoming relation between two matched entities, duplicates are merged
+		 */
+		public void addRelation(RelationId relationId, Collection<FieldOccurrence> occurrences) {
+			Set<Long> incoming = incomingRelations.computeIfAbsent(relationId, id -> new HashSet<Long>());
+			for (FieldOccurrence occurrence : occurrences)
+				incoming.add(occurrence.getId());
+		}
+
+		/**
+		 * Writes the changes: occurrence join rows of matched entities and relations, new and removed relations between
+		 * matched entities, logical delete of the unmatched stored entities and the dirty marks of the final entities
+		 * that changed. Field occurrences of the record must be already stored.
+		 *
+		 * @return number of stored source entities logically deleted
+		 */
+		public int finish() {
+
+			List<UUID> deleted = new ArrayList<UUID>();
+			for (StoredSourceEntity stored : storedById.values()) {
+				if (!matched.contains(stored.getId())) {
+					deleted.add(stored.getId());
+					dirtyEntities.add(stored.getFinalEntityId());
+				}
+			}
+
+			List<Object[]> newRelations = new ArrayList<Object[]>();
+			List<Object[]> removedRelationOccurrences = new ArrayList<Object[]>();
+			List<Object[]> addedRelationOccurrences = new ArrayList<Object[]>();
+			List<Object[]> removedRelations = new ArrayList<Object[]>();
+
+			for (Map.Entry<RelationId, Set<Long>> entry : incomingRelations.entrySet()) {
+				RelationId id = entry.getKey();
+				Set<Long> stored = storedRelations.get(id);
+
+				if (stored == null)
+					newRelations.add(relationRow(id));
+				else if (stored.equals(entry.getValue()))
+					continue;
+
+				for (Long occurrenceId : entry.getValue()) {
+					if (stored == null || !stored.contains(occurrenceId))
+						addedRelationOccurrences.add(relationRow(id, occurrenceId));
+				}
+				if (stored != null) {
+					for (Long occurrenceId : stored) {
+						if (!entry.getValue().contains(occurrenceId))
+							removedRelationOccurrences.add(relationRow(id, occurrenceId));
+					}
+				}
+				markRelationDirty(id);
+			}
+
+			// relations between matched entities that are not in the record anymore
+			for (Map.Entry<RelationId, Set<Long>> entry : storedRelations.entrySet()) {
+				RelationId id = entry.getKey();
+				if (matched.contains(id.fromEntityId) && matched.contains(id.toEntityId) && !incomingRelations.containsKey(id)) {
+					for (Long occurrenceId : entry.getValue())
+						removedRelationOccurrences.add(relationRow(id, occurrenceId));
+					removedRelations.add(relationRow(id));
+					markRelationDirty(id);
+				}
+			}
+
+			dirtyEntities.remove(null);
+
+			entityManager.unwrap(Session.class).doWork(connection -> {
+				executeBatch(connection.prepareStatement("DELETE FROM source_entity_fieldoccr WHERE entity_id = ? AND fieldoccr_id = ?"), removedOccurrences);
+				executeBatch(connection.prepareStatement("INSERT INTO source_entity_fieldoccr (entity_id, fieldoccr_id) VALUES (?, ?)"), addedOccurrences);
+				executeBatch(connection.prepareStatement("DELETE FROM source_relation_fieldoccr WHERE relation_type_id = ? AND from_entity_id = ? AND to_entity_id = ? AND fieldoccr_id = ?"), removedRelationOccurrences);
+				executeBatch(connection.prepareStatement("DELETE FROM source_relation WHERE relation_type_id = ? AND from_entity_id = ? AND to_entity_id = ?"), removedRelations);
+				executeBatch(connection.prepareStatement("INSERT INTO source_relation (relation_type_id, from_entity_id, to_entity_id, confidence) VALUES (?, ?, ?, 1.0)"), newRelations);
+				executeBatch(connection.prepareStatement("INSERT INTO source_relation_fieldoccr (relation_type_id, from_entity_id, to_entity_id, fieldoccr_id) VALUES (?, ?, ?, ?)"), addedRelationOccurrences);
+				executeBatch(connection.prepareStatement("UPDATE source_entity SET deleted = TRUE WHERE uuid = ?"), rows(deleted));
+				executeBatch(connection.prepareStatement("UPDATE entity SET dirty = TRUE WHERE uuid = ?"), rows(dirtyEntities));
+			});
+
+			return deleted.size();
+		}
+
+		private void markRelationDirty(RelationId id) {
+			dirtyEntities.add(storedById.get(id.fromEntityId).getFinalEntityId());
+			dirtyEntities.add(storedById.get(id.toEntityId).getFinalEntityId());
+		}
+	}
+
+	private static Object[] relationRow(RelationId id, Object... rest) {
+		Object[] row = new Object[3 + rest.length];
+		row[0] = id.relationTypeId;
+		row[1] = id.fromEntityId;
+		row[2] = id.toEntityId;
+		System.arraycopy(rest, 0, row, 3, rest.length);
+		return row;
+	}
+
+	private static List<Object[]> rows(Collection<UUID> ids) {
+		List<Object[]> rows = new ArrayList<Object[]>(ids.size());
+		for (UUID id : ids)
+			rows.add(new Object[] { id });
+		return rows;
+	}
+
+	private static void executeBatch(PreparedStatement statement, List<Object[]> rows) throws SQLException {
+		try (statement) {
+			if (rows.isEmpty())
+				return;
+			for (Object[] row : rows) {
+				for (int i = 0; i < row.length; i++)
+					statement.setObject(i + 1, row[i]);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+}
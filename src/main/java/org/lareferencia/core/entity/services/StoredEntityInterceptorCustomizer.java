@@ -0,0 +1,87 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.services;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.hibernate.Interceptor;
+import org.lareferencia.core.entity.domain.CacheableEntityBase;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registers a session factory interceptor that answers Hibernate's "is this instance transient?" question
+ * from CacheableEntityBase.isNew(). Cached semantic identifiers and field occurrences referenced by source
+ * entities are usually not managed by the current session (they were loaded or inserted by another one, or
+ * written directly with JDBC), and without this Hibernate checks each of them with a select on flush.
+ * Before every flush it also writes the write-behind buffers of the cached stores bound to the transaction.
+ * Hibernate accepts a single session factory interceptor, so an application that needs its own must extend
+ * StoredEntityInterceptor and call the overridden methods; any other configured interceptor fails the startup.
+ */
+@Component
+public class StoredEntityInterceptorCustomizer implements HibernatePropertiesCustomizer {
+
+	static final String INTERCEPTOR_PROPERTY = "hibernate.session_factory.interceptor";
+
+	@Override
+	public void customize(Map<String, Object> hibernateProperties) {
+		Object configured = hibernateProperties.get(INTERCEPTOR_PROPERTY);
+
+		if (configured == null)
+			hibernateProperties.put(INTERCEPTOR_PROPERTY, new StoredEntityInterceptor());
+		else if (!isStoredEntityInterceptor(configured))
+			throw new IllegalStateException("The session factory interceptor " + configured + " (" + INTERCEPTOR_PROPERTY
+					+ ") must extend " + StoredEntityInterceptor.class.getName()
+					+ ", otherwise the write-behind buffers of the cached stores are never flushed");
+	}
+
+	private static boolean isStoredEntityInterceptor(Object configured) {
+		if (configured instanceof StoredEntityInterceptor)
+			return true;
+		if (configured instanceof Class)
+			return StoredEntityInterceptor.class.isAssignableFrom((Class<?>) configured);
+		if (configured instanceof String) {
+			try {
+				return StoredEntityInterceptor.class.isAssignableFrom(Class.forName((String) configured));
+			} catch (ClassNotFoundException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	public static class StoredEntityInterceptor implements Interceptor {
+
+		@Override
+		public Boolean isTransient(Object entity) {
+			if (entity instanceof CacheableEntityBase)
+				return ((CacheableEntityBase<?>) entity).isNew();
+			return null;
+		}
+
+		@Override
+		public void preFlush(Iterator<Object> entities) {
+			ConcurrentCachedStore.writeAllPendingWrites();
+		}
+	}
+}
@@ -22,7 +22,15 @@ package org.lareferencia.core.entity.workers;
 
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -30,6 +38,8 @@ import org.lareferencia.core.repository.parquet.RecordValidation;
 import org.lareferencia.core.repository.parquet.ValidationStatParquetRepository;
 import org.lareferencia.core.service.management.SnapshotLogService;
 import org.lareferencia.core.entity.services.EntityDataService;
+import org.lareferencia.core.entity.services.EntityLoadingBatchResult;
+import org.lareferencia.core.entity.xml.XMLEntityRelationData;
 import org.lareferencia.core.metadata.IMDFormatTransformer;
 import org.lareferencia.core.metadata.IMetadataStore;
 import org.lareferencia.core.metadata.ISnapshotStore;
@@ -46,6 +56,7 @@ import org.lareferencia.core.worker.NetworkRunningContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.w3c.dom.Document;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -93,6 +104,56 @@ public class EntityExtractionWorker extends BaseWorker<NetworkRunningContext> {
 	
 	@Getter @Setter
 	private Integer entityCacheSize = null;
+
+	/**
+	 * Number of records persisted per transaction
+	 */
+	@Getter @Setter
+	private Integer persistenceBatchSize = 100;
+
+	private List<XMLEntityRelationData> pendingData = new ArrayList<XMLEntityRelationData>();
+	private List<RecordValidation> pendingRecords = new ArrayList<RecordValidation>();
+
+	/**
+	 * Threads fetching, transforming and parsing records. With 1 parser and 1 writer the extraction runs
+	 * sequentially on the worker thread, otherwise as a pipeline (fetch + XSLT + parse -> persist)
+	 */
+	@Getter @Setter
+	private Integer parallelism = 1;
+
+	/**
+	 * Threads persisting parsed records, each one groups them in transactions of persistenceBatchSize records
+	 */
+	@Getter @Setter
+	private Integer writerThreads = 1;
+
+	/**
+	 * Parsed records waiting to be persisted, bounds memory when the writers are slower than the parsers
+	 */
+	@Getter @Setter
+	private Integer queueCapacity = 1000;
+
+	// pipeline stage counters
+	private final AtomicLong fetchedCount = new AtomicLong();
+	private final AtomicLong transformedCount = new AtomicLong();
+	private final AtomicLong parsedCount = new AtomicLong();
+	private final AtomicLong persistedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	// parsed records never handed to the writers because the pipeline was interrupted, also counted as failed
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	// records finished (persisted or failed) in pipelined mode, they complete out of order
+	private final AtomicInteger completedRecords = new AtomicInteger();
+	private volatile boolean pipelined = false;
+
+	/**
+	 * Merges the dirty entities after each page (and at the end) instead of leaving the merge for the shell.
+	 * In pipelined mode the merge only runs at the end, pages are not persisted in order
+	 */
+	@Getter @Setter
+	private boolean mergeAfterPage = false;
+
+	private static final ParsedRecord END_OF_RECORDS = new ParsedRecord(null, null);
 	
 //	@Autowired
 //	EntityLRUCache entityCache;
@@ -162,6 +223,12 @@ public class EntityExtractionWorker extends BaseWorker<NetworkRunningContext> {
 
 		preRun();
 
+		if ( parallelism > 1 || writerThreads > 1 ) {
+			runPipelined();
+			postRun();
+			return;
+		}
+
 		if (currentRecordIndex == 0)
 			prePage();
 
@@ -193,66 +260,320 @@ public class EntityExtractionWorker extends BaseWorker<NetworkRunningContext> {
 		
 		try {
 			
-			OAIRecordMetadata metadata = new OAIRecordMetadata( record.getIdentifier(), 
-				metadataStore.getMetadata(snapshotMetadata, record.getPublishedMetadataHash()) ); 
-			
 			profiler = new Profiler(profileMode, "Record internalID: " + record.getRecordId() + " ").start();
+			erService.setProfiler(profiler);
 			
-			// record parameters to transformer
-			metadataTransformer.setParameter("fingerprint", snapshotMetadata.getNetwork().getAcronym() + "_" + record.getRecordId() );
-			metadataTransformer.setParameter("identifier", record.getIdentifier());
-			// Note: timestamp not available in RecordValidation, using current time or omitting
+			XMLEntityRelationData entityData = extractEntityData(record, metadataTransformer, profiler);
 			
-			Document recordMetadataDocument = metadata.getDOMDocument();
-			Document entityDataDocument =  metadataTransformer.transform(recordMetadataDocument);
+			pendingData.add(entityData);
+			pendingRecords.add(record);
 			
-			profiler.messure("RecordXML2EntityXML", false);
-					
-			if ( debugMode ) {
-				logger.info( metadata.toString() );
-				logger.info( metadataTransformer.transformToString(metadata.getDOMDocument()) );
-			}
-			
-			erService.setProfiler(profiler);
-			erService.parseAndPersistEntityRelationDataFromXMLDocument(entityDataDocument, false);
+			if ( pendingData.size() >= persistenceBatchSize )
+				persistPendingRecords();
 			
 			profiler.report(logger);
 			
-			
-		} catch (OAIRecordMetadataParseException e) {
-			String msg = "Error parsing metadata for record internalID: " + record.getRecordId() + " -- identifier: " +   record.getIdentifier() + " -- msg: " + e.getMessage() ;
-			logError(msg);
-		} catch (MetadataRecordStoreException e) {
-			String msg = "Error retrieving metadata for record internalID: " + record.getRecordId() + " -- identifier: " +   record.getIdentifier() + " -- msg: " + e.getMessage() ;
-			logError(msg);
 		} catch (Exception e) {
-			String msg = "Error processing record internalID: " + record.getRecordId() + " -- identifier: " +   record.getIdentifier() + " -- msg: " + e.getMessage() ;
-			logError(msg);
+			logRecordError(record, e);
+		}
+		
+	}
+
+	/**
+	 * Fetches the record metadata, transforms it to the entity-relation schema and parses it (no persistence)
+	 */
+	private XMLEntityRelationData extractEntityData(RecordValidation record, IMDFormatTransformer transformer, Profiler profiler) throws Exception {
+
+		OAIRecordMetadata metadata = new OAIRecordMetadata( record.getIdentifier(), 
+			metadataStore.getMetadata(snapshotMetadata, record.getPublishedMetadataHash()) ); 
+		fetchedCount.incrementAndGet();
+		
+		// record parameters to transformer
+		transformer.setParameter("fingerprint", snapshotMetadata.getNetwork().getAcronym() + "_" + record.getRecordId() );
+		transformer.setParameter("identifier", record.getIdentifier());
+		// Note: timestamp not available in RecordValidation, using current time or omitting
+		
+		Document recordMetadataDocument = metadata.getDOMDocument();
+		Document entityDataDocument =  transformer.transform(recordMetadataDocument);
+		transformedCount.incrementAndGet();
+		
+		profiler.messure("RecordXML2EntityXML", false);
+				
+		if ( debugMode ) {
+			logger.info( metadata.toString() );
+			logger.info( transformer.transformToString(metadata.getDOMDocument()) );
 		}
 		
+		XMLEntityRelationData entityData = erService.parseEntityRelationDataFromXmlDocumentNonTransactional(entityDataDocument);
+		parsedCount.incrementAndGet();
+		profiler.messure("EntityXML Parse");
+
+		return entityData;
+	}
+
+	private void logRecordError(RecordValidation record, Exception e) {
+
+		String msg;
+		if ( e instanceof OAIRecordMetadataParseException )
+			msg = "Error parsing metadata for record internalID: ";
+		else if ( e instanceof MetadataRecordStoreException )
+			msg = "Error retrieving metadata for record internalID: ";
+		else
+			msg = "Error processing record internalID: ";
+
+		logError(msg + record.getRecordId() + " -- identifier: " +   record.getIdentifier() + " -- msg: " + e.getMessage());
+	}
+
+	/**
+	 * Pipelined extraction: a pool of parallelism threads fetches, transforms (each thread with its own transformer,
+	 * XSLT transformers are not thread safe) and parses records into a bounded queue, writerThreads threads take them
+	 * from the queue and persist them in batch transactions. Parser tasks are submitted to a bounded queue too, when it
+	 * is full the worker thread parses the record itself, so pending tasks never hold the whole snapshot.
+	 */
+	private void runPipelined() {
+
+		pipelined = true;
+
+		logInfo(runningContext.toString() + String.format(" Pipelined entity extraction: %s parser threads, %s writer threads, batches of %s records", 
+				parallelism, writerThreads, persistenceBatchSize));
+
+		BlockingQueue<ParsedRecord> parsedQueue = new ArrayBlockingQueue<ParsedRecord>(queueCapacity);
+		ThreadLocal<IMDFormatTransformer> transformers = ThreadLocal.withInitial(this::createMetadataTransformer);
+		Profiler disabledProfiler = new Profiler(false, "");
+
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int i = 0; i < writerThreads; i++) {
+			Thread writer = new Thread(() -> writeParsedRecords(parsedQueue), "entity-extraction-writer-" + i);
+			writer.start();
+			writers.add(writer);
+		}
+
+		AtomicInteger parserNumber = new AtomicInteger();
+		ThreadPoolExecutor parsers = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(parallelism * 2),
+				runnable -> new Thread(runnable, "entity-extraction-parser-" + parserNumber.incrementAndGet()),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		int submitted = 0;
+		for (RecordValidation record : recordsToProcess) {
+
+			// a record parsed by this thread (caller runs) was interrupted, the rest are not even fetched
+			if ( Thread.currentThread().isInterrupted() ) {
+				recordsDropped(recordsToProcess.size() - submitted);
+				break;
+			}
+
+			submitted++;
+			parsers.execute(() -> {
+				try {
+					XMLEntityRelationData entityData = extractEntityData(record, transformers.get(), disabledProfiler);
+					// blocks while the writers are behind
+					parsedQueue.put(new ParsedRecord(record, entityData));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					recordsDropped(1);
+				} catch (Exception e) {
+					logRecordError(record, e);
+					failedCount.incrementAndGet();
+					recordsCompleted(1);
+				}
+			});
+		}
+
+		try {
+			parsers.shutdown();
+			parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+			for (int i = 0; i < writerThreads; i++)
+				parsedQueue.put(END_OF_RECORDS);
+
+			for (Thread writer : writers)
+				writer.join();
+
+		} catch (InterruptedException e) {
+			logError(runningContext.toString() + " Pipelined entity extraction interrupted");
+			// records whose parsing never started
+			recordsDropped(parsers.shutdownNow().size());
+			writers.forEach(Thread::interrupt);
+			Thread.currentThread().interrupt();
+
+			// parsed records the writers will not take
+			List<ParsedRecord> unwritten = new ArrayList<ParsedRecord>();
+			parsedQueue.drainTo(unwritten);
+			unwritten.removeIf(parsed -> parsed == END_OF_RECORDS);
+			recordsDropped(unwritten.size());
+		}
+
+		if ( droppedCount.get() > 0 )
+			logError(runningContext.toString() + " Pipelined entity extraction interrupted, " + droppedCount.get() + " records were not persisted");
+	}
+
+	private void recordsDropped(int count) {
+		if ( count == 0 )
+			return;
+		droppedCount.addAndGet(count);
+		failedCount.addAndGet(count);
+		recordsCompleted(count);
 	}
 
+	private IMDFormatTransformer createMetadataTransformer() {
+		try {
+			IMDFormatTransformer transformer = trfService.getMDTransformer(runningContext.getNetwork().getMetadataStoreSchema(), targetSchemaName);
+			transformer.setParameter("networkAcronym", runningContext.getNetwork().getAcronym() );
+			return transformer;
+		} catch (Exception e) {
+			throw new IllegalStateException("Error on loading metadata transformer services : " + runningContext.getNetwork().getMetadataStoreSchema() + "2" + targetSchemaName, e);
+		}
+	}
+
+	/**
+	 * Writer loop: takes parsed records until the end mark and persists them in batches of up to persistenceBatchSize,
+	 * a batch is also closed when no more records are ready
+	 */
+	private void writeParsedRecords(BlockingQueue<ParsedRecord> parsedQueue) {
+
+		List<ParsedRecord> batch = new ArrayList<ParsedRecord>();
+		boolean end = false;
+
+		try {
+			while ( !end ) {
+
+				ParsedRecord parsed = parsedQueue.take();
+				if ( parsed == END_OF_RECORDS )
+					break;
+				batch.add(parsed);
+
+				while ( batch.size() < persistenceBatchSize ) {
+					ParsedRecord next = parsedQueue.poll(100, TimeUnit.MILLISECONDS);
+					if ( next == null )
+						break;
+					if ( next == END_OF_RECORDS ) {
+						end = true;
+						break;
+					}
+					batch.add(next);
+				}
+
+				persistBatch(batch);
+				batch = new ArrayList<ParsedRecord>();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			recordsDropped(batch.size());
+		}
+	}
+
+	private void persistBatch(List<ParsedRecord> batch) {
+
+		List<XMLEntityRelationData> data = new ArrayList<XMLEntityRelationData>(batch.size());
+		for (ParsedRecord parsed : batch)
+			data.add(parsed.getData());
+
+		int failures = 0;
+
+		try {
+			EntityLoadingBatchResult result = erService.persistEntityRelationDataBatch(data, false);
+
+			for (Map.Entry<Integer, Exception> failure : result.getFailures().entrySet()) {
+				RecordValidation record = batch.get(failure.getKey()).getRecord();
+				logError("Error processing record internalID: " + record.getRecordId() + " -- identifier: " +   record.getIdentifier() + " -- msg: " + failure.getValue().getMessage());
+			}
+			failures = result.getFailures().size();
+
+		} catch (Exception e) {
+			logError("Error persisting batch of " + batch.size() + " records, starting at internalID: " + batch.get(0).getRecord().getRecordId() + " -- msg: " + e.getMessage());
+			failures = batch.size();
+		}
+
+		persistedCount.addAndGet(batch.size() - failures);
+		failedCount.addAndGet(failures);
+		recordsCompleted(batch.size());
+	}
+
+	private void recordsCompleted(int count) {
+
+		int completed = completedRecords.addAndGet(count);
+
+		// log once per page, whatever thread crosses the page boundary
+		if ( completed / pageSize != (completed - count) / pageSize ) {
+			double seconds = Math.max(1, (System.nanoTime() - initialTime) / 1000000000.0);
+			logger.debug("Entity extraction progress " + runningContext.getNetwork().getAcronym() + "::" + this.targetSchemaName 
+					+ " :: " + percentajeFormat.format(this.getCompletionRate()) + " (" + completed + " / " + totalRecords + " records processed)" );
+			logInfo( runningContext.toString() + String.format(" Pipeline throughput (records/s) fetch: %.1f transform: %.1f parse: %.1f persist: %.1f -- failed: %s (dropped: %s)", 
+					fetchedCount.get() / seconds, transformedCount.get() / seconds, parsedCount.get() / seconds, persistedCount.get() / seconds, failedCount.get(), droppedCount.get()) );
+		}
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class ParsedRecord {
+		private RecordValidation record;
+		private XMLEntityRelationData data;
+	}
+
+
+	/**
+	 * Persists the records parsed so far in one transaction, failed records are logged and skipped
+	 */
+	private void persistPendingRecords() {
+		
+		if ( pendingData.isEmpty() )
+			return;
+		
+		try {
+			EntityLoadingBatchResult result = erService.persistEntityRelationDataBatch(pendingData, false);
+			
+			for (Map.Entry<Integer, Exception> failure : result.getFailures().entrySet()) {
+				RecordValidation record = pendingRecords.get(failure.getKey());
+				logError("Error processing record internalID: " + record.getRecordId() + " -- identifier: " +   record.getIdentifier() + " -- msg: " + failure.getValue().getMessage());
+			}
+			
+		} catch (Exception e) {
+			logError("Error persisting batch of " + pendingData.size() + " records, starting at internalID: " + pendingRecords.get(0).getRecordId() + " -- msg: " + e.getMessage());
+		}
+		
+		pendingData = new ArrayList<XMLEntityRelationData>();
+		pendingRecords = new ArrayList<RecordValidation>();
+	}
 
 	public void postPage() {
 		
+		persistPendingRecords();
+		
 		endTime   = System.nanoTime();
 		
 		long totalTime = endTime - startTime;
 		logInfo( runningContext.toString() + String.format(" Extracting and persisting entities from %s metadata records to db took: %sms", pageSize, totalTime/1000000) );
 
+		if ( mergeAfterPage )
+			mergeDirtyEntities();
+	}
+
+	private void mergeDirtyEntities() {
+		try {
+			erService.mergeDirtyEntitiesAndRelations();
+		} catch (Exception e) {
+			// the merge resumes from its checkpoints on the next page or run
+			logError(runningContext.toString() + " Error merging dirty entities :: " + e.getMessage());
+		}
 	}
 
 	public void postRun() {
 		
+		persistPendingRecords();
+		
 //		if ( entityCacheSize != null && entityCacheSize > 0) {
 //			logInfo(runningContext.toString() + " Persisting entity cache ...");	
 //			entityCache.syncAndClose();
 //		}
 		
-		logInfo(runningContext.toString() + " Now merge needs to be done in shell.");
-		//erService.mergeEntityRelationData();
-		
-		logInfo(runningContext.toString() + " EntityRelation worker extraction on snapshot:" + snapshotId + " :: FINISHED - execute the merge action in shell");
+		if ( mergeAfterPage ) {
+			mergeDirtyEntities();
+			logInfo(runningContext.toString() + " EntityRelation worker extraction on snapshot:" + snapshotId + " :: FINISHED");
+		} else {
+			logInfo(runningContext.toString() + " Now merge needs to be done in shell.");
+			logInfo(runningContext.toString() + " EntityRelation worker extraction on snapshot:" + snapshotId + " :: FINISHED - execute the merge action in shell");
+		}
 		
 		
 		long finalTime = System.nanoTime();  
@@ -270,6 +591,8 @@ public class EntityExtractionWorker extends BaseWorker<NetworkRunningContext> {
 	Double getCompletionRate() {
 		if ( totalRecords == 0 )
 			return 0.0;
+		else if ( pipelined )
+			return ( completedRecords.doubleValue() / totalRecords.doubleValue() );
 		else
 			return ( currentRecordIndex.doubleValue() / totalRecords.doubleValue() );
 	}	
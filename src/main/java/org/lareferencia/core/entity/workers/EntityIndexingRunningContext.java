@@ -70,6 +70,54 @@ public class EntityIndexingRunningContext implements IRunningContext {
 	@Setter
 	int processToRun = 0;
 
+	/** Seek pagination by uuid instead of OFFSET pages (see EntityKeysetPaginator) */
+	@Getter
+	@Setter
+	Boolean keysetPagination = false;
+
+	/** Streams only entity ids to the indexer (IEntityIndexer.indexById), for indexers that reload the entities themselves */
+	@Getter
+	@Setter
+	Boolean idStreaming = false;
+
+	/** Keyset pagination filters by source and last update on the entity_provenance_source projection */
+	@Getter
+	@Setter
+	Boolean provenanceProjection = false;
+
+	/** Pages fetched ahead on a background thread while the current one is indexed (0 disables the prefetch) */
+	@Getter
+	@Setter
+	int prefetchDepth = 0;
+
+	/** Entities of each page are sent together to IEntityIndexer.indexBatch, which preloads their relations in bulk */
+	@Getter
+	@Setter
+	Boolean batchIndexing = false;
+
+	/** Continues after the checkpoint of the last run of this context (keyset pagination is used) */
+	@Getter
+	@Setter
+	Boolean resume = false;
+
+	/**
+	 * UUID range partitions of a partitioned run (0 disables it), claimed through leases by the workers of every node
+	 * running the same context (see IndexingLeaseService)
+	 */
+	@Getter
+	@Setter
+	int partitions = 0;
+
+	/** Partitions indexed in parallel by this worker in a partitioned run */
+	@Getter
+	@Setter
+	int partitionThreads = 1;
+
+	/** With keyset pagination and no filters, the total comes from the planner estimate instead of a count */
+	@Getter
+	@Setter
+	Boolean approximateCount = false;
+
 	public EntityIndexingRunningContext(String indexingConfigFile, String indexeBeanName) {
 		super();
 		this.indexingConfigFile = indexingConfigFile;
@@ -84,6 +132,15 @@ public class EntityIndexingRunningContext implements IRunningContext {
 			return ID_PREFIX  + "-" +  indexerBeanName; 
 	}
 	
+	/**
+	 * Key of the indexing checkpoint and of the partition leases of a run: a resumed or joined run must select the
+	 * same entities (source and last update filters) and do the same with them (delete mode)
+	 */
+	public String getCheckpointId() {
+		return getId() + "::" + (provenanceSource != null ? provenanceSource : "-") + "::" + (lastUdate != null ? lastUdate : "-")
+				+ (deleteMode ? "::delete" : "");
+	}
+
     @Override
     public String toString() {
     	if ( entityType != null )
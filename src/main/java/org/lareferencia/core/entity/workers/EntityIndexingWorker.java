@@ -1,20 +1,45 @@
 package org.lareferencia.core.entity.workers;
 
+import java.lang.management.ManagementFactory;
 import java.text.NumberFormat;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.lareferencia.core.entity.domain.Entity;
+import org.lareferencia.core.entity.domain.IndexingCheckpoint;
+import org.lareferencia.core.entity.domain.IndexingLease;
 import org.lareferencia.core.entity.indexing.service.EntityIndexingException;
 import org.lareferencia.core.entity.indexing.service.EntityIndexingService;
 import org.lareferencia.core.entity.indexing.service.IEntityIndexer;
+import org.lareferencia.core.entity.repositories.jpa.EntityProvenanceSourceRepository;
 import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
+import org.lareferencia.core.entity.repositories.jpa.IndexingCheckpointRepository;
 import org.lareferencia.core.entity.services.EntityDataService;
+import org.lareferencia.core.entity.services.IndexingLeaseService;
 import org.lareferencia.core.entity.services.EntityLoadingMonitorService;
 import org.lareferencia.core.util.Profiler;
 import org.lareferencia.core.worker.BaseBatchWorker;
+import org.lareferencia.core.worker.IPaginator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -23,6 +48,9 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
 
     private static Logger logger = LogManager.getLogger(EntityIndexingWorker.class);
 
+    /** Wait between claims while the pending partitions are held by other owners */
+    private static final long PARTITION_POLL_MILLIS = 10000;
+
     @Getter
     @Setter
     Boolean enableProfiling = true;
@@ -33,10 +61,16 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
     @Autowired
     EntityRepository entityRepository;
 
+    @Autowired
+    EntityProvenanceSourceRepository provenanceSourceRepository;
+
     @Autowired
     EntityIndexingService indexingService;
 
-    EntityPaginator entityPaginator;
+    IPaginator<Entity> entityPaginator;
+
+    /** Keyset and id streaming modes, entityPaginator may wrap it in a PrefetchingPaginator */
+    EntityKeysetPaginator keysetPaginator;
 
     IEntityIndexer indexer;
 
@@ -49,16 +83,392 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
     @Autowired
     EntityLoadingMonitorService entityMonitorService;
 
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    IndexingLeaseService leaseService;
+
+    @Autowired
+    IndexingCheckpointRepository checkpointRepository;
+
+    /** Checkpoint of the run, updated after every successful flush */
+    IndexingCheckpoint checkpoint;
+
+    /** Last entity sent to the indexer in the current page and entities in the page */
+    UUID pageLastEntityId;
+    int pageEntities = 0;
+
+    /** Entities of the current page waiting for indexBatch (batch indexing mode) */
+    List<Entity> pageBatch = new ArrayList<Entity>();
+
+    /** Set when the last page was read, the checkpoint is then discarded */
+    boolean runCompleted = false;
+
+    /** Set when a page flush failed, the run stops and the checkpoint stays at the last flushed page */
+    boolean flushFailed = false;
+
+    /** Entities the indexer failed to index, a run with failed entities is not finished (see IEntityIndexer.finishRun) */
+    long entitiesFailed = 0;
+
+    /** Set by stop(), the page loops of the keyset, id streaming and partitioned modes end at the next page */
+    volatile boolean stopRequested = false;
+
+    /** Set when BaseBatchWorker pages the run by offset up to the page total, the run is complete once it returns */
+    boolean offsetPagination = false;
+
+    @PersistenceContext
+    EntityManager entityManager;
+
     //private ExecutorService executorService;
 
     public EntityIndexingWorker() {
         super();
     }
 
+    @Override
+    public void run() {
+        try {
+            if (!runningContext.getIdStreaming() && runningContext.getPartitions() <= 0 && !usesKeysetPagination()) {
+                offsetPagination = true;
+                super.run();
+                return;
+            }
+
+            preRun();
+            if (indexer != null) {
+                if (runningContext.getPartitions() > 0)
+                    indexPartitions();
+                else if (runningContext.getIdStreaming())
+                    streamEntityIds();
+                else if (keysetPaginator != null)
+                    indexKeysetPages();
+            }
+            postRun();
+        } finally {
+            // postRun is skipped when indexing throws, the prefetch thread must not outlive the run
+            if (entityPaginator instanceof PrefetchingPaginator)
+                ((PrefetchingPaginator<Entity>) entityPaginator).close();
+        }
+    }
+
+    private boolean usesKeysetPagination() {
+        return runningContext.getKeysetPagination() || runningContext.getResume();
+    }
+
+    /**
+     * Keyset mode: pages go through the same prePage / processItem / postPage steps as in BaseBatchWorker, but until
+     * the paginator is exhausted (a short page) instead of up to the page total counted when the run starts, which is
+     * only an estimate with approximateCount
+     */
+    private void indexKeysetPages() {
+
+        int pageSize = runningContext.getPageSize();
+        Page<Entity> page;
+
+        do {
+            page = entityPaginator.nextPage();
+            prePage();
+            for (Entity entity : page)
+                processItem(entity);
+            postPage();
+        } while (page.getNumberOfElements() >= pageSize && !flushFailed && !stopRequested && !Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * Partitioned mode: the UUID space is split in ranges leased through IndexingLeaseService, partitionThreads threads
+     * of this worker (and the workers of other nodes running the same context) claim ranges until all of them are
+     * completed. Every thread but the first gets its own indexer from EntityIndexingService, closed when the thread
+     * ends; the indexer bean must be prototype scoped to run more than one thread, the run fails otherwise.
+     *
+     * The run state of the indexer is stored with the partitions by the node that creates them, every indexer of every
+     * node begins the run with it. A run that had failed entities is not complete.
+     */
+    private void indexPartitions() {
+
+        int threads = Math.max(1, runningContext.getPartitionThreads());
+        if (threads > 1 && !indexingService.isPrototypeIndexer(runningContext.getIndexerBeanName())) {
+            logError("Partitioned indexing with " + threads + " threads requires a prototype scoped indexer bean, "
+                    + runningContext.getIndexerBeanName() + " is shared :: " + runningContext.toString());
+            error();
+            return;
+        }
+
+        String scope = runningContext.getCheckpointId();
+        String createdState = indexer.createRunState();
+        List<IndexingLease> leases = leaseService.createLeases(scope, runningContext.getPartitions(), createdState);
+
+        // joining a run in progress started without a run state, the indexer would publish a partial build
+        String runState = leases.get(0).getIndexerState();
+        if (createdState != null && runState == null) {
+            logError("Partitioned run in progress without indexer run state, it cannot be joined by this indexer :: " + runningContext.toString());
+            error();
+            return;
+        }
+
+        try {
+            indexer.beginRun(runState);
+        } catch (EntityIndexingException e) {
+            logError("Error beginning partitioned indexing run: " + runningContext.toString() + " :: " + e.getMessage());
+            error();
+            return;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "entity-indexing-" + threadNumber.incrementAndGet()));
+
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 0; i < threads; i++) {
+            boolean first = i == 0;
+            results.add(pool.submit(() -> {
+                // the first thread uses the worker indexer, closed in postRun
+                if (first)
+                    return indexLeasedPartitions(scope, indexer);
+                IEntityIndexer threadIndexer = indexingService.getIndexer(runningContext.getIndexingConfigFile(), runningContext.getIndexerBeanName());
+                try {
+                    threadIndexer.beginRun(runState);
+                    return indexLeasedPartitions(scope, threadIndexer);
+                } finally {
+                    closeIndexer(threadIndexer);
+                }
+            }));
+        }
+
+        long indexed = 0;
+        for (Future<Long> result : results) {
+            try {
+                indexed += result.get();
+            } catch (ExecutionException e) {
+                // the partition lease expires and is resumed by another owner
+                logError("Partitioned indexing thread failed: " + runningContext.toString() + " :: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pool.shutdownNow();
+
+        // the run is complete once every partition is, on this node or another, without failed entities; only the
+        // node that finishes it publishes the build, the others see it finished or pending
+        runCompleted = !stopRequested && leaseService.finishRun(scope);
+
+        logInfo("Partitioned indexing finished on this node, entities sent to indexer: " + indexed + " :: " + runningContext.toString());
+    }
+
+    private long indexLeasedPartitions(String scope, IEntityIndexer partitionIndexer) throws InterruptedException {
+
+        String owner = ManagementFactory.getRuntimeMXBean().getName() + "::" + Thread.currentThread().getName();
+        long indexed = 0;
+
+        while (!stopRequested && !Thread.currentThread().isInterrupted()) {
+            Optional<IndexingLease> lease = leaseService.claim(scope, owner);
+            if (lease.isPresent())
+                indexed += indexPartition(lease.get(), owner, partitionIndexer);
+            else if (leaseService.hasPendingPartitions(scope))
+                Thread.sleep(PARTITION_POLL_MILLIS); // held by live owners, wait until completed or expired
+            else
+                break;
+        }
+        return indexed;
+    }
+
+    /**
+     * Indexes a leased partition in keyset pages from its last checkpoint, the lease is renewed with the last entity
+     * of each page once the page is flushed
+     */
+    private long indexPartition(IndexingLease lease, String owner, IEntityIndexer partitionIndexer) {
+
+        boolean byId = partitionIndexer.supportsIndexById() || runningContext.getDeleteMode();
+        Long entityTypeId = runningContext.getEntityType() != null ? runningContext.getEntityType().getId() : null;
+        PageRequest limit = PageRequest.of(0, runningContext.getPageSize());
+
+        TransactionTemplate pageTransaction = new TransactionTemplate(transactionManager);
+        pageTransaction.setReadOnly(true);
+
+        UUID lastEntityId = lease.getLastEntityId();
+        long indexed = 0;
+
+        // failures the indexer counts on its own (batch entities, asynchronous tasks) are added to the partition per page
+        long indexerFailures = partitionIndexer.getFailedEntities();
+
+        // a stopped worker leaves the partition to expire, another owner resumes it from the last page
+        while (!stopRequested) {
+
+            UUID afterId = lastEntityId;
+            long[] pageFailures = { 0 };
+            List<UUID> pageIds = pageTransaction.execute(status -> {
+
+                List<UUID> ids = new ArrayList<UUID>();
+                try {
+                    partitionIndexer.prePage();
+                    if (byId) {
+                        ids = entityRepository.findRangeKeysetIds(lease.getLowerBound(), afterId, lease.getUpperBound(), entityTypeId,
+                                runningContext.getProvenanceSource(), runningContext.getLastUdate(), limit);
+                        for (UUID entityId : ids)
+                            if (!sendToIndexer(partitionIndexer, entityId, null))
+                                pageFailures[0]++;
+                    } else {
+                        List<Entity> entities = entityRepository.findRangeKeysetPage(lease.getLowerBound(), afterId, lease.getUpperBound(), entityTypeId,
+                                runningContext.getProvenanceSource(), runningContext.getLastUdate(), limit);
+                        if (runningContext.getBatchIndexing()) {
+                            if (!sendBatchToIndexer(partitionIndexer, entities))
+                                pageFailures[0] += entities.size();
+                        } else
+                            for (Entity entity : entities)
+                                if (!sendToIndexer(partitionIndexer, entity.getId(), entity))
+                                    pageFailures[0]++;
+                        for (Entity entity : entities)
+                            ids.add(entity.getId());
+                    }
+                    if (!ids.isEmpty())
+                        partitionIndexer.flush();
+                } catch (EntityIndexingException e) {
+                    throw new RuntimeException("Error indexing partition " + lease.getId() + " :: " + e.getMessage(), e);
+                }
+                return ids;
+            });
+
+            long pageIndexerFailures = partitionIndexer.getFailedEntities();
+            pageFailures[0] += pageIndexerFailures - indexerFailures;
+            indexerFailures = pageIndexerFailures;
+
+            if (pageFailures[0] > 0)
+                leaseService.addFailures(lease, owner, pageFailures[0]);
+
+            if (pageIds.isEmpty()) {
+                leaseService.complete(lease, owner);
+                break;
+            }
+
+            lastEntityId = pageIds.get(pageIds.size() - 1);
+            indexed += pageIds.size();
+
+            if (!leaseService.heartbeat(lease, owner, lastEntityId, pageIds.size())) {
+                logError("Lease of partition " + lease.getId() + " lost by " + owner + ", it was taken over after expiring");
+                break;
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Id streaming mode: keyset pages of entity ids (resumed from the checkpoint or starting at fromPage) are handed to
+     * indexer.indexById through the prePage / postPage steps, each page in its own read only transaction. Indexers
+     * without indexById get each entity loaded by id, the session is cleared every page.
+     */
+    private void streamEntityIds() {
+
+        boolean byId = indexer.supportsIndexById();
+        if (!byId)
+            logInfo("Indexer does not support indexing by id, entities will be loaded one by one");
+
+        TransactionTemplate pageTransaction = new TransactionTemplate(transactionManager);
+        pageTransaction.setReadOnly(true);
+
+        int pageSize = runningContext.getPageSize();
+        long streamed = 0;
+        List<UUID> ids;
+
+        do {
+            ids = pageTransaction.execute(status -> {
+                List<UUID> pageIds = keysetPaginator.nextIdPage();
+                prePage();
+                for (UUID entityId : pageIds)
+                    processEntityId(entityId, byId);
+                postPage();
+                if (!byId)
+                    entityManager.clear();
+                return pageIds;
+            });
+            streamed += ids.size();
+            logInfo("Entity ids streamed to indexer: " + streamed);
+        } while (ids.size() >= pageSize && !flushFailed && !stopRequested && !Thread.currentThread().isInterrupted());
+
+        logInfo("Entity ids streamed to indexer: " + streamed + " :: " + runningContext.toString());
+    }
+
+    private void processEntityId(UUID entityId, boolean byId) {
+
+        pageLastEntityId = entityId;
+        pageEntities++;
+
+        Entity entity = null;
+        if (!byId && !runningContext.getDeleteMode()) {
+            entity = erService.getEntityById(entityId).orElse(null);
+            if (entity == null)
+                return;
+        }
+
+        if (sendToIndexer(indexer, entityId, entity))
+            emptyPage = false;
+        else
+            entitiesFailed++;
+    }
+
+    /**
+     * Deletes or indexes one entity, by id when no entity is given
+     * @return false if the indexer failed (the error is reported to the monitor)
+     */
+    private boolean sendToIndexer(IEntityIndexer target, UUID entityId, Entity entity) {
+        try {
+            if (runningContext.getDeleteMode())
+                target.delete(entityId.toString());
+            else if (entity == null) {
+                target.indexById(entityId);
+                entityMonitorService.addEntitySentToIndex(entityId, runningContext.getEntityType() != null ? runningContext.getEntityType().getId() : null);
+            } else {
+                target.index(entity);
+                entityMonitorService.addEntitySentToIndex(entityId, entity.getEntityTypeId());
+            }
+            return true;
+        } catch (Exception e) {
+            entityMonitorService.reportEntityIndexingError(entityId, e.getMessage());
+            logError("Error indexing entity internal EntityTypeID: " + entityId + " " + runningContext.toString() + " -- msg: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Sends a page of entities to the indexer in one indexBatch call
+     * @return false if the batch failed (the error is reported to the monitor for every entity of the batch)
+     */
+    private boolean sendBatchToIndexer(IEntityIndexer target, List<Entity> entities) {
+        if (entities.isEmpty())
+            return true;
+        try {
+            target.indexBatch(entities);
+            for (Entity entity : entities)
+                entityMonitorService.addEntitySentToIndex(entity.getId(), entity.getEntityTypeId());
+            return true;
+        } catch (Exception e) {
+            for (Entity entity : entities)
+                entityMonitorService.reportEntityIndexingError(entity.getId(), e.getMessage());
+            logError("Error indexing batch of " + entities.size() + " entities " + runningContext.toString() + " -- msg: " + e.getMessage());
+            return false;
+        }
+    }
+
     @Override
     public void preRun() {
         try {
-            if (runningContext.getEntityType() != null) {
+            checkpoint = loadCheckpoint();
+
+            if (runningContext.getPartitions() > 0) {
+                logger.info("Partitioned indexing in " + runningContext.getPartitions() + " partitions :: type: " + runningContext.getEntityType() + " provenance source: " + runningContext.getProvenanceSource() + " last update: " + runningContext.getLastUdate());
+            } else if (runningContext.getIdStreaming() || usesKeysetPagination()) {
+                logger.info((runningContext.getIdStreaming() ? "Streaming entity ids" : "Getting entities") + " with keyset pagination :: type: " + runningContext.getEntityType() + " provenance source: " + runningContext.getProvenanceSource() + " last update: " + runningContext.getLastUdate());
+                keysetPaginator = new EntityKeysetPaginator(entityRepository, runningContext.getEntityType(), 
+                        runningContext.getProvenanceSource(), runningContext.getLastUdate(), runningContext.getApproximateCount());
+                if (runningContext.getProvenanceProjection())
+                    keysetPaginator.useProvenanceProjection(provenanceSourceRepository);
+                keysetPaginator.setPageSize(runningContext.getPageSize());
+                if (checkpoint.getLastEntityId() != null)
+                    keysetPaginator.resumeAfter(checkpoint.getLastEntityId());
+                else
+                    keysetPaginator.setActualPage(runningContext.getFromPage());
+                if (!runningContext.getIdStreaming())
+                    entityPaginator = keysetPaginator;
+            } else if (runningContext.getEntityType() != null) {
                 if (runningContext.getProvenanceSource() != null) {
                     logger.info("Getting entities of type: " + runningContext.getEntityType() + " and provenance source: " + runningContext.getProvenanceSource());
                     entityPaginator = new EntityPaginator(entityRepository, runningContext.getEntityType(), runningContext.getProvenanceSource());
@@ -82,20 +492,97 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
             }
 
             // set page size
-            entityPaginator.setPageSize(runningContext.getPageSize());
-            entityPaginator.setActualPage(runningContext.getFromPage());
+            if (entityPaginator instanceof EntityPaginator) {
+                entityPaginator.setPageSize(runningContext.getPageSize());
+                ((EntityPaginator) entityPaginator).setActualPage(runningContext.getFromPage());
+            }
 
-            this.setPaginator(entityPaginator);
-            logger.info("Total pages of size: " + entityPaginator.getPageSize() + " to index: " + entityPaginator.getTotalPages());
+            if (entityPaginator != null && runningContext.getPrefetchDepth() > 0) {
+                logger.info("Prefetching " + runningContext.getPrefetchDepth() + " pages ahead");
+                entityPaginator = new PrefetchingPaginator<Entity>(entityPaginator, transactionManager, runningContext.getPrefetchDepth());
+            }
+
+            if (entityPaginator != null) {
+                this.setPaginator(entityPaginator);
+                logger.info("Total pages of size: " + runningContext.getPageSize() + " to index: " + entityPaginator.getTotalPages());
+            }
 
             indexer = indexingService.getIndexer(runningContext.getIndexingConfigFile(), runningContext.getIndexerBeanName());
 
+            // partitioned runs take the run state from the partitions (see indexPartitions)
+            if (runningContext.getPartitions() <= 0)
+                beginIndexerRun();
+
             // Initialize the executor service with a fixed thread pool
             //executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
         } catch (Exception e) {
             logError("Error in Entity Indexing: " + runningContext.toString() + " :: " + e.getMessage());
             error();
+            // nothing is indexed by a run that could not start
+            if (indexer != null) {
+                closeIndexer(indexer);
+                indexer = null;
+            }
+        }
+    }
+
+    /**
+     * Begins the run of the indexer with its run state: a new one, or the one stored in the checkpoint when the run
+     * continues a previous one (resumed from its checkpoint or starting at fromPage). A run continuing one without
+     * stored state is rejected, the indexer would publish a build missing the pages of the previous run.
+     */
+    private void beginIndexerRun() throws EntityIndexingException {
+
+        String runState = indexer.createRunState();
+
+        if (runState != null && (checkpoint.getLastEntityId() != null || runningContext.getFromPage() > 0)) {
+            String stored = checkpoint.getLastEntityId() != null ? checkpoint.getIndexerState()
+                    : checkpointRepository.findById(checkpoint.getId()).map(IndexingCheckpoint::getIndexerState).orElse(null);
+            if (stored == null)
+                throw new EntityIndexingException("The run continues a previous run (resume or fromPage) without indexer run state, "
+                        + "it would publish a partial build");
+            runState = stored;
+        }
+
+        checkpoint.setIndexerState(runState);
+        indexer.beginRun(runState);
+    }
+
+    /**
+     * Checkpoint to continue from in resume mode, a new one otherwise (the previous checkpoint of the context is
+     * replaced on the first flush)
+     */
+    private IndexingCheckpoint loadCheckpoint() {
+
+        if (runningContext.getResume()) {
+            Optional<IndexingCheckpoint> previous = checkpointRepository.findById(runningContext.getCheckpointId());
+            if (previous.isPresent()) {
+                logInfo("Resuming " + runningContext.getCheckpointId() + " after entity: " + previous.get().getLastEntityId()
+                        + " (" + previous.get().getEntitiesIndexed() + " entities indexed before " + previous.get().getUpdatedAt() + ")");
+                return previous.get();
+            }
+            logInfo("No checkpoint found for " + runningContext.getCheckpointId() + ", starting from the beginning");
+        }
+        return new IndexingCheckpoint(runningContext.getCheckpointId());
+    }
+
+    /** Records the last entity of a flushed page, in its own transaction (the page may run in a read only one) */
+    private void saveCheckpoint() {
+
+        if (pageLastEntityId == null || flushFailed)
+            return;
+
+        checkpoint.setLastEntityId(pageLastEntityId);
+        checkpoint.setEntitiesIndexed(checkpoint.getEntitiesIndexed() + pageEntities);
+        checkpoint.setUpdatedAt(LocalDateTime.now());
+
+        try {
+            TransactionTemplate checkpointTransaction = new TransactionTemplate(transactionManager);
+            checkpointTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            checkpoint = checkpointTransaction.execute(status -> checkpointRepository.save(checkpoint));
+        } catch (Exception e) {
+            logError("Error saving indexing checkpoint: " + runningContext.getCheckpointId() + " :: " + e.getMessage());
         }
     }
 
@@ -103,6 +590,9 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
     public void prePage() {
         profiler = new Profiler(enableProfiling, "").start();
         emptyPage = true;
+        pageLastEntityId = null;
+        pageEntities = 0;
+        pageBatch.clear();
         
         try {
             indexer.prePage();
@@ -111,13 +601,22 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
         }
 
         // Log the start of the page processing
-        logInfo("Processing page: " + this.getActualPage() + " of type: " + runningContext.getEntityType() + " with size: " + entityPaginator.getPageSize());
+        logInfo("Processing page: " + this.getActualPage() + " of type: " + runningContext.getEntityType() + " with size: " + runningContext.getPageSize());
     }
 
     @Override
     @Transactional
     public void processItem(Entity entity) {
 
+        pageLastEntityId = entity.getId();
+        pageEntities++;
+
+        // indexed together in postPage
+        if (runningContext.getBatchIndexing() && !runningContext.getDeleteMode()) {
+            pageBatch.add(entity);
+            return;
+        }
+
         //executorService.submit(() -> {
             try {
                 // Delete or index depending
@@ -129,6 +628,7 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
                 }
                 emptyPage = false;
             } catch (Exception e) {
+                entitiesFailed++;
                 entityMonitorService.reportEntityIndexingError(entity.getId(), e.getMessage());
                 String msg = "Error indexing entity internal EntityTypeID: " + entity.getId() + " " + runningContext.toString() + " -- msg: " + e.getMessage();
                 e.printStackTrace();
@@ -149,34 +649,100 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
         //     executorService.shutdownNow();
         // }
 
+        if (!pageBatch.isEmpty()) {
+            if (sendBatchToIndexer(indexer, pageBatch))
+                emptyPage = false;
+            else
+                entitiesFailed += pageBatch.size();
+            pageBatch.clear();
+        }
+
         // Execute only if at least one entity was indexed
+        boolean flushed = true;
         if (!emptyPage) {
             try {
                 indexer.flush();
             } catch (EntityIndexingException e) {
+                flushed = false;
                 logError("Error indexing page: " + this.getActualPage() + " ::" + e.getMessage());
             }
         }
 
+        if (flushed) {
+            // a short page is the last one of a paginated run
+            if (pageEntities < runningContext.getPageSize() && !stopRequested)
+                runCompleted = true;
+            saveCheckpoint();
+        } else {
+            // later pages must not checkpoint past the failed one, a resumed run retries it
+            flushFailed = true;
+            runCompleted = false;
+            logError("Indexing run stopped after a failed flush, it can be resumed from the last flushed page :: " + runningContext.toString());
+            error();
+        }
+
         profiler.messure("Page Indexing Time (ms): ", false);
         profiler.report(logger);
+
+        if (entityPaginator instanceof PrefetchingPaginator) {
+            PrefetchingPaginator<Entity> prefetch = (PrefetchingPaginator<Entity>) entityPaginator;
+            logger.debug("Page prefetch :: fetch ms: " + prefetch.getFetchMillis() + " wait ms: " + prefetch.getWaitMillis()
+                    + " overlap: " + percentajeFormat.format(prefetch.getOverlapRatio()));
+        }
     }
 
     @Override
     public void postRun() {
         logInfo("EntityRelationIndexing worker :: FINISHED :: " + runningContext.toString());
-        
-        // Cerrar el indexer para liberar todos los recursos (threads, conexiones, etc.)
-        if (indexer != null) {
+
+        if (entityPaginator instanceof PrefetchingPaginator) {
+            PrefetchingPaginator<Entity> prefetch = (PrefetchingPaginator<Entity>) entityPaginator;
+            prefetch.close();
+            logInfo("Page prefetch :: pages: " + prefetch.getPagesDelivered() + " fetch ms: " + prefetch.getFetchMillis()
+                    + " wait ms: " + prefetch.getWaitMillis() + " fetch/index overlap: " + percentajeFormat.format(prefetch.getOverlapRatio()));
+        }
+
+        // offset pagination ends after the last counted page, also when it is full or when there was no page at all
+        if (offsetPagination && !stopRequested && !flushFailed)
+            runCompleted = true;
+
+        // the next run of the context starts from scratch
+        if (runCompleted && checkpoint != null && checkpointRepository.existsById(checkpoint.getId())) {
             try {
-                logInfo("Closing indexer and releasing resources...");
-                if (indexer instanceof java.io.Closeable) {
-                    ((java.io.Closeable) indexer).close();
-                    logInfo("Indexer closed successfully - all resources released");
-                }
+                checkpointRepository.deleteById(checkpoint.getId());
             } catch (Exception e) {
-                logError("Error closing indexer: " + e.getMessage());
+                logError("Error deleting indexing checkpoint: " + runningContext.getCheckpointId() + " :: " + e.getMessage());
+            }
+        }
+        
+        // a complete run without failed entities lets the indexer publish what it built (alias swap of the Elastic indexers)
+        if (indexer != null && runCompleted && !runningContext.getDeleteMode()) {
+            long failed = entitiesFailed + indexer.getFailedEntities();
+            if (failed > 0) {
+                logError("Indexing run not finished, " + failed + " entities failed :: " + runningContext.toString());
+            } else {
+                try {
+                    indexer.finishRun();
+                } catch (EntityIndexingException e) {
+                    logError("Error finishing indexing run: " + runningContext.toString() + " :: " + e.getMessage());
+                }
+            }
+        }
+
+        // Cerrar el indexer para liberar todos los recursos (threads, conexiones, etc.)
+        if (indexer != null)
+            closeIndexer(indexer);
+    }
+
+    private void closeIndexer(IEntityIndexer target) {
+        try {
+            logInfo("Closing indexer and releasing resources...");
+            if (target instanceof java.io.Closeable) {
+                ((java.io.Closeable) target).close();
+                logInfo("Indexer closed successfully - all resources released");
             }
+        } catch (Exception e) {
+            logError("Error closing indexer: " + e.getMessage());
         }
     }
 
@@ -185,6 +751,12 @@ public class EntityIndexingWorker extends BaseBatchWorker<Entity, EntityIndexing
         return "ERIndexer::" + "[" + percentajeFormat.format(this.getCompletionRate()) + "]";
     }
 
+    @Override
+    public void stop() {
+        stopRequested = true;
+        super.stop();
+    }
+
     /******************* Auxiliares ********** */
 
     private void error() {
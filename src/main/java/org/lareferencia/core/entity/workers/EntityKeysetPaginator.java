@@ -0,0 +1,265 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.entity.workers;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lareferencia.core.entity.domain.Entity;
+import org.lareferencia.core.entity.domain.EntityType;
+import org.lareferencia.core.entity.repositories.jpa.EntityProvenanceSourceRepository;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
+import org.lareferencia.core.worker.IPaginator;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import lombok.Getter;
+
+/**
+ * Keyset (seek) version of EntityPaginator: each page is read with uuid > last seen uuid ORDER BY uuid LIMIT pageSize,
+ * so late pages cost the same as the first ones (no OFFSET scan) and there is no count query per page.
+ * Supports the same filters (entity type, provenance source, last update), any of them may be null.
+ *
+ * The total is counted once, exactly or, without filters, from the PostgreSQL planner estimate (increased by
+ * approximateCountMargin). It is only a progress hint: the end is reached after a short page (isExhausted()), until
+ * then getTotalPages() never reports less than the next page, and pages past the end are empty.
+ * Starting from a page other than the first one costs a single OFFSET query to find its first id. A resumed run
+ * (resumeAfter) starts after a given id, pages and totals are then relative to it.
+ *
+ * With a projection repository (useProvenanceProjection) the source and last update filters are resolved on the
+ * entity_provenance_source table maintained by the merge instead of joining source entities and provenances.
+ */
+public class EntityKeysetPaginator implements IPaginator<Entity> {
+
+	private static Logger logger = LogManager.getLogger(EntityKeysetPaginator.class);
+
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private static final UUID NIL_UUID = new UUID(0L, 0L);
+
+	@Getter
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	private final EntityRepository entityRepository;
+	private EntityProvenanceSourceRepository projectionRepository = null;
+	private final Long entityTypeId;
+	private final String provenanceSource;
+	private final LocalDateTime lastUpdate;
+	private final boolean approximateCount;
+
+	@Getter
+	private double approximateCountMargin = 0.1;
+
+	private long totalElements = 0;
+	private int totalPages = 0;
+
+	// read by the worker while a prefetching thread pages
+	private volatile int actualPage = 1;
+	private UUID startAfterId = null;
+	private UUID lastSeenId = null;
+	private volatile boolean exhausted = false;
+
+	public EntityKeysetPaginator(EntityRepository repository, EntityType entityType, String provenanceSource, LocalDateTime lastUpdate, boolean approximateCount) {
+		this.entityRepository = repository;
+		this.entityTypeId = entityType != null ? entityType.getId() : null;
+		this.provenanceSource = provenanceSource;
+		this.lastUpdate = lastUpdate;
+		this.approximateCount = approximateCount;
+
+		logger.debug( "Creating keyset entity paginator :: type: " + (entityType != null ? entityType.getName() : "ALL") 
+				+ " provenance source: " + provenanceSource + " last update: " + lastUpdate );
+		count();
+	}
+
+	@Override
+	public int getStartingPage() { return actualPage; }
+
+	@Override
+	public void setPageSize(int newsize) {
+		if ( newsize != this.pageSize ) {
+			this.pageSize = newsize;
+			this.totalPages = pages(totalElements);
+			setActualPage(1);
+		}
+	}
+
+	/**
+	 * Filters by provenance source and last update through the entity_provenance_source projection, it must be
+	 * populated (see EntityMergeEngine.rebuildProvenanceSources)
+	 * @throws IllegalStateException if the projection is empty while there are merged entities
+	 */
+	public void useProvenanceProjection(EntityProvenanceSourceRepository projectionRepository) {
+
+		if ( !projectionRepository.existsByEntityIdNotNull() && entityRepository.existsByDirty(false) )
+			throw new IllegalStateException("The entity_provenance_source projection is empty, it must be built first (EntityMergeEngine.rebuildProvenanceSources)");
+
+		this.projectionRepository = projectionRepository;
+		count();
+		setActualPage(1);
+	}
+
+	public void setApproximateCountMargin(double approximateCountMargin) {
+		this.approximateCountMargin = approximateCountMargin;
+		count();
+	}
+
+	/**
+	 * Positions the paginator at the given page (1 based), the id preceding it is found with one OFFSET query
+	 */
+	public void setActualPage(int page) {
+
+		this.actualPage = Math.max(page, 1);
+		this.lastSeenId = startAfterId;
+		this.exhausted = false;
+
+		if ( actualPage > 1 ) {
+			int previousIndex = (actualPage - 1) * pageSize - 1;
+			if ( isProjected() ) {
+				List<Entity> previous = fetchPage(startAfterId, PageRequest.of(previousIndex, 1));
+				if ( previous.isEmpty() )
+					exhausted = true;
+				else
+					lastSeenId = previous.get(0).getId();
+			} else {
+				List<UUID> previous = entityRepository.findKeysetIds(startAfterId, entityTypeId, provenanceSource, lastUpdate, PageRequest.of(previousIndex, 1));
+				if ( previous.isEmpty() )
+					exhausted = true;
+				else
+					lastSeenId = previous.get(0);
+			}
+		}
+	}
+
+	/**
+	 * Restarts the paginator after the given id (exclusive), page 1 becomes the first page following it
+	 */
+	public void resumeAfter(UUID afterId) {
+		this.startAfterId = afterId;
+		count();
+		setActualPage(1);
+	}
+
+	/** Counted pages, or the next page while the paginator is not exhausted and the count fell short */
+	public int getTotalPages() {
+		return exhausted ? totalPages : Math.max(totalPages, actualPage);
+	}
+
+	public Page<Entity> nextPage() {
+
+		if ( exhausted ) {
+			logger.debug("No more entities after page " + (actualPage - 1));
+			return Page.empty();
+		}
+
+		List<Entity> entities = fetchPage(lastSeenId, PageRequest.of(0, pageSize));
+
+		if ( entities.size() < pageSize )
+			exhausted = true;
+		if ( !entities.isEmpty() )
+			lastSeenId = entities.get(entities.size() - 1).getId();
+
+		Page<Entity> page = new PageImpl<Entity>(entities, PageRequest.of(actualPage - 1, pageSize), Math.max(totalElements, (long) (actualPage - 1) * pageSize + entities.size()));
+		actualPage++;
+		return page;
+	}
+
+	/**
+	 * Next page of entity ids only (id streaming), positioned like nextPage()
+	 */
+	public List<UUID> nextIdPage() {
+
+		if ( exhausted )
+			return Collections.emptyList();
+
+		List<UUID> ids;
+		if ( isProjected() )
+			ids = fetchPage(lastSeenId, PageRequest.of(0, pageSize)).stream().map(Entity::getId).collect(Collectors.toList());
+		else
+			ids = entityRepository.findKeysetIds(lastSeenId, entityTypeId, provenanceSource, lastUpdate, PageRequest.of(0, pageSize));
+
+		if ( ids.size() < pageSize )
+			exhausted = true;
+		if ( !ids.isEmpty() )
+			lastSeenId = ids.get(ids.size() - 1);
+
+		actualPage++;
+		return ids;
+	}
+
+	private void count() {
+
+		Long estimate = null;
+		if ( approximateCount && startAfterId == null && entityTypeId == null && provenanceSource == null && lastUpdate == null ) {
+			try {
+				estimate = entityRepository.estimateEntityCount();
+			} catch (Exception e) {
+				logger.debug("Entity count estimate not available, counting :: " + e.getMessage());
+			}
+		}
+
+		if ( estimate != null && estimate > 0 )
+			totalElements = (long) Math.ceil(estimate * (1 + approximateCountMargin));
+		else if ( isProjected() )
+			totalElements = provenanceSource != null 
+				? projectionRepository.countKeysetBySource(seekId(startAfterId), provenanceSource, entityTypeId, lastUpdate)
+				: projectionRepository.countKeysetByLastUpdate(seekId(startAfterId), lastUpdate, entityTypeId);
+		else
+			totalElements = entityRepository.countKeyset(startAfterId, entityTypeId, provenanceSource, lastUpdate);
+
+		totalPages = pages(totalElements);
+	}
+
+	private List<Entity> fetchPage(UUID afterId, Pageable pageable) {
+
+		if ( !isProjected() )
+			return entityRepository.findKeysetPage(afterId, entityTypeId, provenanceSource, lastUpdate, pageable);
+
+		if ( provenanceSource != null )
+			return projectionRepository.findKeysetPageBySource(seekId(afterId), provenanceSource, entityTypeId, lastUpdate, pageable);
+		else
+			return projectionRepository.findKeysetPageByLastUpdate(seekId(afterId), lastUpdate, entityTypeId, pageable);
+	}
+
+	private boolean isProjected() {
+		return projectionRepository != null && ( provenanceSource != null || lastUpdate != null );
+	}
+
+	/** Projection queries always seek, the first page starts after the nil uuid */
+	private static UUID seekId(UUID afterId) {
+		return afterId != null ? afterId : NIL_UUID;
+	}
+
+	private int pages(long elements) {
+		return (int) ((elements + pageSize - 1) / pageSize);
+	}
+
+	/** Remaining entities are not known in advance, only whether the last page read was the final one */
+	public boolean isExhausted() {
+		return exhausted;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.entity.workers;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lareferencia.core.worker.IPaginator;
+import org.springframework.data.domain.Page;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Paginator decorator that reads the next pages of the delegate on a background thread while the worker indexes the
+ * current one. Every page is fetched in its own read only transaction, pages are fetched in order by a single thread
+ * (the delegate paginators are stateful) and at most prefetchDepth pages are held ahead of the worker, so the memory
+ * used is bounded by (prefetchDepth + 1) * pageSize entities.
+ *
+ * Fetch time (background) and wait time (worker blocked on a page not yet fetched) are accumulated, the overlap ratio
+ * is the share of fetch time hidden behind indexing.
+ */
+public class PrefetchingPaginator<T> implements IPaginator<T> {
+
+	private static Logger logger = LogManager.getLogger(PrefetchingPaginator.class);
+
+	private final IPaginator<T> delegate;
+	private final TransactionTemplate fetchTransaction;
+	private final int prefetchDepth;
+
+	private final ExecutorService fetcher;
+	private final Deque<Future<Page<T>>> prefetched = new ArrayDeque<Future<Page<T>>>();
+
+	/** Starting page of the delegate when the prefetch started, the delegate moves ahead of the worker */
+	private Integer startingPage = null;
+
+	private int pagesRequested = 0;
+	private int pagesDelivered = 0;
+
+	private final AtomicLong fetchNanos = new AtomicLong();
+	private long waitNanos = 0;
+
+	public PrefetchingPaginator(IPaginator<T> delegate, PlatformTransactionManager transactionManager, int prefetchDepth) {
+		this.delegate = delegate;
+		this.prefetchDepth = Math.max(prefetchDepth, 1);
+
+		this.fetchTransaction = new TransactionTemplate(transactionManager);
+		this.fetchTransaction.setReadOnly(true);
+
+		this.fetcher = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "entity-page-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public int getStartingPage() {
+		return startingPage != null ? startingPage : delegate.getStartingPage();
+	}
+
+	/** Only before the first page is requested, pages already prefetched keep the previous size */
+	@Override
+	public void setPageSize(int newsize) {
+		delegate.setPageSize(newsize);
+	}
+
+	public int getTotalPages() {
+		return delegate.getTotalPages();
+	}
+
+	public Page<T> nextPage() {
+
+		if ( fetcher.isShutdown() )
+			return Page.empty();
+
+		fill();
+
+		Future<Page<T>> next = prefetched.poll();
+		if ( next == null )
+			return Page.empty();
+
+		long start = System.nanoTime();
+		try {
+			Page<T> page = next.get();
+			pagesDelivered++;
+			return page;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for a prefetched page", e);
+		} catch (ExecutionException e) {
+			// pages after a failed one can not be delivered
+			close();
+			throw new RuntimeException("Error prefetching page: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			waitNanos += System.nanoTime() - start;
+			// the delivered page leaves room for one more
+			fill();
+		}
+	}
+
+	/** Keeps prefetchDepth pages requested ahead, never past the last page of the delegate */
+	private void fill() {
+
+		if ( startingPage == null )
+			startingPage = delegate.getStartingPage();
+
+		int remaining = delegate.getTotalPages() - startingPage + 1;
+
+		while ( prefetched.size() < prefetchDepth && pagesRequested < remaining ) {
+			pagesRequested++;
+			prefetched.add(fetcher.submit(() -> {
+				long start = System.nanoTime();
+				try {
+					return fetchTransaction.execute(status -> delegate.nextPage());
+				} finally {
+					fetchNanos.addAndGet(System.nanoTime() - start);
+				}
+			}));
+		}
+	}
+
+	/** Time spent fetching pages in the background (ms) */
+	public long getFetchMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(fetchNanos.get());
+	}
+
+	/** Time the worker was blocked waiting for pages (ms) */
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+	}
+
+	/** Share of the fetch time overlapped with indexing, 1 when the worker never waited */
+	public double getOverlapRatio() {
+		long fetch = fetchNanos.get();
+		return fetch == 0 ? 0.0 : Math.max(0.0, 1.0 - (double) waitNanos / fetch);
+	}
+
+	public int getPagesDelivered() {
+		return pagesDelivered;
+	}
+
+	/** Stops the background fetch, pages not delivered are discarded. Can be called more than once */
+	public void close() {
+		prefetched.forEach(future -> future.cancel(true));
+		prefetched.clear();
+		fetcher.shutdownNow();
+		logger.debug("Page prefetch closed :: pages delivered: " + pagesDelivered + " fetch ms: " + getFetchMillis() + " wait ms: " + getWaitMillis());
+	}
+}
@@ -21,6 +21,7 @@
 package org.lareferencia.core.entity.xml;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -31,6 +32,8 @@ import jakarta.xml.bind.annotation.XmlElementWrapper;
 import jakarta.xml.bind.annotation.XmlRootElement;
 
 import org.lareferencia.core.entity.domain.EntityRelationException;
+import org.lareferencia.core.entity.services.IFieldValueInstance;
+import org.lareferencia.core.util.hashing.XXHash64Hashing;
 
 import lombok.Setter;
 
@@ -38,6 +41,9 @@ import lombok.Setter;
 @Setter
 public class XMLEntityRelationData {
 	
+	// canonical form of a null value in fingerprints
+	private static final String NULL_VALUE = "~";
+
 	private List<XMLEntityInstance> entities;
 	private List<XMLRelationInstance> relations;
 
@@ -114,6 +120,78 @@ public class XMLEntityRelationData {
 	}
 	
 	
+	/**
+	 * XXHash64 of the canonical form of the record content: entities, relations, semantic identifiers and fields,
+	 * all sorted so the order in the XML does not matter. Provenance and lastUpdate are left out, a record that
+	 * only got a new datestamp keeps its fingerprint. Every value and list is length prefixed, so no content can
+	 * be taken for the boundary between two values.
+	 */
+	public Long calculateFingerprint() {
+
+		List<String> canonicalEntities = new ArrayList<String>(entities.size());
+		for (XMLEntityInstance entity : entities) {
+			StringBuilder canonical = new StringBuilder();
+			appendValue(canonical, entity.getType());
+			appendValue(canonical, entity.getRef());
+			appendSorted(canonical, entity.getSemanticIdentifiers());
+			appendSorted(canonical, canonicalFields(entity.getFields()));
+			canonicalEntities.add(canonical.toString());
+		}
+
+		List<String> canonicalRelations = new ArrayList<String>(relations.size());
+		for (XMLRelationInstance relation : relations) {
+			StringBuilder canonical = new StringBuilder();
+			appendValue(canonical, relation.getType());
+			appendValue(canonical, relation.getFromEntityRef());
+			appendValue(canonical, relation.getToEntityRef());
+			appendSorted(canonical, canonicalFields(relation.getFields()));
+			canonicalRelations.add(canonical.toString());
+		}
+
+		StringBuilder canonical = new StringBuilder();
+		appendSorted(canonical, canonicalEntities);
+		appendSorted(canonical, canonicalRelations);
+
+		return XXHash64Hashing.calculateHashLong(canonical.toString());
+	}
+
+	private static List<String> canonicalFields(List<? extends IFieldValueInstance> fields) {
+
+		List<String> canonicalFields = new ArrayList<String>(fields.size());
+		for (IFieldValueInstance field : fields) {
+			StringBuilder canonical = new StringBuilder();
+			appendValue(canonical, field.getName());
+			appendValue(canonical, field.getLang());
+			appendValue(canonical, field.getPreferred());
+			appendValue(canonical, field.getValue());
+			appendSorted(canonical, canonicalFields(field.getFields()));
+			canonicalFields.add(canonical.toString());
+		}
+
+		return canonicalFields;
+	}
+
+	// length:value, null values have no length
+	private static void appendValue(StringBuilder canonical, Object value) {
+		if (value == null) {
+			canonical.append(NULL_VALUE);
+			return;
+		}
+		String text = value.toString();
+		canonical.append(text.length()).append(':').append(text);
+	}
+
+	// count[values], sorted
+	private static void appendSorted(StringBuilder canonical, List<String> values) {
+		List<String> sorted = new ArrayList<String>(values);
+		Collections.sort(sorted);
+		canonical.append(sorted.size()).append('[');
+		for (String value : sorted)
+			appendValue(canonical, value);
+		canonical.append(']');
+	}
+	
+	
 	private String lastUpdate;
 	private String source;
 	private String record;
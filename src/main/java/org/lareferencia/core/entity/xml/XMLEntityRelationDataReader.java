@@ -0,0 +1,199 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.entity.xml;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+
+/**
+ * Streaming (StAX) reader for entity-relation-data documents.
+ *
+ * Builds the same XMLEntityRelationData object graph the JAXB binding produces,
+ * in a single forward pass and without materializing a DOM tree. Instances are
+ * thread safe, XMLInputFactory instances are kept per thread.
+ */
+public class XMLEntityRelationDataReader {
+
+	private static final String ENTITY_RELATION_DATA = "entity-relation-data";
+	private static final String ENTITY = "entity";
+	private static final String RELATION = "relation";
+	private static final String SEMANTIC_IDENTIFIER = "semanticIdentifier";
+	private static final String FIELD = "field";
+	private static final String ATTRIBUTES = "attributes";
+
+	private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(() -> {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	});
+
+	public XMLEntityRelationData read(InputStream input) throws XMLStreamException {
+		XMLStreamReader reader = inputFactory.get().createXMLStreamReader(input);
+		try {
+			return read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads from a StreamSource or StAXSource, other source types are not supported by StAX
+	 */
+	public XMLEntityRelationData read(Source source) throws XMLStreamException {
+		XMLStreamReader reader = inputFactory.get().createXMLStreamReader(source);
+		try {
+			return read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	public XMLEntityRelationData read(XMLStreamReader reader) throws XMLStreamException {
+
+		XMLEntityRelationData data = null;
+
+		while (reader.hasNext()) {
+
+			if (reader.next() != XMLStreamConstants.START_ELEMENT)
+				continue;
+
+			String name = reader.getLocalName();
+
+			if (ENTITY_RELATION_DATA.equals(name)) {
+				data = new XMLEntityRelationData();
+				data.setSource(reader.getAttributeValue(null, "source"));
+				data.setRecord(reader.getAttributeValue(null, "record"));
+				data.setLastUpdate(reader.getAttributeValue(null, "lastUpdate"));
+			} else if (data == null) {
+				throw new XMLStreamException("Unexpected element <" + name + ">, expected <" + ENTITY_RELATION_DATA + ">", reader.getLocation());
+			} else if (ENTITY.equals(name)) {
+				data.addEntity(readEntity(reader));
+			} else if (RELATION.equals(name)) {
+				data.addRelationship(readRelation(reader));
+			}
+			// <entities> and <relations> wrappers are traversed, anything else is ignored as JAXB does
+		}
+
+		if (data == null)
+			throw new XMLStreamException("Root element <" + ENTITY_RELATION_DATA + "> not found");
+
+		return data;
+	}
+
+	private XMLEntityInstance readEntity(XMLStreamReader reader) throws XMLStreamException {
+
+		XMLEntityInstance entity = new XMLEntityInstance(reader.getAttributeValue(null, "type"), reader.getAttributeValue(null, "ref"));
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+
+				if (SEMANTIC_IDENTIFIER.equals(name))
+					entity.getSemanticIdentifiers().add(reader.getElementText());
+				else if (FIELD.equals(name))
+					entity.addField(readField(reader));
+				else
+					skipElement(reader);
+
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				return entity;
+			}
+		}
+
+		throw new XMLStreamException("Unexpected end of document inside <" + ENTITY + ">");
+	}
+
+	private XMLRelationInstance readRelation(XMLStreamReader reader) throws XMLStreamException {
+
+		XMLRelationInstance relation = new XMLRelationInstance(reader.getAttributeValue(null, "type"));
+		relation.setFromEntityRef(reader.getAttributeValue(null, "fromEntityRef"));
+		relation.setToEntityRef(reader.getAttributeValue(null, "toEntityRef"));
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+
+				if (FIELD.equals(name))
+					relation.getFields().add(readField(reader));
+				else if (!ATTRIBUTES.equals(name))
+					skipElement(reader);
+
+			} else if (event == XMLStreamConstants.END_ELEMENT && RELATION.equals(reader.getLocalName())) {
+				return relation;
+			}
+		}
+
+		throw new XMLStreamException("Unexpected end of document inside <" + RELATION + ">");
+	}
+
+	private XMLFieldValueInstance readField(XMLStreamReader reader) throws XMLStreamException {
+
+		XMLFieldValueInstance field = new XMLFieldValueInstance(reader.getAttributeValue(null, "name"),
+				reader.getAttributeValue(null, "lang"), reader.getAttributeValue(null, "value"),
+				parseBoolean(reader.getAttributeValue(null, "preferred")));
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (FIELD.equals(reader.getLocalName()))
+					field.getFields().add(readField(reader));
+				else
+					skipElement(reader);
+
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				return field;
+			}
+		}
+
+		throw new XMLStreamException("Unexpected end of document inside <" + FIELD + ">");
+	}
+
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	// xs:boolean lexical space, as accepted by JAXB
+	private static Boolean parseBoolean(String value) {
+		if (value == null)
+			return false;
+		String trimmed = value.trim();
+		return "true".equals(trimmed) || "1".equals(trimmed);
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.repositories.jpa.EntityProvenanceSourceRepository;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
+import org.lareferencia.core.entity.services.EntityDataService;
+import org.lareferencia.core.entity.services.EntityLoadingBatchResult;
+import org.lareferencia.core.entity.services.EntityMergeEngine;
+import org.lareferencia.core.entity.services.EntityMetamodelService;
+import org.lareferencia.core.entity.workers.EntityKeysetPaginator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Merge engine checks shared by the H2 and PostgreSQL runs, both databases must end in the same state
+ */
+abstract class AbstractEntityMergeEngineTest {
+
+    @Autowired
+    private EntityDataService dataService;
+
+    @Autowired
+    private EntityMetamodelService modelService;
+
+    @Autowired
+    private EntityMergeEngine mergeEngine;
+
+    @Autowired
+    private EntityRepository entityRepository;
+
+    @Autowired
+    private EntityProvenanceSourceRepository projectionRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @BeforeEach
+    void loadModel() throws Exception {
+
+        if (jdbcTemplate.queryForObject("SELECT count(*) FROM entity_type WHERE name = 'Person'", Long.class) > 0)
+            return;
+
+        try (InputStream input = new ClassPathResource("simple_model.xml").getInputStream()) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            var model = modelService.loadConfigFromDocument(factory.newDocumentBuilder().parse(input));
+            new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                try {
+                    modelService.persist(model);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    @Test
+    @DisplayName("Merge builds occurrences, relations and provenance sources of the dirty entities")
+    void test_merge_builds_entities_and_relations() throws Exception {
+
+        load(EntityLoadingBatchTest.record("merge-1", "2020-01-01 00:00:00", "merge::person-1", "name", "Jane Doe"));
+
+        assertTrue(mergeEngine.mergeDirtyEntities() >= 2);
+
+        UUID person = entityId("merge::person-1");
+        UUID publication = entityId("publication::merge-1");
+
+        assertEquals(List.of(false, false), List.of(dirty(person), dirty(publication)));
+        assertEquals(Set.of("Jane Doe"), Set.copyOf(occurrenceValues(person)));
+        assertEquals(Set.of("Title of merge-1"), Set.copyOf(occurrenceValues(publication)));
+        assertEquals(1L, relations(person, publication));
+        assertEquals(List.of("1"), relationOccurrenceValues(person, publication));
+        assertEquals(1L, provenanceSources(person));
+        assertEquals(1L, provenanceSources(publication));
+        assertEquals(0L, jdbcTemplate.queryForObject("SELECT count(*) FROM merge_checkpoint", Long.class));
+    }
+
+    @Test
+    @DisplayName("Merge of the to member alone rebuilds the relation and removes entities without source entities")
+    void test_merge_rebuilds_to_member_and_removes_orphans() throws Exception {
+
+        load(EntityLoadingBatchTest.record("merge-2", "2020-01-01 00:00:00", "merge::person-2", "name", "John Doe"));
+        mergeEngine.mergeDirtyEntities();
+
+        UUID person = entityId("merge::person-2");
+        UUID publication = entityId("publication::merge-2");
+        assertEquals(1L, relations(person, publication));
+
+        // only the publication is dirty, its source entity was deleted
+        jdbcTemplate.update("UPDATE source_entity SET deleted = TRUE WHERE final_entity_id = ?", publication);
+        jdbcTemplate.update("UPDATE entity SET dirty = TRUE WHERE uuid = ?", publication);
+
+        mergeEngine.mergeDirtyEntities();
+
+        assertEquals(0L, relations(person, publication));
+        assertEquals(List.of(), relationOccurrenceValues(person, publication));
+        assertEquals(0L, jdbcTemplate.queryForObject("SELECT count(*) FROM entity WHERE uuid = ?", Long.class, publication));
+        assertEquals(0L, jdbcTemplate.queryForObject("SELECT count(*) FROM source_entity WHERE final_entity_id = ?", Long.class, publication));
+        assertEquals(0L, provenanceSources(publication));
+
+        assertFalse(dirty(person));
+        assertEquals(Set.of("John Doe"), Set.copyOf(occurrenceValues(person)));
+        assertEquals(1L, provenanceSources(person));
+    }
+
+    @Test
+    @DisplayName("Merge of the from member alone rebuilds a relation to a clean entity")
+    void test_merge_rebuilds_from_member() throws Exception {
+
+        load(EntityLoadingBatchTest.record("merge-3", "2020-01-01 00:00:00", "merge::person-3", "name", "Ann Doe"));
+        mergeEngine.mergeDirtyEntities();
+
+        UUID person = entityId("merge::person-3");
+        UUID publication = entityId("publication::merge-3");
+        jdbcTemplate.update("DELETE FROM relation_fieldoccr WHERE from_entity_id = ?", person);
+        jdbcTemplate.update("DELETE FROM relation WHERE from_entity_id = ?", person);
+        jdbcTemplate.update("UPDATE entity SET dirty = TRUE WHERE uuid = ?", person);
+
+        mergeEngine.mergeDirtyEntities();
+
+        assertEquals(1L, relations(person, publication));
+        assertEquals(List.of("1"), relationOccurrenceValues(person, publication));
+        assertFalse(dirty(publication));
+    }
+
+    @Test
+    @DisplayName("The provenance source projection of dirty entities is refreshed for the stored procedure merge")
+    void test_refresh_dirty_provenance_sources() throws Exception {
+
+        load(EntityLoadingBatchTest.record("merge-4", "2020-01-01 00:00:00", "merge::person-4", "name", "Bob Doe"));
+
+        UUID person = entityId("merge::person-4");
+        assertTrue(dirty(person));
+        assertEquals(0L, provenanceSources(person));
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> mergeEngine.refreshDirtyProvenanceSources());
+
+        assertEquals(1L, provenanceSources(person));
+        assertEquals("BATCH", jdbcTemplate.queryForObject("SELECT source_id FROM entity_provenance_source WHERE entity_id = ?", String.class, person));
+    }
+
+    @Test
+    @DisplayName("Keyset pagination refuses an empty provenance source projection")
+    void test_empty_projection_rejected() throws Exception {
+
+        load(EntityLoadingBatchTest.record("merge-5", "2020-01-01 00:00:00", "merge::person-5", "name", "Eve Doe"));
+        mergeEngine.mergeDirtyEntities();
+
+        EntityKeysetPaginator paginator = new EntityKeysetPaginator(entityRepository, null, "BATCH", null, false);
+        paginator.useProvenanceProjection(projectionRepository);
+
+        jdbcTemplate.update("DELETE FROM entity_provenance_source");
+        try {
+            assertThrows(IllegalStateException.class, () -> new EntityKeysetPaginator(entityRepository, null, "BATCH", null, false)
+                    .useProvenanceProjection(projectionRepository));
+        } finally {
+            mergeEngine.rebuildProvenanceSources();
+        }
+    }
+
+    private void load(String xml) throws Exception {
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(
+                dataService.parseEntityRelationDataFromStreamNonTransactional(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))), false);
+        assertFalse(result.hasFailures(), () -> result.getFailures().toString());
+    }
+
+    private UUID entityId(String semanticId) {
+        return jdbcTemplate.queryForObject("SELECT esi.entity_id FROM entity_semantic_identifier esi "
+                + "JOIN semantic_identifier si ON si.id = esi.semantic_id WHERE si.semantic_id = ?", UUID.class, semanticId);
+    }
+
+    private boolean dirty(UUID entityId) {
+        return jdbcTemplate.queryForObject("SELECT dirty FROM entity WHERE uuid = ?", Boolean.class, entityId);
+    }
+
+    private List<String> occurrenceValues(UUID entityId) {
+        return jdbcTemplate.queryForList("SELECT fo.content FROM entity_fieldoccr o JOIN field_occurrence fo ON fo.id = o.fieldoccr_id "
+                + "WHERE o.entity_id = ?", String.class, entityId);
+    }
+
+    private long relations(UUID fromEntityId, UUID toEntityId) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM relation WHERE from_entity_id = ? AND to_entity_id = ?",
+                Long.class, fromEntityId, toEntityId);
+    }
+
+    private List<String> relationOccurrenceValues(UUID fromEntityId, UUID toEntityId) {
+        return jdbcTemplate.queryForList("SELECT fo.content FROM relation_fieldoccr o JOIN field_occurrence fo ON fo.id = o.fieldoccr_id "
+                + "WHERE o.from_entity_id = ? AND o.to_entity_id = ?", String.class, fromEntityId, toEntityId);
+    }
+
+    private long provenanceSources(UUID entityId) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM entity_provenance_source WHERE entity_id = ?", Long.class, entityId);
+    }
+}
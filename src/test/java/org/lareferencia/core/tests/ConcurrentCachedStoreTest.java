@@ -0,0 +1,83 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.domain.SemanticIdentifier;
+import org.lareferencia.core.entity.repositories.jpa.SemanticIdentifierRepository;
+import org.lareferencia.core.entity.services.ConcurrentCachedStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest
+@DisplayName("Cached store negative caching on H2")
+class ConcurrentCachedStoreTest {
+
+    @Autowired
+    private SemanticIdentifierRepository semanticIdentifierRepository;
+
+    @Test
+    @DisplayName("Without negative caching a key stored by another loader is found on the next lookup")
+    void test_negative_caching_disabled_by_default() {
+
+        ConcurrentCachedStore<Long, SemanticIdentifier, SemanticIdentifierRepository> store =
+                new ConcurrentCachedStore<>(semanticIdentifierRepository, 100, true, 0);
+
+        SemanticIdentifier semanticId = new SemanticIdentifier("cache::default-" + System.nanoTime());
+        assertNull(store.get(semanticId.getId()));
+
+        semanticIdentifierRepository.save(semanticId);
+
+        assertNotNull(store.get(semanticId.getId()));
+    }
+
+    @Test
+    @DisplayName("Absent keys are remembered when enabled and forgotten on put")
+    void test_negative_caching_opt_in() {
+
+        ConcurrentCachedStore<Long, SemanticIdentifier, SemanticIdentifierRepository> store =
+                new ConcurrentCachedStore<>(semanticIdentifierRepository, 100, true, 0, 100, 60);
+
+        SemanticIdentifier semanticId = new SemanticIdentifier("cache::negative-" + System.nanoTime());
+        assertNull(store.get(semanticId.getId()));
+
+        // stored by another loader, the store still remembers it as absent
+        semanticIdentifierRepository.save(semanticId);
+        assertNull(store.get(semanticId.getId()));
+
+        store.put(semanticId.getId(), semanticId);
+        assertSame(semanticId, store.get(semanticId.getId()));
+        assertTrue(store.getAll(List.of(semanticId.getId())).containsKey(semanticId.getId()));
+    }
+
+    @Test
+    @DisplayName("Negative caching without expiration is rejected")
+    void test_negative_caching_requires_expiration() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ConcurrentCachedStore<>(semanticIdentifierRepository, 100, true, 0, 100, 0));
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.indexing.elastic.AdaptiveBulkController;
+import org.lareferencia.core.entity.indexing.elastic.ElasticBulkProcessor;
+import org.opensearch.client.RestClient;
+import org.opensearch.client.RestHighLevelClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+@DisplayName("Bulk aggregation against an OpenSearch stand-in")
+class ElasticBulkProcessorTest {
+
+    private static final Pattern ID_PATTERN = Pattern.compile("\"_id\":\"([^\"]+)\"");
+
+    private HttpServer server;
+    private RestHighLevelClient client;
+
+    /** ids of every bulk request received, in order */
+    private final List<List<String>> bulks = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    /** ids answered with 429 the first time they are seen */
+    private final Set<String> rejectOnce = ConcurrentHashMap.newKeySet();
+
+    /** number of the next bulk requests answered with HTTP 429 as a whole */
+    private final AtomicInteger rejectBulks = new AtomicInteger();
+
+    /** ids always answered with a mapping error */
+    private final Set<String> invalid = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger indexed = new AtomicInteger();
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> confirmed = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", this::handleBulk);
+        server.start();
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", server.getAddress().getPort(), "http")));
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    private void handleBulk(HttpExchange exchange) throws IOException {
+
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        List<String> ids = new ArrayList<String>();
+        Matcher matcher = ID_PATTERN.matcher(body);
+        while (matcher.find())
+            ids.add(matcher.group(1));
+        bulks.add(ids);
+
+        if (rejectBulks.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+            send(exchange, 429, "{\"error\":{\"root_cause\":[{\"type\":\"rejected_execution_exception\",\"reason\":\"queue full\"}],"
+                    + "\"type\":\"rejected_execution_exception\",\"reason\":\"queue full\"},\"status\":429}");
+            return;
+        }
+
+        StringBuilder items = new StringBuilder();
+        boolean errors = false;
+        for (String id : ids) {
+            if (items.length() > 0)
+                items.append(',');
+            if (invalid.contains(id)) {
+                errors = true;
+                items.append("{\"index\":{\"_index\":\"docs\",\"_id\":\"" + id + "\",\"status\":400,"
+                        + "\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}");
+            } else if (rejectOnce.remove(id)) {
+                errors = true;
+                items.append("{\"index\":{\"_index\":\"docs\",\"_id\":\"" + id + "\",\"status\":429,"
+                        + "\"error\":{\"type\":\"rejected_execution_exception\",\"reason\":\"queue full\"}}}");
+            } else {
+                items.append("{\"index\":{\"_index\":\"docs\",\"_id\":\"" + id + "\",\"_version\":1,\"result\":\"created\","
+                        + "\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},\"_seq_no\":0,\"_primary_term\":1,\"status\":201}}");
+            }
+        }
+
+        send(exchange, 200, "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private ElasticBulkProcessor processor(int maxActions, long maxBytes, long flushIntervalMillis) {
+        return processor(AdaptiveBulkController.fixed(maxActions, 2), maxBytes, flushIntervalMillis);
+    }
+
+    private ElasticBulkProcessor processor(AdaptiveBulkController controller, long maxBytes, long flushIntervalMillis) {
+        return new ElasticBulkProcessor(client, new ElasticBulkProcessor.Listener() {
+            @Override
+            public void onIndexed(int documents) {
+                indexed.addAndGet(documents);
+            }
+
+            @Override
+            public void onDocumentIndexed(String index, String id) {
+                confirmed.add(index + "/" + id);
+            }
+
+            @Override
+            public void onFailed(String index, String id, String reason) {
+                failed.add(id);
+            }
+
+            @Override
+            public void onRequestFailure(Exception e) {
+            }
+        }, controller, maxBytes, flushIntervalMillis, 3, 10);
+    }
+
+    private static String document(String id) {
+        return "{\"id\":\"" + id + "\",\"title\":\"document " + id + "\"}";
+    }
+
+    @Test
+    @DisplayName("Documents are sent in bulks of maxActions")
+    void test_flush_by_count() throws Exception {
+
+        try (ElasticBulkProcessor processor = processor(5, 0, 0)) {
+            for (int i = 0; i < 12; i++)
+                processor.add("docs", "d" + i, document("d" + i));
+
+            // two full bulks were sent, two documents wait for the flush
+            assertEquals(2, processor.getPendingDocuments());
+            processor.flush();
+        }
+
+        assertEquals(3, bulks.size());
+        assertEquals(12, bulks.stream().mapToInt(List::size).sum());
+        assertEquals(12, indexed.get());
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    @DisplayName("A bulk is sent when its source reaches maxBytes")
+    void test_flush_by_size() throws Exception {
+
+        try (ElasticBulkProcessor processor = processor(1000, document("d0").length() * 3, 0)) {
+            for (int i = 0; i < 6; i++)
+                processor.add("docs", "d" + i, document("d" + i));
+            processor.flush();
+        }
+
+        assertEquals(2, bulks.size());
+        assertEquals(6, indexed.get());
+    }
+
+    @Test
+    @DisplayName("Pending documents are sent after the flush interval")
+    void test_flush_by_time() throws Exception {
+
+        try (ElasticBulkProcessor processor = processor(1000, 0, 50)) {
+            processor.add("docs", "d0", document("d0"));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (indexed.get() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        }
+
+        assertEquals(1, indexed.get());
+        assertEquals(1, bulks.size());
+    }
+
+    @Test
+    @DisplayName("Only rejected items are retried, mapping errors are not")
+    void test_retry_failed_items() throws Exception {
+
+        rejectOnce.add("d2");
+        rejectOnce.add("d4");
+        invalid.add("d3");
+
+        try (ElasticBulkProcessor processor = processor(6, 0, 0)) {
+            for (int i = 0; i < 6; i++)
+                processor.add("docs", "d" + i, document("d" + i));
+            processor.flush();
+        }
+
+        assertEquals(2, bulks.size());
+        assertEquals(List.of("d2", "d4"), bulks.get(1));
+        assertEquals(5, indexed.get());
+        assertEquals(List.of("d3"), failed);
+
+        // only the documents of successful items are confirmed
+        assertEquals(List.of("docs/d0", "docs/d1", "docs/d2", "docs/d4", "docs/d5"), confirmed.stream().sorted().toList());
+    }
+
+    @Test
+    @DisplayName("A bulk rejected as a whole with 429 is retried")
+    void test_retry_rejected_bulk() throws Exception {
+
+        rejectBulks.set(2);
+
+        try (ElasticBulkProcessor processor = processor(4, 0, 0)) {
+            for (int i = 0; i < 4; i++)
+                processor.add("docs", "d" + i, document("d" + i));
+            processor.flush();
+        }
+
+        assertEquals(3, bulks.size());
+        assertEquals(4, indexed.get());
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Documents of a bulk rejected after every retry are reported as failed")
+    void test_rejected_bulk_fails_documents() throws Exception {
+
+        rejectBulks.set(Integer.MAX_VALUE);
+
+        try (ElasticBulkProcessor processor = processor(4, 0, 0)) {
+            for (int i = 0; i < 4; i++)
+                processor.add("docs", "d" + i, document("d" + i));
+            processor.flush();
+        }
+
+        // the first attempt and 3 retries
+        assertEquals(4, bulks.size());
+        assertEquals(0, indexed.get());
+        assertEquals(List.of("d0", "d1", "d2", "d3"), failed);
+    }
+
+    @Test
+    @DisplayName("Bulk size grows additively and is halved on rejections")
+    void test_adaptive_bulk_size() throws Exception {
+
+        AdaptiveBulkController controller = new AdaptiveBulkController(4, 2, 100, 1, 1, 4, 0, 2);
+
+        try (ElasticBulkProcessor processor = processor(controller, 0, 0)) {
+
+            // each full bulk answered in time adds 2 documents, one more request in flight after a round of them
+            for (int i = 0; i < 4; i++)
+                processor.add("docs", "a" + i, document("a" + i));
+            processor.flush();
+            assertEquals(6, controller.getBulkActions());
+            assertEquals(2, controller.getConcurrency());
+
+            for (int i = 0; i < 6; i++)
+                processor.add("docs", "b" + i, document("b" + i));
+            processor.flush();
+            assertEquals(8, controller.getBulkActions());
+            assertEquals(2, controller.getConcurrency());
+
+            // a rejected item halves both limits, the small retry bulk does not grow the size again
+            rejectOnce.add("c0");
+            for (int i = 0; i < 8; i++)
+                processor.add("docs", "c" + i, document("c" + i));
+            processor.flush();
+        }
+
+        assertEquals(List.of(4, 6, 8, 1), bulks.stream().map(List::size).toList());
+        assertEquals(List.of("c0"), bulks.get(3));
+        assertEquals(4, controller.getBulkActions());
+        assertEquals(1, controller.getDecreases());
+        assertEquals(18, indexed.get());
+    }
+
+    @Test
+    @DisplayName("Rejections of requests sent before the last decrease are ignored")
+    void test_decrease_once_per_window() {
+
+        AdaptiveBulkController controller = new AdaptiveBulkController(64, 1, 100, 4, 1, 4, 0, 2);
+
+        // four requests in flight with the initial limits are rejected
+        long window = controller.getWindow();
+        for (int i = 0; i < 4; i++)
+            controller.onResponse(window, 64, 10, true);
+
+        assertEquals(1, controller.getDecreases());
+        assertEquals(32, controller.getBulkActions());
+        assertEquals(2, controller.getConcurrency());
+
+        // a request sent with the decreased limits is rejected too
+        controller.onResponse(controller.getWindow(), 32, 10, true);
+
+        assertEquals(2, controller.getDecreases());
+        assertEquals(16, controller.getBulkActions());
+        assertEquals(1, controller.getConcurrency());
+    }
+}
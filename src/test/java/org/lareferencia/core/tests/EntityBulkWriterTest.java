@@ -0,0 +1,120 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.domain.Entity;
+import org.lareferencia.core.entity.domain.EntityType;
+import org.lareferencia.core.entity.domain.FieldOccurrence;
+import org.lareferencia.core.entity.domain.FieldType;
+import org.lareferencia.core.entity.domain.Provenance;
+import org.lareferencia.core.entity.domain.SemanticIdentifier;
+import org.lareferencia.core.entity.domain.SourceEntity;
+import org.lareferencia.core.entity.repositories.jpa.EntityRepository;
+import org.lareferencia.core.entity.repositories.jpa.EntityTypeRepository;
+import org.lareferencia.core.entity.repositories.jpa.ProvenanceRepository;
+import org.lareferencia.core.entity.repositories.jpa.SemanticIdentifierRepository;
+import org.lareferencia.core.entity.services.EntityBulkWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.annotation.Transactional;
+
+@SpringBootTest
+@DisplayName("Bulk writer JDBC batch fallback on H2")
+class EntityBulkWriterTest {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private EntityTypeRepository entityTypeRepository;
+
+    @Autowired
+    private EntityRepository entityRepository;
+
+    @Autowired
+    private ProvenanceRepository provenanceRepository;
+
+    @Autowired
+    private SemanticIdentifierRepository semanticIdentifierRepository;
+
+    @Test
+    @Transactional
+    @DisplayName("Buffered source entities, join rows and field occurrences are written once")
+    void test_bulk_write_fallback() throws Exception {
+
+        EntityType type = new EntityType("BulkPerson");
+        type.addField(new FieldType("name"));
+        type = entityTypeRepository.save(type);
+
+        Provenance provenance = provenanceRepository.save(new Provenance("BULK", "record-1"));
+        SemanticIdentifier semanticId = semanticIdentifierRepository.save(new SemanticIdentifier("bulk::0000-0001"));
+        Entity finalEntity = entityRepository.save(new Entity(type));
+
+        FieldOccurrence name = type.getFieldByName("name").buildFieldOccurrence().addValue("Jane Doe");
+        name.updateId();
+
+        SourceEntity sourceEntity = new SourceEntity(type, provenance);
+        sourceEntity.addFieldOccurrence(name);
+        sourceEntity.addSemanticIdentifier(semanticId);
+        sourceEntity.setFinalEntity(finalEntity);
+
+        EntityBulkWriter writer = new EntityBulkWriter(entityManager, 1000);
+
+        // duplicated occurrences collapse in the buffer
+        writer.addFieldOccurrences(List.of(name));
+        writer.addFieldOccurrences(List.of(name));
+        writer.addSourceEntity(sourceEntity);
+
+        // rows of a discarded record are never written
+        SourceEntity discarded = new SourceEntity(type, provenance);
+        discarded.setFinalEntity(finalEntity);
+        writer.beginRecord();
+        writer.addSourceEntity(discarded);
+        writer.discardRecord();
+
+        writer.flush();
+
+        assertEquals(1, count("SELECT count(*) FROM field_occurrence WHERE id = ?1", name.getId()));
+        assertEquals(1, count("SELECT count(*) FROM source_entity WHERE uuid = ?1", sourceEntity.getId()));
+        assertEquals(0, count("SELECT count(*) FROM source_entity WHERE uuid = ?1", discarded.getId()));
+        assertEquals(1, count("SELECT count(*) FROM source_entity_fieldoccr WHERE entity_id = ?1", sourceEntity.getId()));
+        assertEquals(1, count("SELECT count(*) FROM source_entity_semantic_identifier WHERE entity_id = ?1", sourceEntity.getId()));
+
+        // an occurrence already stored is skipped by the fallback
+        writer.addFieldOccurrences(List.of(name));
+        writer.flush();
+
+        assertEquals(1, count("SELECT count(*) FROM field_occurrence WHERE id = ?1", name.getId()));
+    }
+
+    private long count(String sql, Object param) {
+        return ((Number) entityManager.createNativeQuery(sql).setParameter(1, param).getSingleResult()).longValue();
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.services.EntityDataService;
+import org.lareferencia.core.entity.services.EntityLoadingBatchResult;
+import org.lareferencia.core.entity.services.EntityMetamodelService;
+import org.lareferencia.core.entity.xml.XMLEntityRelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs on its own in-memory database, the metamodel must be stored before the model cache is first used
+ */
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:loadingdb;DB_CLOSE_ON_EXIT=FALSE")
+@DisplayName("Multi-record entity loading on H2")
+class EntityLoadingBatchTest {
+
+    private static final String SOURCE = "BATCH";
+
+    private static boolean modelLoaded = false;
+
+    @Autowired
+    private EntityDataService dataService;
+
+    @Autowired
+    private EntityMetamodelService modelService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private boolean batchEntityResolution;
+
+    @BeforeEach
+    void loadModel() throws Exception {
+
+        batchEntityResolution = dataService.isBatchEntityResolution();
+
+        if (modelLoaded)
+            return;
+
+        try (InputStream input = new ClassPathResource("simple_model.xml").getInputStream()) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            var model = modelService.loadConfigFromDocument(factory.newDocumentBuilder().parse(input));
+            new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                try {
+                    modelService.persist(model);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        modelLoaded = true;
+    }
+
+    @AfterEach
+    void restoreModes() {
+        dataService.setInsertWithoutRead(false);
+        dataService.setWriteBehind(false);
+        dataService.setBatchEntityResolution(batchEntityResolution);
+        dataService.setDeltaUpdate(false);
+        dataService.setSkipUnchangedRecords(false);
+    }
+
+    @Test
+    @DisplayName("A failing record is rolled back alone, the rest of the batch commits")
+    void test_failed_record_rolled_back_alone() throws Exception {
+
+        List<XMLEntityRelationData> records = new ArrayList<XMLEntityRelationData>();
+        records.add(parse(record("savepoint-1", "2020-10-02 18:48:05", "savepoint::person-1", "name", "Jane Doe")));
+        records.add(parse(record("savepoint-2", "2020-10-02 18:48:05", "savepoint::person-2", "unknownField", "Broken")));
+        records.add(parse(record("savepoint-3", "2020-10-02 18:48:05", "savepoint::person-3", "name", "John Doe")));
+
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(records, false);
+
+        assertEquals(2, result.getRecordsPersisted());
+        assertEquals(List.of(1), new ArrayList<Integer>(result.getFailures().keySet()));
+
+        assertEquals(2L, sourceEntities("savepoint-1"));
+        assertEquals(0, sourceEntities("savepoint-2"));
+        assertEquals(2L, sourceEntities("savepoint-3"));
+        assertEquals(0, provenances("savepoint-2"));
+    }
+
+    @Test
+    @DisplayName("Insert without read stores shared semantic identifiers and occurrences once")
+    void test_insert_without_read() throws Exception {
+
+        dataService.setInsertWithoutRead(true);
+
+        // same person and name in both batches, the second one hits rows written by the first
+        dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("upsert-1", "2020-10-02 18:48:05", "upsert::person-1", "name", "Shared Name"))), false);
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("upsert-2", "2020-10-02 18:48:05", "upsert::person-1", "name", "Shared Name"))), false);
+
+        assertFalse(result.hasFailures());
+        assertEquals(2L, sourceEntities("upsert-1"));
+        assertEquals(2L, sourceEntities("upsert-2"));
+        assertEquals(1, semanticIdentifiers("upsert::person-1"));
+        assertEquals(1, provenances("upsert-2"));
+    }
+
+    @Test
+    @DisplayName("Write-behind buffers of a rolled back record are discarded")
+    void test_write_behind_discards_failed_record() throws Exception {
+
+        dataService.setWriteBehind(true);
+        dataService.setBatchEntityResolution(false);
+
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("behind-1", "2020-10-02 18:48:05", "behind::person-1", "name", "Jane Doe")),
+                parse(record("behind-2", "2020-10-02 18:48:05", "behind::person-2", "unknownField", "Broken")),
+                parse(record("behind-3", "2020-10-02 18:48:05", "behind::person-3", "name", "John Doe"))), false);
+
+        assertEquals(2, result.getRecordsPersisted());
+        assertEquals(2L, sourceEntities("behind-1"));
+        assertEquals(2L, sourceEntities("behind-3"));
+        assertEquals(1, semanticIdentifiers("behind::person-1"));
+        assertEquals(0, semanticIdentifiers("behind::person-2"));
+        assertEquals(1, semanticIdentifiers("behind::person-3"));
+    }
+
+    @Test
+    @DisplayName("Batch resolution leaves unchanged records alone")
+    void test_batch_resolution_skips_unchanged_record() throws Exception {
+
+        dataService.setBatchEntityResolution(true);
+        dataService.setSkipUnchangedRecords(true);
+
+        dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("unchanged-1", "2020-10-02 18:48:05", "unchanged::person-1", "name", "Jane Doe"))), false);
+        jdbcTemplate.update("UPDATE entity SET dirty = FALSE");
+
+        // newer datestamp, same content
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("unchanged-1", "2021-01-01 00:00:00", "unchanged::person-1", "name", "Jane Doe"))), false);
+
+        assertEquals(1L, result.getStats().getRecordsSkippedUnchanged());
+        assertEquals(List.of(false), entityDirtyFlags("unchanged::person-1"));
+    }
+
+    @Test
+    @DisplayName("Batch resolution of a failed record is rolled back with it")
+    void test_batch_resolution_rolled_back_with_failed_record() throws Exception {
+
+        dataService.setBatchEntityResolution(true);
+
+        dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("resolve-1", "2020-10-02 18:48:05", "resolve::person-1", "name", "Jane Doe"))), false);
+        jdbcTemplate.update("UPDATE entity SET dirty = FALSE");
+
+        // fails after its entities were resolved: existing person, new publication
+        XMLEntityRelationData failing = parse(record("resolve-2", "2020-10-02 18:48:05", "resolve::person-1", "name", "Jane Doe"));
+        failing.getRelations().get(0).setToEntityRef("missing");
+
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(failing), false);
+
+        assertEquals(List.of(0), new ArrayList<Integer>(result.getFailures().keySet()));
+        assertEquals(List.of(false), entityDirtyFlags("resolve::person-1"));
+        assertEquals(List.of(), entityDirtyFlags("publication::resolve-2"));
+        assertEquals(0, provenances("resolve-2"));
+    }
+
+    @Test
+    @DisplayName("Batch resolution links new semantic identifiers of committed records only")
+    void test_batch_resolution_links_released_records() throws Exception {
+
+        dataService.setBatchEntityResolution(true);
+
+        load(record("link-1", "2020-10-02 18:48:05", "link::person-1", "name", "Jane Doe"));
+        jdbcTemplate.update("UPDATE entity SET dirty = FALSE");
+
+        // both records claim the existing person with a new semantic identifier, the second one fails
+        XMLEntityRelationData failing = parse(record("link-3", "2020-10-02 18:48:05",
+                semanticId("link::person-1") + semanticId("link::person-1c") + field("name", "Jane Doe")));
+        failing.getRelations().get(0).setToEntityRef("missing");
+
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(
+                parse(record("link-2", "2020-10-02 18:48:05",
+                        semanticId("link::person-1") + semanticId("link::person-1b") + field("name", "Jane Doe"))),
+                failing), false);
+
+        assertEquals(List.of(1), new ArrayList<Integer>(result.getFailures().keySet()));
+        assertEquals(List.of(true), entityDirtyFlags("link::person-1"));
+        assertEquals(List.of(true), entityDirtyFlags("link::person-1b"));
+        assertEquals(List.of(), entityDirtyFlags("link::person-1c"));
+    }
+
+    @Test
+    @DisplayName("Delta update rewrites only the occurrences that were added, removed or changed")
+    void test_delta_update_occurrences() throws Exception {
+
+        dataService.setDeltaUpdate(true);
+
+        load(record("delta-1", "2020-01-01 00:00:00",
+                semanticId("delta::person-1") + field("name", "Jane Doe") + field("citationName", "Doe, J.")));
+        UUID person = personSourceEntity("delta-1");
+        assertEquals(Set.of("Jane Doe", "Doe, J."), occurrenceValues(person));
+
+        // changed
+        jdbcTemplate.update("UPDATE entity SET dirty = FALSE");
+        EntityLoadingBatchResult result = load(record("delta-1", "2020-01-02 00:00:00",
+                semanticId("delta::person-1") + field("name", "Jane M. Doe") + field("citationName", "Doe, J.")));
+        assertEquals(1L, result.getStats().getSourceEntitiesUpdated());
+        assertEquals(1L, result.getStats().getSourceEntitiesUnchanged());
+        assertEquals(person, personSourceEntity("delta-1"));
+        assertEquals(Set.of("Jane M. Doe", "Doe, J."), occurrenceValues(person));
+        assertEquals(List.of(true), entityDirtyFlags("delta::person-1"));
+        assertEquals(List.of(false), entityDirtyFlags("publication::delta-1"));
+
+        // added
+        load(record("delta-1", "2020-01-03 00:00:00",
+                semanticId("delta::person-1") + field("name", "Jane M. Doe") + field("citationName", "Doe, J.") + field("citationName", "Doe, Jane")));
+        assertEquals(person, personSourceEntity("delta-1"));
+        assertEquals(Set.of("Jane M. Doe", "Doe, J.", "Doe, Jane"), occurrenceValues(person));
+
+        // removed
+        load(record("delta-1", "2020-01-04 00:00:00",
+                semanticId("delta::person-1") + field("name", "Jane M. Doe")));
+        assertEquals(person, personSourceEntity("delta-1"));
+        assertEquals(Set.of("Jane M. Doe"), occurrenceValues(person));
+        assertEquals(2L, sourceEntities("delta-1"));
+    }
+
+    @Test
+    @DisplayName("Delta update replaces a source entity whose semantic identifiers changed")
+    void test_delta_update_semantic_id_changed() throws Exception {
+
+        dataService.setDeltaUpdate(true);
+
+        load(record("delta-2", "2020-01-01 00:00:00", semanticId("delta::person-2") + field("name", "John Doe")));
+        UUID person = personSourceEntity("delta-2");
+
+        jdbcTemplate.update("UPDATE entity SET dirty = FALSE");
+        load(record("delta-2", "2020-01-02 00:00:00", semanticId("delta::person-2b") + field("name", "John Doe")));
+
+        UUID replacement = personSourceEntity("delta-2");
+        assertNotEquals(person, replacement);
+        assertEquals(Boolean.TRUE, jdbcTemplate.queryForObject("SELECT deleted FROM source_entity WHERE uuid = ?", Boolean.class, person));
+        assertEquals(Set.of("John Doe"), occurrenceValues(replacement));
+        assertEquals(List.of(true), entityDirtyFlags("delta::person-2"));
+        assertEquals(2L, sourceEntities("delta-2"));
+    }
+
+    /**
+     * A record with a Person (one field) and a Publication, related by Authorship
+     */
+    static String record(String recordId, String lastUpdate, String personId, String personField, String personValue) {
+        return record(recordId, lastUpdate, semanticId(personId) + field(personField, personValue));
+    }
+
+    /**
+     * A record with a Person (given semantic identifiers and fields) and a Publication, related by Authorship
+     */
+    static String record(String recordId, String lastUpdate, String personContent) {
+        return "<entity-relation-data source=\"" + SOURCE + "\" record=\"" + recordId + "\" lastUpdate=\"" + lastUpdate + "\">"
+                + "<entities>"
+                + "<entity type=\"Person\" ref=\"p1\">"
+                + personContent
+                + "</entity>"
+                + "<entity type=\"Publication\" ref=\"w1\">"
+                + "<semanticIdentifier>publication::" + recordId + "</semanticIdentifier>"
+                + "<field name=\"title\" value=\"Title of " + recordId + "\"/>"
+                + "</entity>"
+                + "</entities>"
+                + "<relations>"
+                + "<relation type=\"Authorship\" fromEntityRef=\"p1\" toEntityRef=\"w1\">"
+                + "<attributes><field name=\"order\" value=\"1\"/></attributes>"
+                + "</relation>"
+                + "</relations>"
+                + "</entity-relation-data>";
+    }
+
+    static String semanticId(String semanticId) {
+        return "<semanticIdentifier>" + semanticId + "</semanticIdentifier>";
+    }
+
+    static String field(String name, String value) {
+        return "<field name=\"" + name + "\" value=\"" + value + "\"/>";
+    }
+
+    private EntityLoadingBatchResult load(String xml) throws Exception {
+        EntityLoadingBatchResult result = dataService.persistEntityRelationDataBatch(List.of(parse(xml)), false);
+        assertFalse(result.hasFailures(), () -> result.getFailures().toString());
+        return result;
+    }
+
+    private UUID personSourceEntity(String recordId) {
+        return jdbcTemplate.queryForObject("SELECT se.uuid FROM source_entity se JOIN provenance p ON p.id = se.provenance_id "
+                + "JOIN entity_type et ON et.id = se.entity_type_id WHERE p.source_id = ? AND p.record_id = ? AND et.name = 'Person' "
+                + "AND se.deleted = false", UUID.class, SOURCE, recordId);
+    }
+
+    private Set<String> occurrenceValues(UUID sourceEntityId) {
+        return new HashSet<String>(jdbcTemplate.queryForList("SELECT fo.content FROM source_entity_fieldoccr o "
+                + "JOIN field_occurrence fo ON fo.id = o.fieldoccr_id WHERE o.entity_id = ?", String.class, sourceEntityId));
+    }
+
+    private XMLEntityRelationData parse(String xml) throws Exception {
+        return dataService.parseEntityRelationDataFromStreamNonTransactional(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private long sourceEntities(String recordId) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM source_entity se JOIN provenance p ON p.id = se.provenance_id "
+                + "WHERE p.source_id = ? AND p.record_id = ? AND se.deleted = false", Long.class, SOURCE, recordId);
+    }
+
+    private List<Boolean> entityDirtyFlags(String semanticId) {
+        return jdbcTemplate.queryForList("SELECT e.dirty FROM entity e JOIN entity_semantic_identifier esi ON esi.entity_id = e.uuid "
+                + "JOIN semantic_identifier si ON si.id = esi.semantic_id WHERE si.semantic_id = ?", Boolean.class, semanticId);
+    }
+
+    private long semanticIdentifiers(String semanticId) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM semantic_identifier WHERE semantic_id = ?", Long.class, semanticId);
+    }
+
+    private long provenances(String recordId) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM provenance WHERE source_id = ? AND record_id = ? AND last_update IS NOT NULL",
+                Long.class, SOURCE, recordId);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+
+package org.lareferencia.core.tests;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+/**
+ * Same checks as EntityMergeEngineH2Test on an empty PostgreSQL database, given by the entity.test.postgres.url,
+ * entity.test.postgres.username and entity.test.postgres.password system properties (skipped without them)
+ */
+@SpringBootTest
+@EnabledIfSystemProperty(named = "entity.test.postgres.url", matches = ".+")
+@DisplayName("Entity merge engine on PostgreSQL")
+class EntityMergeEnginePostgresTest extends AbstractEntityMergeEngineTest {
+
+    @DynamicPropertySource
+    static void postgres(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.driver-class-name", () -> "org.postgresql.Driver");
+        registry.add("spring.datasource.url", () -> System.getProperty("entity.test.postgres.url"));
+        registry.add("spring.datasource.username", () -> System.getProperty("entity.test.postgres.username", "postgres"));
+        registry.add("spring.datasource.password", () -> System.getProperty("entity.test.postgres.password", ""));
+        registry.add("spring.jpa.hibernate.ddl-auto", () -> "create-drop");
+    }
+}
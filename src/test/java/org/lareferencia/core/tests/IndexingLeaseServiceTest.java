@@ -0,0 +1,151 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.domain.IndexingLease;
+import org.lareferencia.core.entity.services.IndexingLeaseService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest
+@DisplayName("Indexing partition leases on H2")
+class IndexingLeaseServiceTest {
+
+    private static final String SCOPE = "lease-test";
+
+    @Autowired
+    private IndexingLeaseService leaseService;
+
+    @AfterEach
+    void cleanUp() {
+        leaseService.setLeaseSeconds(300);
+        leaseService.deleteLeases(SCOPE);
+    }
+
+    @Test
+    @DisplayName("Partitions cover the UUID space and are created once per run")
+    void test_create_leases() {
+
+        List<IndexingLease> leases = leaseService.createLeases(SCOPE, 4);
+
+        assertEquals(4, leases.size());
+        assertNull(leases.get(0).getLowerBound());
+        assertNull(leases.get(3).getUpperBound());
+        for (int i = 1; i < 4; i++)
+            assertEquals(leases.get(i - 1).getUpperBound(), leases.get(i).getLowerBound());
+
+        // a second node joins the same run
+        assertEquals(4, leaseService.createLeases(SCOPE, 8).size());
+    }
+
+    @Test
+    @DisplayName("A partition is held by one owner until completed")
+    void test_claim_heartbeat_complete() {
+
+        leaseService.createLeases(SCOPE, 2);
+
+        IndexingLease first = leaseService.claim(SCOPE, "node-a").orElseThrow();
+        IndexingLease second = leaseService.claim(SCOPE, "node-b").orElseThrow();
+        assertNotEquals(first.getId(), second.getId());
+        assertTrue(leaseService.claim(SCOPE, "node-c").isEmpty());
+
+        UUID lastEntityId = UUID.randomUUID();
+        assertTrue(leaseService.heartbeat(first, "node-a", lastEntityId, 10));
+        assertFalse(leaseService.heartbeat(first, "node-b", null, 10));
+        assertFalse(leaseService.complete(first, "node-c"));
+
+        assertTrue(leaseService.complete(first, "node-a"));
+        assertTrue(leaseService.hasPendingPartitions(SCOPE));
+
+        assertFalse(leaseService.finishRun(SCOPE));
+
+        // the last completion closes the run, it is finished once
+        assertTrue(leaseService.complete(second, "node-b"));
+        assertFalse(leaseService.hasPendingPartitions(SCOPE));
+        assertTrue(leaseService.finishRun(SCOPE));
+        assertFalse(leaseService.finishRun(SCOPE));
+    }
+
+    @Test
+    @DisplayName("Expired leases are reclaimed and resume from the checkpoint")
+    void test_expired_lease_reclaimed() {
+
+        leaseService.createLeases(SCOPE, 1);
+
+        // leases of node-a expire as soon as they are taken
+        leaseService.setLeaseSeconds(-1);
+        IndexingLease lease = leaseService.claim(SCOPE, "node-a").orElseThrow();
+        UUID lastEntityId = UUID.randomUUID();
+        assertTrue(leaseService.heartbeat(lease, "node-a", lastEntityId, 5));
+
+        leaseService.setLeaseSeconds(300);
+        Optional<IndexingLease> reclaimed = leaseService.claim(SCOPE, "node-b");
+        assertTrue(reclaimed.isPresent());
+        assertEquals(lastEntityId, reclaimed.get().getLastEntityId());
+        assertEquals(5L, reclaimed.get().getEntitiesIndexed());
+        assertEquals("node-b", reclaimed.get().getOwner());
+
+        // the previous owner finds out on its next heartbeat
+        assertFalse(leaseService.heartbeat(lease, "node-a", UUID.randomUUID(), 1));
+        assertTrue(leaseService.claim(SCOPE, "node-c").isEmpty());
+    }
+
+    @Test
+    @DisplayName("Nodes joining a run share its indexer run state")
+    void test_run_state_shared() {
+
+        List<IndexingLease> leases = leaseService.createLeases(SCOPE, 2, "v1");
+        assertEquals("v1", leases.get(1).getIndexerState());
+
+        // a node joining the run in progress gets the state of the node that created it
+        assertEquals("v1", leaseService.createLeases(SCOPE, 2, "v2").get(0).getIndexerState());
+    }
+
+    @Test
+    @DisplayName("A run with failed entities is kept and not complete")
+    void test_failed_partitions() {
+
+        leaseService.createLeases(SCOPE, 1, "v1");
+
+        IndexingLease lease = leaseService.claim(SCOPE, "node-a").orElseThrow();
+        assertTrue(leaseService.addFailures(lease, "node-a", 2));
+        assertTrue(leaseService.complete(lease, "node-a"));
+
+        assertFalse(leaseService.hasPendingPartitions(SCOPE));
+        assertTrue(leaseService.hasFailedPartitions(SCOPE));
+        assertFalse(leaseService.finishRun(SCOPE));
+
+        // the next run of the scope starts from scratch with its own state
+        List<IndexingLease> leases = leaseService.createLeases(SCOPE, 1, "v2");
+        assertEquals("v2", leases.get(0).getIndexerState());
+        assertFalse(leaseService.hasFailedPartitions(SCOPE));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lareferencia.core.entity.services.OffHeapLongUUIDMap;
+
+@DisplayName("Off heap long -> UUID map")
+class OffHeapLongUUIDMapTest {
+
+    @TempDir
+    File mappedDirectory;
+
+    @Test
+    @DisplayName("put, putIfAbsent and the empty key")
+    void test_put_get() {
+
+        OffHeapLongUUIDMap map = new OffHeapLongUUIDMap(4, 100, null);
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        assertNull(map.get(42L));
+        assertNull(map.putIfAbsent(42L, first));
+        assertEquals(first, map.putIfAbsent(42L, second));
+        assertEquals(first, map.get(42L));
+
+        map.put(42L, second);
+        assertEquals(second, map.get(42L));
+
+        // 0 marks empty slots, it is kept apart
+        assertNull(map.get(0L));
+        assertNull(map.putIfAbsent(0L, first));
+        assertEquals(first, map.get(0L));
+
+        assertEquals(2, map.size());
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(42L));
+        assertNull(map.get(0L));
+    }
+
+    @Test
+    @DisplayName("Segments grow past the expected size without losing entries")
+    void test_growth() {
+        assertSurvivesGrowth(new OffHeapLongUUIDMap(2, 10, null));
+    }
+
+    @Test
+    @DisplayName("Memory mapped segments grow past the expected size without losing entries")
+    void test_growth_mapped() {
+        assertSurvivesGrowth(new OffHeapLongUUIDMap(2, 10, mappedDirectory));
+    }
+
+    private static void assertSurvivesGrowth(OffHeapLongUUIDMap map) {
+
+        long initialBytes = map.capacityInBytes();
+
+        Random random = new Random(7);
+        Map<Long, UUID> expected = new HashMap<Long, UUID>();
+        while (expected.size() < 20000) {
+            long key = random.nextLong();
+            UUID value = UUID.randomUUID();
+            expected.put(key, value);
+            map.put(key, value);
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertTrue(map.capacityInBytes() > initialBytes);
+        for (Map.Entry<Long, UUID> entry : expected.entrySet())
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+}
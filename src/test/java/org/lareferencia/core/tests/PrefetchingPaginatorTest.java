@@ -0,0 +1,176 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.workers.PrefetchingPaginator;
+import org.lareferencia.core.worker.IPaginator;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+@DisplayName("Prefetching paginator")
+class PrefetchingPaginatorTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    /** Pages of consecutive integers, page n (1 based) fails if it is failingPage */
+    static class CountingPaginator implements IPaginator<Integer> {
+
+        final int totalPages;
+        final int failingPage;
+        final AtomicInteger fetched = new AtomicInteger();
+
+        CountingPaginator(int totalPages, int failingPage) {
+            this.totalPages = totalPages;
+            this.failingPage = failingPage;
+        }
+
+        @Override
+        public int getStartingPage() {
+            return 1;
+        }
+
+        @Override
+        public void setPageSize(int size) {
+        }
+
+        @Override
+        public int getTotalPages() {
+            return totalPages;
+        }
+
+        @Override
+        public Page<Integer> nextPage() {
+            int page = fetched.incrementAndGet();
+            if (page == failingPage)
+                throw new IllegalStateException("page " + page + " failed");
+            if (page > totalPages)
+                return Page.empty();
+            return new PageImpl<Integer>(IntStream.range((page - 1) * PAGE_SIZE, page * PAGE_SIZE).boxed().collect(Collectors.toList()));
+        }
+    }
+
+    private static final PlatformTransactionManager NO_TRANSACTIONS = new PlatformTransactionManager() {
+
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    };
+
+    @Test
+    @DisplayName("Pages are delivered in order and the paginator ends with an empty page")
+    void test_pages_in_order() {
+
+        PrefetchingPaginator<Integer> paginator = new PrefetchingPaginator<Integer>(new CountingPaginator(5, 0), NO_TRANSACTIONS, 3);
+        try {
+            List<Integer> items = new ArrayList<Integer>();
+            for (int i = 0; i < 5; i++)
+                items.addAll(paginator.nextPage().getContent());
+
+            assertEquals(IntStream.range(0, 5 * PAGE_SIZE).boxed().collect(Collectors.toList()), items);
+            assertTrue(paginator.nextPage().isEmpty());
+            assertEquals(5, paginator.getPagesDelivered());
+        } finally {
+            paginator.close();
+        }
+    }
+
+    @Test
+    @DisplayName("At most prefetchDepth pages are fetched ahead of the worker, never past the last page")
+    void test_depth_bound() throws Exception {
+
+        CountingPaginator delegate = new CountingPaginator(10, 0);
+        PrefetchingPaginator<Integer> paginator = new PrefetchingPaginator<Integer>(delegate, NO_TRANSACTIONS, 2);
+        try {
+            paginator.nextPage();
+            Thread.sleep(200);
+            assertEquals(3, delegate.fetched.get());
+
+            for (int i = 0; i < 9; i++)
+                paginator.nextPage();
+            Thread.sleep(200);
+            assertEquals(10, delegate.fetched.get());
+        } finally {
+            paginator.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A failed fetch is thrown to the worker and stops the background thread")
+    void test_shutdown_on_fetch_failure() throws Exception {
+
+        PrefetchingPaginator<Integer> paginator = new PrefetchingPaginator<Integer>(new CountingPaginator(10, 2), NO_TRANSACTIONS, 2);
+
+        assertEquals(PAGE_SIZE, paginator.nextPage().getNumberOfElements());
+        assertThrows(RuntimeException.class, paginator::nextPage);
+
+        assertFalse(prefetchThreadAlive());
+        assertTrue(paginator.nextPage().isEmpty());
+    }
+
+    @Test
+    @DisplayName("close() stops the background thread while pages are pending")
+    void test_close_stops_thread() throws Exception {
+
+        PrefetchingPaginator<Integer> paginator = new PrefetchingPaginator<Integer>(new CountingPaginator(10, 0), NO_TRANSACTIONS, 3);
+        paginator.nextPage();
+
+        paginator.close();
+        paginator.close();
+
+        assertFalse(prefetchThreadAlive());
+    }
+
+    /** Waits up to one second for the prefetch threads to end */
+    private static boolean prefetchThreadAlive() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            boolean alive = Thread.getAllStackTraces().keySet().stream()
+                    .anyMatch(thread -> thread.getName().equals("entity-page-prefetch") && thread.isAlive());
+            if (!alive)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.domain.IndexOriginalSettings;
+import org.lareferencia.core.entity.services.ReindexSettingsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest
+@DisplayName("Original index settings of full reindexes on H2")
+class ReindexSettingsServiceTest {
+
+    @Autowired
+    private ReindexSettingsService settingsService;
+
+    @AfterEach
+    void cleanUp() {
+        settingsService.setHoldSeconds(900);
+        settingsService.release("node-a");
+        for (IndexOriginalSettings settings : settingsService.release("node-b"))
+            settingsService.forget(settings.getIndexName());
+    }
+
+    @Test
+    @DisplayName("The first recorded settings of an index are kept")
+    void test_record_once() {
+
+        settingsService.hold("node-a", List.of("docs"));
+        settingsService.record("docs", "1s", "1");
+        settingsService.record("docs", "-1", "0");
+
+        settingsService.hold("node-b", List.of("docs"));
+        assertTrue(settingsService.release("node-a").isEmpty());
+
+        List<IndexOriginalSettings> restorable = settingsService.release("node-b");
+        assertEquals(1, restorable.size());
+        assertEquals("1s", restorable.get(0).getRefreshInterval());
+        assertEquals("1", restorable.get(0).getNumberOfReplicas());
+    }
+
+    @Test
+    @DisplayName("Settings held by a running indexer are not repaired")
+    void test_no_repair_while_held() {
+
+        settingsService.hold("node-a", List.of("docs"));
+        settingsService.record("docs", null, "2");
+
+        // another run without full reindex looks for settings to repair
+        assertTrue(settingsService.release(null).isEmpty());
+        assertTrue(settingsService.isRecorded("docs"));
+
+        // forget does not drop the settings of a held index
+        settingsService.forget("docs");
+        assertTrue(settingsService.isRecorded("docs"));
+    }
+
+    @Test
+    @DisplayName("Settings of an indexer whose hold expired are repaired")
+    void test_repair_after_expiration() {
+
+        settingsService.setHoldSeconds(-1);
+        settingsService.hold("node-a", List.of("docs"));
+        settingsService.record("docs", "30s", null);
+
+        List<IndexOriginalSettings> restorable = settingsService.release(null);
+        assertEquals(1, restorable.size());
+        assertNull(restorable.get(0).getNumberOfReplicas());
+
+        settingsService.forget("docs");
+        assertFalse(settingsService.isRecorded("docs"));
+    }
+}
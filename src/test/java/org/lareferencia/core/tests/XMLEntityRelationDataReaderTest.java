@@ -0,0 +1,178 @@
+/*
+ *   Copyright (c) 2013-2022. LA Referencia / Red CLARA and others
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *   This file is part of LA Referencia software platform LRHarvester v4.x
+ *   For any further information please contact Lautaro Matas <lmatas@gmail.com>
+ */
+
+package org.lareferencia.core.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import jakarta.xml.bind.JAXBContext;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.lareferencia.core.entity.xml.XMLEntityInstance;
+import org.lareferencia.core.entity.xml.XMLEntityRelationData;
+import org.lareferencia.core.entity.xml.XMLEntityRelationDataReader;
+import org.lareferencia.core.entity.xml.XMLFieldValueInstance;
+import org.lareferencia.core.entity.xml.XMLRelationInstance;
+import org.w3c.dom.Document;
+
+@DisplayName("Streaming entity-relation-data reader")
+class XMLEntityRelationDataReaderTest {
+
+    private static Logger logger = LogManager.getLogger(XMLEntityRelationDataReaderTest.class);
+
+    private static final String TEST_FILE = "entity-data-test1.xml";
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    @Test
+    @DisplayName("StAX reader builds the same object graph as the DOM + JAXB path")
+    void stax_reader_matches_jaxb() throws Exception {
+
+        byte[] xml = readResource(TEST_FILE);
+
+        XMLEntityRelationData expected = parseWithDomAndJaxb(xml);
+        XMLEntityRelationData actual = new XMLEntityRelationDataReader().read(new ByteArrayInputStream(xml));
+
+        assertEquals(expected.getSource(), actual.getSource());
+        assertEquals(expected.getRecord(), actual.getRecord());
+        assertEquals(expected.getLastUpdate(), actual.getLastUpdate());
+
+        assertEquals(expected.getEntities().size(), actual.getEntities().size());
+        for (int i = 0; i < expected.getEntities().size(); i++) {
+            XMLEntityInstance e = expected.getEntities().get(i);
+            XMLEntityInstance a = actual.getEntities().get(i);
+            assertEquals(e.getType(), a.getType());
+            assertEquals(e.getRef(), a.getRef());
+            assertEquals(e.getSemanticIdentifiers(), a.getSemanticIdentifiers());
+            assertFieldsEqual(e.getFields(), a.getFields());
+        }
+
+        assertEquals(expected.getRelations().size(), actual.getRelations().size());
+        for (int i = 0; i < expected.getRelations().size(); i++) {
+            XMLRelationInstance e = expected.getRelations().get(i);
+            XMLRelationInstance a = actual.getRelations().get(i);
+            assertEquals(e.getType(), a.getType());
+            assertEquals(e.getFromEntityRef(), a.getFromEntityRef());
+            assertEquals(e.getToEntityRef(), a.getToEntityRef());
+            assertFieldsEqual(e.getFields(), a.getFields());
+        }
+
+        assertTrue(actual.isConsistent());
+    }
+
+    @Test
+    @DisplayName("Fingerprints ignore the order of the content and do not confuse values with separators")
+    void fingerprint_is_canonical_and_unambiguous() throws Exception {
+
+        long fingerprint = fingerprint("<semanticIdentifier>id::a</semanticIdentifier><semanticIdentifier>id::b</semanticIdentifier>"
+                + "<field name=\"name\" value=\"Jane\"/><field name=\"name\" value=\"Doe\"/>");
+
+        assertEquals(fingerprint, fingerprint("<semanticIdentifier>id::b</semanticIdentifier><semanticIdentifier>id::a</semanticIdentifier>"
+                + "<field name=\"name\" value=\"Doe\"/><field name=\"name\" value=\"Jane\"/>"));
+
+        // the same text once List.toString joined the values
+        assertNotEquals(fingerprint, fingerprint("<semanticIdentifier>id::a, id::b</semanticIdentifier>"
+                + "<field name=\"name\" value=\"Jane\"/><field name=\"name\" value=\"Doe\"/>"));
+        assertNotEquals(fingerprint("<semanticIdentifier>id::a</semanticIdentifier><field name=\"name\" value=\"Doe, Jane\"/>"),
+                fingerprint("<semanticIdentifier>id::a</semanticIdentifier><field name=\"name\" value=\"Doe\"/><field name=\"name\" value=\"Jane\"/>"));
+    }
+
+    @Test
+    @Tag("benchmark")
+    @Disabled("Timing benchmark, run manually")
+    @DisplayName("Benchmark: DOM + JAXB (context per call) vs StAX reader")
+    void benchmark_dom_vs_stax() throws Exception {
+
+        byte[] xml = readResource(TEST_FILE);
+        XMLEntityRelationDataReader reader = new XMLEntityRelationDataReader();
+
+        // warm up both paths
+        for (int i = 0; i < 50; i++) {
+            parseWithDomAndJaxb(xml);
+            reader.read(new ByteArrayInputStream(xml));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++)
+            parseWithDomAndJaxb(xml);
+        long domNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++)
+            reader.read(new ByteArrayInputStream(xml));
+        long staxNanos = System.nanoTime() - start;
+
+        logger.info(String.format("%s x %d :: DOM+JAXB %.3f ms/doc :: StAX %.3f ms/doc :: speedup %.1fx",
+                TEST_FILE, BENCHMARK_ITERATIONS,
+                domNanos / 1e6 / BENCHMARK_ITERATIONS, staxNanos / 1e6 / BENCHMARK_ITERATIONS,
+                (double) domNanos / staxNanos));
+    }
+
+    /**
+     * The pre-existing ingestion path: build a DOM, then unmarshal it with a freshly created JAXB context
+     */
+    private static XMLEntityRelationData parseWithDomAndJaxb(byte[] xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document document = builder.parse(new ByteArrayInputStream(xml));
+
+        JAXBContext context = JAXBContext.newInstance(XMLEntityRelationData.class);
+        return (XMLEntityRelationData) context.createUnmarshaller().unmarshal(document);
+    }
+
+    private static void assertFieldsEqual(List<XMLFieldValueInstance> expected, List<XMLFieldValueInstance> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            XMLFieldValueInstance e = expected.get(i);
+            XMLFieldValueInstance a = actual.get(i);
+            assertEquals(e.getName(), a.getName());
+            assertEquals(e.getLang(), a.getLang());
+            assertEquals(e.getValue(), a.getValue());
+            assertEquals(e.getPreferred(), a.getPreferred());
+            assertFieldsEqual(e.getFields(), a.getFields());
+        }
+    }
+
+    private static long fingerprint(String entityContent) throws Exception {
+        String xml = "<entity-relation-data source=\"S\" record=\"R\" lastUpdate=\"2020-01-01 00:00:00\"><entities>"
+                + "<entity type=\"Person\" ref=\"p1\">" + entityContent + "</entity></entities><relations/></entity-relation-data>";
+        return new XMLEntityRelationDataReader().read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))).calculateFingerprint();
+    }
+
+    private byte[] readResource(String name) throws Exception {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream(name)) {
+            assertNotNull(input, "Test resource not found: " + name);
+            return input.readAllBytes();
+        }
+    }
+}